@@ -184,6 +184,9 @@ public class AbstractConfigService implements ConfigService {
     			result = ConfigItem.merge(result, provider.items);
     		}
     	}
+    	if ( null==result ) {
+    		result = new ArrayList<>();
+    	}
     	globalItems = result;
     	return result;
     }
@@ -202,6 +205,15 @@ public class AbstractConfigService implements ConfigService {
     	}
     }
 
+    /**
+     * 删除配置实现, 全局配置重新合并
+     */
+    public static void staticUnregisterProvider(URI url) {
+        if ( providers.remove(url)!=null ) {
+            mergeGlobalItems();
+        }
+    }
+
     public static Object staticGetConfigValue(String configPath) {
     	String[] parts = StringUtil.split(configPath, "/|\\.");
         Object value = null;
@@ -8,6 +8,7 @@ import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +29,36 @@ public class Exchange implements Comparable<Exchange>{
     private boolean future;
     private Map<String, ExchangeContract> contracts;
     private LocalTime[] marketTimes;
+    /**
+     * 按照 合约定义+交易日 缓存的交易时间, 同一品种的不同合约共用
+     */
+    private Map<TradingTimesKey, ExchangeableTradingTimes> tradingTimesCache;
+
+    private static final int TRADING_TIMES_CACHE_SIZE = 8192;
+
+    private static class TradingTimesKey {
+        final ExchangeContract contract;
+        final LocalDate tradingDay;
+
+        TradingTimesKey(ExchangeContract contract, LocalDate tradingDay) {
+            this.contract = contract;
+            this.tradingDay = tradingDay;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(contract)*31+tradingDay.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if ( !(o instanceof TradingTimesKey) ) {
+                return false;
+            }
+            TradingTimesKey k = (TradingTimesKey)o;
+            return contract==k.contract && tradingDay.equals(k.tradingDay);
+        }
+    }
 
     public String name() {
         return name;
@@ -135,6 +166,15 @@ public class Exchange implements Comparable<Exchange>{
         return result;
     }
 
+    /**
+     * 清除缓存的交易时间, 交易日历或合约交易时间配置修改后调用
+     */
+    public void clearTradingTimesCache() {
+        synchronized(tradingTimesCache) {
+            tradingTimesCache.clear();
+        }
+    }
+
     private ExchangeableTradingTimes getTradingTimes(String instrumentId, Exchangeable instrument, LocalDate tradingDay) {
         if ( !MarketDayUtil.isMarketDay(this, tradingDay)) {
             return null;
@@ -143,6 +183,27 @@ public class Exchange implements Comparable<Exchange>{
         if( contract==null ) {
             return null;
         }
+        if ( null==instrument) {
+            instrument = Exchangeable.fromString(name(), instrumentId);
+        }
+        TradingTimesKey key = new TradingTimesKey(contract, tradingDay);
+        ExchangeableTradingTimes result = null;
+        synchronized(tradingTimesCache) {
+            result = tradingTimesCache.get(key);
+        }
+        if ( result==null ) {
+            result = createTradingTimes(contract, instrument, tradingDay);
+            synchronized(tradingTimesCache) {
+                tradingTimesCache.put(key, result);
+            }
+        }
+        if ( !result.getInstrument().equals(instrument) ) {
+            result = result.copyFor(instrument);
+        }
+        return result;
+    }
+
+    private ExchangeableTradingTimes createTradingTimes(ExchangeContract contract, Exchangeable instrument, LocalDate tradingDay) {
         LinkedList<LocalDateTime> marketTimes = new LinkedList<>();
         List<MarketTimeSegmentInfo> segmentInfos = new ArrayList<>();
         SpecialTimeFrame specialTimeFrame = contract.matchSpecialTimeFrame(tradingDay);
@@ -166,6 +227,10 @@ public class Exchange implements Comparable<Exchange>{
                 if ( i>0 && endTime.isBefore(marketTimes.getLast()) ){
                     endTime = endTime.plusDays(1);
                 }
+                //跨越午夜的交易小节, 例如 21:00-02:30
+                if ( endTime.isBefore(beginTime) ) {
+                    endTime = endTime.plusDays(1);
+                }
                 if ( null!=specialTimeFrame ) {
                     if ( specialTimeFrame.beginTime.isAfter(endTime) ) {
                         continue;
@@ -184,9 +249,6 @@ public class Exchange implements Comparable<Exchange>{
                 segmentInfos.add(new MarketTimeSegmentInfo(segment, segTimes.toArray(new LocalDateTime[segTimes.size()])));
             }
         }
-        if ( null==instrument) {
-            instrument = Exchangeable.fromString(name(), instrumentId);
-        }
         return new ExchangeableTradingTimes(instrument, tradingDay ,marketTimes.toArray(new LocalDateTime[marketTimes.size()]) , segmentInfos );
     }
 
@@ -237,6 +299,13 @@ public class Exchange implements Comparable<Exchange>{
         this.zoneId = zoneId;
         this.zoneOffset = LocalDateTime.now().atZone(zoneId).getOffset();
         this.marketTimes = marketTimes;
+        tradingTimesCache = new LinkedHashMap<TradingTimesKey, ExchangeableTradingTimes>(256, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TradingTimesKey, ExchangeableTradingTimes> eldest) {
+                return size()>TRADING_TIMES_CACHE_SIZE;
+            }
+        };
         contracts = new HashMap<>();
         for(ExchangeContract contract: ExchangeContract.getContracts(name)) {
             for(String commodity:contract.getCommodities()) {
@@ -17,6 +17,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -537,7 +538,7 @@ public class ExchangeableData {
     private DataProvider fsProvider;
     private DataProvider zipProvider;
     private SqlDataProvide sqlProvier = null;
-    private static Map<String, SoftReference<String>> cachedDatas = new HashMap<>();
+    private static Map<String, SoftReference<String>> cachedDatas = new ConcurrentHashMap<>();
 
     public ExchangeableData(File dataDir){
         this(dataDir, true);
@@ -0,0 +1,369 @@
+package trader.common.exchangeable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import trader.common.exchangeable.ExchangeableData.DataInfo;
+
+/**
+ * 已解码的历史数据缓存, 按照 品种+数据类型+交易日 缓存, 多个回测/加载器共享.
+ * <BR>缓存总权重(估算的内存字节数)超过上限时按照最近最少使用的顺序淘汰; 值使用SoftReference保存, 内存不足时由GC回收.
+ * <BR>同一个KEY同时请求时只有第一个请求调用loader解码, 其它请求等待解码结果. 缓存的值由多个使用者共享, 只能读取不能修改
+ */
+public class ExchangeableDataCache {
+
+    /**
+     * 估算缓存值占用的内存
+     */
+    public static interface Weigher<T> {
+        public long weigh(T value);
+    }
+
+    /**
+     * 每个TICK行情估算占用的字节数, 包含5档报价数组
+     */
+    public static final int WEIGHT_PER_TICK = 512;
+    /**
+     * 每个KBar估算占用的字节数
+     */
+    public static final int WEIGHT_PER_BAR = 256;
+    /**
+     * 集合中其它对象估算占用的字节数
+     */
+    public static final int WEIGHT_PER_OBJECT = 64;
+
+    private static class Key {
+        final Exchangeable instrument;
+        final String dataInfo;
+        final LocalDate tradingDay;
+        final int hash;
+
+        Key(Exchangeable instrument, DataInfo dataInfo, LocalDate tradingDay) {
+            this.instrument = instrument;
+            this.dataInfo = dataInfo.name();
+            this.tradingDay = tradingDay;
+            this.hash = Objects.hash(instrument, this.dataInfo, tradingDay);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if ( this==o ) {
+                return true;
+            }
+            if ( !(o instanceof Key) ) {
+                return false;
+            }
+            Key k = (Key)o;
+            return Objects.equals(instrument, k.instrument) && dataInfo.equals(k.dataInfo) && Objects.equals(tradingDay, k.tradingDay);
+        }
+
+        @Override
+        public String toString() {
+            return instrument+"/"+dataInfo+"/"+tradingDay;
+        }
+    }
+
+    private static class Entry extends SoftReference<Object> {
+        final Key key;
+        final long weight;
+
+        Entry(Key key, Object value, long weight, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 数据不存在时缓存的值
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    private static ExchangeableDataCache defaultCache;
+
+    private final long maxWeight;
+    /**
+     * 按照访问顺序排列, 只在 synchronized(entries) 中访问
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ReferenceQueue<Object> collectedQueue = new ReferenceQueue<>();
+    private final Map<Key, FutureTask<Object>> loadings = new ConcurrentHashMap<>();
+    private long weight;
+
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+    private AtomicLong loadTime = new AtomicLong();
+    private AtomicLong evictionCount = new AtomicLong();
+    private AtomicLong collectedCount = new AtomicLong();
+
+    /**
+     * @param maxWeight 缓存总权重上限(字节)
+     */
+    public ExchangeableDataCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * JVM共享的缺省缓存, 上限为最大堆内存的1/4
+     */
+    public static synchronized ExchangeableDataCache getDefault() {
+        if ( defaultCache==null ) {
+            defaultCache = new ExchangeableDataCache(Runtime.getRuntime().maxMemory()/4);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * 返回缓存的数据, 不存在时调用loader解码, 使用 estimateWeight() 估算权重
+     *
+     * @param tradingDay 交易日, 不区分交易日的数据为null
+     *
+     * @return loader返回的数据, loader返回null时缓存并返回null
+     */
+    public <T> T get(Exchangeable instrument, DataInfo dataInfo, LocalDate tradingDay, Callable<T> loader) throws Exception
+    {
+        return get(instrument, dataInfo, tradingDay, loader, ExchangeableDataCache::estimateWeight);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(Exchangeable instrument, DataInfo dataInfo, LocalDate tradingDay, Callable<T> loader, Weigher<? super T> weigher) throws Exception
+    {
+        Key key = new Key(instrument, dataInfo, tradingDay);
+        Object value = getCached(key);
+        if ( value!=null ) {
+            hitCount.incrementAndGet();
+            return value==NULL_VALUE?null:(T)value;
+        }
+        FutureTask<Object> task = new FutureTask<>(()->{
+            long t0 = System.nanoTime();
+            T result = loader.call();
+            loadTime.addAndGet(System.nanoTime()-t0);
+            long w = result!=null?weigher.weigh(result):0;
+            Object value0 = result!=null?result:NULL_VALUE;
+            put(key, value0, w);
+            return value0;
+        });
+        FutureTask<Object> existTask = loadings.putIfAbsent(key, task);
+        if ( existTask!=null ) {
+            //等待其它线程的解码结果
+            hitCount.incrementAndGet();
+            task = existTask;
+        } else {
+            try {
+                //putIfAbsent之前其它线程可能刚刚完成解码
+                value = getCached(key);
+                if ( value!=null ) {
+                    hitCount.incrementAndGet();
+                    task.cancel(false);
+                    return value==NULL_VALUE?null:(T)value;
+                }
+                missCount.incrementAndGet();
+                task.run();
+            } finally {
+                loadings.remove(key, task);
+            }
+        }
+        try {
+            value = task.get();
+        }catch(ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if ( cause instanceof Exception ) {
+                throw (Exception)cause;
+            }
+            throw ee;
+        }
+        return value==NULL_VALUE?null:(T)value;
+    }
+
+    /**
+     * 删除某个品种某种数据某个交易日的缓存
+     */
+    public void invalidate(Exchangeable instrument, DataInfo dataInfo, LocalDate tradingDay) {
+        Key key = new Key(instrument, dataInfo, tradingDay);
+        synchronized(entries) {
+            Entry entry = entries.remove(key);
+            if ( entry!=null ) {
+                weight -= entry.weight;
+            }
+        }
+    }
+
+    /**
+     * 删除某个交易日的全部缓存
+     */
+    public void invalidate(LocalDate tradingDay) {
+        synchronized(entries) {
+            for(Iterator<Entry> it=entries.values().iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if ( Objects.equals(tradingDay, entry.key.tradingDay) ) {
+                    it.remove();
+                    weight -= entry.weight;
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized(entries) {
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * 当前缓存的总权重
+     */
+    public long getWeight() {
+        synchronized(entries) {
+            purgeCollected();
+            return weight;
+        }
+    }
+
+    public int size() {
+        synchronized(entries) {
+            purgeCollected();
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 调用loader解码的次数
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 解码累计耗时(毫秒)
+     */
+    public long getLoadTime() {
+        return loadTime.get()/1000000;
+    }
+
+    /**
+     * 因为超过权重上限而淘汰的数量
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * 内存不足被GC回收的数量
+     */
+    public long getCollectedCount() {
+        return collectedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ExchangeableDataCache[size "+size()+" weight "+getWeight()+"/"+maxWeight+" hit "+hitCount+" miss "+missCount+" evicted "+evictionCount+" collected "+collectedCount+"]";
+    }
+
+    /**
+     * 按照值的类型估算权重: 字符串按照字符数, TICK和KBar列表按照元素数量
+     */
+    public static long estimateWeight(Object value) {
+        if ( value instanceof CharSequence ) {
+            return 40+2L*((CharSequence)value).length();
+        }
+        if ( value instanceof Collection ) {
+            Collection<?> c = (Collection<?>)value;
+            if ( c.isEmpty() ) {
+                return 16;
+            }
+            Object first = (c instanceof List)?((List<?>)c).get(0):c.iterator().next();
+            int perElem = WEIGHT_PER_OBJECT;
+            String className = first.getClass().getName();
+            if ( className.endsWith("MarketData") ) {
+                perElem = WEIGHT_PER_TICK;
+            } else if ( className.endsWith("Bar") || className.endsWith("BarImpl") ) {
+                perElem = WEIGHT_PER_BAR;
+            }
+            return 16+(long)perElem*c.size();
+        }
+        return WEIGHT_PER_OBJECT;
+    }
+
+    private Object getCached(Key key) {
+        synchronized(entries) {
+            purgeCollected();
+            Entry entry = entries.get(key);
+            if ( entry==null ) {
+                return null;
+            }
+            Object value = entry.get();
+            if ( value==null ) {
+                entries.remove(key);
+                weight -= entry.weight;
+                collectedCount.incrementAndGet();
+            }
+            return value;
+        }
+    }
+
+    /**
+     * 加入缓存, 超过权重上限时淘汰最久未使用的数据, 新加入的数据总是保留
+     */
+    private void put(Key key, Object value, long w) {
+        synchronized(entries) {
+            purgeCollected();
+            Entry old = entries.put(key, new Entry(key, value, w, collectedQueue));
+            if ( old!=null ) {
+                weight -= old.weight;
+            }
+            weight += w;
+            for(Iterator<Entry> it=entries.values().iterator(); weight>maxWeight && it.hasNext();) {
+                Entry entry = it.next();
+                if ( entry.key.equals(key) ) {
+                    continue;
+                }
+                it.remove();
+                weight -= entry.weight;
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 清理被GC回收的数据
+     */
+    private void purgeCollected() {
+        Object ref = null;
+        while( (ref=collectedQueue.poll())!=null ) {
+            Entry entry = (Entry)ref;
+            //只删除同一个Entry, 同一个KEY可能已经重新加载
+            if ( entries.get(entry.key)==entry ) {
+                entries.remove(entry.key);
+                weight -= entry.weight;
+                collectedCount.incrementAndGet();
+            }
+        }
+    }
+
+}
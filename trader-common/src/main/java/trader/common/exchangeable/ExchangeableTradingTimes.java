@@ -3,6 +3,7 @@ package trader.common.exchangeable;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.List;
 
 import trader.common.exchangeable.ExchangeContract.MarketTimeSegment;
@@ -32,6 +33,27 @@ public class ExchangeableTradingTimes {
         }
     }
 
+    /**
+     * 一次查找的结果, 调用方可以重复使用避免创建对象
+     */
+    public static class TimeLookup {
+        /**
+         * 市场时间段
+         */
+        public MarketTimeStage stage;
+        /**
+         * 开市以来的时间(毫秒), -1 表示不在开市到收市之间
+         */
+        public int tradingTime;
+        /**
+         * 所在或者下一个交易小节的位置(marketTimes下标/2), 收市后等于交易小节数量
+         */
+        public int frameIndex;
+    }
+
+    private static final long AUCTION_MILLIS = 5*60*1000;
+    private static final long BEFORE_OPEN_MILLIS = 60*60*1000;
+
     private Exchangeable instrument;
     private LocalDate tradingDay;
     private int totalTradingMillis;
@@ -42,6 +64,20 @@ public class ExchangeableTradingTimes {
      */
     private List<MarketTimeSegmentInfo> segmentInfos;
     private int[] marketTimeMillis;
+    private ZoneOffset zoneOffset;
+    /**
+     * 每个交易小节的开始/结束时间(epoch millis)
+     */
+    private long[] frameBeginMillis;
+    private long[] frameEndMillis;
+    /**
+     * 每个交易小节开始前已经交易的时间(毫秒)
+     */
+    private int[] frameTradingMillis;
+    /**
+     * 交易小节是否为日市/夜市的开始, 之前有集合竞价
+     */
+    private boolean[] frameSegmentBegin;
 
     ExchangeableTradingTimes(Exchangeable instrument, LocalDate tradingDay, LocalDateTime[] marketTimes, List<MarketTimeSegmentInfo> segmentInfos){
         this.instrument = instrument;
@@ -57,6 +93,43 @@ public class ExchangeableTradingTimes {
             marketTimeMillis[i/2] = (int)d.getSeconds()*1000;
             totalTradingMillis += (int)d.getSeconds()*1000;
         }
+        //预先计算epoch millis查找表
+        zoneOffset = instrument.exchange().getZoneOffset();
+        int frameCount = marketTimes.length/2;
+        frameBeginMillis = new long[frameCount];
+        frameEndMillis = new long[frameCount];
+        frameTradingMillis = new int[frameCount];
+        frameSegmentBegin = new boolean[frameCount];
+        int tradingMillis = 0;
+        for(int i=0;i<frameCount;i++) {
+            frameBeginMillis[i] = toMillis(marketTimes[i*2]);
+            frameEndMillis[i] = toMillis(marketTimes[i*2+1]);
+            frameTradingMillis[i] = tradingMillis;
+            frameSegmentBegin[i] = isSegmentBeginTime(marketTimes[i*2]);
+            tradingMillis += marketTimeMillis[i];
+        }
+    }
+
+    /**
+     * 同一品种其它合约的交易时间, 共用已经计算好的交易时间和查找表
+     */
+    ExchangeableTradingTimes copyFor(Exchangeable instrument) {
+        ExchangeableTradingTimes result = new ExchangeableTradingTimes();
+        result.instrument = instrument;
+        result.tradingDay = tradingDay;
+        result.totalTradingMillis = totalTradingMillis;
+        result.marketTimes = marketTimes;
+        result.segmentInfos = segmentInfos;
+        result.marketTimeMillis = marketTimeMillis;
+        result.zoneOffset = zoneOffset;
+        result.frameBeginMillis = frameBeginMillis;
+        result.frameEndMillis = frameEndMillis;
+        result.frameTradingMillis = frameTradingMillis;
+        result.frameSegmentBegin = frameSegmentBegin;
+        return result;
+    }
+
+    private ExchangeableTradingTimes() {
     }
 
     public Exchangeable getInstrument() {
@@ -121,30 +194,16 @@ public class ExchangeableTradingTimes {
      * 返回开市以来的时间(毫秒)
      */
     public int getTradingTime(LocalDateTime marketTime) {
-        if ( marketTime.isBefore(marketTimes[0]) || compareTimeNoNanos(marketTime,marketTimes[marketTimes.length-1])>0) {
-            return -1;
-        }
-        int result = 0;
-        for(int i=0;i<marketTimes.length;i+=2) {
-            LocalDateTime marketTimeStageBegin = marketTimes[i];
-            LocalDateTime marketTimeStageEnd = marketTimes[i+1];
-            if ( compareTimeNoNanos(marketTime, marketTimeStageBegin)<=0 ) {
-                break;
-            }
-            Duration d = null;
-            int compareResult = compareTimeNoNanos(marketTime, marketTimeStageEnd);
-            if ( compareResult<0 ) {
-                d = DateUtil.between(marketTimeStageBegin, marketTime);
-            }else {
-                d = DateUtil.between(marketTimeStageBegin, marketTimeStageEnd);
-            }
-            long millis = d.getSeconds()*1000+d.getNano()/1000000;
-            result += millis;
-            if ( compareResult<=0 ) {
-                break;
-            }
-        }
-        return result;
+        return getTradingTime(toMillis(marketTime));
+    }
+
+    /**
+     * 返回开市以来的时间(毫秒)
+     *
+     * @param marketMillis epoch millis
+     */
+    public int getTradingTime(long marketMillis) {
+        return getTradingTime(marketMillis, findFrame(marketMillis));
     }
 
     /**
@@ -198,36 +257,86 @@ public class ExchangeableTradingTimes {
      * 市场时间段
      */
     public MarketTimeStage getTimeStage(LocalDateTime time) {
-        for(int i=0;i<marketTimes.length;i+=2 ) {
-            LocalDateTime frameBegin = marketTimes[i];
-            LocalDateTime frameEnd = marketTimes[i+1];
-            if ( isSegmentBeginTime(frameBegin) ) {
-                LocalDateTime auctionTime = frameBegin.minusMinutes(5);
-                LocalDateTime marketBeforeOpenTime = auctionTime.minusMinutes(55);
-
-                if ( time.isBefore(marketBeforeOpenTime) ){
-                    return MarketTimeStage.MarketClose;
-                } else {
-                    if ( time.isBefore(auctionTime) ) {
-                        return MarketTimeStage.BeforeMarketOpen;
-                    } else {
-                        if ( time.isBefore(frameBegin)){
-                            return MarketTimeStage.AggregateAuction;
-                        }
-                    }
-                }
+        return getTimeStage(toMillis(time));
+    }
+
+    /**
+     * 市场时间段
+     *
+     * @param marketMillis epoch millis
+     */
+    public MarketTimeStage getTimeStage(long marketMillis) {
+        return getTimeStage(marketMillis, findFrame(marketMillis));
+    }
+
+    /**
+     * 一次查找同时返回市场时间段, 开市以来的时间和交易小节位置, 不创建对象
+     *
+     * @param marketMillis epoch millis
+     */
+    public void lookup(long marketMillis, TimeLookup result) {
+        int frame = findFrame(marketMillis);
+        result.frameIndex = frame;
+        result.stage = getTimeStage(marketMillis, frame);
+        result.tradingTime = getTradingTime(marketMillis, frame);
+    }
+
+    /**
+     * 二分查找第一个结束时间(忽略毫秒)不早于marketMillis的交易小节
+     *
+     * @return 交易小节数量 如果已经收市
+     */
+    private int findFrame(long marketMillis) {
+        int low = 0, high = frameEndMillis.length;
+        while( low<high ) {
+            int mid = (low+high)>>>1;
+            //比较时忽略毫秒: 结束时间所在的一秒内仍然属于这个交易小节
+            if ( marketMillis<frameEndMillis[mid]+1000 ) {
+                high = mid;
             } else {
-                if ( time.isBefore(frameBegin) ) {
-                    return MarketTimeStage.MarketBreak;
-                }
-            }
-            if ( compareTimeNoNanos(time, frameBegin)>=0 && compareTimeNoNanos(time,frameEnd)<=0 ) {
-                return MarketTimeStage.MarketOpen;
+                low = mid+1;
             }
         }
+        return low;
+    }
+
+    private MarketTimeStage getTimeStage(long marketMillis, int frame) {
+        if ( frame>=frameBeginMillis.length ) {
+            return MarketTimeStage.MarketClose;
+        }
+        long beginMillis = frameBeginMillis[frame];
+        if ( marketMillis>=beginMillis ) {
+            return MarketTimeStage.MarketOpen;
+        }
+        if ( !frameSegmentBegin[frame] ) {
+            return MarketTimeStage.MarketBreak;
+        }
+        if ( marketMillis>=beginMillis-AUCTION_MILLIS ) {
+            return MarketTimeStage.AggregateAuction;
+        }
+        if ( marketMillis>=beginMillis-BEFORE_OPEN_MILLIS ) {
+            return MarketTimeStage.BeforeMarketOpen;
+        }
         return MarketTimeStage.MarketClose;
     }
 
+    private int getTradingTime(long marketMillis, int frame) {
+        if ( frame>=frameBeginMillis.length || marketMillis<frameBeginMillis[0] ) {
+            return -1;
+        }
+        int result = frameTradingMillis[frame];
+        long beginMillis = frameBeginMillis[frame];
+        //比较时忽略毫秒: 交易小节开始的一秒内不计时
+        if ( marketMillis>=beginMillis+1000 ) {
+            result += (int)(Math.min(marketMillis, frameEndMillis[frame])-beginMillis);
+        }
+        return result;
+    }
+
+    private long toMillis(LocalDateTime time) {
+        return time.toEpochSecond(zoneOffset)*1000+time.getNano()/1000000;
+    }
+
     private boolean isSegmentBeginTime(LocalDateTime time) {
         for(MarketTimeSegmentInfo info:segmentInfos) {
             if ( info.marketTimes[0].equals(time)) {
@@ -237,8 +346,4 @@ public class ExchangeableTradingTimes {
         return false;
     }
 
-    private static int compareTimeNoNanos(LocalDateTime time1, LocalDateTime time2) {
-        return time1.withNano(0).compareTo(time2.withNano(0));
-    }
-
 }
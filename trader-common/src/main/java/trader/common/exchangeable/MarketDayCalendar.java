@@ -0,0 +1,169 @@
+package trader.common.exchangeable;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 预先编译的交易日历: 每天一个bit的位图, 加上rank/select表.
+ * <BR>判断是否交易日, 前后第N个交易日, 两个日期之间的交易日数量都是常数时间.
+ * <BR>覆盖范围之外的日期使用周末+休市日列表逐日计算, 结果相同
+ */
+class MarketDayCalendar {
+    static final LocalDate FIRST_DAY = LocalDate.of(1990, 1, 1);
+    static final LocalDate LAST_DAY = LocalDate.of(2099, 12, 31);
+
+    private final Set<LocalDate> closeDays;
+    private final long firstEpochDay;
+    private final int dayCount;
+    /**
+     * 第i位表示 firstEpochDay+i 是否为交易日
+     */
+    private final long[] words;
+    /**
+     * 每个word之前的交易日数量
+     */
+    private final int[] wordRanks;
+    /**
+     * 按顺序排列的全部交易日位置
+     */
+    private final int[] marketDays;
+
+    MarketDayCalendar(Collection<LocalDate> closeDays) {
+        this.closeDays = new HashSet<>();
+        if ( closeDays!=null ) {
+            this.closeDays.addAll(closeDays);
+        }
+        firstEpochDay = FIRST_DAY.toEpochDay();
+        dayCount = (int)(LAST_DAY.toEpochDay()-firstEpochDay+1);
+        words = new long[(dayCount+63)/64];
+        wordRanks = new int[words.length];
+        int marketDayCount = 0;
+        for(int i=0;i<dayCount;i++) {
+            if ( isMarketDay0(LocalDate.ofEpochDay(firstEpochDay+i)) ) {
+                words[i>>>6] |= 1L<<(i&63);
+                marketDayCount++;
+            }
+        }
+        marketDays = new int[marketDayCount];
+        int rank = 0;
+        for(int i=0;i<words.length;i++) {
+            wordRanks[i] = rank;
+            long word = words[i];
+            while( word!=0 ) {
+                marketDays[rank++] = i*64+Long.numberOfTrailingZeros(word);
+                word &= word-1;
+            }
+        }
+    }
+
+    /**
+     * 逐日计算的规则: 周一到周五并且不是休市日
+     */
+    private boolean isMarketDay0(LocalDate day) {
+        DayOfWeek dayOfWeek = day.getDayOfWeek();
+        if ( dayOfWeek == DayOfWeek.SUNDAY || dayOfWeek==DayOfWeek.SATURDAY) {
+            return false;
+        }
+        return !closeDays.contains(day);
+    }
+
+    public boolean isMarketDay(LocalDate day) {
+        long index = day.toEpochDay()-firstEpochDay;
+        if ( index<0 || index>=dayCount ) {
+            return isMarketDay0(day);
+        }
+        return (words[(int)(index>>>6)] & (1L<<(index&63)))!=0;
+    }
+
+    /**
+     * 前后第N个交易日, 不包含当天
+     *
+     * @param count >0 后面的交易日, <0 前面的交易日
+     */
+    public LocalDate nextMarketDays(LocalDate day, int count) {
+        if ( count==0 ) {
+            return day;
+        }
+        long index = day.toEpochDay()-firstEpochDay;
+        if ( index>=0 && index<dayCount ) {
+            long marketDayIndex;
+            if ( count>0 ) {
+                marketDayIndex = rank(index+1)+count-1L;
+            } else {
+                marketDayIndex = rank(index)+(long)count;
+            }
+            if ( marketDayIndex>=0 && marketDayIndex<marketDays.length ) {
+                return LocalDate.ofEpochDay(firstEpochDay+marketDays[(int)marketDayIndex]);
+            }
+        }
+        //超出范围, 逐日计算
+        int step = count>0?1:-1;
+        for(int i=0;i<Math.abs(count);i++) {
+            do {
+                day = day.plusDays(step);
+            } while( !isMarketDay(day) );
+        }
+        return day;
+    }
+
+    /**
+     * 两个日期之间(都包含)的交易日数量
+     */
+    public int countMarketDays(LocalDate beginDay, LocalDate endDay) {
+        if ( endDay.isBefore(beginDay) ) {
+            return 0;
+        }
+        long beginIndex = beginDay.toEpochDay()-firstEpochDay, endIndex = endDay.toEpochDay()-firstEpochDay;
+        if ( beginIndex>=0 && endIndex<dayCount ) {
+            return rank(endIndex+1)-rank(beginIndex);
+        }
+        int result = 0;
+        for(LocalDate day=beginDay; !day.isAfter(endDay); day=day.plusDays(1)) {
+            if ( isMarketDay(day) ) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 两个日期之间(都包含)的全部交易日
+     */
+    public LocalDate[] getMarketDays(LocalDate beginDay, LocalDate endDay) {
+        if ( endDay.isBefore(beginDay) ) {
+            return new LocalDate[0];
+        }
+        long beginIndex = beginDay.toEpochDay()-firstEpochDay, endIndex = endDay.toEpochDay()-firstEpochDay;
+        if ( beginIndex>=0 && endIndex<dayCount ) {
+            int rank0 = rank(beginIndex), rank1 = rank(endIndex+1);
+            LocalDate[] result = new LocalDate[rank1-rank0];
+            for(int i=rank0;i<rank1;i++) {
+                result[i-rank0] = LocalDate.ofEpochDay(firstEpochDay+marketDays[i]);
+            }
+            return result;
+        }
+        LocalDate[] result = new LocalDate[countMarketDays(beginDay, endDay)];
+        int i = 0;
+        for(LocalDate day=beginDay; !day.isAfter(endDay); day=day.plusDays(1)) {
+            if ( isMarketDay(day) ) {
+                result[i++] = day;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 位置之前(不包含)的交易日数量, index 范围 [0, dayCount]
+     */
+    private int rank(long index) {
+        if ( index>=dayCount ) {
+            return marketDays.length;
+        }
+        int word = (int)(index>>>6);
+        return wordRanks[word]+Long.bitCount(words[word] & ((1L<<(index&63))-1));
+    }
+
+}
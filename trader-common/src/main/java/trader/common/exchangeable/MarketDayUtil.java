@@ -5,6 +5,7 @@ import java.time.DayOfWeek;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -13,14 +14,53 @@ import java.util.Map;
 import trader.common.util.DateUtil;
 import trader.common.util.IOUtil;
 
+/**
+ * 交易日计算. 每个交易所的休市日预先编译为交易日历位图, 前后交易日和交易日区间都是常数时间
+ */
 public class MarketDayUtil {
 
-    private static final Map<String,List<LocalDate>> closeDayMap = new HashMap<>();
+    private static volatile Map<String, MarketDayCalendar> calendars = Collections.emptyMap();
     static{
-        loadCloseDayMap();
+        reload();
     }
 
-    private static void loadCloseDayMap(){
+    /**
+     * 重新加载休市日配置, 重建交易日历, 清除已经缓存的交易时间
+     */
+    public static synchronized void reload() {
+        Map<String,List<LocalDate>> closeDayMap = loadCloseDayMap();
+        Map<String, MarketDayCalendar> calendars = new HashMap<>();
+        for(Exchange exchange:Exchange.getInstances()) {
+            calendars.put(exchange.name(), new MarketDayCalendar(closeDayMap.get(exchange.name())));
+        }
+        MarketDayUtil.calendars = calendars;
+        for(Exchange exchange:Exchange.getInstances()) {
+            exchange.clearTradingTimesCache();
+        }
+    }
+
+    private static MarketDayCalendar getCalendar(Exchange exchange) {
+        if ( exchange==null ) {
+            exchange = Exchange.SSE;
+        }
+        MarketDayCalendar result = calendars.get(exchange.name());
+        if ( result==null ) {
+            //没有休市日配置的交易所, 只排除周末
+            synchronized(MarketDayUtil.class) {
+                Map<String, MarketDayCalendar> calendars = new HashMap<>(MarketDayUtil.calendars);
+                result = calendars.get(exchange.name());
+                if ( result==null ) {
+                    result = new MarketDayCalendar(null);
+                    calendars.put(exchange.name(), result);
+                    MarketDayUtil.calendars = calendars;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Map<String,List<LocalDate>> loadCloseDayMap(){
+        Map<String,List<LocalDate>> closeDayMap = new HashMap<>();
         try(BufferedReader reader = IOUtil.createBufferedReader(MarketDayUtil.class.getResourceAsStream("marketCloseDays.txt"));)
         {
             String line = null;
@@ -55,6 +95,7 @@ public class MarketDayUtil {
         }catch(Throwable ioe){
             throw new RuntimeException(ioe);
         }
+        return closeDayMap;
     }
 
     private static LocalDate nextWorkingDay(LocalDate tradingDay, boolean nextOrPrev) {
@@ -70,47 +111,24 @@ public class MarketDayUtil {
     }
 
     public static LocalDate[] getMarketDays(Exchange exchange, LocalDate beginDay, LocalDate endDay){
-        List<LocalDate> result = new LinkedList<>();
         if ( exchange==null ) {
             exchange = Exchange.SSE;
         }
         if ( endDay==null ) {
             endDay = lastMarketDay(exchange, false);
         }
-        List<LocalDate> closeDays = closeDayMap.get(exchange.name());
-        LocalDate currTradingDay = beginDay;
+        return getCalendar(exchange).getMarketDays(beginDay, endDay);
+    }
 
-        while(true){
-            if ( currTradingDay.isAfter(endDay)) {
-                break;
-            }
-            DayOfWeek dayOfWeek = currTradingDay.getDayOfWeek();
-            if ( dayOfWeek.getValue() >= DayOfWeek.MONDAY.getValue() && dayOfWeek.getValue()<=DayOfWeek.FRIDAY.getValue() ){
-                if ( closeDays!=null && !closeDays.contains(currTradingDay) ) {
-                    result.add(currTradingDay);
-                }
-            }
-            currTradingDay = currTradingDay.plusDays(1);
-        }
-        return result.toArray(new LocalDate[result.size()]);
+    /**
+     * 两个日期之间(都包含)的交易日数量
+     */
+    public static int countMarketDays(Exchange exchange, LocalDate beginDay, LocalDate endDay) {
+        return getCalendar(exchange).countMarketDays(beginDay, endDay);
     }
 
     public static LocalDate computeMarketDay(Exchange exchange, LocalDate day, int toAdd){
-        if (toAdd==0) {
-            return day;
-        }
-        if (toAdd>0){
-            for(int i=0;i<toAdd;i++){
-                day = nextMarketDay(exchange, day );
-            }
-            return day;
-        }else if ( toAdd<0 ){
-            for(int i=0;i<Math.abs(toAdd);i++){
-                day = prevMarketDay(exchange, day );
-            }
-            return day;
-        }
-        return null;
+        return getCalendar(exchange).nextMarketDays(day, toAdd);
     }
 
     /**
@@ -119,21 +137,7 @@ public class MarketDayUtil {
      * @param count >0 后面的交易日, <0 前交易日 ==0 不变
      */
     public static LocalDate nextMarketDays(Exchange exchange, LocalDate tradingDay, int count) {
-        LocalDate result = tradingDay;
-        if ( count==0 ) {
-            return tradingDay;
-        }else if ( count>0 ) {
-            for(int i=0;i<count;i++) {
-                result = nextMarketDay(exchange, tradingDay);
-            }
-        }else if ( count<0 ) {
-            count = Math.abs(count);
-            for(int i=0;i<count;i++) {
-                result = prevMarketDay(exchange, tradingDay, false);
-            }
-
-        }
-        return result;
+        return getCalendar(exchange).nextMarketDays(tradingDay, count);
     }
 
     /**
@@ -147,25 +151,14 @@ public class MarketDayUtil {
      * 上一个交易日
      */
     public static LocalDate prevMarketDay(Exchange exchange, LocalDate tradingDay, boolean stopOnHolidy){
-        if ( exchange==null ) {
-            exchange = Exchange.SSE;
+        MarketDayCalendar calendar = getCalendar(exchange);
+        if ( !stopOnHolidy ) {
+            return calendar.nextMarketDays(tradingDay, -1);
         }
-        List<LocalDate> closeDays = closeDayMap.get(exchange.name());
-
-        while(true){
-            tradingDay = tradingDay.plusDays(-1);
-            DayOfWeek dayOfWeek = tradingDay.getDayOfWeek();
-            if ( dayOfWeek == DayOfWeek.SUNDAY || dayOfWeek==DayOfWeek.SATURDAY) {
-                continue;
-            }
-            if ( closeDays!=null && closeDays.contains(tradingDay) ) {
-                if ( !stopOnHolidy ) {
-                    continue;
-                }
-                tradingDay = null;
-                break;
-            }
-            break;
+        //前一个工作日休市时返回null
+        tradingDay = nextWorkingDay(tradingDay, false);
+        if ( !calendar.isMarketDay(tradingDay) ) {
+            return null;
         }
         return tradingDay;
     }
@@ -182,7 +175,7 @@ public class MarketDayUtil {
         if ( exchange==null ) {
             exchange = Exchange.SSE;
         }
-        List<LocalDate> closeDays = closeDayMap.get(exchange.name());
+        MarketDayCalendar calendar = getCalendar(exchange);
         LocalDateTime tradingDateTime = DateUtil.getCurrentTime();
         DayOfWeek dayOfWeek = tradingDateTime.getDayOfWeek();
         if ( !exchange.isFuture() ) {
@@ -199,7 +192,7 @@ public class MarketDayUtil {
                     tradingDateTime = tradingDateTime.plusDays(-1);
                     continue;
                 }
-                if ( closeDays!=null && closeDays.contains(tradingDateTime.toLocalDate()) ){
+                if ( !calendar.isMarketDay(tradingDateTime.toLocalDate()) ){
                     tradingDateTime = tradingDateTime.plusDays(-1);
                     continue;
                 }
@@ -221,7 +214,7 @@ public class MarketDayUtil {
                     tradingDateTime = tradingDateTime.plusDays(-1);
                     continue;
                 }
-                if ( closeDays!=null && closeDays.contains(tradingDateTime.toLocalDate()) ){
+                if ( !calendar.isMarketDay(tradingDateTime.toLocalDate()) ){
                     tradingDateTime = tradingDateTime.plusDays(-1);
                     continue;
                 }
@@ -231,36 +224,11 @@ public class MarketDayUtil {
     }
 
     public static boolean isMarketDay(Exchange exchange, LocalDate tradingDay){
-        if ( exchange==null ) {
-            exchange = Exchange.SSE;
-        }
-        List<LocalDate> closeDays = closeDayMap.get(exchange.name());
-        DayOfWeek dayOfWeek = tradingDay.getDayOfWeek();
-        if ( dayOfWeek == DayOfWeek.SUNDAY || dayOfWeek==DayOfWeek.SATURDAY){
-            return false;
-        }
-        if ( closeDays!=null && closeDays.contains(tradingDay) ) {
-            return false;
-        }
-        return true;
+        return getCalendar(exchange).isMarketDay(tradingDay);
     }
 
     public static LocalDate nextMarketDay(Exchange exchange, LocalDate tradingDay){
-        if ( exchange==null ) {
-            exchange = Exchange.SSE;
-        }
-        List<LocalDate> closeDays = closeDayMap.get(exchange.name());
-        while(true){
-            tradingDay = tradingDay.plusDays(1);
-            DayOfWeek dayOfWeek = tradingDay.getDayOfWeek();
-            if ( dayOfWeek == DayOfWeek.SUNDAY || dayOfWeek==DayOfWeek.SATURDAY) {
-                continue;
-            }
-            if ( closeDays!=null && closeDays.contains(tradingDay) ) {
-                continue;
-            }
-            return tradingDay;
-        }
+        return getCalendar(exchange).nextMarketDays(tradingDay, 1);
     }
 
     public static LocalDate thisOrNextMarketDay(Exchange exchange, LocalDate tradingDay, boolean thisCompleted){
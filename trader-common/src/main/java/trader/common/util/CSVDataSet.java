@@ -184,13 +184,24 @@ public class CSVDataSet {
         if ( str==null || str.length()==0 ) {
             return null;
         }
+        //时间字符串直接解析, 避免每行抛出NumberFormatException
         long val = 0;
-        if ( (val=ConversionUtil.toLong(str, true))!=0 ) {
+        if ( isDigits(str) && (val=ConversionUtil.toLong(str, true))!=0 ) {
         	return DateUtil.long2datetime(zoneId, val);
         }
         return DateUtil.str2localdatetime(str);
     }
 
+    private static boolean isDigits(String str) {
+        for(int i=0;i<str.length();i++) {
+            char c = str.charAt(i);
+            if ( (c<'0' || c>'9') && c!='-' && c!='+' && c!=' ' ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public LocalDate getDate(String column){
         return getDate(getColumnIndex(column));
     }
@@ -0,0 +1,96 @@
+package trader.common.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * 带校验的快照文件.
+ * <P>文件格式: MAGIC, VERSION, 调用者定义的文件头字段, 内容长度, 内容CRC32, 内容
+ * <BR>先写入临时文件并fsync, 再原子替换, 进程在写入过程中退出时保留上一个文件
+ */
+public class ChecksumFileUtil {
+
+    /**
+     * 写入调用者定义的文件头字段, 位于VERSION之后
+     */
+    @FunctionalInterface
+    public static interface HeaderWriter {
+        public void writeHeader(DataOutput out) throws IOException;
+    }
+
+    /**
+     * 读取调用者定义的文件头字段, 与 HeaderWriter 对应
+     */
+    @FunctionalInterface
+    public static interface HeaderReader {
+        public void readHeader(DataInput in) throws IOException;
+    }
+
+    /**
+     * 写入临时文件 FILE.tmp 并fsync, 然后原子替换 file
+     *
+     * @param header 文件头字段, 可以为null
+     */
+    public static void write(File file, int magic, int version, HeaderWriter header, byte[] data) throws IOException {
+        File tmpFile = new File(file.getParentFile(), file.getName()+".tmp");
+        file.getParentFile().mkdirs();
+        try(FileOutputStream fos = new FileOutputStream(tmpFile); DataOutputStream out = new DataOutputStream(fos);){
+            out.writeInt(magic);
+            out.writeInt(version);
+            if ( header!=null ) {
+                header.writeHeader(out);
+            }
+            out.writeInt(data.length);
+            out.writeInt(checksum(data));
+            out.write(data);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取并校验文件内容
+     *
+     * @param header 文件头字段, 可以为null
+     *
+     * @throws IOException MAGIC/VERSION不匹配, 文件不完整或者校验失败
+     */
+    public static byte[] read(File file, int magic, int version, HeaderReader header) throws IOException {
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));){
+            if ( in.readInt()!=magic || in.readInt()!=version ) {
+                throw new IOException("Invalid file "+file);
+            }
+            if ( header!=null ) {
+                header.readHeader(in);
+            }
+            int len = in.readInt();
+            int checksum = in.readInt();
+            if ( len<0 || len>in.available() ) {
+                throw new IOException("File "+file+" is incomplete");
+            }
+            byte[] data = new byte[len];
+            in.readFully(data);
+            if ( checksum(data)!=checksum ) {
+                throw new IOException("File "+file+" checksum mismatch");
+            }
+            return data;
+        }
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int)crc.getValue();
+    }
+
+}
@@ -24,6 +24,9 @@ public interface ServiceErrorConstants {
     public static final int ERRCODE_TRADE_MODIFY_ORDER_FAILED           = SERVICE_TRADE|0X0008;
     public static final int ERRCODE_TRADE_CANCEL_ORDER_FAILED           = SERVICE_TRADE|0X0009;
     public static final int ERRCODE_TRADE_INVALID_ORDER                 = SERVICE_TRADE|0X000A;
+    public static final int ERRCODE_TRADE_PRICE_OUT_OF_BAND             = SERVICE_TRADE|0X000B;
+    public static final int ERRCODE_TRADE_SELF_TRADE                    = SERVICE_TRADE|0X000C;
+    public static final int ERRCODE_TRADE_RATE_EXCEEDS_LIMIT            = SERVICE_TRADE|0X000D;
 
     //行情错误
     public static final int ERR_MD_PRODUCER_CREATE_FAILED               = SERVICE_MD|0X0001;
@@ -1,6 +1,11 @@
 package trader.service.md;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.util.Arrays;
 
 import com.google.gson.JsonArray;
@@ -318,6 +323,117 @@ public abstract class MarketData implements Cloneable, JsonEnabled {
         return counts;
     }
 
+    /**
+     * 二进制格式保存, 内容与 toJson() 相同. 不保存 mktTimes
+     */
+    public void save(DataOutput out) throws IOException {
+        out.writeUTF(instrument.uniqueId());
+        out.writeUTF(producerId!=null?producerId:"");
+        out.writeUTF(tradingDay!=null?tradingDay:"");
+        out.writeLong(volume);
+        out.writeLong(turnover);
+        out.writeLong(openInterest);
+        out.writeLong(lastPrice);
+        out.writeLong(updateTime.toLocalDate().toEpochDay());
+        out.writeLong(updateTime.toLocalTime().toNanoOfDay());
+        out.writeLong(updateTimestamp);
+        out.writeLong(preClosePrice);
+        out.writeLong(openPrice);
+        out.writeLong(highestPrice);
+        out.writeLong(lowestPrice);
+        out.writeLong(averagePrice);
+        out.writeLong(upperLimitPrice);
+        out.writeLong(lowerLimitPrice);
+        out.writeInt(mktTime);
+        out.writeByte(mktStage!=null?mktStage.ordinal():-1);
+        out.writeInt(depth);
+        savePrices(out, bidPrices);
+        saveInts(out, bidVolumes);
+        saveInts(out, bidCounts);
+        savePrices(out, askPrices);
+        saveInts(out, askVolumes);
+        saveInts(out, askCounts);
+    }
+
+    private static void savePrices(DataOutput out, long[] prices) throws IOException {
+        out.writeInt(prices!=null?prices.length:-1);
+        if ( prices!=null ) {
+            for(int i=0;i<prices.length;i++) {
+                out.writeLong(prices[i]);
+            }
+        }
+    }
+
+    private static void saveInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values!=null?values.length:-1);
+        if ( values!=null ) {
+            for(int i=0;i<values.length;i++) {
+                out.writeInt(values[i]);
+            }
+        }
+    }
+
+    private static long[] loadPrices(DataInput in) throws IOException {
+        int len = in.readInt();
+        if ( len<0 ) {
+            return null;
+        }
+        long[] result = new long[len];
+        for(int i=0;i<len;i++) {
+            result[i] = in.readLong();
+        }
+        return result;
+    }
+
+    private static int[] loadInts(DataInput in) throws IOException {
+        int len = in.readInt();
+        if ( len<0 ) {
+            return null;
+        }
+        int[] result = new int[len];
+        for(int i=0;i<len;i++) {
+            result[i] = in.readInt();
+        }
+        return result;
+    }
+
+    /**
+     * 从 save() 的二进制格式加载
+     */
+    public static MarketData load(DataInput in) throws IOException {
+        SimpleMarketData md = new SimpleMarketData();
+        md.instrument = Exchangeable.fromString(in.readUTF());
+        md.producerId = in.readUTF();
+        md.tradingDay = in.readUTF();
+        md.volume = in.readLong();
+        md.turnover = in.readLong();
+        md.openInterest = in.readLong();
+        md.lastPrice = in.readLong();
+        LocalDate date = LocalDate.ofEpochDay(in.readLong());
+        md.updateTime = LocalDateTime.of(date, LocalTime.ofNanoOfDay(in.readLong()));
+        md.updateTimestamp = in.readLong();
+        md.preClosePrice = in.readLong();
+        md.openPrice = in.readLong();
+        md.highestPrice = in.readLong();
+        md.lowestPrice = in.readLong();
+        md.averagePrice = in.readLong();
+        md.upperLimitPrice = in.readLong();
+        md.lowerLimitPrice = in.readLong();
+        md.mktTime = in.readInt();
+        int stage = in.readByte();
+        if ( stage>=0 ) {
+            md.mktStage = MarketTimeStage.values()[stage];
+        }
+        md.depth = in.readInt();
+        md.bidPrices = loadPrices(in);
+        md.bidVolumes = loadInts(in);
+        md.bidCounts = loadInts(in);
+        md.askPrices = loadPrices(in);
+        md.askVolumes = loadInts(in);
+        md.askCounts = loadInts(in);
+        return md;
+    }
+
     public static MarketData fromJson(JsonElement jsonElem) {
         JsonObject json = (JsonObject)jsonElem;
         SimpleMarketData md = new SimpleMarketData();
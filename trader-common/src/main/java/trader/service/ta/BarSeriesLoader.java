@@ -1,6 +1,7 @@
 package trader.service.ta;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -10,12 +11,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -26,6 +30,7 @@ import trader.common.beans.BeansContainer;
 import trader.common.exchangeable.Exchangeable;
 import trader.common.exchangeable.ExchangeableData;
 import trader.common.exchangeable.ExchangeableData.DataInfo;
+import trader.common.exchangeable.ExchangeableDataCache;
 import trader.common.exchangeable.ExchangeableTradingTimes;
 import trader.common.exchangeable.ExchangeableType;
 import trader.common.exchangeable.MarketDayUtil;
@@ -48,6 +53,10 @@ public class BarSeriesLoader {
 
     private ExecutorService executorService;
     private BeansContainer beansContainer;
+    /**
+     * 共享的已解码数据缓存, 只有BeansContainer中存在时使用
+     */
+    private ExchangeableDataCache dataCache;
     private ExchangeableData data;
     private Exchangeable instrument;
     private PriceLevel level;
@@ -72,7 +81,7 @@ public class BarSeriesLoader {
      */
     private LocalDateTime endTime;
 
-    private Map<LocalDate, List<FutureBarImpl>> min1BarsByDay = new HashMap<>();
+    private Map<LocalDate, List<FutureBarImpl>> min1BarsByDay = new ConcurrentHashMap<>();
 
     private List<LocalDate> loadedDates = new ArrayList<>();
 
@@ -82,6 +91,7 @@ public class BarSeriesLoader {
         this.beansContainer = beansContainer;
         this.data = data;
         this.executorService = beansContainer.getBean(ExecutorService.class);
+        this.dataCache = beansContainer.getBean(ExchangeableDataCache.class);
     }
 
     public BeansContainer getBeansContainer() {
@@ -150,18 +160,62 @@ public class BarSeriesLoader {
     }
 
     /**
-     * 直接加载行情切片原始数据
+     * 直接加载行情切片原始数据. 存在 ExchangeableDataCache 时返回的行情对象与其它加载器共享, 只能读取
      */
     public List<MarketData> loadMarketDataTicks(LocalDate tradingDay, DataInfo tickDataInfo) throws IOException {
-        if (!data.exists(instrument, tickDataInfo, tradingDay)) {
+        List<MarketData> ticks = null;
+        if ( dataCache!=null ) {
+            try {
+                ticks = dataCache.get(instrument, tickDataInfo, tradingDay, ()->{
+                    List<MarketData> result = decodeMarketDataTicks(tradingDay, tickDataInfo);
+                    return result!=null?Collections.unmodifiableList(result):null;
+                });
+            } catch(IOException|RuntimeException e) {
+                throw e;
+            } catch(Exception e) {
+                throw new IOException(e);
+            }
+        } else {
+            ticks = decodeMarketDataTicks(tradingDay, tickDataInfo);
+        }
+        if ( ticks==null ) {
             return Collections.emptyList();
         }
+        return filterByEndTime(ticks);
+    }
+
+    private List<MarketData> filterByEndTime(List<MarketData> ticks) {
+        List<MarketData> result = new ArrayList<>(ticks.size());
+        for(MarketData tick:ticks) {
+            if (this.endTime != null && this.endTime.isBefore(tick.updateTime)) {
+                continue;
+            }
+            result.add(tick);
+        }
+        return result;
+    }
+
+    /**
+     * 解码某个交易日的全部TICK
+     *
+     * @return null 如果数据不存在
+     */
+    private List<MarketData> decodeMarketDataTicks(LocalDate tradingDay, DataInfo tickDataInfo) throws IOException {
+        if (!data.exists(instrument, tickDataInfo, tradingDay)) {
+            return null;
+        }
+        return parseMarketDataTicks(tradingDay, tickDataInfo, data.load(instrument, tickDataInfo, tradingDay));
+    }
+
+    /**
+     * 解析TICK原始数据, 修正重复的时间戳
+     */
+    private List<MarketData> parseMarketDataTicks(LocalDate tradingDay, DataInfo tickDataInfo, String csv) {
         List<MarketData> result = new ArrayList<>();
         MarketDataService mdService = this.beansContainer.getBean(MarketDataService.class);
         MarketDataProducerFactory ctpFactory = mdService.getProducerFactories().get(tickDataInfo.provider());
         MarketDataProducer mdProducer = ctpFactory.create(beansContainer, null);
         CSVMarshallHelper csvMarshallHelper = ctpFactory.createCSVMarshallHelper();
-        String csv = data.load(instrument, tickDataInfo, tradingDay);
         CSVDataSet csvDataSet = CSVUtil.parse(csv);
         ExchangeableTradingTimes tradingTimes = instrument.exchange().getTradingTimes(instrument, tradingDay);
 
@@ -170,9 +224,6 @@ public class BarSeriesLoader {
         while (csvDataSet.next()) {
             MarketData tick = mdProducer.createMarketData(csvMarshallHelper.unmarshall(csvDataSet.getRow()),
                     tradingDay);
-            if (this.endTime != null && this.endTime.isBefore(tick.updateTime)) {
-                continue;
-            }
             if (lastTimestamp >= tick.updateTimestamp) {
                 tick.updateTimestamp = lastTimestamp + 200;
                 tick.updateTime = Instant.ofEpochMilli(tick.updateTimestamp)
@@ -193,63 +244,228 @@ public class BarSeriesLoader {
         if (endTradingDay == null) {
             endTradingDay = LocalDate.now();
         }
-        loadedDates.clear();
+        //不修改之前返回的列表
+        loadedDates = new ArrayList<>();
+        resolvedLevel = level;
         if (level == PriceLevel.DAY) {
             return loadDaySeries();
         }
-        LinkedList<FutureBarImpl> bars = new LinkedList<>();
-        resolvedLevel = level;
+        List<List<FutureBarImpl>> barsByDay = new ArrayList<>();
 
         if (level.name().startsWith(PriceLevel.LEVEL_MIN)) { // 基于时间切分BAR
-            List<java.util.concurrent.Future<List<FutureBarImpl>>> dayBarsFutures = new ArrayList<>();
+            List<LocalDate> days = new ArrayList<>();
             LocalDate tradingDay = endTradingDay;
-            // 从后向前
             while (tradingDay.compareTo(startTradingDay) >= 0) {
-                if (level == PriceLevel.MIN1 && data.exists(instrument, ExchangeableData.MIN1, tradingDay)) {
-                    List<FutureBarImpl> dayMin1Bars = loadMin1Bars(tradingDay);
-                    checkBars(dayMin1Bars, tradingDay, PriceLevel.MIN1);
-                    min1BarsByDay.put(tradingDay, dayMin1Bars);
-                }
-                LocalDate tradingDay2 = tradingDay;
-                java.util.concurrent.Future<List<FutureBarImpl>> f = getExecutorService().submit(()->{
-                    List<FutureBarImpl> dayBars = new ArrayList<>();
-                    if (min1BarsByDay.containsKey(tradingDay2)) {
-                        dayBars = timedBarsFromMin1(tradingDay2, min1BarsByDay.get(tradingDay2));
-                    } else {
-                        dayBars = loadMinFromTicks(tradingDay2);
-                    }
-                    checkBars(dayBars, tradingDay2, this.level);
-                    return dayBars;
-                });
-                dayBarsFutures.add(f);
+                days.add(tradingDay);
                 // 前一个交易日
                 tradingDay = MarketDayUtil.prevMarketDay(instrument.exchange(), tradingDay);
             }
-            for(java.util.concurrent.Future<List<FutureBarImpl>> f:dayBarsFutures) {
-                List<FutureBarImpl> dayBars = f.get();
-                if ( !dayBars.isEmpty() ) {
-                    bars.addAll(0, dayBars);
-                    loadedDates.add(tradingDay);
+            Collections.reverse(days);
+            List<FutureBarImpl>[] dayBars = loadTimedBars(days);
+            for(int i=0;i<dayBars.length;i++) {
+                if ( !dayBars[i].isEmpty() ) {
+                    barsByDay.add(dayBars[i]);
+                    loadedDates.add(days.get(i));
                 }
             }
         } else if (level.name().startsWith(PriceLevel.LEVEL_VOL)) { // 基于交易量切分BAR
             LocalDate tradingDay = startTradingDay;
-            // 从后向前
             while (tradingDay.compareTo(endTradingDay) <= 0) {
-                bars.addAll(loadVolBars(tradingDay, level));
+                barsByDay.add(loadVolBars(tradingDay, level));
                 tradingDay = MarketDayUtil.nextMarketDay(instrument.exchange(), tradingDay);
             }
         }
-        // 转换Bar为TimeSeries
-        BaseLeveledBarSeries result = new BaseLeveledBarSeries(instrument, instrument.name() + "-" + resolvedLevel,
-                resolvedLevel, LongNum::valueOf);
-        for (int i = 0; i < bars.size(); i++) {
-            Bar bar = bars.get(i);
-            result.addBar(bar);
+        return buildSeries(resolvedLevel, barsByDay);
+    }
+
+    /**
+     * 一次加载多个分钟级别的KBar: 先加载MIN1, 然后每个交易日遍历一次MIN1同时合成全部级别.
+     * <BR>结果与先加载MIN1再分别加载每个级别相同
+     */
+    public Map<PriceLevel, LeveledBarSeries> loadLevels(Collection<PriceLevel> levels) throws Exception
+    {
+        List<PriceLevel> rollupLevels = new ArrayList<>();
+        for(PriceLevel level:levels) {
+            if ( !level.prefix().equals(PriceLevel.LEVEL_MIN) ) {
+                throw new IllegalArgumentException("Level "+level+" can not be rolled up from "+PriceLevel.MIN1);
+            }
+            if ( !level.equals(PriceLevel.MIN1) && !rollupLevels.contains(level) ) {
+                rollupLevels.add(level);
+            }
+        }
+        PriceLevel level0 = this.level;
+        Map<PriceLevel, LeveledBarSeries> result = new HashMap<>();
+        try {
+            this.level = PriceLevel.MIN1;
+            LeveledBarSeries min1Series = load();
+            if ( levels.contains(PriceLevel.MIN1) ) {
+                result.put(PriceLevel.MIN1, min1Series);
+            }
+        } finally {
+            this.level = level0;
+        }
+        PriceLevel[] levelArray = rollupLevels.toArray(new PriceLevel[rollupLevels.size()]);
+        List<List<FutureBarImpl>>[] barsByDay = new List[levelArray.length];
+        for(int i=0;i<levelArray.length;i++) {
+            barsByDay[i] = new ArrayList<>(loadedDates.size());
+        }
+        for(LocalDate tradingDay:loadedDates) {
+            List<FutureBarImpl>[] dayBars = timedBarsFromMin1(tradingDay, min1BarsByDay.get(tradingDay), levelArray);
+            for(int i=0;i<levelArray.length;i++) {
+                checkBars(dayBars[i], tradingDay, levelArray[i]);
+                barsByDay[i].add(dayBars[i]);
+            }
+        }
+        for(int i=0;i<levelArray.length;i++) {
+            result.put(levelArray[i], buildSeries(levelArray[i], barsByDay[i]));
         }
         return result;
     }
 
+    /**
+     * 一次性创建TimeSeries, 检查KBar时间顺序
+     */
+    private LeveledBarSeries buildSeries(PriceLevel level, List<List<FutureBarImpl>> barsByDay) {
+        int barCount = 0;
+        for(List<FutureBarImpl> dayBars:barsByDay) {
+            barCount += dayBars.size();
+        }
+        List<Bar> bars = new ArrayList<>(barCount);
+        Bar lastBar = null;
+        for(List<FutureBarImpl> dayBars:barsByDay) {
+            for(FutureBarImpl bar:dayBars) {
+                if ( lastBar!=null && !bar.getEndTime().isAfter(lastBar.getEndTime()) ) {
+                    throw new IllegalArgumentException("Instrument " + this.instrument + " bar end time " + bar.getEndTime()
+                            + " is before or same as series end time " + lastBar.getEndTime());
+                }
+                bars.add(bar);
+                lastBar = bar;
+            }
+        }
+        return new BaseLeveledBarSeries(instrument, instrument.name() + "-" + level,
+                level, bars, LongNum::valueOf);
+    }
+
+    /**
+     * 一个交易日的加载状态
+     */
+    private static class DayLoad {
+        LocalDate tradingDay;
+        /**
+         * MIN1原始数据
+         */
+        String min1Csv;
+        /**
+         * TICK原始数据
+         */
+        String tickCsv;
+        /**
+         * 从共享缓存获得的已解码TICK
+         */
+        List<MarketData> ticks;
+        List<FutureBarImpl> bars = Collections.emptyList();
+    }
+
+    /**
+     * 流水线方式加载多个交易日的分钟KBar: 读取(I/O和解压缩)和解析/合成KBar是两个并行阶段,
+     * 同时处理的交易日数量不超过线程数的2倍, 避免原始数据占用过多内存. 结果按照交易日顺序保存在数组中
+     */
+    private List<FutureBarImpl>[] loadTimedBars(List<LocalDate> days) throws Exception {
+        List<FutureBarImpl>[] result = new List[days.size()];
+        ExecutorService executorService = getExecutorService();
+        int threads = Runtime.getRuntime().availableProcessors();
+        if ( executorService instanceof ThreadPoolExecutor ) {
+            threads = ((ThreadPoolExecutor)executorService).getMaximumPoolSize();
+        }
+        Semaphore inflightDays = new Semaphore(Math.max(1, threads)*2);
+        List<CompletableFuture<DayLoad>> dayFutures = new ArrayList<>(days.size());
+        try {
+            for(LocalDate tradingDay:days) {
+                DayLoad dayLoad = new DayLoad();
+                dayLoad.tradingDay = tradingDay;
+                inflightDays.acquire();
+                CompletableFuture<DayLoad> dayFuture = CompletableFuture.supplyAsync(()->{
+                        readDay(dayLoad);
+                        return dayLoad;
+                    }, executorService)
+                    .thenApplyAsync((dayLoad0)->{
+                        buildDayBars(dayLoad0);
+                        return dayLoad0;
+                    }, executorService);
+                dayFuture.whenComplete((dayLoad0, t)->{
+                    inflightDays.release();
+                });
+                dayFutures.add(dayFuture);
+            }
+            for(int i=0;i<dayFutures.size();i++) {
+                result[i] = dayFutures.get(i).get().bars;
+            }
+        }catch(ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if ( cause instanceof UncheckedIOException ) {
+                cause = cause.getCause();
+            }
+            if ( cause instanceof Exception ) {
+                throw (Exception)cause;
+            }
+            throw ee;
+        }
+        return result;
+    }
+
+    /**
+     * 流水线第一阶段: 读取原始数据
+     */
+    private void readDay(DayLoad dayLoad) {
+        LocalDate tradingDay = dayLoad.tradingDay;
+        try {
+            if (level == PriceLevel.MIN1 && data.exists(instrument, ExchangeableData.MIN1, tradingDay)) {
+                dayLoad.min1Csv = data.load(instrument, ExchangeableData.MIN1, tradingDay);
+            } else if ( !min1BarsByDay.containsKey(tradingDay) && instrument.getType() == ExchangeableType.FUTURE ) {
+                if ( dataCache!=null ) {
+                    dayLoad.ticks = loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+                } else if ( data.exists(instrument, ExchangeableData.TICK_CTP, tradingDay) ) {
+                    dayLoad.tickCsv = data.load(instrument, ExchangeableData.TICK_CTP, tradingDay);
+                }
+            }
+        }catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 流水线第二阶段: 解析原始数据, 合成目标级别KBar
+     */
+    private void buildDayBars(DayLoad dayLoad) {
+        LocalDate tradingDay = dayLoad.tradingDay;
+        List<FutureBarImpl> dayBars = null;
+        if ( dayLoad.min1Csv!=null ) {
+            List<FutureBarImpl> dayMin1Bars = parseMin1Bars(tradingDay, dayLoad.min1Csv);
+            dayLoad.min1Csv = null;
+            checkBars(dayMin1Bars, tradingDay, PriceLevel.MIN1);
+            min1BarsByDay.put(tradingDay, dayMin1Bars);
+            dayBars = timedBarsFromMin1(tradingDay, dayMin1Bars);
+        } else if (min1BarsByDay.containsKey(tradingDay)) {
+            dayBars = timedBarsFromMin1(tradingDay, min1BarsByDay.get(tradingDay));
+        } else {
+            List<MarketData> marketDatas = dayLoad.ticks;
+            if ( dayLoad.tickCsv!=null ) {
+                marketDatas = filterByEndTime(parseMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP, dayLoad.tickCsv));
+                dayLoad.tickCsv = null;
+            }
+            if ( marketDatas==null ) {
+                marketDatas = Collections.emptyList();
+            }
+            dayBars = marketDatas2bars(instrument, tradingDay, level, marketDatas);
+            dayLoad.ticks = null;
+            if (level == PriceLevel.MIN1) {
+                min1BarsByDay.put(tradingDay, dayBars);
+            }
+        }
+        checkBars(dayBars, tradingDay, this.level);
+        dayLoad.bars = dayBars;
+    }
+
     private void checkBars(List<FutureBarImpl> dayBars, LocalDate tradingDay, PriceLevel level) {
         int lastIndex = -1;
         for (int i = 0; i < dayBars.size(); i++) {
@@ -267,26 +483,51 @@ public class BarSeriesLoader {
      * 将1分钟K线合并为多分钟K线
      */
     private List<FutureBarImpl> timedBarsFromMin1(LocalDate tradingDay, List<FutureBarImpl> min1Bars) {
-        if (level == PriceLevel.MIN1) {
-            return min1Bars;
-        }
-        List<FutureBarImpl> result = new ArrayList<>();
+        return timedBarsFromMin1(tradingDay, min1Bars, new PriceLevel[] {level})[0];
+    }
 
+    /**
+     * 遍历一次1分钟K线, 同时合并为多个级别的K线
+     */
+    private List<FutureBarImpl>[] timedBarsFromMin1(LocalDate tradingDay, List<FutureBarImpl> min1Bars, PriceLevel[] levels) {
+        List<FutureBarImpl>[] result = new List[levels.length];
+        List<FutureBarImpl>[] levelBars = new List[levels.length];
+        int[] lastBarIndexes = new int[levels.length];
+        boolean rollup = false;
+        for(int i=0;i<levels.length;i++) {
+            if ( levels[i]==PriceLevel.MIN1 ) {
+                result[i] = min1Bars;
+                continue;
+            }
+            result[i] = new ArrayList<>();
+            levelBars[i] = new ArrayList<>();
+            lastBarIndexes[i] = -1;
+            rollup = true;
+        }
+        if ( !rollup ) {
+            return result;
+        }
         ExchangeableTradingTimes tradingTimes = instrument.exchange().getTradingTimes(instrument, tradingDay);
-        List<FutureBarImpl> levelBars = new ArrayList<>();
-        int lastBarIndex = -1;
+        int[] barIndexes = new int[levels.length];
         for (FutureBarImpl min1Bar : min1Bars) {
-            int barIndex = getBarIndex(tradingTimes, level, min1Bar.getBeginTime().toLocalDateTime());
-            if (barIndex != lastBarIndex && levelBars.size() > 0) {
-                result.add(timedBarFromMin1(tradingTimes, lastBarIndex, levelBars));
-                levelBars.clear();
+            getBarIndexes(tradingTimes, levels, min1Bar.getBeginTime().toLocalDateTime(), barIndexes);
+            for(int i=0;i<levels.length;i++) {
+                if ( levelBars[i]==null ) {
+                    continue;
+                }
+                if (barIndexes[i] != lastBarIndexes[i] && levelBars[i].size() > 0) {
+                    result[i].add(timedBarFromMin1(tradingTimes, lastBarIndexes[i], levelBars[i]));
+                    levelBars[i].clear();
+                }
+                levelBars[i].add(min1Bar);
+                lastBarIndexes[i] = barIndexes[i];
             }
-            levelBars.add(min1Bar);
-            lastBarIndex = barIndex;
         }
-        if (levelBars.size() > 0) {
-            result.add(timedBarFromMin1(tradingTimes, lastBarIndex, levelBars));
-            levelBars.clear();
+        for(int i=0;i<levels.length;i++) {
+            if (levelBars[i]!=null && levelBars[i].size() > 0) {
+                result[i].add(timedBarFromMin1(tradingTimes, lastBarIndexes[i], levelBars[i]));
+                levelBars[i].clear();
+            }
         }
         return result;
     }
@@ -301,17 +542,13 @@ public class BarSeriesLoader {
     }
 
     /**
-     * 加载某日的MIN1数据
+     * 解析某日的MIN1数据
      */
-    private List<FutureBarImpl> loadMin1Bars(LocalDate tradingDay) throws IOException {
+    private List<FutureBarImpl> parseMin1Bars(LocalDate tradingDay, String csv) {
         List<FutureBarImpl> result = new ArrayList<>();
-        ZoneId zoneId = instrument.exchange().getZoneId();
-        String csv = data.load(instrument, ExchangeableData.MIN1, tradingDay);
         CSVDataSet csvDataSet = CSVUtil.parse(csv);
-        int colIndex = csvDataSet.getColumnIndex(ExchangeableData.COLUMN_INDEX);
         ExchangeableTradingTimes tradingTimes = instrument.exchange().getTradingTimes(instrument, tradingDay);
         while (csvDataSet.next()) {
-            LocalDateTime beginTime = csvDataSet.getDateTime(ExchangeableData.COLUMN_BEGIN_TIME);
             LocalDateTime endTime = csvDataSet.getDateTime(ExchangeableData.COLUMN_END_TIME);
             if (this.endTime != null && this.endTime.isBefore(endTime)) {
                 continue;
@@ -322,22 +559,10 @@ public class BarSeriesLoader {
         return result;
     }
 
-    /**
-     * 加载某日的TICK数据, 转换为MIN1数据
-     */
-    private List<FutureBarImpl> loadMinFromTicks(LocalDate tradingDay) throws IOException {
-        List<MarketData> marketDatas = loadMarketData(tradingDay);
-        List<FutureBarImpl> minBars = marketDatas2bars(instrument, tradingDay, level, marketDatas);
-        if (level == PriceLevel.MIN1) {
-            min1BarsByDay.put(tradingDay, minBars);
-        }
-        return minBars;
-    }
-
     /**
      * 将TICK数据转换为 VOL10K Bar这种数据, 如果TICK之间的volume不能被整除, 不会再次切分TICK.因为这是最小单位.
      */
-    private Collection<FutureBarImpl> loadVolBars(LocalDate tradingDay, PriceLevel level) throws IOException {
+    private List<FutureBarImpl> loadVolBars(LocalDate tradingDay, PriceLevel level) throws IOException {
         resolvedLevel = level;
         List<FutureBarImpl> result = new ArrayList<>();
         List<MarketData> marketDatas = loadMarketData(tradingDay);
@@ -566,62 +791,112 @@ public class BarSeriesLoader {
         return result;
     }
 
+    /**
+     * 遍历一次交易时间, 同时计算多个分钟级别的全部KBar开始时间.
+     * <BR>结果与每个KBar分别调用 getBarTimes() 相同, 结束时间为开始时间加上级别分钟数
+     */
+    public static LocalDateTime[][] getBarBeginTimes(ExchangeableTradingTimes tradingTimes, PriceLevel[] levels) {
+        LocalDateTime[][] result = new LocalDateTime[levels.length][];
+        for(int i=0;i<levels.length;i++) {
+            result[i] = new LocalDateTime[tradingTimes.getTotalTradingMillis()/(1000*60*levels[i].value())];
+        }
+        int[] barIndexes = new int[levels.length];
+        LocalDateTime marketCloseTime = tradingTimes.getMarketCloseTime();
+        LocalDateTime beginTime = tradingTimes.getMarketTimes()[0];
+        while (beginTime.compareTo(marketCloseTime) <= 0) {
+            if ( tradingTimes.getTimeStage(beginTime) == MarketTimeStage.MarketOpen ) {
+                getBarIndexes(tradingTimes, levels, beginTime, barIndexes);
+                for(int i=0;i<levels.length;i++) {
+                    int barIndex = barIndexes[i];
+                    if ( barIndex>=0 && barIndex<result[i].length && result[i][barIndex]==null ) {
+                        result[i][barIndex] = beginTime;
+                    }
+                }
+            }
+            beginTime = beginTime.plusMinutes(1);
+        }
+        //没有找到的KBar与 getBarTimes() 相同, 使用收市后的第一分钟
+        for(int i=0;i<levels.length;i++) {
+            for(int j=0;j<result[i].length;j++) {
+                if ( result[i][j]==null ) {
+                    result[i][j] = beginTime;
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * 根据时间返回当前KBar序列的位置
      *
      * @return -1 如果未开市, 0-N
      */
     public static int getBarIndex(ExchangeableTradingTimes tradingTimes, PriceLevel level, LocalDateTime marketTime) {
-        if (level == PriceLevel.DAY) {
-            return 0;
+        int[] result = new int[1];
+        getBarIndexes(tradingTimes, new PriceLevel[] {level}, marketTime, result);
+        return result[0];
+    }
+
+    /**
+     * 根据时间一次返回多个级别的KBar序列位置, 交易时间只计算一次
+     *
+     * @param result 每个级别的KBar位置, -1 如果未开市
+     */
+    public static void getBarIndexes(ExchangeableTradingTimes tradingTimes, PriceLevel[] levels, LocalDateTime marketTime, int[] result) {
+        MarketTimeStage mts = null;
+        if ( tradingTimes!=null ) {
+            mts = tradingTimes.getTimeStage(marketTime);
         }
-        if (tradingTimes == null) {
-            return -1;
-        }
-        MarketTimeStage mts = tradingTimes.getTimeStage(marketTime);
-        switch (mts) {
-        case AggregateAuction:
-        case BeforeMarketOpen:
-            return -1;
-        case MarketOpen:
-        case MarketBreak:
-            break;
-        default:
-            return -1;
-        }
-
-        int tradingMillis = tradingTimes.getTradingTime(marketTime);
-        int tradeMinutes = tradingMillis / (1000 * 60);
-        int tickIndex = 0;
-
-        LocalDateTime[] marketTimes = tradingTimes.getMarketTimes();
-        for (int i = 0; i < marketTimes.length; i += 2) {
-            LocalDateTime stageBegin = marketTimes[i];
-            LocalDateTime stageEnd = marketTimes[i + 1];
-            LocalDateTime stageBegin2 = null;
-            if (i < marketTimes.length - 2) {
-                stageBegin2 = marketTimes[i + 2];
-            }
-            // 如果已经是下一个时间段, 直接跳过当前时间段
-            if (stageBegin2 != null && marketTime.compareTo(stageBegin2) >= 0) {
+        boolean marketTrading = (mts==MarketTimeStage.MarketOpen || mts==MarketTimeStage.MarketBreak);
+        int tradingMillis = 0, tradeMinutes = 0;
+        // 所在的交易时间段, 是否已经超过时间段结束时间
+        boolean inStage = false, afterStageEnd = false;
+        if ( marketTrading ) {
+            tradingMillis = tradingTimes.getTradingTime(marketTime);
+            tradeMinutes = tradingMillis / (1000 * 60);
+            LocalDateTime[] marketTimes = tradingTimes.getMarketTimes();
+            for (int i = 0; i < marketTimes.length; i += 2) {
+                LocalDateTime stageBegin = marketTimes[i];
+                LocalDateTime stageEnd = marketTimes[i + 1];
+                LocalDateTime stageBegin2 = null;
+                if (i < marketTimes.length - 2) {
+                    stageBegin2 = marketTimes[i + 2];
+                }
+                // 如果已经是下一个时间段, 直接跳过当前时间段
+                if (stageBegin2 != null && marketTime.compareTo(stageBegin2) >= 0) {
+                    continue;
+                }
+                if (marketTime.compareTo(stageBegin) < 0) {
+                    break;
+                }
+                inStage = true;
+                afterStageEnd = marketTime.compareTo(stageEnd) >= 0;
+                break;
+            }
+        }
+        for(int i=0;i<levels.length;i++) {
+            PriceLevel level = levels[i];
+            if (level == PriceLevel.DAY) {
+                result[i] = 0;
                 continue;
             }
-            if (marketTime.compareTo(stageBegin) < 0) {
-                break;
+            if ( !marketTrading ) {
+                result[i] = -1;
+                continue;
             }
-            int compareResult = marketTime.compareTo(stageEnd);
-            tickIndex = tradeMinutes / level.value();
-            int tickBeginMillis = tickIndex * level.value() * 60 * 1000;
-            if (compareResult >= 0) {
-                // 超过当前时间段, 但是没有到下一个时间段, 算在最后一个KBar
-                if (tradingMillis - tickBeginMillis < 5 * 1000) {
-                    tickIndex -= 1;
+            int tickIndex = 0;
+            if ( inStage ) {
+                tickIndex = tradeMinutes / level.value();
+                int tickBeginMillis = tickIndex * level.value() * 60 * 1000;
+                if (afterStageEnd) {
+                    // 超过当前时间段, 但是没有到下一个时间段, 算在最后一个KBar
+                    if (tradingMillis - tickBeginMillis < 5 * 1000) {
+                        tickIndex -= 1;
+                    }
                 }
             }
-            break;
+            result[i] = tickIndex;
         }
-
-        return tickIndex;
     }
 
     ExchangeableTradingTimes getTradingTimes(LocalDate day) {
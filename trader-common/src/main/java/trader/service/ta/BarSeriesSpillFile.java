@@ -0,0 +1,161 @@
+package trader.service.ta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+
+/**
+ * KBar序列的本地只追加文件: 按照 FutureBarImpl.save(ByteBuffer) 的定长格式顺序写入从序列开始位置起的KBar,
+ * 按照index直接定位读取.
+ * <BR>读取时按页加载, 最近访问的几页KBar缓存在内存中, 指标向前回溯时不需要每个KBar读一次文件.
+ * <BR>追加只由更新KBar的线程调用, 读取可以来自其它线程(REST查询等)
+ */
+public class BarSeriesSpillFile implements Closeable {
+    /**
+     * 每页KBar数量
+     */
+    static final int PAGE_SIZE = 128;
+    /**
+     * 缓存页数
+     */
+    static final int CACHED_PAGES = 4;
+
+    private final Exchangeable instrument;
+    private final File file;
+    private final FileChannel channel;
+    /**
+     * 文件中第一个KBar在序列中的index
+     */
+    private final int baseIndex;
+    private volatile int barCount;
+    private ByteBuffer writeBuffer;
+    private final Map<Integer, FutureBarImpl[]> pages = new LinkedHashMap<Integer, FutureBarImpl[]>(CACHED_PAGES*2, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, FutureBarImpl[]> eldest) {
+            return size()>CACHED_PAGES;
+        }
+    };
+    private ExchangeableTradingTimes lastTradingTimes;
+
+    /**
+     * 创建新文件, 已有内容被清除
+     */
+    public BarSeriesSpillFile(Exchangeable instrument, File file, int baseIndex) throws IOException {
+        this.instrument = instrument;
+        this.file = file;
+        this.baseIndex = baseIndex;
+        file.getParentFile().mkdirs();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getBaseIndex() {
+        return baseIndex;
+    }
+
+    /**
+     * 已写入的KBar数量
+     */
+    public int getBarCount() {
+        return barCount;
+    }
+
+    /**
+     * 已写入的结束index(不包含)
+     */
+    public int getEndIndex() {
+        return baseIndex+barCount;
+    }
+
+    /**
+     * 追加KBar, 第一个KBar的index必须是 getEndIndex()
+     */
+    public void append(List<FutureBarImpl> bars) throws IOException {
+        int size = bars.size()*FutureBarImpl.BINARY_SIZE;
+        if ( writeBuffer==null || writeBuffer.capacity()<size ) {
+            writeBuffer = ByteBuffer.allocate(size);
+        }
+        writeBuffer.clear();
+        for(FutureBarImpl bar:bars) {
+            bar.save(writeBuffer);
+        }
+        writeBuffer.flip();
+        long pos = (long)barCount*FutureBarImpl.BINARY_SIZE;
+        while(writeBuffer.hasRemaining()) {
+            pos += channel.write(writeBuffer, pos);
+        }
+        synchronized(pages) {
+            //最后一页可能只加载了部分KBar
+            pages.remove(barCount/PAGE_SIZE);
+        }
+        barCount += bars.size();
+    }
+
+    /**
+     * 读取KBar, 返回的KBar不包含TICK
+     */
+    public FutureBarImpl read(int index) {
+        int offset = index-baseIndex;
+        if ( offset<0 || offset>=barCount ) {
+            throw new IndexOutOfBoundsException("Bar index "+index+" not in spill file "+file+" ["+baseIndex+", "+getEndIndex()+")");
+        }
+        int pageIndex = offset/PAGE_SIZE;
+        synchronized(pages) {
+            FutureBarImpl[] page = pages.get(pageIndex);
+            if ( page==null || page[offset%PAGE_SIZE]==null ) {
+                page = loadPage(pageIndex);
+                pages.put(pageIndex, page);
+            }
+            return page[offset%PAGE_SIZE];
+        }
+    }
+
+    private FutureBarImpl[] loadPage(int pageIndex) {
+        int pageBegin = pageIndex*PAGE_SIZE;
+        int count = Math.min(PAGE_SIZE, barCount-pageBegin);
+        ByteBuffer buf = ByteBuffer.allocate(count*FutureBarImpl.BINARY_SIZE);
+        long pos = (long)pageBegin*FutureBarImpl.BINARY_SIZE;
+        try {
+            while(buf.hasRemaining()) {
+                int n = channel.read(buf, pos+buf.position());
+                if ( n<0 ) {
+                    throw new IOException("Unexpected EOF of spill file "+file);
+                }
+            }
+        }catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buf.flip();
+        FutureBarImpl[] result = new FutureBarImpl[PAGE_SIZE];
+        for(int i=0;i<count;i++) {
+            FutureBarImpl bar = FutureBarImpl.load(instrument, lastTradingTimes, buf);
+            lastTradingTimes = bar.getTradingTimes();
+            result[i] = bar;
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized(pages) {
+            pages.clear();
+        }
+        channel.close();
+        file.delete();
+    }
+
+}
@@ -1,7 +1,10 @@
 package trader.service.ta;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
 
@@ -22,16 +25,35 @@ public class BaseLeveledBarSeries extends BaseBarSeries implements LeveledBarSer
 
     private static final long serialVersionUID = 2904300939512922674L;
 
+    public static final int MIN_RETENTION = 16;
+    static final int SPILL_BATCH = 64;
+
     private Exchangeable instrument;
 
     private PriceLevel level;
 
+    /**
+     * 内存中保留的KBar数量, 0 表示全部保留
+     */
+    private int retention;
+
+    private transient BarSeriesSpillFile spillFile;
+
     public BaseLeveledBarSeries(Exchangeable instrument, String name, PriceLevel level, Function<Number, Num> numFunction) {
         super(name, numFunction);
         this.level = level;
         this.instrument = instrument;
     }
 
+    /**
+     * 直接使用已经排好序的KBar列表创建, 不再逐个检查时间顺序
+     */
+    public BaseLeveledBarSeries(Exchangeable instrument, String name, PriceLevel level, List<Bar> bars, Function<Number, Num> numFunction) {
+        super(name, bars, numFunction);
+        this.level = level;
+        this.instrument = instrument;
+    }
+
     @Override
     public Exchangeable getExchangeable() {
         return instrument;
@@ -57,6 +79,94 @@ public class BaseLeveledBarSeries extends BaseBarSeries implements LeveledBarSer
         return (FutureBar)getBar(i);
     }
 
+    @Override
+    public Bar getBar(int i) {
+        Bar result = super.getBar(i);
+        if ( result==null ) {
+            //已写入spill文件, 从文件读取
+            result = spillFile.read(i);
+        }
+        return result;
+    }
+
+    @Override
+    public void addBar(Bar bar, boolean replace) {
+        super.addBar(bar, replace);
+        if ( spillFile!=null ) {
+            spill();
+        }
+    }
+
+    public int getRetention() {
+        return retention;
+    }
+
+    /**
+     * 设置内存中保留的KBar数量, 更早的KBar按顺序写入本地只追加文件, 内存中只保留空位置.
+     * 访问更早的KBar时从文件读取, 对使用者透明. 只支持 FutureBarImpl.
+     * <BR>需要在追加KBar的线程调用, 只能设置一次
+     *
+     * @param retention 保留的KBar数量, 不小于 MIN_RETENTION
+     * @param file spill文件, 已有内容被清除
+     */
+    public void setRetention(int retention, File file) throws IOException {
+        if ( spillFile!=null ) {
+            throw new IllegalStateException("Retention of "+getName()+" is already set");
+        }
+        if ( retention<MIN_RETENTION ) {
+            throw new IllegalArgumentException("Retention "+retention+" of "+getName()+" is less than "+MIN_RETENTION);
+        }
+        this.retention = retention;
+        this.spillFile = new BarSeriesSpillFile(instrument, file, Math.max(0, getBeginIndex()));
+        spill();
+    }
+
+    public BarSeriesSpillFile getSpillFile() {
+        return spillFile;
+    }
+
+    /**
+     * 关闭并删除spill文件, 之后不能访问已写入文件的KBar
+     */
+    public void closeSpillFile() throws IOException {
+        if ( spillFile!=null ) {
+            spillFile.close();
+        }
+    }
+
+    /**
+     * 超出保留数量 SPILL_BATCH 个KBar后, 一次写入文件, 减少文件写入次数
+     */
+    private void spill() {
+        int spillEnd = getEndIndex()+1-retention;
+        if ( spillEnd-spillFile.getEndIndex()<SPILL_BATCH ) {
+            return;
+        }
+        List<Bar> barData = getBarData();
+        int removedBarsCount = getRemovedBarsCount();
+        List<FutureBarImpl> bars = new ArrayList<>(spillEnd-spillFile.getEndIndex());
+        for(int i=spillFile.getEndIndex();i<spillEnd;i++) {
+            Bar bar = barData.get(i-removedBarsCount);
+            if ( !(bar instanceof FutureBarImpl) ) {
+                break;
+            }
+            bars.add((FutureBarImpl)bar);
+        }
+        if ( bars.isEmpty() ) {
+            return;
+        }
+        int begin = spillFile.getEndIndex();
+        try {
+            spillFile.append(bars);
+        }catch(IOException e) {
+            throw new RuntimeException("Spill "+getName()+" bars to "+spillFile.getFile()+" failed", e);
+        }
+        //文件写入后再清除, 其它线程读取到null时可以从文件读取
+        for(int i=0;i<bars.size();i++) {
+            barData.set(begin+i-removedBarsCount, null);
+        }
+    }
+
     public Bar removeLastBar() {
         if ( getBarCount()<=0 ) {
             return null;
@@ -1,6 +1,8 @@
 package trader.service.ta;
 
+import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -31,6 +33,11 @@ import trader.service.md.MarketData;
 public class FutureBarImpl extends AbsFutureBar {
     private static final long serialVersionUID = -5989316287411952601L;
 
+    /**
+     * save(ByteBuffer) 定长格式的字节数: index, tradingDay 和18个long
+     */
+    public static final int BINARY_SIZE = 4+4+18*8;
+
     private FutureBarImpl(int index, ExchangeableTradingTimes tradingTimes, LocalDateTime beginTime, MarketData openTick, MarketData closeTick, long high, long low) {
         this(index, tradingTimes);
         this.lowPrice = LongNum.fromRawValue(low);
@@ -197,6 +204,57 @@ public class FutureBarImpl extends AbsFutureBar {
         updateEndTime( endTime.atZone(tick.instrument.exchange().getZoneId()));
     }
 
+    /**
+     * 使用同一个TICK更新之后的细粒度KBar更新当前KBar, 结果与 update(tick, tick.updateTime) 相同.
+     * <BR>直接使用细粒度KBar已经计算好的价格/成交量/结束时间, 不再重复计算
+     */
+    public void updateFrom(FutureBarImpl bar) {
+        MarketData tick = bar.closeTick;
+        long volMultiplier = tick.instrument.getVolumeMutiplier();
+        long newHighestPrice=tick.highestPrice, newLowestPrice=tick.lowestPrice;
+        long lastHighestPrice = this.closeTick.highestPrice, lastLowestPrice= this.closeTick.lowestPrice;
+        this.closeTick = tick;
+        long barAvgPrice = 0;
+        this.closePrice = bar.closePrice;
+        this.endAmount = bar.endAmount;
+        this.endVolume = bar.endVolume;
+        this.endOpenInt = bar.endOpenInt;
+        this.openInt = this.endOpenInt - this.beginOpenInt;
+        this.volume = endVolume.minus(beginVolume);
+        this.amount = endAmount.minus(beginAmount);
+        if ( this.upperLimit==null ) {
+            this.upperLimit = LongNum.fromRawValue(tick.upperLimitPrice);
+        }
+        if ( this.lowerLimit==null ) {
+            this.lowerLimit = LongNum.fromRawValue(tick.lowerLimitPrice);
+        }
+        int barVol = volume.intValue();
+        if ( barVol!=0 ) {
+            barAvgPrice = ((LongNum)amount).rawValue()/(barVol*volMultiplier);
+        } else {
+            barAvgPrice = tick.lastPrice;
+        }
+        if ( this.closePrice.isGreaterThan(this.highPrice)) {
+            this.highPrice = this.closePrice;
+            this.maxTick = closeTick;
+        }
+        if ( this.closePrice.isLessThan(this.lowPrice)) {
+            this.lowPrice = this.closePrice;
+            this.minTick = closeTick;
+        }
+        if ( newHighestPrice!=lastHighestPrice && PriceUtil.isValidPrice(newHighestPrice) ) {
+            this.maxTick = tick;
+        }
+        if ( newLowestPrice!=lastLowestPrice && PriceUtil.isValidPrice(newLowestPrice) ) {
+            this.minTick = tick;
+        }
+        this.avgPrice = LongNum.fromRawValue(barAvgPrice);
+        this.mktAvgPrice = bar.mktAvgPrice;
+        this.endTime = bar.endTime;
+        this.endMktTime = bar.endMktTime;
+        timePeriod = Duration.of(endMktTime-beginMktTime, ChronoUnit.MILLIS);
+    }
+
     public static FutureBarImpl fromJson(Exchangeable instrument, JsonElement jsonElem) {
         JsonObject json = jsonElem.getAsJsonObject();
         int index = json.get("index").getAsInt();
@@ -322,6 +380,90 @@ public class FutureBarImpl extends AbsFutureBar {
         }
     }
 
+    /**
+     * 按照定长格式保存, 价格/成交额/成交量为 LongNum 定点数, 时间为epoch millis. 不保存TICK
+     */
+    public void save(ByteBuffer buf) {
+        buf.putInt(index);
+        buf.putInt((int)mktTimes.getTradingDay().toEpochDay());
+        buf.putLong(beginTime.toInstant().toEpochMilli());
+        buf.putLong(endTime.toInstant().toEpochMilli());
+        buf.putLong(num2raw(openPrice));
+        buf.putLong(num2raw(highPrice));
+        buf.putLong(num2raw(lowPrice));
+        buf.putLong(num2raw(closePrice));
+        buf.putLong(num2raw(avgPrice));
+        buf.putLong(num2raw(mktAvgPrice));
+        buf.putLong(num2raw(volume));
+        buf.putLong(num2raw(amount));
+        buf.putLong(num2raw(beginVolume));
+        buf.putLong(num2raw(beginAmount));
+        buf.putLong(beginOpenInt);
+        buf.putLong(num2raw(endVolume));
+        buf.putLong(num2raw(endAmount));
+        buf.putLong(endOpenInt);
+        buf.putLong(upperLimit!=null?num2raw(upperLimit):Long.MIN_VALUE);
+        buf.putLong(lowerLimit!=null?num2raw(lowerLimit):Long.MIN_VALUE);
+    }
+
+    /**
+     * 从 save(ByteBuffer) 的定长格式加载
+     *
+     * @param tradingTimes 交易日相同时可以复用, 为null或者交易日不同时重新获取
+     */
+    public static FutureBarImpl load(Exchangeable instrument, ExchangeableTradingTimes tradingTimes, ByteBuffer buf) {
+        ZoneId zoneId = instrument.exchange().getZoneId();
+        int index = buf.getInt();
+        LocalDate tradingDay = LocalDate.ofEpochDay(buf.getInt());
+        if ( tradingTimes==null || !tradingTimes.getTradingDay().equals(tradingDay) ) {
+            tradingTimes = instrument.exchange().getTradingTimes(instrument, tradingDay);
+        }
+        FutureBarImpl bar = new FutureBarImpl(index, tradingTimes);
+        bar.setBeginTime(Instant.ofEpochMilli(buf.getLong()).atZone(zoneId));
+        ZonedDateTime endTime = Instant.ofEpochMilli(buf.getLong()).atZone(zoneId);
+        bar.openPrice = LongNum.fromRawValue(buf.getLong());
+        bar.highPrice = LongNum.fromRawValue(buf.getLong());
+        bar.lowPrice = LongNum.fromRawValue(buf.getLong());
+        bar.closePrice = LongNum.fromRawValue(buf.getLong());
+        bar.avgPrice = LongNum.fromRawValue(buf.getLong());
+        bar.mktAvgPrice = LongNum.fromRawValue(buf.getLong());
+        bar.volume = LongNum.fromRawValue(buf.getLong());
+        bar.amount = LongNum.fromRawValue(buf.getLong());
+        bar.beginVolume = LongNum.fromRawValue(buf.getLong());
+        bar.beginAmount = LongNum.fromRawValue(buf.getLong());
+        bar.beginOpenInt = buf.getLong();
+        bar.endVolume = LongNum.fromRawValue(buf.getLong());
+        bar.endAmount = LongNum.fromRawValue(buf.getLong());
+        bar.endOpenInt = buf.getLong();
+        bar.openInt = bar.endOpenInt - bar.beginOpenInt;
+        long upperLimit = buf.getLong(), lowerLimit = buf.getLong();
+        if ( upperLimit!=Long.MIN_VALUE ) {
+            bar.upperLimit = LongNum.fromRawValue(upperLimit);
+        }
+        if ( lowerLimit!=Long.MIN_VALUE ) {
+            bar.lowerLimit = LongNum.fromRawValue(lowerLimit);
+        }
+        bar.updateEndTime(endTime);
+        return bar;
+    }
+
+    /**
+     * 从checkpoint恢复时设置 save(ByteBuffer) 没有保存的TICK
+     */
+    public void setTicks(MarketData openTick, MarketData closeTick, MarketData maxTick, MarketData minTick) {
+        this.openTick = openTick;
+        this.closeTick = closeTick;
+        this.maxTick = maxTick;
+        this.minTick = minTick;
+    }
+
+    private static long num2raw(Num num) {
+        if ( num instanceof LongNum ) {
+            return ((LongNum)num).rawValue();
+        }
+        return PriceUtil.price2long(num.doubleValue());
+    }
+
     public void saveDay(CSVWriter csvWriter) {
         csvWriter.set(ExchangeableData.COLUMN_DATE, DateUtil.date2str(mktTimes.getTradingDay()));
         csvWriter.set(ExchangeableData.COLUMN_OPEN, getOpenPrice().toString());
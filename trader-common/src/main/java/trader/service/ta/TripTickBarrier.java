@@ -23,16 +23,28 @@ public class TripTickBarrier {
     private long maxPrice;
     private long minPrice;
     private Barrier barrier;
+    /**
+     * 是否保留全部TICK, 否则只保留开始和最后一个TICK
+     */
+    private boolean keepTicks = true;
 
     public TripTickBarrier(TripBarrierDef def, MarketData tick) {
         this(def.maxPrice, def.minPrice, def.maxTime, tick);
     }
 
     public TripTickBarrier(long maxPrice, long minPrice, int maxTime, MarketData tick) {
+        this(maxPrice, minPrice, maxTime, tick, true);
+    }
+
+    /**
+     * @param keepTicks false 只保留开始和最后一个TICK, 用于大量同时存在的界限
+     */
+    public TripTickBarrier(long maxPrice, long minPrice, int maxTime, MarketData tick, boolean keepTicks) {
         this.maxPrice = maxPrice;
         this.minPrice = minPrice;
         this.maxTime = maxTime;
         this.beginTime = tick.mktTime;
+        this.keepTicks = keepTicks;
         ticks.add(tick);
     }
 
@@ -55,6 +67,15 @@ public class TripTickBarrier {
         return barrier;
     }
 
+    /**
+     * 没有碰到界限时延续到下一个交易日: 之后的TICK时间是下一个交易日的开市以来时间, 已经经过的交易时间保持不变
+     *
+     * @param tradingMillis 当前交易日的总交易时长(ms)
+     */
+    public void rollover(int tradingMillis) {
+        beginTime -= tradingMillis;
+    }
+
     public Barrier update(long currTime) {
         if ( currTime-beginTime>=maxTime ) {
             barrier= Barrier.End;
@@ -63,7 +84,11 @@ public class TripTickBarrier {
     }
 
     public Barrier update(MarketData tick) {
-        ticks.add(tick);
+        if ( keepTicks || ticks.size()<2 ) {
+            ticks.add(tick);
+        } else {
+            ticks.set(1, tick);
+        }
         long lastPrice = tick.lastPrice;
         int lastTime = tick.mktTime;
         if ( lastPrice>=maxPrice ) {
@@ -0,0 +1,83 @@
+package trader.service.ta.bar;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ta4j.core.Bar;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.tick.PriceLevel;
+import trader.service.md.MarketData;
+import trader.service.ta.BaseLeveledBarSeries;
+import trader.service.ta.FutureBarImpl;
+import trader.service.ta.LeveledBarSeries;
+import trader.service.ta.LongNum;
+
+/**
+ * KBar checkpoint 二进制读取, 与 BarCheckpointWriter 对应
+ */
+public class BarCheckpointReader {
+    private final DataInput in;
+    private final List<MarketData> ticks = new ArrayList<>();
+    private final ByteBuffer barBuffer = ByteBuffer.allocate(FutureBarImpl.BINARY_SIZE);
+    private ExchangeableTradingTimes lastTradingTimes;
+
+    public BarCheckpointReader(DataInput in) {
+        this.in = in;
+    }
+
+    public DataInput getInput() {
+        return in;
+    }
+
+    public MarketData readTick() throws IOException {
+        int id = in.readInt();
+        if ( id<0 ) {
+            return null;
+        }
+        if ( id<ticks.size() ) {
+            return ticks.get(id);
+        }
+        if ( id!=ticks.size() ) {
+            throw new IOException("Invalid tick id "+id+", expected "+ticks.size());
+        }
+        MarketData tick = MarketData.load(in);
+        ticks.add(tick);
+        return tick;
+    }
+
+    public PriceLevel readLevel() throws IOException {
+        return PriceLevel.valueOf(in.readUTF());
+    }
+
+    public List<LocalDate> readDates() throws IOException {
+        int count = in.readInt();
+        List<LocalDate> result = new ArrayList<>(count);
+        for(int i=0;i<count;i++) {
+            result.add(LocalDate.ofEpochDay(in.readLong()));
+        }
+        return result;
+    }
+
+    public LeveledBarSeries readSeries(Exchangeable instrument) throws IOException {
+        String name = in.readUTF();
+        PriceLevel level = readLevel();
+        int barCount = in.readInt();
+        List<Bar> bars = new ArrayList<>(barCount);
+        for(int i=0;i<barCount;i++) {
+            barBuffer.clear();
+            in.readFully(barBuffer.array(), 0, FutureBarImpl.BINARY_SIZE);
+            FutureBarImpl bar = FutureBarImpl.load(instrument, lastTradingTimes, barBuffer);
+            lastTradingTimes = bar.getTradingTimes();
+            bar.setTicks(readTick(), readTick(), readTick(), readTick());
+            bars.add(bar);
+        }
+        return new BaseLeveledBarSeries(instrument, name, level, bars, LongNum::valueOf);
+    }
+
+}
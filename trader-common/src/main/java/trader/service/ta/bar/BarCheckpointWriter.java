@@ -0,0 +1,89 @@
+package trader.service.ta.bar;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ta4j.core.Bar;
+
+import trader.common.tick.PriceLevel;
+import trader.service.md.MarketData;
+import trader.service.ta.FutureBarImpl;
+import trader.service.ta.LeveledBarSeries;
+
+/**
+ * KBar checkpoint 二进制写入.
+ * <BR>多个KBar和多个级别引用的同一个TICK只写入一次, 之后只写入序号, 恢复后仍然是同一个对象
+ */
+public class BarCheckpointWriter {
+    private final DataOutput out;
+    private final Map<MarketData, Integer> ticks = new IdentityHashMap<>();
+    private final ByteBuffer barBuffer = ByteBuffer.allocate(FutureBarImpl.BINARY_SIZE);
+
+    public BarCheckpointWriter(DataOutput out) {
+        this.out = out;
+    }
+
+    public DataOutput getOutput() {
+        return out;
+    }
+
+    /**
+     * 第一次写入TICK内容, 之后写入序号. -1 表示null
+     */
+    public void writeTick(MarketData tick) throws IOException {
+        if ( tick==null ) {
+            out.writeInt(-1);
+            return;
+        }
+        Integer id = ticks.get(tick);
+        if ( id!=null ) {
+            out.writeInt(id);
+        } else {
+            id = ticks.size();
+            ticks.put(tick, id);
+            out.writeInt(id);
+            tick.save(out);
+        }
+    }
+
+    public void writeLevel(PriceLevel level) throws IOException {
+        out.writeUTF(level.toString());
+    }
+
+    public void writeDates(List<LocalDate> dates) throws IOException {
+        out.writeInt(dates.size());
+        for(LocalDate date:dates) {
+            out.writeLong(date.toEpochDay());
+        }
+    }
+
+    /**
+     * 写入全部KBar, 包括KBar引用的TICK. 只支持 FutureBarImpl
+     */
+    public void writeSeries(LeveledBarSeries series) throws IOException {
+        out.writeUTF(series.getName());
+        writeLevel(series.getLevel());
+        int barCount = series.getBarCount();
+        out.writeInt(barCount);
+        for(int i=0;i<barCount;i++) {
+            Bar bar = series.getBar(series.getBeginIndex()+i);
+            if ( !(bar instanceof FutureBarImpl) ) {
+                throw new IOException("Unsupported bar "+bar.getClass().getName()+" of "+series.getName());
+            }
+            FutureBarImpl futureBar = (FutureBarImpl)bar;
+            barBuffer.clear();
+            futureBar.save(barBuffer);
+            out.write(barBuffer.array(), 0, barBuffer.position());
+            writeTick(futureBar.getOpenTick());
+            writeTick(futureBar.getCloseTick());
+            writeTick(futureBar.getMaxTick());
+            writeTick(futureBar.getMinTick());
+        }
+    }
+
+}
@@ -53,6 +53,30 @@ public class FutureBarBuilder implements BarBuilder, JsonEnabled {
     public FutureBarBuilder(ExchangeableTradingTimes tradingTimes, PriceLevel level) {
         this.tradingTimes = tradingTimes;
         this.level = level;
+        initBarTimes();
+        series = new BaseLeveledBarSeries(tradingTimes.getInstrument(), tradingTimes.getInstrument()+"-"+level.toString(), level, LongNum::valueOf);
+    }
+
+    /**
+     * 切换到新的交易日: 按照新交易日的交易时间重新划分KBar, 已有的KBar作为历史数据保留, 不需要重新加载.
+     * <BR>新交易日需要晚于当前交易日. 日线不按TICK计算, 需要重新加载历史数据
+     */
+    public void rollTradingDay(ExchangeableTradingTimes tradingTimes) {
+        if ( !tradingTimes.getTradingDay().isAfter(this.tradingTimes.getTradingDay()) ) {
+            throw new IllegalArgumentException("Trading day "+tradingTimes.getTradingDay()+" is not after "+this.tradingTimes.getTradingDay());
+        }
+        this.tradingTimes = tradingTimes;
+        initBarTimes();
+        barIndex = -1;
+        newBar = false;
+        //成交量按交易日累计, 上一交易日的TICK不能用于计算新交易日的第一个KBar
+        lastTick = null;
+    }
+
+    /**
+     * 分钟级别预先计算KBar的开始结束时间
+     */
+    private void initBarTimes() {
         if ( level.name().toLowerCase().startsWith("min")) {
             Exchangeable exchangeable = tradingTimes.getInstrument();
             int barCount = tradingTimes.getTotalTradingMillis()/(1000*60*level.value());
@@ -60,15 +84,14 @@ public class FutureBarBuilder implements BarBuilder, JsonEnabled {
             barEndMillis = new long[barCount];
             barBeginTimes = new LocalDateTime[barCount];
             barEndTimes = new LocalDateTime[barCount];
+            LocalDateTime[] beginTimes = BarSeriesLoader.getBarBeginTimes(tradingTimes, new PriceLevel[] {level})[0];
             for(int i=0;i<barCount;i++) {
-                LocalDateTime[] barTimes = BarSeriesLoader.getBarTimes(tradingTimes, level, i, null);
-                barBeginTimes[i] = barTimes[0];
-                barBeginMillis[i] = DateUtil.localdatetime2long(exchangeable.exchange().getZoneId(), barTimes[0]);
-                barEndTimes[i] = barTimes[1];
-                barEndMillis[i] = DateUtil.localdatetime2long(exchangeable.exchange().getZoneId(), barTimes[1]);
+                barBeginTimes[i] = beginTimes[i];
+                barBeginMillis[i] = DateUtil.localdatetime2long(exchangeable.exchange().getZoneId(), beginTimes[i]);
+                barEndTimes[i] = beginTimes[i].plusMinutes(level.value());
+                barEndMillis[i] = DateUtil.localdatetime2long(exchangeable.exchange().getZoneId(), barEndTimes[i]);
             }
         }
-        series = new BaseLeveledBarSeries(tradingTimes.getInstrument(), tradingTimes.getInstrument()+"-"+level.toString(), level, LongNum::valueOf);
     }
 
     public PriceLevel getLevel() {
@@ -104,6 +127,14 @@ public class FutureBarBuilder implements BarBuilder, JsonEnabled {
                 .setEndTradingDay(tradingTimes.getTradingDay())
                 .load();
         historicalDates = seriesLoader.getLoadedDates();
+        //历史数据已经包含当天的KBar, 从最后一个KBar继续
+        FutureBarImpl lastBar = getLastBar();
+        if ( lastBar!=null && barBeginMillis!=null && !lastBar.getEndTime().toLocalDateTime().isBefore(tradingTimes.getMarketOpenTime()) ) {
+            barIndex = lastBar.getIndex();
+            if ( lastBar.getCloseTick()!=null ) {
+                lastTick = lastBar.getCloseTick();
+            }
+        }
     }
 
     @Override
@@ -121,6 +152,10 @@ public class FutureBarBuilder implements BarBuilder, JsonEnabled {
                 FutureBarImpl lastBar = null;
                 if ( series.getBarCount()>0) {
                     lastBar = getLastBar();
+                    //上一个交易日的Bar不再更新
+                    if ( lastBar.getEndTime().toLocalDateTime().isBefore(tradingTimes.getMarketOpenTime()) ) {
+                        lastBar = null;
+                    }
                 }
                 if ( lastBar!=null && lastBar.getVolume().doubleValue()<level.value()) {
                     lastBar.update(tick, tick.updateTime);
@@ -215,6 +250,29 @@ public class FutureBarBuilder implements BarBuilder, JsonEnabled {
         return json;
     }
 
+    /**
+     * 保存当前状态: KBar(包括未完成的最后一个KBar), 以及继续更新需要的TICK
+     */
+    public void saveCheckpoint(BarCheckpointWriter writer) throws IOException {
+        writer.writeLevel(level);
+        writer.getOutput().writeInt(barIndex);
+        writer.writeTick(lastTick);
+        writer.writeDates(historicalDates);
+        writer.writeSeries(series);
+    }
+
+    /**
+     * 从 saveCheckpoint() 保存的状态恢复, 之后使用checkpoint之后的TICK继续更新
+     */
+    public static FutureBarBuilder loadCheckpoint(ExchangeableTradingTimes tradingTimes, BarCheckpointReader reader) throws IOException {
+        FutureBarBuilder barBuilder = new FutureBarBuilder(tradingTimes, reader.readLevel());
+        barBuilder.barIndex = reader.getInput().readInt();
+        barBuilder.lastTick = reader.readTick();
+        barBuilder.historicalDates = reader.readDates();
+        barBuilder.series = reader.readSeries(tradingTimes.getInstrument());
+        return barBuilder;
+    }
+
     public static FutureBarBuilder fromJson(JsonElement jsonElem) {
         JsonObject json = jsonElem.getAsJsonObject();
 
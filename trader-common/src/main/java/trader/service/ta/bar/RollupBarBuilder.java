@@ -0,0 +1,415 @@
+package trader.service.ta.bar;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.exchangeable.MarketTimeStage;
+import trader.common.tick.PriceLevel;
+import trader.common.util.DateUtil;
+import trader.common.util.JsonEnabled;
+import trader.common.util.JsonUtil;
+import trader.service.md.MarketData;
+import trader.service.ta.BarSeriesLoader;
+import trader.service.ta.BaseLeveledBarSeries;
+import trader.service.ta.FutureBarImpl;
+import trader.service.ta.LeveledBarSeries;
+import trader.service.ta.LongNum;
+
+/**
+ * 一次处理TICK同时创建多个分钟级别的KBar.
+ * <BR>每个TICK只定位一次MIN1的KBar位置, 粗粒度级别通过预先计算的MIN1到KBar位置映射得到;
+ * 只有MIN1按照TICK计算价格/成交量, 粗粒度级别复用MIN1计算好的结果.
+ * <BR>每个级别的KBar划分(包括跨越休市时间的KBar)与 FutureBarBuilder 相同
+ */
+public class RollupBarBuilder implements BarBuilder, JsonEnabled {
+    private final static Logger logger = LoggerFactory.getLogger(RollupBarBuilder.class);
+
+    /**
+     * 单个级别的状态
+     */
+    private static class LevelInfo {
+        PriceLevel level;
+        LeveledBarSeries series;
+        LocalDateTime[] barBeginTimes;
+        LocalDateTime[] barEndTimes;
+        /**
+         * MIN1 KBar位置对应的本级别KBar位置
+         */
+        int[] min1Parents;
+        int barIndex = -1;
+        boolean newBar;
+        /**
+         * 是否为外部需要的级别
+         */
+        boolean exported;
+        List<LocalDate> historicalDates = Collections.emptyList();
+    }
+
+    private ExchangeableTradingTimes tradingTimes;
+    private ZoneId zoneId;
+    /**
+     * 第一个总是MIN1, 后续按照从细到粗排列
+     */
+    private LevelInfo[] levels;
+    private long[] min1BeginMillis;
+    private MarketData lastTick;
+
+    public RollupBarBuilder(ExchangeableTradingTimes tradingTimes, Collection<PriceLevel> levels) {
+        this.tradingTimes = tradingTimes;
+        Exchangeable instrument = tradingTimes.getInstrument();
+        zoneId = instrument.exchange().getZoneId();
+        List<PriceLevel> sortedLevels = new ArrayList<>();
+        for(PriceLevel level:levels) {
+            if ( !isRollupLevel(level) ) {
+                throw new IllegalArgumentException("Unsupported rollup level: "+level);
+            }
+            if ( !level.equals(PriceLevel.MIN1) && !sortedLevels.contains(level) ) {
+                sortedLevels.add(level);
+            }
+        }
+        Collections.sort(sortedLevels, (l1, l2)->Integer.compare(l1.value(), l2.value()));
+        sortedLevels.add(0, PriceLevel.MIN1);
+
+        this.levels = new LevelInfo[sortedLevels.size()];
+        for(int i=0;i<sortedLevels.size();i++) {
+            PriceLevel level = sortedLevels.get(i);
+            LevelInfo levelInfo = new LevelInfo();
+            levelInfo.level = level;
+            levelInfo.exported = levels.contains(level);
+            levelInfo.series = new BaseLeveledBarSeries(instrument, instrument+"-"+level.toString(), level, LongNum::valueOf);
+            this.levels[i] = levelInfo;
+        }
+        initBarTimes();
+    }
+
+    /**
+     * 切换到新的交易日: 按照新交易日的交易时间重新划分KBar, 已有的KBar作为历史数据保留, 不需要重新加载.
+     * <BR>新交易日需要晚于当前交易日
+     */
+    public void rollTradingDay(ExchangeableTradingTimes tradingTimes) {
+        if ( !tradingTimes.getTradingDay().isAfter(this.tradingTimes.getTradingDay()) ) {
+            throw new IllegalArgumentException("Trading day "+tradingTimes.getTradingDay()+" is not after "+this.tradingTimes.getTradingDay());
+        }
+        this.tradingTimes = tradingTimes;
+        initBarTimes();
+        for(LevelInfo levelInfo:levels) {
+            levelInfo.barIndex = -1;
+            levelInfo.newBar = false;
+        }
+        //成交量按交易日累计, 上一交易日的TICK不能用于计算新交易日的第一个KBar
+        lastTick = null;
+    }
+
+    /**
+     * 按照交易时间计算每个级别的KBar划分
+     */
+    private void initBarTimes() {
+        PriceLevel[] levelArray = new PriceLevel[levels.length];
+        for(int i=0;i<levels.length;i++) {
+            levelArray[i] = levels[i].level;
+        }
+        LocalDateTime[][] beginTimes = BarSeriesLoader.getBarBeginTimes(tradingTimes, levelArray);
+        for(int i=0;i<levels.length;i++) {
+            LevelInfo levelInfo = levels[i];
+            levelInfo.barBeginTimes = beginTimes[i];
+            levelInfo.barEndTimes = new LocalDateTime[beginTimes[i].length];
+            for(int j=0;j<beginTimes[i].length;j++) {
+                levelInfo.barEndTimes[j] = beginTimes[i][j].plusMinutes(levelInfo.level.value());
+            }
+        }
+        LevelInfo min1 = this.levels[0];
+        min1BeginMillis = new long[min1.barBeginTimes.length];
+        for(int i=0;i<min1BeginMillis.length;i++) {
+            min1BeginMillis[i] = DateUtil.localdatetime2long(zoneId, min1.barBeginTimes[i]);
+        }
+        //MIN1位置到粗粒度KBar位置: 开始时间不晚于MIN1开始时间的最后一个KBar, 与 FutureBarBuilder 按照开始时间定位相同
+        for(int i=1;i<this.levels.length;i++) {
+            LevelInfo levelInfo = this.levels[i];
+            levelInfo.min1Parents = new int[min1BeginMillis.length];
+            int parent = -1;
+            for(int j=0;j<min1BeginMillis.length;j++) {
+                while( parent+1<levelInfo.barBeginTimes.length && !levelInfo.barBeginTimes[parent+1].isAfter(min1.barBeginTimes[j]) ) {
+                    parent++;
+                }
+                levelInfo.min1Parents[j] = parent;
+            }
+        }
+    }
+
+    /**
+     * 是否可以由MIN1合成
+     */
+    public static boolean isRollupLevel(PriceLevel level) {
+        return level.prefix().equals(PriceLevel.LEVEL_MIN) && level.value()>0;
+    }
+
+    public List<PriceLevel> getLevels(){
+        List<PriceLevel> result = new ArrayList<>();
+        for(LevelInfo levelInfo:levels) {
+            if ( levelInfo.exported ) {
+                result.add(levelInfo.level);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public LeveledBarSeries getTimeSeries(PriceLevel level) {
+        LevelInfo levelInfo = getLevelInfo(level);
+        if ( levelInfo!=null ) {
+            return levelInfo.series;
+        }
+        return null;
+    }
+
+    /**
+     * 最近一次update()是否创建了这个级别的新KBar
+     */
+    public boolean hasNewBar(PriceLevel level) {
+        LevelInfo levelInfo = getLevelInfo(level);
+        return levelInfo!=null && levelInfo.newBar;
+    }
+
+    public List<LocalDate> getHistoricalDates(PriceLevel level){
+        LevelInfo levelInfo = getLevelInfo(level);
+        if ( levelInfo!=null ) {
+            return levelInfo.historicalDates;
+        }
+        return Collections.emptyList();
+    }
+
+    private LevelInfo getLevelInfo(PriceLevel level) {
+        for(int i=0;i<levels.length;i++) {
+            LevelInfo levelInfo = levels[i];
+            if ( levelInfo.exported && levelInfo.level.equals(level) ) {
+                return levelInfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 使用已经加载的历史KBar. 历史数据已经包含当天的KBar时, 从最后一个KBar继续
+     */
+    public void setHistoryData(PriceLevel level, LeveledBarSeries series, List<LocalDate> historicalDates) {
+        LevelInfo levelInfo = getLevelInfo(level);
+        if ( levelInfo==null ) {
+            throw new IllegalArgumentException("Level "+level+" is not built by "+this);
+        }
+        levelInfo.series = series;
+        levelInfo.historicalDates = historicalDates;
+        FutureBarImpl lastBar = null;
+        if ( series.getBarCount()>0 ) {
+            lastBar = (FutureBarImpl)series.getBar(series.getEndIndex());
+        }
+        if ( lastBar!=null && !lastBar.getEndTime().toLocalDateTime().isBefore(tradingTimes.getMarketOpenTime()) ) {
+            levelInfo.barIndex = lastBar.getIndex();
+            if ( lastBar.getCloseTick()!=null ) {
+                lastTick = lastBar.getCloseTick();
+            }
+        }
+    }
+
+    @Override
+    public boolean update(MarketData tick) {
+        boolean result = false;
+        for(int i=0;i<levels.length;i++) {
+            levels[i].newBar = false;
+        }
+        if ( tick.mktStage!=MarketTimeStage.MarketOpen ) {
+            return false;
+        }
+        int min1Index = getMin1Index(tick);
+        if ( min1Index>=0 ) {
+            //MIN1: 按照TICK计算
+            FutureBarImpl min1Bar = null;
+            LevelInfo min1 = levels[0];
+            if ( min1Index>=min1.barIndex ) {
+                min1Bar = updateLevel(min1, tick, min1Index, null);
+                result |= (min1.newBar && min1.exported);
+            }
+            //粗粒度级别: 复用MIN1的计算结果
+            for(int i=1;i<levels.length;i++) {
+                LevelInfo levelInfo = levels[i];
+                int tickBarIndex = levelInfo.min1Parents[min1Index];
+                if ( tickBarIndex<0 || tickBarIndex<levelInfo.barIndex ) {
+                    continue;
+                }
+                updateLevel(levelInfo, tick, tickBarIndex, min1Bar);
+                result |= (levelInfo.newBar && levelInfo.exported);
+            }
+        }
+        lastTick = tick;
+        return result;
+    }
+
+    /**
+     * 与 FutureBarBuilder.updateTimeBar() 相同的规则: TICK时间等于上一个KBar结束时间时仍然归入上一个KBar
+     *
+     * @param min1Bar 已经使用这个TICK更新的MIN1 KBar, null表示需要直接使用TICK更新
+     *
+     * @return 包含这个TICK的KBar
+     */
+    private FutureBarImpl updateLevel(LevelInfo levelInfo, MarketData tick, int tickBarIndex, FutureBarImpl min1Bar) {
+        LeveledBarSeries series = levelInfo.series;
+        FutureBarImpl lastBar = null;
+        LocalDateTime lastBarEndTime = null;
+        if ( series.getBarCount()>0 ) {
+            lastBar = (FutureBarImpl)series.getBar(series.getEndIndex());
+            //需要忽略上一个交易日的Bar
+            if ( lastBar.getEndTime().toLocalDateTime().isBefore(tradingTimes.getMarketOpenTime())) {
+                lastBar = null;
+            } else {
+                lastBarEndTime = levelInfo.barEndTimes[lastBar.getIndex()];
+            }
+        }
+        if ( tickBarIndex==levelInfo.barIndex || tick.updateTime.equals(lastBarEndTime) ) {
+            if ( min1Bar!=null ) {
+                lastBar.updateFrom(min1Bar);
+            } else {
+                lastBar.update(tick, tick.updateTime);
+            }
+            return lastBar;
+        }
+        //创建新的BAR
+        if ( lastBar!=null ){
+            lastBar.updateEndTime(lastBarEndTime.atZone(zoneId));
+        }
+        FutureBarImpl bar = FutureBarImpl.fromTicks(tickBarIndex, tradingTimes, levelInfo.barBeginTimes[tickBarIndex], lastTick, tick, tick.lastPrice, tick.lastPrice);
+        if ( logger.isDebugEnabled() ) {
+            logger.debug(tradingTimes.getInstrument()+" "+levelInfo.level+" NEW Kbar #"+tickBarIndex+" old #"+levelInfo.barIndex+" : "+bar);
+        }
+        try{
+            series.addBar(bar);
+            levelInfo.barIndex = tickBarIndex;
+            levelInfo.newBar = true;
+        }catch(Throwable t){
+            logger.error(tradingTimes.getInstrument()+" "+levelInfo.level+" failed to NEW Kbar #"+tickBarIndex+" old #"+levelInfo.barIndex+" : "+bar, t);
+            return null;
+        }
+        return bar;
+    }
+
+    /**
+     * 开始时间不晚于TICK时间的最后一个MIN1 KBar位置, 通常从当前KBar向后查找
+     *
+     * @return -1 如果早于第一个KBar
+     */
+    private int getMin1Index(MarketData tick) {
+        long millis = tick.updateTimestamp;
+        if ( min1BeginMillis.length==0 || millis<min1BeginMillis[0] ) {
+            return -1;
+        }
+        int from = Math.max(0, levels[0].barIndex);
+        if ( millis<min1BeginMillis[from] ) {
+            from = 0;
+        }
+        int result = from;
+        for(int i=from+1;i<min1BeginMillis.length;i++) {
+            if ( millis<min1BeginMillis[i] ) {
+                break;
+            }
+            result = i;
+        }
+        return result;
+    }
+
+    /**
+     * 保存当前状态, 包括不对外提供的MIN1级别
+     */
+    public void saveCheckpoint(BarCheckpointWriter writer) throws IOException {
+        DataOutput out = writer.getOutput();
+        writer.writeTick(lastTick);
+        out.writeInt(levels.length);
+        for(LevelInfo levelInfo:levels) {
+            writer.writeLevel(levelInfo.level);
+            out.writeBoolean(levelInfo.exported);
+            out.writeInt(levelInfo.barIndex);
+            writer.writeDates(levelInfo.historicalDates);
+            writer.writeSeries(levelInfo.series);
+        }
+    }
+
+    /**
+     * 从 saveCheckpoint() 保存的状态恢复
+     */
+    public static RollupBarBuilder loadCheckpoint(ExchangeableTradingTimes tradingTimes, BarCheckpointReader reader) throws IOException {
+        DataInput in = reader.getInput();
+        MarketData lastTick = reader.readTick();
+        int levelCount = in.readInt();
+        List<PriceLevel> exportedLevels = new ArrayList<>();
+        PriceLevel[] levels = new PriceLevel[levelCount];
+        boolean[] exported = new boolean[levelCount];
+        int[] barIndexes = new int[levelCount];
+        List<List<LocalDate>> historicalDates = new ArrayList<>();
+        List<LeveledBarSeries> series = new ArrayList<>();
+        for(int i=0;i<levelCount;i++) {
+            levels[i] = reader.readLevel();
+            exported[i] = in.readBoolean();
+            barIndexes[i] = in.readInt();
+            historicalDates.add(reader.readDates());
+            series.add(reader.readSeries(tradingTimes.getInstrument()));
+            if ( exported[i] ) {
+                exportedLevels.add(levels[i]);
+            }
+        }
+        RollupBarBuilder result = new RollupBarBuilder(tradingTimes, exportedLevels);
+        if ( result.levels.length!=levelCount ) {
+            throw new IOException("Rollup levels mismatch: "+Arrays.asList(levels));
+        }
+        for(int i=0;i<levelCount;i++) {
+            LevelInfo levelInfo = result.levels[i];
+            if ( !levelInfo.level.equals(levels[i]) || levelInfo.exported!=exported[i] ) {
+                throw new IOException("Rollup levels mismatch: "+Arrays.asList(levels));
+            }
+            levelInfo.barIndex = barIndexes[i];
+            levelInfo.historicalDates = historicalDates.get(i);
+            levelInfo.series = series.get(i);
+        }
+        result.lastTick = lastTick;
+        return result;
+    }
+
+    @Override
+    public JsonElement toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("instrument", tradingTimes.getInstrument().uniqueId());
+        json.addProperty("tradingDay", DateUtil.date2str(tradingTimes.getTradingDay()));
+        if ( lastTick!=null ) {
+            json.add("lastTick", lastTick.toJson());
+        }
+        JsonArray array = new JsonArray();
+        for(LevelInfo levelInfo:levels) {
+            if ( !levelInfo.exported ) {
+                continue;
+            }
+            JsonObject levelJson = new JsonObject();
+            levelJson.addProperty("level", levelInfo.level.toString());
+            levelJson.addProperty("barIndex", levelInfo.barIndex);
+            levelJson.add("historicalDates", JsonUtil.object2json(levelInfo.historicalDates));
+            levelJson.add("series", JsonUtil.object2json(levelInfo.series));
+            array.add(levelJson);
+        }
+        json.add("levels", array);
+        return json;
+    }
+
+}
@@ -0,0 +1,90 @@
+package trader.service.ta.label;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.service.ta.label.TripBarrierLabeler.DayLabels;
+
+/**
+ * 读取 LabelDatasetWriter 写入的列式文件
+ */
+public class LabelDatasetReader implements Closeable {
+    private final DataInputStream in;
+    private final List<String> featureNames;
+    private byte[] buffer = new byte[64*1024];
+
+    public LabelDatasetReader(InputStream is) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(is, 256*1024));
+        if ( in.readInt()!=LabelDatasetWriter.MAGIC ) {
+            throw new IOException("Invalid label dataset file");
+        }
+        int version = in.readInt();
+        if ( version!=LabelDatasetWriter.VERSION ) {
+            throw new IOException("Unsupported label dataset version "+version);
+        }
+        int featureCount = in.readInt();
+        List<String> names = new ArrayList<>(featureCount);
+        for(int i=0;i<featureCount;i++) {
+            names.add(in.readUTF());
+        }
+        featureNames = Collections.unmodifiableList(names);
+    }
+
+    public List<String> getFeatureNames(){
+        return featureNames;
+    }
+
+    /**
+     * 读取下一个(品种, 交易日)分组
+     *
+     * @return null 如果已经结束
+     */
+    public DayLabels read() throws IOException {
+        String instrument = in.readUTF();
+        LocalDate tradingDay = LocalDate.ofEpochDay(in.readLong());
+        int rows = in.readInt();
+        if ( rows<0 ) {
+            return null;
+        }
+        DayLabels result = new DayLabels(Exchangeable.fromString(instrument), tradingDay, featureNames.size(), rows);
+        result.size = rows;
+        readLongs(result.beginTimestamps, rows);
+        readLongs(result.beginPrices, rows);
+        in.readFully(result.labels, 0, rows);
+        readLongs(result.endTimestamps, rows);
+        readLongs(result.endPrices, rows);
+        for(int f=0;f<featureNames.size();f++) {
+            ByteBuffer buf = readColumn(rows);
+            buf.asDoubleBuffer().get(result.features[f], 0, rows);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readLongs(long[] values, int rows) throws IOException {
+        readColumn(rows).asLongBuffer().get(values, 0, rows);
+    }
+
+    private ByteBuffer readColumn(int rows) throws IOException {
+        int size = rows*8;
+        if ( buffer.length<size ) {
+            buffer = new byte[size];
+        }
+        in.readFully(buffer, 0, size);
+        return ByteBuffer.wrap(buffer, 0, size);
+    }
+
+}
@@ -0,0 +1,113 @@
+package trader.service.ta.label;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import trader.service.ta.label.TripBarrierLabeler.DayLabels;
+
+/**
+ * 标注数据集的列式文件.
+ * <P>文件头: MAGIC, VERSION, 特征数量和名称.
+ * <BR>之后每个(品种, 交易日)一个分组: 品种, 交易日, 行数, 然后按列连续写入:
+ * beginTimestamp, beginPrice, label, endTimestamp, endPrice, 以及每个特征的double值.
+ * <BR>文件以行数 -1 结束. 没有碰到界限的采样不写入.
+ */
+public class LabelDatasetWriter implements Closeable {
+    public static final int MAGIC = 0X544C4453; //TLDS
+    public static final int VERSION = 1;
+
+    private final DataOutputStream out;
+    private final int featureCount;
+    private ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+    private long rowCount;
+
+    public LabelDatasetWriter(OutputStream os, List<String> featureNames) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(os, 256*1024));
+        featureCount = featureNames.size();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(featureCount);
+        for(String name:featureNames) {
+            out.writeUTF(name);
+        }
+    }
+
+    /**
+     * 已写入的行数
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * 写入一个交易日的已经碰到界限的采样
+     */
+    public void write(DayLabels day) throws IOException {
+        int rows = 0;
+        for(int i=0;i<day.size;i++) {
+            if ( day.labels[i]!=TripBarrierLabeler.LABEL_OPEN ) {
+                rows++;
+            }
+        }
+        out.writeUTF(day.instrument.uniqueId());
+        out.writeLong(day.tradingDay.toEpochDay());
+        out.writeInt(rows);
+        ensureBuffer(rows*8);
+        writeLongs(day, day.beginTimestamps);
+        writeLongs(day, day.beginPrices);
+        buffer.clear();
+        for(int i=0;i<day.size;i++) {
+            if ( day.labels[i]!=TripBarrierLabeler.LABEL_OPEN ) {
+                buffer.put(day.labels[i]);
+            }
+        }
+        flushBuffer();
+        writeLongs(day, day.endTimestamps);
+        writeLongs(day, day.endPrices);
+        for(int f=0;f<featureCount;f++) {
+            double[] values = day.features[f];
+            buffer.clear();
+            for(int i=0;i<day.size;i++) {
+                if ( day.labels[i]!=TripBarrierLabeler.LABEL_OPEN ) {
+                    buffer.putDouble(values[i]);
+                }
+            }
+            flushBuffer();
+        }
+        rowCount += rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.writeUTF("");
+        out.writeLong(0);
+        out.writeInt(-1);
+        out.close();
+    }
+
+    private void writeLongs(DayLabels day, long[] values) throws IOException {
+        buffer.clear();
+        for(int i=0;i<day.size;i++) {
+            if ( day.labels[i]!=TripBarrierLabeler.LABEL_OPEN ) {
+                buffer.putLong(values[i]);
+            }
+        }
+        flushBuffer();
+    }
+
+    private void ensureBuffer(int size) {
+        if ( buffer.capacity()<size ) {
+            buffer = ByteBuffer.allocate(size);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+}
@@ -0,0 +1,27 @@
+package trader.service.ta.label;
+
+import trader.service.md.MarketData;
+
+/**
+ * 基于TICK计算的特征值. 每个交易日开始时 reset(), 之后按顺序调用 update()
+ */
+public interface TickFeature {
+
+    /**
+     * 特征名称, 也是输出文件中的列名
+     */
+    public String getName();
+
+    /**
+     * 新的交易日开始, 清除之前的数据
+     */
+    public void reset();
+
+    /**
+     * 使用新的TICK更新
+     *
+     * @return 特征值, 数据不足时为 Double.NaN
+     */
+    public double update(MarketData tick);
+
+}
@@ -0,0 +1,321 @@
+package trader.service.ta.label;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import trader.common.util.ConversionUtil;
+import trader.common.util.StringUtil;
+import trader.service.md.MarketData;
+
+/**
+ * 内置的TICK特征, 使用 名称[:TICK数量] 的格式定义:
+ * <LI>ret:N 最近N个TICK的价格变化(价位)
+ * <LI>ma:N 最新价相对最近N个TICK平均价的偏离(价位)
+ * <LI>std:N 最近N个TICK逐笔价格变化的标准差(价位)
+ * <LI>vol:N 最近N个TICK的成交量
+ * <LI>oi:N 最近N个TICK的持仓量变化
+ * <LI>spread 买一卖一价差(价位)
+ * <LI>imbalance 买一卖一挂单量不平衡 (买-卖)/(买+卖)
+ * <LI>time 开市以来时间占当天总交易时长的比例
+ */
+public class TickFeatures {
+
+    /**
+     * 解析逗号分隔的特征定义
+     */
+    public static List<TickFeature> createAll(String specs) {
+        List<TickFeature> result = new ArrayList<>();
+        for(String spec:StringUtil.split(specs, ",|;")) {
+            result.add(create(spec));
+        }
+        return result;
+    }
+
+    public static TickFeature create(String spec) {
+        String[] parts = StringUtil.split(spec.trim(), ":");
+        String name = parts[0].toLowerCase();
+        int window = 0;
+        if ( parts.length>1 ) {
+            window = ConversionUtil.toInt(parts[1]);
+            if ( window<=0 ) {
+                throw new IllegalArgumentException("Invalid feature window: "+spec);
+            }
+        }
+        String featureName = window>0?name+window:name;
+        switch(name) {
+        case "ret":
+            return new PriceChangeFeature(featureName, checkWindow(spec, window));
+        case "ma":
+            return new MovingAverageFeature(featureName, checkWindow(spec, window));
+        case "std":
+            return new StdDevFeature(featureName, checkWindow(spec, window));
+        case "vol":
+            return new VolumeFeature(featureName, checkWindow(spec, window));
+        case "oi":
+            return new OpenIntFeature(featureName, checkWindow(spec, window));
+        case "spread":
+            return new SpreadFeature(featureName);
+        case "imbalance":
+            return new ImbalanceFeature(featureName);
+        case "time":
+            return new TimeFeature(featureName);
+        default:
+            throw new IllegalArgumentException("Unknown feature: "+spec);
+        }
+    }
+
+    private static int checkWindow(String spec, int window) {
+        if ( window<=0 ) {
+            throw new IllegalArgumentException("Feature requires tick count: "+spec);
+        }
+        return window;
+    }
+
+    /**
+     * 保存最近 window+1 个值的环形缓冲
+     */
+    static abstract class WindowFeature implements TickFeature {
+        protected final String name;
+        protected final int window;
+        protected final long[] values;
+        protected int count;
+
+        WindowFeature(String name, int window) {
+            this.name = name;
+            this.window = window;
+            values = new long[window+1];
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void reset() {
+            count = 0;
+        }
+
+        protected void add(long value) {
+            values[count%values.length] = value;
+            count++;
+        }
+
+        /**
+         * 向前第 offset 个值, 0 是最新的值
+         */
+        protected long get(int offset) {
+            return values[(count-1-offset)%values.length];
+        }
+
+        protected boolean isFull() {
+            return count>window;
+        }
+    }
+
+    static class PriceChangeFeature extends WindowFeature {
+        PriceChangeFeature(String name, int window) {
+            super(name, window);
+        }
+
+        @Override
+        public double update(MarketData tick) {
+            add(tick.lastPrice);
+            if ( !isFull() ) {
+                return Double.NaN;
+            }
+            return (double)(get(0)-get(window))/tick.instrument.getPriceTick();
+        }
+    }
+
+    static class MovingAverageFeature extends WindowFeature {
+        private long sum;
+
+        MovingAverageFeature(String name, int window) {
+            super(name, window);
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            sum = 0;
+        }
+
+        @Override
+        public double update(MarketData tick) {
+            add(tick.lastPrice);
+            sum += tick.lastPrice;
+            if ( count>window ) {
+                sum -= get(window);
+            }
+            if ( count<window ) {
+                return Double.NaN;
+            }
+            return (tick.lastPrice-(double)sum/window)/tick.instrument.getPriceTick();
+        }
+    }
+
+    /**
+     * 窗口中保存逐笔价格变化
+     */
+    static class StdDevFeature extends WindowFeature {
+        private long lastPrice;
+        private long sum;
+        private long sum2;
+
+        StdDevFeature(String name, int window) {
+            super(name, window);
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            lastPrice = 0;
+            sum = 0;
+            sum2 = 0;
+        }
+
+        @Override
+        public double update(MarketData tick) {
+            long price = tick.lastPrice, priceTick = tick.instrument.getPriceTick();
+            if ( lastPrice==0 ) {
+                lastPrice = price;
+                return Double.NaN;
+            }
+            long change = (price-lastPrice)/priceTick;
+            lastPrice = price;
+            add(change);
+            sum += change;
+            sum2 += change*change;
+            if ( count>window ) {
+                long removed = get(window);
+                sum -= removed;
+                sum2 -= removed*removed;
+            }
+            if ( count<window ) {
+                return Double.NaN;
+            }
+            double avg = (double)sum/window;
+            return Math.sqrt(Math.max(0, (double)sum2/window-avg*avg));
+        }
+    }
+
+    /**
+     * 累计值的窗口变化
+     */
+    static abstract class DeltaFeature extends WindowFeature {
+        DeltaFeature(String name, int window) {
+            super(name, window);
+        }
+
+        protected abstract long getValue(MarketData tick);
+
+        @Override
+        public double update(MarketData tick) {
+            add(getValue(tick));
+            if ( !isFull() ) {
+                return Double.NaN;
+            }
+            return get(0)-get(window);
+        }
+    }
+
+    static class VolumeFeature extends DeltaFeature {
+        VolumeFeature(String name, int window) {
+            super(name, window);
+        }
+
+        @Override
+        protected long getValue(MarketData tick) {
+            return tick.volume;
+        }
+    }
+
+    static class OpenIntFeature extends DeltaFeature {
+        OpenIntFeature(String name, int window) {
+            super(name, window);
+        }
+
+        @Override
+        protected long getValue(MarketData tick) {
+            return tick.openInterest;
+        }
+    }
+
+    static class SpreadFeature implements TickFeature {
+        private final String name;
+
+        SpreadFeature(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public double update(MarketData tick) {
+            return (double)(tick.lastAskPrice()-tick.lastBidPrice())/tick.instrument.getPriceTick();
+        }
+    }
+
+    static class ImbalanceFeature implements TickFeature {
+        private final String name;
+
+        ImbalanceFeature(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public double update(MarketData tick) {
+            if ( tick.bidVolumes==null || tick.askVolumes==null || tick.bidVolumes.length==0 || tick.askVolumes.length==0 ) {
+                return Double.NaN;
+            }
+            long bidVolume = tick.bidVolumes[0], askVolume = tick.askVolumes[0];
+            if ( bidVolume+askVolume==0 ) {
+                return 0;
+            }
+            return (double)(bidVolume-askVolume)/(bidVolume+askVolume);
+        }
+    }
+
+    static class TimeFeature implements TickFeature {
+        private final String name;
+
+        TimeFeature(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public double update(MarketData tick) {
+            if ( tick.mktTimes==null ) {
+                return Double.NaN;
+            }
+            return (double)tick.mktTime/tick.mktTimes.getTotalTradingMillis();
+        }
+    }
+
+}
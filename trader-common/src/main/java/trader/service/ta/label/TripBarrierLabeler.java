@@ -0,0 +1,249 @@
+package trader.service.ta.label;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.MarketTimeStage;
+import trader.service.md.MarketData;
+import trader.service.ta.TripTickBarrier;
+import trader.service.ta.TripTickBarrier.Barrier;
+
+/**
+ * 三重界限标注: 按采样间隔从TICK创建 TripTickBarrier, 上下界限为采样价格上下若干价位, 时间界限为交易时间(ms).
+ * <P>每个交易日独立计算(可以并行), 交易日结束时没有碰到界限的保留在 DayLabels.openBarriers 中,
+ * 按交易日顺序调用 carryOver() 使用下一个交易日开始部分的TICK继续计算, 交易时间连续计算, 不包含休市时间.
+ * <P>特征在每个交易日开始时重新计算
+ */
+public class TripBarrierLabeler {
+    public static final byte LABEL_BOTTOM = -1;
+    public static final byte LABEL_END = 0;
+    public static final byte LABEL_TOP = 1;
+    /**
+     * 没有碰到任何界限
+     */
+    public static final byte LABEL_OPEN = Byte.MIN_VALUE;
+
+    /**
+     * 一个没有碰到界限的采样
+     */
+    static class OpenBarrier {
+        int sample;
+        TripTickBarrier barrier;
+        /**
+         * barrier 当前使用的交易日的总交易时长
+         */
+        int tradingMillis;
+    }
+
+    /**
+     * 一个交易日的标注结果, 按列保存
+     */
+    public static class DayLabels {
+        public Exchangeable instrument;
+        public LocalDate tradingDay;
+        public int tradingMillis;
+        /**
+         * 开市期间的TICK数量
+         */
+        public int tickCount;
+        /**
+         * 采样数量
+         */
+        public int size;
+        public long[] beginTimestamps;
+        public long[] beginPrices;
+        public byte[] labels;
+        public long[] endTimestamps;
+        public long[] endPrices;
+        /**
+         * [特征][采样]
+         */
+        public double[][] features;
+        /**
+         * 没有碰到界限的采样, 按采样顺序
+         */
+        List<OpenBarrier> openBarriers = new ArrayList<>();
+        /**
+         * 从开市到开市后 maxTime 的TICK, 用于延续上一个交易日的界限
+         */
+        List<MarketData> headTicks = new ArrayList<>();
+        /**
+         * headTicks 是否已经超过 maxTime, 否则是当天的全部TICK
+         */
+        boolean headComplete;
+
+        DayLabels(Exchangeable instrument, LocalDate tradingDay, int featureCount, int capacity) {
+            this.instrument = instrument;
+            this.tradingDay = tradingDay;
+            beginTimestamps = new long[capacity];
+            beginPrices = new long[capacity];
+            labels = new byte[capacity];
+            endTimestamps = new long[capacity];
+            endPrices = new long[capacity];
+            features = new double[featureCount][capacity];
+        }
+
+        public int getOpenCount() {
+            return openBarriers.size();
+        }
+
+        void ensureCapacity(int capacity) {
+            if ( capacity<=labels.length ) {
+                return;
+            }
+            capacity = Math.max(capacity, labels.length*2);
+            beginTimestamps = Arrays.copyOf(beginTimestamps, capacity);
+            beginPrices = Arrays.copyOf(beginPrices, capacity);
+            labels = Arrays.copyOf(labels, capacity);
+            endTimestamps = Arrays.copyOf(endTimestamps, capacity);
+            endPrices = Arrays.copyOf(endPrices, capacity);
+            for(int i=0;i<features.length;i++) {
+                features[i] = Arrays.copyOf(features[i], capacity);
+            }
+        }
+
+        void resolve(int sample, Barrier barrier, MarketData endTick) {
+            switch(barrier) {
+            case Top:
+                labels[sample] = LABEL_TOP;
+                break;
+            case Bottom:
+                labels[sample] = LABEL_BOTTOM;
+                break;
+            default:
+                labels[sample] = LABEL_END;
+                break;
+            }
+            endTimestamps[sample] = endTick.updateTimestamp;
+            endPrices[sample] = endTick.lastPrice;
+        }
+    }
+
+    private final int topTicks;
+    private final int bottomTicks;
+    private final int maxTime;
+    private final int sampleInterval;
+    private final String featureSpecs;
+    private final List<String> featureNames = new ArrayList<>();
+
+    /**
+     * @param topTicks 上界限价位数
+     * @param bottomTicks 下界限价位数
+     * @param maxTime 时间界限, 交易时间(ms)
+     * @param sampleInterval 采样间隔(ms), 0 表示每个TICK采样
+     * @param featureSpecs 特征定义, 见 TickFeatures
+     */
+    public TripBarrierLabeler(int topTicks, int bottomTicks, int maxTime, int sampleInterval, String featureSpecs) {
+        if ( topTicks<=0 || bottomTicks<=0 || maxTime<=0 ) {
+            throw new IllegalArgumentException("Invalid barrier top "+topTicks+" bottom "+bottomTicks+" maxTime "+maxTime);
+        }
+        this.topTicks = topTicks;
+        this.bottomTicks = bottomTicks;
+        this.maxTime = maxTime;
+        this.sampleInterval = Math.max(0, sampleInterval);
+        this.featureSpecs = featureSpecs!=null?featureSpecs:"";
+        for(TickFeature feature:TickFeatures.createAll(this.featureSpecs)) {
+            featureNames.add(feature.getName());
+        }
+    }
+
+    public List<String> getFeatureNames(){
+        return featureNames;
+    }
+
+    public int getMaxTime() {
+        return maxTime;
+    }
+
+    /**
+     * 标注一个交易日的TICK, 可以在多个线程中同时调用
+     */
+    public DayLabels labelDay(Exchangeable instrument, LocalDate tradingDay, List<MarketData> ticks) {
+        List<TickFeature> features = TickFeatures.createAll(featureSpecs);
+        double[] featureValues = new double[features.size()];
+        DayLabels result = new DayLabels(instrument, tradingDay, features.size(), Math.max(16, sampleInterval>0?1024:ticks.size()));
+        result.tradingMillis = instrument.exchange().getTradingTimes(instrument, tradingDay).getTotalTradingMillis();
+        List<OpenBarrier> openBarriers = result.openBarriers;
+        long priceTick = instrument.getPriceTick();
+        long lastSampleTimestamp = 0;
+        for(MarketData tick:ticks) {
+            if ( tick.mktStage!=MarketTimeStage.MarketOpen || tick.lastPrice<=0 ) {
+                continue;
+            }
+            result.tickCount++;
+            if ( !result.headComplete ) {
+                result.headTicks.add(tick);
+                result.headComplete = tick.mktTime>=maxTime;
+            }
+            for(int i=0;i<featureValues.length;i++) {
+                featureValues[i] = features.get(i).update(tick);
+            }
+            update(result, openBarriers, tick);
+            if ( lastSampleTimestamp==0 || tick.updateTimestamp-lastSampleTimestamp>=sampleInterval ) {
+                lastSampleTimestamp = tick.updateTimestamp;
+                int sample = result.size++;
+                result.ensureCapacity(result.size);
+                result.beginTimestamps[sample] = tick.updateTimestamp;
+                result.beginPrices[sample] = tick.lastPrice;
+                result.labels[sample] = LABEL_OPEN;
+                for(int i=0;i<featureValues.length;i++) {
+                    result.features[i][sample] = featureValues[i];
+                }
+                OpenBarrier openBarrier = new OpenBarrier();
+                openBarrier.sample = sample;
+                openBarrier.barrier = new TripTickBarrier(tick.lastPrice+topTicks*priceTick, tick.lastPrice-bottomTicks*priceTick, maxTime, tick, false);
+                openBarrier.tradingMillis = result.tradingMillis;
+                openBarriers.add(openBarrier);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 使用下一个有数据的交易日开始部分的TICK, 继续计算之前交易日没有碰到界限的采样.
+     * 需要按交易日顺序对每个交易日调用, 之后 next 开始部分的TICK被释放.
+     *
+     * @param days 之前还有没有碰到界限的采样的交易日
+     */
+    public void carryOver(List<DayLabels> days, DayLabels next) {
+        for(DayLabels day:days) {
+            List<OpenBarrier> openBarriers = day.openBarriers;
+            if ( openBarriers.isEmpty() ) {
+                continue;
+            }
+            for(OpenBarrier openBarrier:openBarriers) {
+                openBarrier.barrier.rollover(openBarrier.tradingMillis);
+                openBarrier.tradingMillis = next.tradingMillis;
+            }
+            for(MarketData tick:next.headTicks) {
+                if ( openBarriers.isEmpty() ) {
+                    break;
+                }
+                update(day, openBarriers, tick);
+            }
+        }
+        next.headTicks = Collections.emptyList();
+    }
+
+    /**
+     * 更新界限, 碰到界限的从列表中删除
+     */
+    private static void update(DayLabels day, List<OpenBarrier> openBarriers, MarketData tick) {
+        int count = openBarriers.size(), j=0;
+        for(int i=0;i<count;i++) {
+            OpenBarrier openBarrier = openBarriers.get(i);
+            Barrier barrier = openBarrier.barrier.update(tick);
+            if ( barrier!=null ) {
+                day.resolve(openBarrier.sample, barrier, tick);
+            } else {
+                openBarriers.set(j++, openBarrier);
+            }
+        }
+        openBarriers.subList(j, count).clear();
+    }
+
+}
@@ -28,6 +28,15 @@ public class SimpleSectionBar extends WaveBar<WaveBar> {
     protected List<WaveBar> bars;
     protected LinkedList<WaveBar> charBars;
     protected SimpleSectionBar mergedTo;
+    /**
+     * 除最后一个笔划之外, 已经累计的笔划数量和 high/low/volume/amount
+     * <BR>之前的笔划已经结束不会再改变, 每次只需要累计新增的笔划
+     */
+    private int foldedCount;
+    private Num foldedHigh;
+    private Num foldedLow;
+    private Num foldedVolume;
+    private Num foldedAmount;
 
     public SimpleSectionBar(int index, List<WaveBar> strokeBars) {
         super(index, strokeBars.get(strokeBars.size()-1).getTradingTimes());
@@ -82,7 +91,7 @@ public class SimpleSectionBar extends WaveBar<WaveBar> {
     public WaveBar<WaveBar> update(WaveBar prevSection, WaveBar stroke) {
         canMerge = false;
         boolean newStroke = false; //是否是已有笔划或新笔划
-        if ( bars.lastIndexOf(stroke)<0 ) {
+        if ( bars.get(bars.size()-1)!=stroke ) {
             bars.add(stroke);
             newStroke = true;
         }
@@ -157,6 +166,7 @@ public class SimpleSectionBar extends WaveBar<WaveBar> {
     public void setMergedTo(SimpleSectionBar mergedTo) {
         this.mergedTo = mergedTo;
         bars.clear();
+        foldedCount = 0;
         open = LongNum.ZERO;
         close = LongNum.ZERO;
         high = LongNum.ZERO;
@@ -168,6 +178,7 @@ public class SimpleSectionBar extends WaveBar<WaveBar> {
 
     /**
      * 更新数据: OHLC, VA
+     * <BR>只累计上次之后新增的笔划, 再加上最后一个笔划, 每个TICK的计算量与笔划数量无关
      */
     private void recompute() {
         WaveBar stroke1 = bars.get(0);
@@ -179,25 +190,38 @@ public class SimpleSectionBar extends WaveBar<WaveBar> {
 
         end = strokeN.getEndTime();
         close = strokeN.getClosePrice();
-        high = stroke1.getHighPrice();
-        low = stroke1.getLowPrice();
-        Num volume = LongNum.ZERO;
-        Num amount = LongNum.ZERO;
-        for(WaveBar stroke:bars) {
+        if ( foldedCount==0 || foldedCount>=bars.size() ) {
+            foldedCount = 0;
+            foldedHigh = stroke1.getHighPrice();
+            foldedLow = stroke1.getLowPrice();
+            foldedVolume = LongNum.ZERO;
+            foldedAmount = LongNum.ZERO;
+        }
+        for(; foldedCount<bars.size()-1; foldedCount++) {
+            WaveBar stroke = bars.get(foldedCount);
             Num max2 = stroke.getHighPrice(), min2 = stroke.getLowPrice();
-            if ( max2.isGreaterThan(high)) {
-                high = max2;
+            if ( max2.isGreaterThan(foldedHigh)) {
+                foldedHigh = max2;
             }
-            if( min2.isLessThan(low)) {
-                low = min2;
+            if( min2.isLessThan(foldedLow)) {
+                foldedLow = min2;
             }
-            volume = stroke.getVolume().plus(volume);
-            amount = stroke.getAmount().plus(amount);
-            this.mktAvgPrice = stroke.getMktAvgPrice();
-            this.endOpenInt = stroke.getEndOpenInt();
+            foldedVolume = stroke.getVolume().plus(foldedVolume);
+            foldedAmount = stroke.getAmount().plus(foldedAmount);
+        }
+        high = foldedHigh;
+        low = foldedLow;
+        Num max2 = strokeN.getHighPrice(), min2 = strokeN.getLowPrice();
+        if ( max2.isGreaterThan(high)) {
+            high = max2;
+        }
+        if( min2.isLessThan(low)) {
+            low = min2;
         }
-        this.volume = volume;
-        this.amount = amount;
+        this.volume = strokeN.getVolume().plus(foldedVolume);
+        this.amount = strokeN.getAmount().plus(foldedAmount);
+        this.mktAvgPrice = strokeN.getMktAvgPrice();
+        this.endOpenInt = strokeN.getEndOpenInt();
         this.openInt = getEndOpenInt()-getBeginOpenInt();
         long vol = volume.longValue();
         if ( vol==0 ) {
@@ -233,24 +257,11 @@ public class SimpleSectionBar extends WaveBar<WaveBar> {
 
     /**
      * 判断是否需要重新构建特征序列
+     * <BR>笔N只有在笔N+1加入时才会与笔N-1做包含处理, 笔N更新时之前的特征序列不会改变.
+     * 所以只有最后一个特征Bar不是笔N时才需要重构
      */
     private boolean needRebuildcharBars(WaveBar lastStroke) {
-        WaveBar prevCharBar = null;
-        WaveBar charStroke = charBars.getLast();
-        boolean result = false;
-        if ( charStroke!=lastStroke ) {
-            //如果最后一个特征Bar是复合笔划, 需要重构特征序列
-            result = true;
-        } else {
-            if ( charBars.size()>=2 ) {
-                prevCharBar = charBars.get(charBars.size()-2);
-                //如果笔N与笔N-1包含, 需要重构特征序列
-                if ( WaveBar.barContains2(prevCharBar, lastStroke) ) {
-                    result = true;
-                }
-            }
-        }
-        return result;
+        return charBars.getLast()!=lastStroke;
     }
 
     /**
@@ -378,6 +389,7 @@ public class SimpleSectionBar extends WaveBar<WaveBar> {
         assert(lastBreakStroke.direction!=direction);
         LinkedList<WaveBar> newStrokes = new LinkedList<>();
         CollectionUtil.<WaveBar>moveAllAfter(bars, lastBreakStroke, true, newStrokes);
+        foldedCount = 0;
         {
             //重新生成特征序列
             charBars.clear();
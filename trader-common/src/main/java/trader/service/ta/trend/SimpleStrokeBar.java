@@ -29,6 +29,11 @@ public class SimpleStrokeBar extends WaveBar<FutureBar>  {
     private int barMinIdx;
     private Duration duration;
     private ArrayList<FutureBar> bars = new ArrayList<>();
+    /**
+     * bars 的成交量和成交额合计, 增加Bar时累加, 拆分时重新计算
+     */
+    private Num barsVolume = LongNum.ZERO;
+    private Num barsAmount = LongNum.ZERO;
 
     public SimpleStrokeBar(int index, WaveBarOption option, FutureBar bar) {
         super(index, bar.getTradingTimes());
@@ -104,6 +109,8 @@ public class SimpleStrokeBar extends WaveBar<FutureBar>  {
             low = close; barMin = barClose; barMinIdx = bars.size();
         }
         bars.add(bar);
+        barsVolume = barsVolume.plus(bar.getVolume());
+        barsAmount = barsAmount.plus(bar.getAmount());
         updateVol();
         //更新状态
         if (bars.size()>=2 && direction == PosDirection.Net) {
@@ -136,12 +143,7 @@ public class SimpleStrokeBar extends WaveBar<FutureBar>  {
     }
 
     private void updateVol() {
-        Num volume = LongNum.ZERO, amount = LongNum.ZERO;
-        for(int i=0;i<bars.size();i++) {
-            FutureBar bar = bars.get(i);
-            volume = volume.plus(bar.getVolume());
-            amount = amount.plus(bar.getAmount());
-        }
+        Num volume = barsVolume, amount = barsAmount;
         this.volume = volume;
         this.amount = amount;
         this.endOpenInt = barClose.getEndOpenInt();
@@ -198,6 +200,7 @@ public class SimpleStrokeBar extends WaveBar<FutureBar>  {
             }
             int barCount1 = bars.size();
             assert(barCount0==barCount1+removedBars.size() && barCount1==beginIndex);
+            sumBars();
 
             barClose = barMax;
             this.close = high;
@@ -222,6 +225,7 @@ public class SimpleStrokeBar extends WaveBar<FutureBar>  {
             }
             int barCount1 = bars.size();
             assert(barCount0==barCount1+removedBars.size() && barCount1==beginIndex);
+            sumBars();
 
             barClose = barMin;
             this.close = low;
@@ -242,6 +246,20 @@ public class SimpleStrokeBar extends WaveBar<FutureBar>  {
         return result;
     }
 
+    /**
+     * 重新计算 bars 的成交量和成交额合计
+     */
+    private void sumBars() {
+        Num volume = LongNum.ZERO, amount = LongNum.ZERO;
+        for(int i=0;i<bars.size();i++) {
+            FutureBar bar = bars.get(i);
+            volume = volume.plus(bar.getVolume());
+            amount = amount.plus(bar.getAmount());
+        }
+        barsVolume = volume;
+        barsAmount = amount;
+    }
+
     private FutureBar min(FutureBar bar0, FutureBar bar1) {
         Num num0 = option.strokeBarPriceGetter.getPrice(bar0);
         Num num1 = option.strokeBarPriceGetter.getPrice(bar1);
@@ -57,6 +57,7 @@ public class StackedTrendBar2Builder extends StackedTrendBarBuilder {
             result = new SimpleStrokeBar(0, getOption(), bar);
         }else {
             result = lastStrokeBar.update(null, bar);
+            strokeLastBarChanged = (result==null);
         }
         if( result!=null ) {
             strokeSeries.addBar(result);
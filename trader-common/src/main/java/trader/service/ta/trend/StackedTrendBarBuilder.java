@@ -23,6 +23,8 @@ import trader.service.ta.bar.BarBuilder;
 
 /**
  * 基于行情Tick数据直接构建: 笔划-线段
+ * <BR>每个TICK只更新最后一个笔划和线段, 计算量与已有的笔划数量无关.
+ * 更新后通过 hasNewBar()/hasLastBarChanged() 区分新的笔划/线段和最后一个笔划/线段的改变
  */
 @SuppressWarnings("rawtypes")
 public class StackedTrendBarBuilder implements BarBuilder, JsonEnabled {
@@ -38,6 +40,8 @@ public class StackedTrendBarBuilder implements BarBuilder, JsonEnabled {
     protected BaseLeveledBarSeries sectionSeries;
     protected boolean strokeNewBar;
     protected boolean sectionNewBar;
+    protected boolean strokeLastBarChanged;
+    protected boolean sectionLastBarChanged;
     protected MarketData lastTick;
 
     public StackedTrendBarBuilder(WaveBarOption option, ExchangeableTradingTimes tradingTimes) {
@@ -69,6 +73,18 @@ public class StackedTrendBarBuilder implements BarBuilder, JsonEnabled {
         return false;
     }
 
+    /**
+     * 最后一个笔划/线段有改变, 没有新的笔划/线段
+     */
+    public boolean hasLastBarChanged(PriceLevel level) {
+        if ( level==PriceLevel.STROKE) {
+            return strokeLastBarChanged;
+        }else if ( level==PriceLevel.SECTION) {
+            return sectionLastBarChanged;
+        }
+        return false;
+    }
+
     public boolean hasNewStroke() {
         return strokeNewBar;
     }
@@ -84,6 +100,8 @@ public class StackedTrendBarBuilder implements BarBuilder, JsonEnabled {
         }
         strokeNewBar = false;
         sectionNewBar = false;
+        strokeLastBarChanged = false;
+        sectionLastBarChanged = false;
 
         //如果有新的笔划产生
         WaveBar newStroke = updateStroke(tick);
@@ -103,6 +121,7 @@ public class StackedTrendBarBuilder implements BarBuilder, JsonEnabled {
             result = new MarketDataStrokeBar(0, tradingTimes, option, tick);
         }else {
             result = ((WaveBar<MarketData>)lastStrokeBar).update(null, tick);
+            strokeLastBarChanged = (result==null);
         }
         if ( result!=null ) {
             strokeSeries.addBar(result);
@@ -146,6 +165,9 @@ public class StackedTrendBarBuilder implements BarBuilder, JsonEnabled {
         if (lastSectionBar0!=lastSectionBar) {
             sectionSeries.addBar(lastSectionBar);
             result = true;
+        } else if ( lastSectionBar!=null && (strokeNewBar||strokeLastBarChanged) ) {
+            //笔划没有改变时, 线段也不会改变
+            sectionLastBarChanged = true;
         }
         return result;
     }
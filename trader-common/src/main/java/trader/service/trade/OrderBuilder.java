@@ -24,7 +24,10 @@ public class OrderBuilder implements JsonEnabled {
     private long limitPrice;
     private OrderVolumeCondition volumeCondition = OrderVolumeCondition.Any;
     private OrderListener listener;
-    private Properties attrs = new Properties();
+    /**
+     * 报单属性, 首次设置时创建
+     */
+    private Properties attrs;
 
     public OrderBuilder() {
     }
@@ -57,6 +60,9 @@ public class OrderBuilder implements JsonEnabled {
         return limitPrice;
     }
 
+    /**
+     * 报单属性, 没有设置属性时返回null
+     */
     public Properties getAttrs() {
         return attrs;
     }
@@ -102,6 +108,9 @@ public class OrderBuilder implements JsonEnabled {
     }
 
     public OrderBuilder setAttr(String attr, String value) {
+        if ( attrs==null ) {
+            attrs = new Properties();
+        }
         attrs.setProperty(attr, value);
         return this;
     }
@@ -40,4 +40,35 @@ public interface TxnFeeEvaluator extends JsonEnabled {
      * @return 0 保证金 1 合约价值
      */
     public long[] compute(Exchangeable e, int volume, long price, PosDirection direction);
+
+    /**
+     * 计算保证金和手续费, 结果写入调用方提供的缓冲区, 不分配对象.
+     *
+     * @param result 0 保证金, 1 手续费, 2 合约价值
+     * @return false 如果没有合约的费率
+     */
+    public boolean compute(long[] result, Exchangeable e, int volume, long price, OrderDirection direction, OrderOffsetFlag offsetFlag);
+
+    /**
+     * 为成交计算保证金和手续费, 结果写入调用方提供的缓冲区, 不分配对象.
+     *
+     * @param result 0 保证金, 1 手续费, 2 合约价值
+     * @return false 如果没有合约的费率
+     */
+    public boolean compute(long[] result, Transaction txn);
+
+    /**
+     * 计算持仓保证金, 没有合约费率时返回0
+     */
+    public long computeMargin(Exchangeable e, int volume, long price, PosDirection direction);
+
+    /**
+     * 计算手续费, 没有合约费率时返回0
+     */
+    public long computeCommission(Exchangeable e, int volume, long price, OrderOffsetFlag offsetFlag);
+
+    /**
+     * 计算合约价值, 没有合约费率时返回0
+     */
+    public long computeValue(Exchangeable e, int volume, long price);
 }
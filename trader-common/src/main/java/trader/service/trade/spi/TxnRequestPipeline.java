@@ -0,0 +1,484 @@
+package trader.service.trade.spi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import trader.service.stats.StatsCollector;
+import trader.service.stats.StatsItem;
+import trader.service.stats.StatsItemType;
+import trader.service.trade.Order;
+import trader.service.trade.OrderBuilder;
+
+/**
+ * 交易通道的报单请求发送管道, 按照期货公司的流控限制发送报单/撤单/改单请求.
+ * <LI>令牌桶限流: 每秒请求数和突发请求数可配置, 每秒请求数为0代表不限流
+ * <LI>撤单优先于改单, 改单优先于新报单
+ * <LI>合并重复请求: 同一报单排队中的撤单请求只保留一个; 改单请求只保留最后一个; 撤单会取代排队中的改单; 新报单未发送前撤单, 直接取消新报单, 改单直接忽略
+ * <LI>交易通道返回流控错误时, 请求放回队首, 至少等待重发间隔后重发
+ * <LI>停止时排队中未发送的请求通知发送失败
+ * <LI>排队时间, 发送/合并/流控次数汇报给StatsCollector
+ * <P>有两种运行方式: 调用 start() 后由独立线程发送; 或者不启动线程, 由调用者在 submit() 和 drain() 中同步发送, 用于模拟交易.
+ */
+public class TxnRequestPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(TxnRequestPipeline.class);
+    /**
+     * 令牌数累加的浮点误差容忍
+     */
+    private static final double TOKEN_EPSILON = 1e-6;
+
+    /**
+     * 请求类型, 顺序即优先级
+     */
+    public static enum RequestType{
+        Cancel
+        ,Modify
+        ,Insert
+    }
+
+    /**
+     * 实际的请求发送接口, 由交易通道实现
+     */
+    public static interface RequestSender {
+        /**
+         * 发送请求
+         *
+         * @return true 发送成功, false 交易通道流控, 需要稍后重发
+         */
+        public boolean sendRequest(RequestType type, Order order, OrderBuilder builder) throws Exception;
+
+        /**
+         * 请求发送失败
+         */
+        public void onRequestFailed(RequestType type, Order order, OrderBuilder builder, Throwable t);
+
+        /**
+         * 新报单在发送前被撤单
+         */
+        public void onInsertCanceled(Order order);
+    }
+
+    private static class Request {
+        RequestType type;
+        Order order;
+        OrderBuilder builder;
+        long enqueueTime;
+        boolean discarded;
+
+        Request(RequestType type, Order order, OrderBuilder builder, long enqueueTime){
+            this.type = type;
+            this.order = order;
+            this.builder = builder;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
+    private String name;
+    private RequestSender sender;
+    private LongSupplier clock;
+    private double ratePerSecond;
+    private int burst;
+    private double tokens;
+    private long lastRefillTime;
+    @SuppressWarnings("unchecked")
+    private ArrayDeque<Request>[] queues = new ArrayDeque[RequestType.values().length];
+    /**
+     * 排队中的请求, 按 OrderRef 索引, 用于合并
+     */
+    private Map<String, Request> pendingInserts = new HashMap<>();
+    private Map<String, Request> pendingActions = new HashMap<>();
+    private int queueSize;
+    private boolean draining;
+    /**
+     * 交易通道流控后的最小重发间隔(ms)
+     */
+    private long retryDelay;
+    /**
+     * 交易通道流控后, 在这个时间之前不再发送
+     */
+    private long retryTime;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    private volatile long totalSent;
+    private volatile long totalCoalesced;
+    private volatile long totalThrottled;
+    private volatile long totalQueueTime;
+    private volatile long maxQueueTime;
+
+    /**
+     * @param ratePerSecond 每秒请求数, 0代表不限流
+     * @param burst 突发请求数, 即令牌桶容量
+     * @param clock 毫秒时间, 模拟交易使用市场时间
+     */
+    public TxnRequestPipeline(String name, RequestSender sender, double ratePerSecond, int burst, LongSupplier clock) {
+        this.name = name;
+        this.sender = sender;
+        this.ratePerSecond = ratePerSecond;
+        this.burst = Math.max(1, burst);
+        this.clock = clock;
+        for(int i=0;i<queues.length;i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        tokens = this.burst;
+        lastRefillTime = clock.getAsLong();
+        retryDelay = Math.max(1, 1000/this.burst);
+    }
+
+    /**
+     * 设置交易通道流控后的最小重发间隔, 缺省为 1000/burst 毫秒. 不限流时也按这个间隔重发, 避免持续发送被拒绝的请求
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = Math.max(1, retryDelay);
+    }
+
+    /**
+     * 注册统计指标
+     */
+    public void registerStats(StatsCollector statsCollector) {
+        if ( statsCollector==null ) {
+            return;
+        }
+        String service = TxnRequestPipeline.class.getSimpleName();
+        statsCollector.registerStatsItem(new StatsItem(service, name, "totalSent"), (StatsItem itemInfo) -> {
+            return totalSent;
+        });
+        statsCollector.registerStatsItem(new StatsItem(service, name, "totalCoalesced"), (StatsItem itemInfo) -> {
+            return totalCoalesced;
+        });
+        statsCollector.registerStatsItem(new StatsItem(service, name, "totalThrottled"), (StatsItem itemInfo) -> {
+            return totalThrottled;
+        });
+        statsCollector.registerStatsItem(new StatsItem(service, name, "totalQueueTime"), (StatsItem itemInfo) -> {
+            return totalQueueTime;
+        });
+        StatsItem maxQueueTimeItem = new StatsItem(service, name, "maxQueueTime");
+        maxQueueTimeItem.setType(StatsItemType.Instant);
+        statsCollector.registerStatsItem(maxQueueTimeItem, (StatsItem itemInfo) -> {
+            return maxQueueTime;
+        });
+        StatsItem queueSizeItem = new StatsItem(service, name, "queueSize");
+        queueSizeItem.setType(StatsItemType.Instant);
+        statsCollector.registerStatsItem(queueSizeItem, (StatsItem itemInfo) -> {
+            return queueSize;
+        });
+    }
+
+    public boolean isThrottled() {
+        return ratePerSecond>0;
+    }
+
+    public synchronized int getQueueSize() {
+        return queueSize;
+    }
+
+    public long getTotalSent() {
+        return totalSent;
+    }
+
+    public long getTotalCoalesced() {
+        return totalCoalesced;
+    }
+
+    public long getTotalThrottled() {
+        return totalThrottled;
+    }
+
+    /**
+     * 累计排队时间(毫秒)
+     */
+    public long getTotalQueueTime() {
+        return totalQueueTime;
+    }
+
+    public long getMaxQueueTime() {
+        return maxQueueTime;
+    }
+
+    /**
+     * 启动独立的发送线程
+     */
+    public synchronized void start() {
+        if ( thread!=null ) {
+            return;
+        }
+        running = true;
+        thread = new Thread(()->{
+            runLoop();
+        }, name+" request pipeline");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止发送线程, 排队中未发送的请求通过 onRequestFailed() 通知失败, 报单状态不会停留在提交中
+     */
+    public void stop() {
+        Thread thread = null;
+        synchronized(this) {
+            running = false;
+            thread = this.thread;
+            this.thread = null;
+            notifyAll();
+        }
+        if ( thread!=null && thread!=Thread.currentThread() ) {
+            try{
+                thread.join(1000);
+            }catch(InterruptedException e) {}
+        }
+        List<Request> unsent = new ArrayList<>();
+        synchronized(this) {
+            Request req = null;
+            while( (req=poll())!=null ) {
+                unsent.add(req);
+            }
+        }
+        if ( !unsent.isEmpty() ) {
+            logger.warn(name+" request pipeline is stopped with "+unsent.size()+" unsent requests");
+        }
+        for(Request req:unsent) {
+            try{
+                sender.onRequestFailed(req.type, req.order, req.builder, new IllegalStateException(name+" request pipeline is stopped before "+req.type+" request is sent"));
+            }catch(Throwable t) {
+                logger.error(name+" notify unsent "+req.type+" request failed: "+req.order, t);
+            }
+        }
+    }
+
+    /**
+     * 请求排队. 没有独立发送线程时立刻尝试发送
+     */
+    public void submit(RequestType type, Order order, OrderBuilder builder) {
+        boolean inline = false;
+        Request canceledInsert = null;
+        synchronized(this) {
+            canceledInsert = enqueue(type, order, builder);
+            inline = thread==null;
+            if ( !inline ) {
+                notifyAll();
+            }
+        }
+        if ( canceledInsert!=null ) {
+            sender.onInsertCanceled(canceledInsert.order);
+        }
+        if ( inline ) {
+            drain();
+        }
+    }
+
+    /**
+     * 合并并排队请求
+     *
+     * @return 被撤单取消的未发送新报单
+     */
+    private Request enqueue(RequestType type, Order order, OrderBuilder builder) {
+        String ref = order.getRef();
+        long now = clock.getAsLong();
+        switch(type) {
+        case Insert:
+        {
+            Request req = new Request(type, order, builder, now);
+            pendingInserts.put(ref, req);
+            queues[type.ordinal()].add(req);
+            queueSize++;
+        }
+        break;
+        case Cancel:
+        {
+            Request insertReq = pendingInserts.remove(ref);
+            if ( insertReq!=null ) {
+                discard(insertReq);
+                totalCoalesced++;
+                return insertReq;
+            }
+            Request actionReq = pendingActions.get(ref);
+            if ( actionReq!=null ) {
+                totalCoalesced++;
+                if ( actionReq.type==RequestType.Cancel ) {
+                    break;
+                }
+                //撤单取代改单, 排队时间从改单开始计算
+                discard(actionReq);
+                now = actionReq.enqueueTime;
+            }
+            Request req = new Request(type, order, builder, now);
+            pendingActions.put(ref, req);
+            queues[type.ordinal()].add(req);
+            queueSize++;
+        }
+        break;
+        case Modify:
+        {
+            Request insertReq = pendingInserts.get(ref);
+            Request actionReq = pendingActions.get(ref);
+            if ( actionReq!=null && actionReq.type==RequestType.Cancel ) {
+                totalCoalesced++;
+                break;
+            }
+            if ( insertReq!=null ) {
+                //新报单发送时使用报单的最新价格
+                totalCoalesced++;
+                break;
+            }
+            if ( actionReq!=null ) {
+                //只保留最后一次改单
+                actionReq.builder = builder;
+                totalCoalesced++;
+                break;
+            }
+            Request req = new Request(type, order, builder, now);
+            pendingActions.put(ref, req);
+            queues[type.ordinal()].add(req);
+            queueSize++;
+        }
+        break;
+        }
+        return null;
+    }
+
+    private void discard(Request req) {
+        req.discarded = true;
+        queueSize--;
+    }
+
+    /**
+     * 按照流控限制发送排队中的请求
+     *
+     * @return 距离下次可以发送的毫秒数, -1 代表队列为空
+     */
+    public long drain() {
+        synchronized(this) {
+            if ( draining ) {
+                return -1;
+            }
+            draining = true;
+        }
+        try {
+            while(true) {
+                Request req = null;
+                long now = 0;
+                synchronized(this) {
+                    if ( queueSize==0 ) {
+                        return -1;
+                    }
+                    now = clock.getAsLong();
+                    if ( now<retryTime ) {
+                        return retryTime-now;
+                    }
+                    refill(now);
+                    if ( tokens<1-TOKEN_EPSILON ) {
+                        return millisToNextToken();
+                    }
+                    req = poll();
+                    tokens = Math.max(0, tokens-1);
+                }
+                boolean sent = false;
+                Throwable failure = null;
+                try {
+                    sent = sender.sendRequest(req.type, req.order, req.builder);
+                }catch(Throwable t) {
+                    failure = t;
+                }
+                synchronized(this) {
+                    if ( failure==null && !sent ) {
+                        //交易通道流控, 放回队首
+                        totalThrottled++;
+                        tokens = 0;
+                        lastRefillTime = now;
+                        queues[req.type.ordinal()].addFirst(req);
+                        if ( req.type==RequestType.Insert ) {
+                            pendingInserts.put(req.order.getRef(), req);
+                        }else {
+                            pendingActions.put(req.order.getRef(), req);
+                        }
+                        queueSize++;
+                        retryTime = now+Math.max(retryDelay, millisToNextToken());
+                        return retryTime-now;
+                    }
+                    long queueTime = Math.max(0, now-req.enqueueTime);
+                    totalSent++;
+                    totalQueueTime += queueTime;
+                    if ( queueTime>maxQueueTime ) {
+                        maxQueueTime = queueTime;
+                    }
+                }
+                if ( failure!=null ) {
+                    logger.error(name+" send "+req.type+" request failed: "+req.order, failure);
+                    sender.onRequestFailed(req.type, req.order, req.builder, failure);
+                }
+            }
+        }finally {
+            synchronized(this) {
+                draining = false;
+            }
+        }
+    }
+
+    private Request poll() {
+        for(ArrayDeque<Request> queue:queues) {
+            while(!queue.isEmpty()) {
+                Request req = queue.poll();
+                if ( req.discarded ) {
+                    continue;
+                }
+                if ( req.type==RequestType.Insert ) {
+                    pendingInserts.remove(req.order.getRef());
+                }else {
+                    pendingActions.remove(req.order.getRef());
+                }
+                queueSize--;
+                return req;
+            }
+        }
+        return null;
+    }
+
+    private void refill(long now) {
+        if ( ratePerSecond<=0 ) {
+            tokens = burst;
+            return;
+        }
+        long elapsed = now-lastRefillTime;
+        if ( elapsed>0 ) {
+            tokens = Math.min(burst, tokens+elapsed*ratePerSecond/1000);
+            lastRefillTime = now;
+        }
+    }
+
+    private long millisToNextToken() {
+        if ( ratePerSecond<=0 ) {
+            return 0;
+        }
+        return Math.max(1, (long)Math.ceil((1-tokens-TOKEN_EPSILON)*1000/ratePerSecond));
+    }
+
+    private void runLoop() {
+        while(running) {
+            long delay = -1;
+            try{
+                delay = drain();
+            }catch(Throwable t) {
+                logger.error(name+" request pipeline failed", t);
+            }
+            synchronized(this) {
+                if ( !running ) {
+                    break;
+                }
+                if ( queueSize>0 && delay==0 ) {
+                    continue;
+                }
+                try{
+                    wait(delay<0?1000:delay);
+                }catch(InterruptedException e) {}
+            }
+        }
+    }
+
+}
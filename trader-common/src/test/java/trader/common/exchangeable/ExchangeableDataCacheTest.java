@@ -0,0 +1,119 @@
+package trader.common.exchangeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * 有上限的共享数据缓存: 并发加载只解码一次, 按最近最少使用淘汰
+ */
+public class ExchangeableDataCacheTest {
+
+    static final Exchangeable ap010 = Exchangeable.fromString("AP010");
+    static final Exchangeable ap101 = Exchangeable.fromString("AP101");
+    static final LocalDate day1 = LocalDate.of(2020, 8, 3);
+    static final LocalDate day2 = LocalDate.of(2020, 8, 4);
+
+    @Test
+    public void testConcurrentLoad() throws Exception {
+        ExchangeableDataCache cache = new ExchangeableDataCache(1024*1024);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for(int i=0;i<8;i++) {
+                futures.add(executorService.submit(()->{
+                    startLatch.await();
+                    return cache.get(ap010, ExchangeableData.TICK_CTP, day1, ()->{
+                        loads.incrementAndGet();
+                        Thread.sleep(100);
+                        return "ticks";
+                    });
+                }));
+            }
+            startLatch.countDown();
+            for(Future<String> f:futures) {
+                assertEquals("ticks", f.get());
+            }
+        }finally {
+            executorService.shutdown();
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(7, cache.getHitCount());
+        assertEquals(1, cache.size());
+        assertEquals(ExchangeableDataCache.estimateWeight("ticks"), cache.getWeight());
+    }
+
+    @Test
+    public void testWeightBoundLRU() throws Exception {
+        //每个值权重 40+2*30=100, 最多保留3个
+        ExchangeableDataCache cache = new ExchangeableDataCache(300);
+        String value = "012345678901234567890123456789";
+        assertEquals(100, ExchangeableDataCache.estimateWeight(value));
+        cache.get(ap010, ExchangeableData.TICK_CTP, day1, ()->value);
+        cache.get(ap010, ExchangeableData.TICK_CTP, day2, ()->value);
+        cache.get(ap101, ExchangeableData.TICK_CTP, day1, ()->value);
+        assertEquals(300, cache.getWeight());
+        //访问day1使其成为最近使用, 加入新数据时淘汰 ap010 day2
+        cache.get(ap010, ExchangeableData.TICK_CTP, day1, ()->{ throw new IllegalStateException(); });
+        cache.get(ap101, ExchangeableData.TICK_CTP, day2, ()->value);
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        AtomicInteger loads = new AtomicInteger();
+        cache.get(ap010, ExchangeableData.TICK_CTP, day2, ()->{
+            loads.incrementAndGet();
+            return value;
+        });
+        assertEquals(1, loads.get());
+        assertEquals(2, cache.getEvictionCount());
+        assertEquals(300, cache.getWeight());
+
+        //超过上限的单个数据仍然缓存
+        String bigValue = value+value+value+value;
+        cache.get(ap010, ExchangeableData.DAYSTATS, null, ()->bigValue);
+        assertEquals(1, cache.size());
+        assertEquals(ExchangeableDataCache.estimateWeight(bigValue), cache.getWeight());
+    }
+
+    @Test
+    public void testNullAndInvalidate() throws Exception {
+        ExchangeableDataCache cache = new ExchangeableDataCache(1024*1024);
+        AtomicInteger loads = new AtomicInteger();
+        for(int i=0;i<2;i++) {
+            assertNull(cache.get(ap010, ExchangeableData.TICK_CTP, day1, ()->{
+                loads.incrementAndGet();
+                return null;
+            }));
+        }
+        assertEquals(1, loads.get());
+        cache.get(ap101, ExchangeableData.TICK_CTP, day1, ()->"ticks");
+        cache.get(ap101, ExchangeableData.TICK_CTP, day2, ()->"ticks");
+        cache.invalidate(day1);
+        assertEquals(1, cache.size());
+        cache.invalidate(ap101, ExchangeableData.TICK_CTP, day2);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+
+        //加载失败不缓存
+        try {
+            cache.get(ap010, ExchangeableData.TICK_CTP, day2, ()->{ throw new IOException("load failed"); });
+            assertTrue(false);
+        }catch(IOException e) {}
+        assertEquals("ticks", cache.get(ap010, ExchangeableData.TICK_CTP, day2, ()->"ticks"));
+    }
+
+}
@@ -1,7 +1,10 @@
 package trader.common.exchangeable;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
@@ -128,4 +131,175 @@ public class TestExchangeableTradingTimes {
 
     }
 
+    static final String[] INSTRUMENTS = {
+            "ru2009", "au2012", "ag2012", "cu2009", "sc2009", "nr2009",
+            "m2009", "i2009", "jd2009", "p2009",
+            "AP010", "SR009", "CF009", "MA009",
+            "IF2006", "IC2006", "T2009"};
+
+    static final LocalDate[] TRADING_DAYS = {
+            LocalDate.of(2020, 6, 1), LocalDate.of(2020, 6, 24), LocalDate.of(2020, 10, 9), LocalDate.of(2020, 12, 31)};
+
+    /**
+     * 查找表的结果与逐个比较LocalDateTime的结果相同: 覆盖全部交易所的夜市/日市, 开市前, 休市和收市后的时间
+     */
+    @Test
+    public void testLookupTables() {
+        ExchangeableTradingTimes.TimeLookup lookup = new ExchangeableTradingTimes.TimeLookup();
+        int count = 0;
+        for(String instrument:INSTRUMENTS) {
+            Exchangeable e = Exchangeable.fromString(instrument);
+            ZoneOffset zoneOffset = e.exchange().getZoneOffset();
+            for(LocalDate tradingDay:TRADING_DAYS) {
+                ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
+                if ( tradingTimes==null ) {
+                    continue;
+                }
+                LocalDateTime[] marketTimes = tradingTimes.getMarketTimes();
+                LocalDateTime endTime = tradingTimes.getMarketCloseTime().plusHours(1);
+                //交易时间都在整分钟, 检查每分钟开始和结束的几秒, 每秒的开始, 中间和最后一毫秒
+                for(LocalDateTime time=tradingTimes.getMarketOpenTime().minusHours(2); time.isBefore(endTime); time=time.plusMinutes(1)) {
+                    for(int i=0;i<9;i++) {
+                        int seconds = new int[] {0, 1, 59}[i/3], millis = new int[] {0, 500, 999}[i%3];
+                        LocalDateTime t = time.plusSeconds(seconds).plusNanos(millis*1000000L);
+                        long epochMillis = t.toEpochSecond(zoneOffset)*1000+millis;
+                        MarketTimeStage stage = getTimeStage0(tradingTimes, t);
+                        int tradingTime = getTradingTime0(marketTimes, t);
+                        assertEquals(e+" "+t, stage, tradingTimes.getTimeStage(t));
+                        assertEquals(e+" "+t, stage, tradingTimes.getTimeStage(epochMillis));
+                        assertEquals(e+" "+t, tradingTime, tradingTimes.getTradingTime(t));
+                        assertEquals(e+" "+t, tradingTime, tradingTimes.getTradingTime(epochMillis));
+                        tradingTimes.lookup(epochMillis, lookup);
+                        assertEquals(stage, lookup.stage);
+                        assertEquals(tradingTime, lookup.tradingTime);
+                        if ( stage==MarketTimeStage.MarketOpen ) {
+                            assertTrue(t.withNano(0).compareTo(marketTimes[lookup.frameIndex*2])>=0);
+                            assertTrue(t.withNano(0).compareTo(marketTimes[lookup.frameIndex*2+1])<=0);
+                        }
+                        count++;
+                    }
+                }
+            }
+        }
+        assertTrue(count>0);
+    }
+
+    /**
+     * 每次查找的平均耗时
+     */
+    @Test
+    public void testLookupBenchmark() {
+        Exchangeable e = Exchangeable.fromString("ag2012");
+        ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, LocalDate.of(2020, 6, 24));
+        ZoneOffset zoneOffset = e.exchange().getZoneOffset();
+        LocalDateTime[] marketTimes = tradingTimes.getMarketTimes();
+        //按照TICK的间隔, 500毫秒一个时间
+        int timeCount = tradingTimes.getTotalTradingMillis()/500;
+        LocalDateTime[] times = new LocalDateTime[timeCount];
+        long[] epochMillis = new long[timeCount];
+        LocalDateTime time = tradingTimes.getMarketOpenTime();
+        for(int i=0;i<timeCount;i++) {
+            times[i] = time;
+            epochMillis[i] = time.toEpochSecond(zoneOffset)*1000+time.getNano()/1000000;
+            time = time.plusNanos(500*1000000L);
+        }
+        long[] nanos = new long[3];
+        long checksum = 0;
+        for(int round=0;round<6;round++) {
+            long t0 = System.nanoTime();
+            for(int i=0;i<timeCount;i++) {
+                checksum += getTimeStage0(tradingTimes, times[i]).ordinal()+getTradingTime0(marketTimes, times[i]);
+            }
+            long t1 = System.nanoTime();
+            for(int i=0;i<timeCount;i++) {
+                checksum -= tradingTimes.getTimeStage(times[i]).ordinal()+tradingTimes.getTradingTime(times[i]);
+            }
+            long t2 = System.nanoTime();
+            for(int i=0;i<timeCount;i++) {
+                checksum += tradingTimes.getTimeStage(epochMillis[i]).ordinal()+tradingTimes.getTradingTime(epochMillis[i]);
+            }
+            long t3 = System.nanoTime();
+            for(int i=0;i<timeCount;i++) {
+                checksum -= tradingTimes.getTimeStage(epochMillis[i]).ordinal()+tradingTimes.getTradingTime(epochMillis[i]);
+            }
+            //第一轮预热
+            if ( round>0 ) {
+                nanos[0] += t1-t0;
+                nanos[1] += t2-t1;
+                nanos[2] += t3-t2;
+            }
+        }
+        assertEquals(0, checksum);
+        long callCount = timeCount*5L;
+        System.out.println("Lookup "+timeCount+" times: LocalDateTime compare "+(nanos[0]/callCount)+" ns, lookup table "+(nanos[1]/callCount)+" ns, epoch millis "+(nanos[2]/callCount)+" ns");
+    }
+
+    /**
+     * 原有的逐个比较LocalDateTime的实现, 作为对照
+     */
+    private static MarketTimeStage getTimeStage0(ExchangeableTradingTimes tradingTimes, LocalDateTime time) {
+        LocalDateTime[] marketTimes = tradingTimes.getMarketTimes();
+        for(int i=0;i<marketTimes.length;i+=2 ) {
+            LocalDateTime frameBegin = marketTimes[i];
+            LocalDateTime frameEnd = marketTimes[i+1];
+            if ( isSegmentBeginTime0(tradingTimes, frameBegin) ) {
+                LocalDateTime auctionTime = frameBegin.minusMinutes(5);
+                LocalDateTime marketBeforeOpenTime = auctionTime.minusMinutes(55);
+                if ( time.isBefore(marketBeforeOpenTime) ){
+                    return MarketTimeStage.MarketClose;
+                } else if ( time.isBefore(auctionTime) ) {
+                    return MarketTimeStage.BeforeMarketOpen;
+                } else if ( time.isBefore(frameBegin)){
+                    return MarketTimeStage.AggregateAuction;
+                }
+            } else if ( time.isBefore(frameBegin) ) {
+                return MarketTimeStage.MarketBreak;
+            }
+            if ( compareTimeNoNanos0(time, frameBegin)>=0 && compareTimeNoNanos0(time,frameEnd)<=0 ) {
+                return MarketTimeStage.MarketOpen;
+            }
+        }
+        return MarketTimeStage.MarketClose;
+    }
+
+    private static boolean isSegmentBeginTime0(ExchangeableTradingTimes tradingTimes, LocalDateTime time) {
+        for(MarketType marketType:MarketType.values()) {
+            LocalDateTime[] segmentTimes = tradingTimes.getMarketTimes(marketType);
+            if ( segmentTimes!=null && segmentTimes[0].equals(time) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getTradingTime0(LocalDateTime[] marketTimes, LocalDateTime marketTime) {
+        if ( marketTime.isBefore(marketTimes[0]) || compareTimeNoNanos0(marketTime,marketTimes[marketTimes.length-1])>0) {
+            return -1;
+        }
+        int result = 0;
+        for(int i=0;i<marketTimes.length;i+=2) {
+            LocalDateTime marketTimeStageBegin = marketTimes[i];
+            LocalDateTime marketTimeStageEnd = marketTimes[i+1];
+            if ( compareTimeNoNanos0(marketTime, marketTimeStageBegin)<=0 ) {
+                break;
+            }
+            Duration d = null;
+            int compareResult = compareTimeNoNanos0(marketTime, marketTimeStageEnd);
+            if ( compareResult<0 ) {
+                d = DateUtil.between(marketTimeStageBegin, marketTime);
+            }else {
+                d = DateUtil.between(marketTimeStageBegin, marketTimeStageEnd);
+            }
+            result += d.getSeconds()*1000+d.getNano()/1000000;
+            if ( compareResult<=0 ) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static int compareTimeNoNanos0(LocalDateTime time1, LocalDateTime time2) {
+        return time1.withNano(0).compareTo(time2.withNano(0));
+    }
+
 }
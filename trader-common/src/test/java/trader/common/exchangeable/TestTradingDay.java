@@ -1,9 +1,16 @@
 package trader.common.exchangeable;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.time.DayOfWeek;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
 
@@ -87,6 +94,125 @@ public class TestTradingDay {
         }
     }
 
+    /**
+     * 逐日计算的交易日
+     */
+    private static LocalDate nextMarketDay0(Exchange exchange, LocalDate day, int step) {
+        do {
+            day = day.plusDays(step);
+        } while( !MarketDayUtil.isMarketDay(exchange, day) );
+        return day;
+    }
+
+    /**
+     * 交易日历位图的结果与逐日计算相同, 包括日历范围之外的日期
+     */
+    @Test
+    public void testMarketDayCalendar() {
+        assertTrue(!MarketDayUtil.isMarketDay(Exchange.SHFE, LocalDate.of(2020, 10, 1)));
+        assertTrue(!MarketDayUtil.isMarketDay(Exchange.SHFE, LocalDate.of(2020, 10, 10)));
+        assertTrue(MarketDayUtil.isMarketDay(Exchange.SHFE, LocalDate.of(2020, 10, 9)));
+        assertEquals(LocalDate.of(2020, 10, 9), MarketDayUtil.nextMarketDay(Exchange.SHFE, LocalDate.of(2020, 9, 30)));
+        assertEquals(LocalDate.of(2020, 9, 30), MarketDayUtil.prevMarketDay(Exchange.SHFE, LocalDate.of(2020, 10, 9)));
+        assertNull(MarketDayUtil.prevMarketDay(Exchange.SHFE, LocalDate.of(2020, 10, 9), true));
+        assertEquals(LocalDate.of(2020, 10, 9), MarketDayUtil.prevMarketDay(Exchange.SHFE, LocalDate.of(2020, 10, 12), true));
+
+        for(Exchange exchange:Exchange.getInstances()) {
+            for(LocalDate[] range:new LocalDate[][] {
+                {LocalDate.of(2011, 12, 1), LocalDate.of(2022, 1, 31)},
+                {LocalDate.of(1989, 12, 1), LocalDate.of(1990, 2, 28)},
+                {LocalDate.of(2099, 11, 1), LocalDate.of(2100, 2, 28)}})
+            {
+                List<LocalDate> marketDays = new ArrayList<>();
+                for(LocalDate day=range[0]; !day.isAfter(range[1]); day=day.plusDays(1)) {
+                    DayOfWeek dayOfWeek = day.getDayOfWeek();
+                    if ( dayOfWeek==DayOfWeek.SATURDAY || dayOfWeek==DayOfWeek.SUNDAY ) {
+                        assertTrue(!MarketDayUtil.isMarketDay(exchange, day));
+                    }
+                    if ( MarketDayUtil.isMarketDay(exchange, day) ) {
+                        marketDays.add(day);
+                    }
+                    assertEquals(nextMarketDay0(exchange, day, 1), MarketDayUtil.nextMarketDay(exchange, day));
+                    assertEquals(nextMarketDay0(exchange, day, -1), MarketDayUtil.prevMarketDay(exchange, day));
+                    LocalDate prev5 = day, next5 = day;
+                    for(int i=0;i<5;i++) {
+                        prev5 = nextMarketDay0(exchange, prev5, -1);
+                        next5 = nextMarketDay0(exchange, next5, 1);
+                    }
+                    assertEquals(prev5, MarketDayUtil.nextMarketDays(exchange, day, -5));
+                    assertEquals(prev5, MarketDayUtil.computeMarketDay(exchange, day, -5));
+                    assertEquals(next5, MarketDayUtil.nextMarketDays(exchange, day, 5));
+                }
+                assertArrayEquals(marketDays.toArray(new LocalDate[marketDays.size()]), MarketDayUtil.getMarketDays(exchange, range[0], range[1]));
+                assertEquals(marketDays.size(), MarketDayUtil.countMarketDays(exchange, range[0], range[1]));
+            }
+        }
+    }
+
+    /**
+     * 交易时间按照 合约定义+交易日 缓存, 同一品种的不同合约共用
+     */
+    @Test
+    public void testTradingTimesCache() {
+        Exchangeable ru2009 = Exchangeable.fromString("ru2009"), ru2101 = Exchangeable.fromString("ru2101");
+        LocalDate tradingDay = LocalDate.of(2020, 6, 1);
+        ExchangeableTradingTimes tradingTimes = ru2009.exchange().getTradingTimes(ru2009, tradingDay);
+        assertSame(tradingTimes, ru2009.exchange().getTradingTimes(ru2009, tradingDay));
+        ExchangeableTradingTimes tradingTimes2 = ru2101.exchange().getTradingTimes(ru2101, tradingDay);
+        assertEquals(ru2101, tradingTimes2.getInstrument());
+        assertSame(tradingTimes.getMarketTimes(), tradingTimes2.getMarketTimes());
+        assertEquals(tradingTimes.getTotalTradingMillis(), tradingTimes2.getTotalTradingMillis());
+        assertEquals(tradingTimes.getTradingDay(), tradingTimes2.getTradingDay());
+
+        ru2009.exchange().clearTradingTimesCache();
+        ExchangeableTradingTimes tradingTimes3 = ru2009.exchange().getTradingTimes(ru2009, tradingDay);
+        assertTrue(tradingTimes3!=tradingTimes);
+        assertArrayEquals(tradingTimes.getMarketTimes(), tradingTimes3.getMarketTimes());
+
+        MarketDayUtil.reload();
+        assertTrue(ru2009.exchange().getTradingTimes(ru2009, tradingDay)!=tradingTimes3);
+        assertEquals(LocalDate.of(2020, 10, 9), MarketDayUtil.nextMarketDay(Exchange.SHFE, LocalDate.of(2020, 9, 30)));
+    }
+
+    /**
+     * 交易日和交易时间的计算耗时
+     */
+    @Test
+    public void testCalendarBenchmark() {
+        Exchangeable ru2009 = Exchangeable.fromString("ru2009");
+        LocalDate beginDay = LocalDate.of(2016, 1, 1);
+        int dayCount = 365*6;
+        long[] nanos = new long[3];
+        long checksum = 0;
+        for(int round=0;round<6;round++) {
+            long t0 = System.nanoTime();
+            for(int i=0;i<dayCount;i++) {
+                checksum += nextMarketDay0(Exchange.SHFE, beginDay.plusDays(i), -1).getDayOfMonth();
+            }
+            long t1 = System.nanoTime();
+            for(int i=0;i<dayCount;i++) {
+                checksum -= MarketDayUtil.prevMarketDay(Exchange.SHFE, beginDay.plusDays(i)).getDayOfMonth();
+            }
+            long t2 = System.nanoTime();
+            for(int i=0;i<dayCount;i++) {
+                LocalDate day = beginDay.plusDays(i);
+                if ( MarketDayUtil.isMarketDay(Exchange.SHFE, day) ) {
+                    checksum += ru2009.exchange().getTradingTimes(ru2009, day).getTotalTradingMillis()>0?0:1;
+                }
+            }
+            long t3 = System.nanoTime();
+            //第一轮预热
+            if ( round>0 ) {
+                nanos[0] += t1-t0;
+                nanos[1] += t2-t1;
+                nanos[2] += t3-t2;
+            }
+        }
+        assertEquals(0, checksum);
+        long callCount = dayCount*5L;
+        System.out.println("Calendar "+dayCount+" days: day by day prev "+(nanos[0]/callCount)+" ns, calendar prev "+(nanos[1]/callCount)+" ns, getTradingTimes "+(nanos[2]/callCount)+" ns");
+    }
+
 //    @Test
 //    public void testTradMillis() {
 //        Exchangeable RU1901 = Exchangeable.fromString("ru1901");
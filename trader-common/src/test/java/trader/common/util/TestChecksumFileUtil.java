@@ -0,0 +1,65 @@
+package trader.common.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class TestChecksumFileUtil {
+
+    private static final int MAGIC = 0X54455354;
+
+    @Test
+    public void testWriteRead() throws Exception {
+        File dir = Files.createTempDirectory("checksum").toFile();
+        try {
+            File file = new File(dir, "test.snapshot");
+            byte[] data = "snapshot content".getBytes(StringUtil.UTF8);
+            ChecksumFileUtil.write(file, MAGIC, 1, (out)->{
+                out.writeLong(12345L);
+            }, data);
+            assertTrue(!new File(dir, "test.snapshot.tmp").exists());
+            long[] header = new long[1];
+            assertArrayEquals(data, ChecksumFileUtil.read(file, MAGIC, 1, (in)->{
+                header[0] = in.readLong();
+            }));
+            assertEquals(12345L, header[0]);
+
+            //没有文件头字段
+            ChecksumFileUtil.write(file, MAGIC, 1, null, data);
+            assertArrayEquals(data, ChecksumFileUtil.read(file, MAGIC, 1, null));
+            assertInvalid(file, 2);
+
+            //内容被修改
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw");){
+                raf.seek(raf.length()-1);
+                raf.write('X');
+            }
+            assertInvalid(file, 1);
+
+            //文件不完整
+            ChecksumFileUtil.write(file, MAGIC, 1, null, data);
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw");){
+                raf.setLength(raf.length()-2);
+            }
+            assertInvalid(file, 1);
+        } finally {
+            FileUtil.delete(dir);
+        }
+    }
+
+    private static void assertInvalid(File file, int version) {
+        try {
+            ChecksumFileUtil.read(file, MAGIC, version, null);
+            fail("Invalid file is accepted");
+        }catch(IOException e) {}
+    }
+
+}
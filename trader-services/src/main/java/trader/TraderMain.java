@@ -38,9 +38,12 @@ import trader.tool.RepositoryBuildBarAction;
 import trader.tool.RepositoryExportKBarAction;
 import trader.tool.RepositoryExportTradingDaysAction;
 import trader.tool.RepositoryInstrumentStatsAction;
+import trader.tool.RepositoryLabelDatasetAction;
 import trader.tool.RepositoryPrimaryInstrumentAction;
 import trader.tool.ServiceStartAction;
 import trader.tool.TraderEvalAction;
+import trader.tool.TraderSweepAction;
+import trader.tool.TraderWalkForwardAction;
 
 @SpringBootApplication
 public class TraderMain {
@@ -77,10 +80,13 @@ public class TraderMain {
 
         CmdActionFactory actionFactory = new CmdActionFactory(beansContainer, new CmdAction[] {
                 new TraderEvalAction()
+                ,new TraderSweepAction()
+                ,new TraderWalkForwardAction()
                 ,new MarketDataImportAction()
                 ,new RepositoryInstrumentStatsAction()
                 ,new RepositoryPrimaryInstrumentAction()
                 ,new RepositoryBuildBarAction()
+                ,new RepositoryLabelDatasetAction()
                 ,new ServiceStartAction(TraderMain.class, true)
                 ,new H2DBStartAction()
                 ,new H2DBQueryAction()
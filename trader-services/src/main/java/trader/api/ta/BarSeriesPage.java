@@ -0,0 +1,288 @@
+package trader.api.ta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ta4j.core.Bar;
+import org.ta4j.core.num.Num;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import trader.common.util.JsonEnabled;
+import trader.common.util.JsonUtil;
+import trader.common.util.PriceUtil;
+import trader.service.ta.FutureBar;
+import trader.service.ta.LeveledBarSeries;
+import trader.service.ta.LongNum;
+
+/**
+ * KBar分页查询: 按照index范围或时间范围返回一页KBar, 使用cursor继续获取后续KBar.
+ * <BR>KBar序列只会追加, 但是最后一个KBar会持续更新(笔划/线段的最后一个也可能被合并). 所以到达序列末尾后,
+ * cursor指向最后一个KBar, 下次获取时重新返回它. 客户端用返回的KBar替换 index>=beginIndex 的全部KBar.
+ * <BR>ETag 由序列和最后一个KBar的状态计算, 没有变化时可以直接返回 304.
+ * <BR>二进制格式为按列存放的定点数, 全部为big-endian:
+ * <pre>
+ * int magic 'TBAR', int version, int barCount, int beginIndex, int count, int flags(1 hasMore, 2 reset)
+ * long[count] beginTime(epoch millis), long[count] endTime(epoch millis)
+ * long[count] open, long[count] high, long[count] low, long[count] close (PriceUtil 定点数)
+ * long[count] volume, long[count] amount(PriceUtil 定点数), long[count] openInt(结束持仓量)
+ * </pre>
+ */
+public class BarSeriesPage implements JsonEnabled {
+    public static final int DEFAULT_LIMIT = 2000;
+    public static final int MAX_LIMIT = 20000;
+
+    public static final int BINARY_MAGIC = 0x54424152;
+    public static final int BINARY_VERSION = 1;
+    public static final int FLAG_HAS_MORE = 1;
+    public static final int FLAG_RESET = 2;
+
+    private LeveledBarSeries series;
+    private String seriesId;
+    private int barCount;
+    private int beginIndex;
+    private List<Bar> bars;
+    private boolean reset;
+    private String etag;
+
+    private BarSeriesPage(LeveledBarSeries series) {
+        this.series = series;
+        seriesId = Integer.toHexString(System.identityHashCode(series));
+    }
+
+    /**
+     * 分页查询
+     *
+     * @param cursor 上一页返回的cursor, 有cursor时忽略index和时间范围
+     * @param fromIndex 开始index(包含), 可以为null
+     * @param toIndex 结束index(不包含), 可以为null
+     * @param beginTime KBar开始时间不早于, 可以为null
+     * @param endTime KBar开始时间早于, 可以为null
+     * @param limit 最多返回KBar数量, <=0 使用缺省值
+     */
+    public static BarSeriesPage query(LeveledBarSeries series, String cursor, Integer fromIndex, Integer toIndex, LocalDateTime beginTime, LocalDateTime endTime, int limit) {
+        BarSeriesPage result = new BarSeriesPage(series);
+        //只读取一次KBar数量, 之后追加的KBar在下一页返回
+        int barCount = series.getBarCount();
+        result.barCount = barCount;
+        //先计算ETag再复制KBar, 复制时最后一个KBar可能已经更新, 但不会比ETag对应的状态更旧
+        long stateHash = stateHash(series, barCount);
+        int begin = 0, end = barCount;
+        if ( cursor!=null ) {
+            int idx = cursor.indexOf(':');
+            if ( idx<=0 ) {
+                throw new IllegalArgumentException("Invalid cursor: "+cursor);
+            }
+            if ( !cursor.substring(0, idx).equals(result.seriesId) ) {
+                //序列已经重新创建, 从头开始
+                result.reset = true;
+            } else {
+                begin = Math.min(Integer.parseInt(cursor.substring(idx+1)), Math.max(barCount-1, 0));
+            }
+        } else {
+            if ( fromIndex!=null ) {
+                begin = Math.max(begin, fromIndex);
+            }
+            if ( toIndex!=null ) {
+                end = Math.min(end, toIndex);
+            }
+            if ( beginTime!=null ) {
+                begin = Math.max(begin, searchBeginTime(series, barCount, beginTime));
+            }
+            if ( endTime!=null ) {
+                end = Math.min(end, searchBeginTime(series, barCount, endTime));
+            }
+        }
+        if ( limit<=0 ) {
+            limit = DEFAULT_LIMIT;
+        }
+        limit = Math.min(limit, MAX_LIMIT);
+        begin = Math.max(0, begin);
+        end = Math.max(begin, Math.min(end, begin+limit));
+        result.beginIndex = begin;
+        result.etag = etag(stateHash, begin, end);
+        result.bars = new ArrayList<>(end-begin);
+        for(int i=begin;i<end;i++) {
+            result.bars.add(series.getBar(i));
+        }
+        return result;
+    }
+
+    /**
+     * 全部KBar的ETag, 序列和最后一个KBar没有变化时不变
+     */
+    public static String getETag(LeveledBarSeries series) {
+        int barCount = series.getBarCount();
+        return etag(stateHash(series, barCount), 0, barCount);
+    }
+
+    private static String etag(long stateHash, int beginIndex, int endIndex) {
+        long hash = (stateHash*31+beginIndex)*31+endIndex;
+        return "\""+Long.toHexString(hash)+"\"";
+    }
+
+    private static long stateHash(LeveledBarSeries series, int barCount) {
+        long hash = System.identityHashCode(series);
+        hash = hash*31+barCount;
+        if ( barCount>0 ) {
+            Bar bar = series.getBar(barCount-1);
+            hash = hash*31+bar.getEndTime().toInstant().toEpochMilli();
+            hash = hash*31+num2long(bar.getClosePrice());
+            hash = hash*31+num2long(bar.getHighPrice());
+            hash = hash*31+num2long(bar.getLowPrice());
+            hash = hash*31+bar.getVolume().longValue();
+            if ( bar instanceof FutureBar ) {
+                hash = hash*31+((FutureBar)bar).getEndOpenInt();
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 当前页的ETag, 包含KBar范围
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    public int getBarCount() {
+        return barCount;
+    }
+
+    public int getBeginIndex() {
+        return beginIndex;
+    }
+
+    /**
+     * 结束index(不包含)
+     */
+    public int getEndIndex() {
+        return beginIndex+bars.size();
+    }
+
+    public List<Bar> getBars() {
+        return bars;
+    }
+
+    /**
+     * 后面还有已结束的KBar
+     */
+    public boolean hasMore() {
+        return getEndIndex()<barCount;
+    }
+
+    /**
+     * cursor对应的序列已经重新创建, 客户端需要丢弃已有的KBar
+     */
+    public boolean isReset() {
+        return reset;
+    }
+
+    /**
+     * 获取下一页的cursor. 到达序列末尾时指向最后一个KBar
+     */
+    public String getCursor() {
+        int next = getEndIndex();
+        if ( !hasMore() && next>beginIndex ) {
+            next--;
+        }
+        return seriesId+":"+next;
+    }
+
+    @Override
+    public JsonElement toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("instrument", series.getExchangeable().uniqueId());
+        json.addProperty("level", series.getLevel().toString());
+        json.addProperty("name", series.getName());
+        json.addProperty("barCount", barCount);
+        json.addProperty("beginIndex", beginIndex);
+        json.addProperty("endIndex", getEndIndex());
+        json.addProperty("cursor", getCursor());
+        json.addProperty("hasMore", hasMore());
+        json.addProperty("reset", reset);
+        JsonArray array = new JsonArray();
+        for(Bar bar:bars) {
+            array.add(JsonUtil.object2json(bar));
+        }
+        json.add("bars", array);
+        return json;
+    }
+
+    public byte[] toBinary() {
+        int count = bars.size();
+        ByteArrayOutputStream os = new ByteArrayOutputStream(24+count*11*8);
+        try(DataOutputStream dos = new DataOutputStream(os);){
+            dos.writeInt(BINARY_MAGIC);
+            dos.writeInt(BINARY_VERSION);
+            dos.writeInt(barCount);
+            dos.writeInt(beginIndex);
+            dos.writeInt(count);
+            dos.writeInt((hasMore()?FLAG_HAS_MORE:0)|(reset?FLAG_RESET:0));
+            for(Bar bar:bars) {
+                dos.writeLong(bar.getBeginTime().toInstant().toEpochMilli());
+            }
+            for(Bar bar:bars) {
+                dos.writeLong(bar.getEndTime().toInstant().toEpochMilli());
+            }
+            for(Bar bar:bars) {
+                dos.writeLong(num2long(bar.getOpenPrice()));
+            }
+            for(Bar bar:bars) {
+                dos.writeLong(num2long(bar.getHighPrice()));
+            }
+            for(Bar bar:bars) {
+                dos.writeLong(num2long(bar.getLowPrice()));
+            }
+            for(Bar bar:bars) {
+                dos.writeLong(num2long(bar.getClosePrice()));
+            }
+            for(Bar bar:bars) {
+                dos.writeLong(bar.getVolume().longValue());
+            }
+            for(Bar bar:bars) {
+                dos.writeLong(num2long(bar.getAmount()));
+            }
+            for(Bar bar:bars) {
+                dos.writeLong(bar instanceof FutureBar?((FutureBar)bar).getEndOpenInt():0);
+            }
+        }catch(IOException e) {
+            //ByteArrayOutputStream 不会抛出IOException
+            throw new RuntimeException(e);
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * 第一个开始时间不早于time的KBar
+     */
+    private static int searchBeginTime(LeveledBarSeries series, int barCount, LocalDateTime time) {
+        int low = 0, high = barCount;
+        while(low<high) {
+            int mid = (low+high)>>>1;
+            if ( series.getBar(mid).getBeginTime().toLocalDateTime().isBefore(time) ) {
+                low = mid+1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long num2long(Num num) {
+        if ( num==null ) {
+            return 0;
+        }
+        if ( num instanceof LongNum ) {
+            return ((LongNum)num).rawValue();
+        }
+        return PriceUtil.price2long(num.doubleValue());
+    }
+
+}
@@ -1,28 +1,38 @@
 package trader.api.ta;
 
+import java.time.LocalDateTime;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
-import org.ta4j.core.BarSeries;
 
 import com.google.gson.JsonElement;
 
 import trader.api.ControllerConstants;
 import trader.common.exchangeable.Exchangeable;
 import trader.common.tick.PriceLevel;
+import trader.common.util.DateUtil;
 import trader.common.util.JsonUtil;
+import trader.service.ta.LeveledBarSeries;
 import trader.service.ta.TechnicalAnalysisAccess;
 import trader.service.ta.TechnicalAnalysisService;
 
 @RestController
 public class TAController {
     private static final String URL_PREFIX = ControllerConstants.URL_PREFIX+"/ta";
+    /**
+     * 下一页KBar的cursor
+     */
+    public static final String HEADER_CURSOR = "X-Bar-Cursor";
 
     @Autowired
     private TechnicalAnalysisService technicalAnalysisService;
@@ -40,23 +50,89 @@ public class TAController {
         return (JsonUtil.json2str(access.toJson(), pretty));
     }
 
+    /**
+     * 获取KBar. 没有分页参数时返回全部KBar, 有任意分页参数(cursor/from/to/beginTime/endTime/limit)时返回一页KBar
+     * <BR>返回ETag, 请求带有相同的 If-None-Match 时返回 304
+     */
     @RequestMapping(path=URL_PREFIX+"/{instrument}/{level:.+}",
     method=RequestMethod.GET,
     produces = MediaType.APPLICATION_JSON_VALUE)
-    public String getLevelBars(@PathVariable(value="instrument") String instrumentStr, @PathVariable(value="level") String level, @RequestParam(name="pretty", required=false) boolean pretty){
+    public ResponseEntity<String> getLevelBars(@PathVariable(value="instrument") String instrumentStr, @PathVariable(value="level") String level, @RequestParam(name="pretty", required=false) boolean pretty
+            , @RequestParam(name="cursor", required=false) String cursor
+            , @RequestParam(name="from", required=false) Integer fromIndex
+            , @RequestParam(name="to", required=false) Integer toIndex
+            , @RequestParam(name="beginTime", required=false) String beginTime
+            , @RequestParam(name="endTime", required=false) String endTime
+            , @RequestParam(name="limit", required=false) Integer limit
+            , @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch)
+    {
+        LeveledBarSeries series = getSeries(instrumentStr, level);
+        if ( cursor==null && fromIndex==null && toIndex==null && beginTime==null && endTime==null && limit==null ) {
+            String etag = BarSeriesPage.getETag(series);
+            if ( etag.equals(ifNoneMatch) ) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+            }
+            JsonElement json = JsonUtil.object2json(series);
+            return ResponseEntity.ok().eTag(etag).body(JsonUtil.json2str(json, pretty));
+        }
+        BarSeriesPage page = queryPage(series, cursor, fromIndex, toIndex, beginTime, endTime, limit);
+        if ( page.getETag().equals(ifNoneMatch) ) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(page.getETag()).header(HEADER_CURSOR, page.getCursor()).build();
+        }
+        return ResponseEntity.ok().eTag(page.getETag()).header(HEADER_CURSOR, page.getCursor()).body(JsonUtil.json2str(page.toJson(), pretty));
+    }
+
+    /**
+     * 以二进制列存格式获取一页KBar, 格式见 BarSeriesPage
+     */
+    @RequestMapping(path=URL_PREFIX+"/{instrument}/{level:.+}",
+    method=RequestMethod.GET,
+    params="format=binary",
+    produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<byte[]> getLevelBarsBinary(@PathVariable(value="instrument") String instrumentStr, @PathVariable(value="level") String level
+            , @RequestParam(name="cursor", required=false) String cursor
+            , @RequestParam(name="from", required=false) Integer fromIndex
+            , @RequestParam(name="to", required=false) Integer toIndex
+            , @RequestParam(name="beginTime", required=false) String beginTime
+            , @RequestParam(name="endTime", required=false) String endTime
+            , @RequestParam(name="limit", required=false) Integer limit
+            , @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch)
+    {
+        LeveledBarSeries series = getSeries(instrumentStr, level);
+        BarSeriesPage page = queryPage(series, cursor, fromIndex, toIndex, beginTime, endTime, limit);
+        if ( page.getETag().equals(ifNoneMatch) ) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(page.getETag()).header(HEADER_CURSOR, page.getCursor()).build();
+        }
+        return ResponseEntity.ok().eTag(page.getETag()).header(HEADER_CURSOR, page.getCursor()).body(page.toBinary());
+    }
+
+    private LeveledBarSeries getSeries(String instrumentStr, String level) {
         Exchangeable instrument = Exchangeable.fromString(instrumentStr);
         TechnicalAnalysisAccess access = technicalAnalysisService.forInstrument(instrument);
         if ( access==null ) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND);
         }
-        JsonElement json = null;
         PriceLevel l = PriceLevel.valueOf(level);
-        BarSeries series = access.getSeries(l);
+        LeveledBarSeries series = access.getSeries(l);
         if ( series==null ) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND);
         }
-        json = JsonUtil.object2json(series);
-        return (JsonUtil.json2str(json, pretty));
+        return series;
+    }
+
+    private static BarSeriesPage queryPage(LeveledBarSeries series, String cursor, Integer fromIndex, Integer toIndex, String beginTime, String endTime, Integer limit) {
+        LocalDateTime beginTime0 = null, endTime0 = null;
+        if ( beginTime!=null && (beginTime0=DateUtil.str2localdatetime(beginTime))==null ) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid beginTime: "+beginTime);
+        }
+        if ( endTime!=null && (endTime0=DateUtil.str2localdatetime(endTime))==null ) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid endTime: "+endTime);
+        }
+        try {
+            return BarSeriesPage.query(series, cursor, fromIndex, toIndex, beginTime0, endTime0, limit!=null?limit:0);
+        }catch(IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
     }
 
 }
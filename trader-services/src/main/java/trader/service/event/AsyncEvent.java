@@ -32,6 +32,11 @@ public class AsyncEvent {
 
 	public Object data2;
 
+	/**
+	 * 发布时间, 只在记录事件时设置
+	 */
+	public long publishTime;
+
     public void setData(int eventType, AsyncEventProcessor processor, Object data, Object data2) {
         this.eventType = eventType;
         this.processor = processor;
@@ -44,6 +49,7 @@ public class AsyncEvent {
         processor = null;
         data = null;
         data2 = null;
+        publishTime = 0;
     }
 
 }
@@ -6,6 +6,11 @@ package trader.service.event;
  */
 public interface AsyncEventProcessor {
 
+    /**
+     * 处理句柄ID, 记录和回放事件时用于查找处理句柄
+     */
+    public String getId();
+
 	public void process(int dataType, Object data, Object data2);
 
 }
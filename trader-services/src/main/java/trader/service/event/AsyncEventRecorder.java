@@ -0,0 +1,167 @@
+package trader.service.event;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.lmax.disruptor.EventHandler;
+
+import trader.common.util.StringUtil;
+import trader.service.md.MarketData;
+
+/**
+ * 异步事件记录, 作为独立的EventHandler挂在RingBuffer上, 按照序号顺序把每个事件写为一行JSON:
+ * <BR>{"seq":序号, "time":发布时间, "type":事件类型, "processor":处理句柄ID, "data":数据, "dataClass":数据类型, "data2":数据2, "data2Class":数据2类型}
+ * <BR>行情数据使用 MarketData.toJson(), 其它数据使用Gson按字段序列化. 文件名以 .gz 结尾时压缩保存
+ */
+public class AsyncEventRecorder implements EventHandler<AsyncEvent> {
+    private final static Logger logger = LoggerFactory.getLogger(AsyncEventRecorder.class);
+
+    /**
+     * 读取记录的事件的回调
+     */
+    public static interface RecordVisitor {
+        public void visit(long seq, long time, AsyncEvent event) throws Exception;
+    }
+
+    private static final Gson gson = new Gson();
+
+    private File file;
+    private Writer writer;
+    private long recordCount;
+    private boolean failed;
+
+    public AsyncEventRecorder(File file) throws IOException {
+        this.file = file;
+        file.getParentFile().mkdirs();
+        OutputStream os = new FileOutputStream(file);
+        if ( file.getName().endsWith(".gz") ) {
+            os = new GZIPOutputStream(os, 64*1024);
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 64*1024);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public void onEvent(AsyncEvent event, long sequence, boolean endOfBatch) throws Exception {
+        if ( failed ) {
+            return;
+        }
+        try {
+            writer.write(toJson(event, sequence).toString());
+            writer.write('\n');
+            recordCount++;
+            if ( endOfBatch ) {
+                writer.flush();
+            }
+        }catch(Throwable t) {
+            //写失败后不再记录, 不影响事件处理
+            failed = true;
+            logger.error("Record async event to "+file+" failed", t);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            writer.close();
+        }catch(IOException e) {
+            logger.error("Close async event record file "+file+" failed", e);
+        }
+    }
+
+    public static JsonObject toJson(AsyncEvent event, long sequence) {
+        JsonObject json = new JsonObject();
+        json.addProperty("seq", sequence);
+        json.addProperty("time", event.publishTime);
+        json.addProperty("type", event.eventType);
+        if ( event.processor!=null ) {
+            json.addProperty("processor", event.processor.getId());
+        }
+        if ( event.data instanceof MarketData ) {
+            json.add("data", ((MarketData)event.data).toJson());
+        } else {
+            data2json(json, "data", event.data);
+            data2json(json, "data2", event.data2);
+        }
+        return json;
+    }
+
+    /**
+     * 按照顺序读取记录的事件, 处理句柄按照ID从processors中查找, 不存在的事件被忽略
+     */
+    public static void read(File file, Map<String, AsyncEventProcessor> processors, RecordVisitor visitor) throws Exception {
+        InputStream is = new FileInputStream(file);
+        if ( file.getName().endsWith(".gz") ) {
+            is = new GZIPInputStream(is, 64*1024);
+        }
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 64*1024);){
+            String line = null;
+            AsyncEvent event = new AsyncEvent();
+            while( (line=reader.readLine())!=null ) {
+                if ( line.length()==0 ) {
+                    continue;
+                }
+                JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+                event.clear();
+                event.eventType = json.get("type").getAsInt();
+                event.publishTime = json.get("time").getAsLong();
+                if ( (event.eventType&AsyncEvent.EVENT_TYPE_MARKETDATA)!=0 ) {
+                    event.data = MarketData.fromJson(json.get("data"));
+                } else {
+                    String processorId = json.has("processor")?json.get("processor").getAsString():null;
+                    event.processor = processors.get(processorId);
+                    if ( event.processor==null ) {
+                        logger.warn("Ignore event "+json.get("seq")+" of unknown processor "+processorId);
+                        continue;
+                    }
+                    event.data = json2data(json, "data");
+                    event.data2 = json2data(json, "data2");
+                }
+                visitor.visit(json.get("seq").getAsLong(), event.publishTime, event);
+            }
+        }
+    }
+
+    private static void data2json(JsonObject json, String prop, Object data) {
+        if ( data!=null ) {
+            json.addProperty(prop+"Class", data.getClass().getName());
+            json.add(prop, gson.toJsonTree(data));
+        }
+    }
+
+    private static Object json2data(JsonObject json, String prop) throws ClassNotFoundException {
+        String className = json.has(prop+"Class")?json.get(prop+"Class").getAsString():null;
+        if ( StringUtil.isEmpty(className) ) {
+            return null;
+        }
+        JsonElement dataJson = json.get(prop);
+        return gson.fromJson(dataJson, Class.forName(className));
+    }
+
+}
@@ -1,5 +1,7 @@
 package trader.service.event;
 
+import java.io.File;
+
 import trader.service.md.MarketData;
 
 public interface AsyncEventService {
@@ -20,4 +22,24 @@ public interface AsyncEventService {
     public void publishMarketData(MarketData md);
 
     public void publishProcessorEvent(AsyncEventProcessor processor, int dataType, Object data, Object data2);
+
+    /**
+     * 注册事件处理句柄, 回放时按照ID查找记录的事件对应的处理句柄
+     */
+    public void registerProcessor(AsyncEventProcessor processor);
+
+    /**
+     * 是否回放模式: 不接收实时事件, 从记录文件中按顺序同步派发事件
+     */
+    public boolean isReplayMode();
+
+    /**
+     * 事件记录文件, 没有记录或者回放模式下返回null
+     */
+    public File getRecordFile();
+
+    /**
+     * 回放的事件记录文件, 非回放模式下返回null
+     */
+    public File getReplayFile();
 }
@@ -1,13 +1,20 @@
 package trader.service.event;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
 import com.lmax.disruptor.EventHandler;
@@ -19,14 +26,40 @@ import trader.common.beans.BeansContainer;
 import trader.common.beans.Lifecycle;
 import trader.common.config.ConfigUtil;
 import trader.common.util.ConversionUtil;
+import trader.common.util.StringUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.ServiceConstants.AccountState;
 import trader.service.md.MarketData;
+import trader.service.trade.Account;
+import trader.service.trade.MarketTimeService;
+import trader.service.trade.MarketTimeServiceImpl;
+import trader.service.trade.TradeService;
 import trader.service.util.ConcurrentUtil;
 
+/**
+ * 异步事件服务, 行情和交易回报等事件通过RingBuffer排队, 每个FilterChain在独立的线程中按序号顺序处理.
+ * <BR>配置记录文件后, 每个事件连同序号和发布时间被记录, 用于回放.
+ * <BR>配置回放文件后为回放模式: 不启动RingBuffer, 按照记录的序号在单一线程中同步派发事件, 并将市场时间设置为事件记录的时间
+ */
 @Service
 public class AsyncEventServiceImpl implements AsyncEventService, Lifecycle {
+    private final static Logger logger = LoggerFactory.getLogger(AsyncEventServiceImpl.class);
 
     public static final String ITEM_DISRUPTOR_WAIT_STRATEGY = "/AsyncEventService/disruptor/waitStrategy";
     public static final String ITEM_DISRUPTOR_RINGBUFFER_SIZE = "/AsyncEventService/disruptor/ringBufferSize";
+    /**
+     * 事件记录文件, 相对路径位于工作目录下
+     */
+    public static final String ITEM_RECORDER_FILE = "/AsyncEventService/recorder/file";
+    /**
+     * 回放的事件记录文件, 相对路径位于工作目录下
+     */
+    public static final String ITEM_REPLAY_FILE = "/AsyncEventService/replay/file";
+
+    /**
+     * 回放开始前等待账户就绪的最长时间
+     */
+    private static final long REPLAY_ACCOUNT_WAIT_TIMEOUT = 60*1000;
 
     private static class AsyncEventHandler implements EventHandler<AsyncEvent>{
 
@@ -44,7 +77,7 @@ public class AsyncEventServiceImpl implements AsyncEventService, Lifecycle {
         }
 
         @Override
-        public void onEvent(AsyncEvent event, long sequence, boolean endOfBatch) throws Exception {
+        public void onEvent(AsyncEvent event, long sequence, boolean endOfBatch) {
             for(int i=0;i<filters.length;i++) {
                 int filterMask = filterMasks[i];
                 int eventType = event.eventType;
@@ -66,14 +99,49 @@ public class AsyncEventServiceImpl implements AsyncEventService, Lifecycle {
 
     private List<Object[]> registeredFilters = new ArrayList<>();
 
+    private BeansContainer beansContainer;
+
+    private File recordFile;
+
+    private AsyncEventRecorder recorder;
+
+    private File replayFile;
+
+    /**
+     * 回放模式下同步调用的事件处理句柄
+     */
+    private AsyncEventHandler[] replayHandlers;
+
+    private long replaySeq;
+
+    private Map<String, AsyncEventProcessor> processors = new ConcurrentHashMap<>();
+
     @Override
     public void init(BeansContainer beansContainer) throws Exception {
+        this.beansContainer = beansContainer;
+        if ( executorService==null ) {
+            executorService = beansContainer.getBean(ExecutorService.class);
+        }
+        if ( recordFile==null ) {
+            recordFile = getWorkFile(ConfigUtil.getString(ITEM_RECORDER_FILE));
+        }
+        if ( replayFile==null ) {
+            replayFile = getWorkFile(ConfigUtil.getString(ITEM_REPLAY_FILE));
+        }
+        if ( replayFile!=null ) {
+            logger.info("Async event service replays events from "+replayFile);
+            return;
+        }
+        String waitStrategy = ConfigUtil.getString(ITEM_DISRUPTOR_WAIT_STRATEGY);
+        if ( StringUtil.isEmpty(waitStrategy) ) {
+            waitStrategy = "blockingwait";
+        }
         //启动disruptor
         disruptor = new Disruptor<AsyncEvent>( new AsyncEventFactory()
             , ConfigUtil.getInt(ITEM_DISRUPTOR_RINGBUFFER_SIZE, 65536)
             , executorService
             , ProducerType.MULTI
-            , ConcurrentUtil.createDisruptorWaitStrategy(ConfigUtil.getString(ITEM_DISRUPTOR_WAIT_STRATEGY))
+            , ConcurrentUtil.createDisruptorWaitStrategy(waitStrategy)
             );
     }
 
@@ -87,8 +155,64 @@ public class AsyncEventServiceImpl implements AsyncEventService, Lifecycle {
             }
             ringBuffer = null;
         }
+        if ( recorder!=null ) {
+            recorder.close();
+            logger.info("Total "+recorder.getRecordCount()+" async events recorded to "+recorder.getFile());
+            recorder = null;
+        }
+    }
+
+    /**
+     * 记录文件, 需要在init()之前设置, 缺省从配置读取
+     */
+    public void setRecordFile(File recordFile) {
+        this.recordFile = recordFile;
+    }
+
+    /**
+     * 回放文件, 需要在init()之前设置, 缺省从配置读取
+     */
+    public void setReplayFile(File replayFile) {
+        this.replayFile = replayFile;
+    }
+
+    @Override
+    public boolean isReplayMode() {
+        return replayFile!=null;
+    }
+
+    @Override
+    public File getRecordFile() {
+        if ( isReplayMode() ) {
+            return null;
+        }
+        return recordFile;
+    }
+
+    @Override
+    public File getReplayFile() {
+        return replayFile;
+    }
+
+    /**
+     * 回放模式下, 启动完成后等待账户就绪再开始回放
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady(){
+        if ( !isReplayMode() ) {
+            return;
+        }
+        executorService.execute(()->{
+            try{
+                waitForAccountsReady();
+                replay();
+            }catch(Throwable t) {
+                logger.error("Replay async events from "+replayFile+" failed", t);
+            }
+        });
     }
 
+    @SuppressWarnings("unchecked")
     public void start() {
         Map<String, List<Object[]>> filtersByChain = new LinkedHashMap<>();
         for(Object[] filter:registeredFilters) {
@@ -105,7 +229,27 @@ public class AsyncEventServiceImpl implements AsyncEventService, Lifecycle {
         for(int i=0;i<allFilters.size();i++) {
             handlers[i] = new AsyncEventHandler(allFilters.get(i));
         }
-        disruptor.handleEventsWith(handlers);
+        if ( isReplayMode() ) {
+            replayHandlers = handlers;
+            return;
+        }
+        if ( recordFile!=null ) {
+            //记录作为独立的EventHandler, 与各个FilterChain并行, 按照序号顺序看到全部事件
+            try {
+                recorder = new AsyncEventRecorder(recordFile);
+                EventHandler<AsyncEvent>[] handlers2 = new EventHandler[handlers.length+1];
+                System.arraycopy(handlers, 0, handlers2, 0, handlers.length);
+                handlers2[handlers.length] = recorder;
+                disruptor.handleEventsWith(handlers2);
+                logger.info("Async event service records events to "+recordFile);
+            }catch(IOException e) {
+                logger.error("Create async event record file "+recordFile+" failed", e);
+                recorder = null;
+                disruptor.handleEventsWith(handlers);
+            }
+        } else {
+            disruptor.handleEventsWith(handlers);
+        }
         ringBuffer= disruptor.start();
         //为每个FilterChain启动独立的线程
     }
@@ -115,12 +259,26 @@ public class AsyncEventServiceImpl implements AsyncEventService, Lifecycle {
         registeredFilters.add(new Object[] {filterChainName, filter, eventMask});
     }
 
+    @Override
+    public void registerProcessor(AsyncEventProcessor processor) {
+        processors.put(processor.getId(), processor);
+    }
+
     @Override
     public void publishMarketData(MarketData md) {
+        if ( replayHandlers!=null ) {
+            AsyncEvent event = new AsyncEvent();
+            event.setData(AsyncEvent.EVENT_TYPE_MARKETDATA, null, md,  null);
+            dispatch(event);
+            return;
+        }
         long seq = ringBuffer.next();
         try {
             AsyncEvent event = ringBuffer.get(seq);
             event.setData(AsyncEvent.EVENT_TYPE_MARKETDATA, null, md,  null);
+            if ( recorder!=null ) {
+                event.publishTime = System.currentTimeMillis();
+            }
         }finally {
             ringBuffer.publish(seq);
         }
@@ -128,13 +286,99 @@ public class AsyncEventServiceImpl implements AsyncEventService, Lifecycle {
 
     @Override
     public void publishProcessorEvent(AsyncEventProcessor processor, int dataType, Object data, Object data2) {
+        if ( replayHandlers!=null ) {
+            AsyncEvent event = new AsyncEvent();
+            event.setData(AsyncEvent.EVENT_TYPE_PROCESSOR|dataType, processor, data,  data2);
+            dispatch(event);
+            return;
+        }
         long seq = ringBuffer.next();
         try {
             AsyncEvent event = ringBuffer.get(seq);
             event.setData(AsyncEvent.EVENT_TYPE_PROCESSOR|dataType, processor, data,  data2);
+            if ( recorder!=null ) {
+                event.publishTime = System.currentTimeMillis();
+            }
         }finally {
             ringBuffer.publish(seq);
         }
     }
 
+    /**
+     * 按照记录的顺序同步派发全部事件, 派发前将市场时间设置为事件的发布时间. 不等待事件之间的间隔.
+     *
+     * @return 回放的事件数量
+     */
+    public synchronized long replay() throws Exception {
+        if ( replayHandlers==null ) {
+            throw new IllegalStateException("Async event service is not started in replay mode");
+        }
+        MarketTimeService mtService = beansContainer.getBean(MarketTimeService.class);
+        final MarketTimeServiceImpl virtualTimeService = (mtService instanceof MarketTimeServiceImpl)?(MarketTimeServiceImpl)mtService:null;
+        long t0 = System.currentTimeMillis();
+        long[] stats = new long[3];
+        replaySeq = -1;
+        AsyncEventRecorder.read(replayFile, processors, (seq, time, event)->{
+            if ( seq<=replaySeq ) {
+                throw new IllegalStateException("Replay event seq "+seq+" is out of order, last seq "+replaySeq);
+            }
+            replaySeq = seq;
+            if ( time>0 ) {
+                if ( stats[1]==0 ) {
+                    stats[1] = time;
+                }
+                stats[2] = time;
+                if ( virtualTimeService!=null ) {
+                    virtualTimeService.setVirtualTime(time);
+                }
+            }
+            dispatch(event);
+            stats[0]++;
+        });
+        long elapsed = Math.max(1, System.currentTimeMillis()-t0);
+        logger.info("Replay "+stats[0]+" events from "+replayFile+" in "+elapsed+" ms, record time span "+(stats[2]-stats[1])+" ms, speed "+((stats[2]-stats[1])/elapsed)+"x");
+        return stats[0];
+    }
+
+    /**
+     * 依次调用每个FilterChain
+     */
+    private void dispatch(AsyncEvent event) {
+        for(int i=0;i<replayHandlers.length;i++) {
+            replayHandlers[i].onEvent(event, replaySeq, true);
+        }
+    }
+
+    private void waitForAccountsReady() throws InterruptedException {
+        TradeService tradeService = beansContainer.getBean(TradeService.class);
+        if ( tradeService==null ) {
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        while( System.currentTimeMillis()-t0<REPLAY_ACCOUNT_WAIT_TIMEOUT ) {
+            boolean allReady = true;
+            for(Account account:tradeService.getAccounts()) {
+                if ( account.getState()!=AccountState.Ready ) {
+                    allReady = false;
+                    break;
+                }
+            }
+            if ( allReady ) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static File getWorkFile(String path) {
+        if ( StringUtil.isEmpty(path) ) {
+            return null;
+        }
+        File file = new File(path);
+        if ( !file.isAbsolute() ) {
+            file = new File(TraderHomeUtil.getDirectory(TraderHomeUtil.DIR_WORK), path);
+        }
+        return file;
+    }
+
 }
@@ -164,10 +164,16 @@ public class MarketDataServiceImpl implements TradeServiceListener, MarketDataSe
         configService.addListener(new String[] {ITEM_SUBSCRIPTIONS}, (path, newValue)->{
             reloadSubscriptionsAndSubscribe();
         });
-        reloadProducers();
+        if ( asyncEventService.isReplayMode() ) {
+            //回放模式下行情来自记录文件, 不连接行情数据源
+            logger.info("MarketDataService doesn't connect producers in replay mode.");
+            saveData = false;
+        } else {
+            reloadProducers();
+        }
         scheduledExecutorService.scheduleAtFixedRate(()->{
             try{
-                if ( reloadInProgress ) {
+                if ( reloadInProgress || asyncEventService.isReplayMode() ) {
                     return;
                 }
                 try {
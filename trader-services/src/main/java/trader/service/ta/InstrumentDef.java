@@ -1,9 +1,12 @@
 package trader.service.ta;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import trader.common.exchangeable.Exchange;
 import trader.common.exchangeable.Exchangeable;
+import trader.common.tick.PriceLevel;
+import trader.common.util.ConversionUtil;
 import trader.common.util.PriceUtil;
 import trader.common.util.StringUtil;
 
@@ -16,6 +19,10 @@ public class InstrumentDef {
     public final String[] levels;
     public final long strokeThreshold;
     public final long lineWidth;
+    /**
+     * 级别名称/前缀 -> 内存中保留的KBar数量, "*" 为全部级别的缺省值. 没有配置时全部保留
+     */
+    public final Map<String, Integer> retentions;
 
     public InstrumentDef(Exchangeable instrument, Map config) {
         this.key = instrument2key(instrument);
@@ -29,6 +36,39 @@ public class InstrumentDef {
         this.strokeThreshold = PriceUtil.config2long(strokeThreshold, instrument.getPriceTick());
         this.lineWidth = PriceUtil.config2long(lineWidth, instrument.getPriceTick());
         this.levels = StringUtil.split(levels, ",|;");
+        this.retentions = parseRetentions((String)config.get("retention"));
+    }
+
+    /**
+     * 级别在内存中保留的KBar数量, 0 表示全部保留
+     */
+    public int getRetention(PriceLevel level) {
+        Integer result = retentions.get(level.name().toLowerCase());
+        if ( result==null ) {
+            result = retentions.get(level.prefix());
+        }
+        if ( result==null ) {
+            result = retentions.get("*");
+        }
+        return result!=null?result:0;
+    }
+
+    /**
+     * 解析 "min1:3000, min5:1000, vol:500" 或者 "3000"
+     */
+    private static Map<String, Integer> parseRetentions(String retention){
+        Map<String, Integer> result = new HashMap<>();
+        if ( !StringUtil.isEmpty(retention) ) {
+            for(String part:StringUtil.split(retention, ",|;")) {
+                String[] kv = StringUtil.split(part, ":");
+                if ( kv.length>=2 ) {
+                    result.put(kv[0].toLowerCase(), ConversionUtil.toInt(kv[1]));
+                } else {
+                    result.put("*", ConversionUtil.toInt(kv[0]));
+                }
+            }
+        }
+        return result;
     }
 
     public static String instrument2key(Exchangeable instrument) {
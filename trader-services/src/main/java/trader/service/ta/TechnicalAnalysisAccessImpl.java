@@ -1,9 +1,14 @@
 package trader.service.ta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,12 +26,17 @@ import trader.common.exchangeable.MarketTimeStage;
 import trader.common.tick.PriceLevel;
 import trader.common.util.ConversionUtil;
 import trader.common.util.DateUtil;
+import trader.common.util.FileUtil;
 import trader.common.util.JsonEnabled;
 import trader.common.util.PriceUtil;
 import trader.common.util.StringUtil;
+import trader.common.util.TraderHomeUtil;
 import trader.service.md.MarketData;
 import trader.service.ta.bar.BarBuilder;
+import trader.service.ta.bar.BarCheckpointReader;
+import trader.service.ta.bar.BarCheckpointWriter;
 import trader.service.ta.bar.FutureBarBuilder;
+import trader.service.ta.bar.RollupBarBuilder;
 import trader.service.ta.trend.StackedTrendBarBuilder;
 import trader.service.ta.trend.WaveBarOption;
 import trader.service.trade.MarketTimeService;
@@ -50,11 +60,34 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
     private String cfgVoldailyLevel;
     private PriceLevel voldailyLevel;
     private BarSeriesLoader seriesLoader;
+    /**
+     * 全部分钟级别共用, 每个TICK只处理一次
+     */
+    private RollupBarBuilder rollupBarBuilder;
     private StackedTrendBarBuilder tickTrendBarBuilder;
     private long[] options = new long[Option.values().length];
     List<TechnicalAnalysisListener> listeners = new ArrayList<>();
+    /**
+     * 最后一个TICK的时间戳
+     */
+    private long lastTickTimestamp;
+    /**
+     * 最后一次checkpoint对应的TICK时间戳
+     */
+    private long checkpointTimestamp;
+    /**
+     * 从checkpoint恢复后已经重放到的TICK时间戳, 忽略更早的TICK
+     */
+    private long replayedTimestamp;
 
     public TechnicalAnalysisAccessImpl(BeansContainer beansContainer, ExchangeableData data, Exchangeable instrument, InstrumentDef instrumentDef) {
+        this(beansContainer, data, instrument, instrumentDef, null);
+    }
+
+    /**
+     * @param checkpoint saveCheckpoint() 保存的数据, 是当前交易日的checkpoint时直接恢复KBar并重放之后的TICK, 不再加载历史数据
+     */
+    public TechnicalAnalysisAccessImpl(BeansContainer beansContainer, ExchangeableData data, Exchangeable instrument, InstrumentDef instrumentDef, DataInput checkpoint) {
         this.beansContainer = beansContainer;
         this.instrument = instrument;
         this.instrumentDef = instrumentDef;
@@ -64,7 +97,9 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
         MarketTimeService mtService = beansContainer.getBean(MarketTimeService.class);
         tradingTimes = instrument.exchange().getTradingTimes(instrument, mtService.getTradingDay());
 
-        initBarBuilders(data);
+        if ( checkpoint==null || !restoreCheckpoint(data, checkpoint) ) {
+            initBarBuilders(data);
+        }
     }
 
     @Override
@@ -113,6 +148,116 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
         return seriesLoader;
     }
 
+    /**
+     * 最后一次checkpoint对应的TICK时间戳
+     */
+    public long getCheckpointTimestamp() {
+        return checkpointTimestamp;
+    }
+
+    /**
+     * 保存全部KBar的当前状态, 包括未完成的KBar和继续更新需要的TICK. 笔划/线段不保存, 恢复后重新开始
+     */
+    public void saveCheckpoint(DataOutput out) throws IOException {
+        out.writeUTF(instrument.uniqueId());
+        out.writeLong(tradingTimes.getTradingDay().toEpochDay());
+        out.writeLong(lastTickTimestamp);
+        out.writeUTF(cfgVoldailyLevel!=null?cfgVoldailyLevel:"");
+        out.writeUTF(voldailyLevel!=null?voldailyLevel.toString():"");
+        BarCheckpointWriter writer = new BarCheckpointWriter(out);
+        out.writeBoolean(rollupBarBuilder!=null);
+        if ( rollupBarBuilder!=null ) {
+            rollupBarBuilder.saveCheckpoint(writer);
+        }
+        out.writeInt(levelBuilders.size());
+        for(LeveledBarBuilderInfo leveledBarBuilder:levelBuilders) {
+            writer.writeLevel(leveledBarBuilder.level);
+            if ( leveledBarBuilder.barBuilder==rollupBarBuilder ) {
+                out.writeBoolean(true);
+            } else if ( leveledBarBuilder.barBuilder instanceof FutureBarBuilder ) {
+                out.writeBoolean(false);
+                ((FutureBarBuilder)leveledBarBuilder.barBuilder).saveCheckpoint(writer);
+            } else {
+                throw new IOException("Unsupported bar builder "+leveledBarBuilder.barBuilder.getClass().getName());
+            }
+        }
+        checkpointTimestamp = lastTickTimestamp;
+    }
+
+    /**
+     * 从checkpoint恢复KBar, 然后重放checkpoint之后到当前市场时间的TICK
+     *
+     * @return false 如果checkpoint不是当前交易日的或者加载失败
+     */
+    private boolean restoreCheckpoint(ExchangeableData data, DataInput in) {
+        LocalDate tradingDay = tradingTimes.getTradingDay();
+        try{
+            if ( !instrument.uniqueId().equals(in.readUTF()) || in.readLong()!=tradingDay.toEpochDay() ) {
+                return false;
+            }
+            long timestamp = in.readLong();
+            String cfgVoldailyLevel = in.readUTF();
+            String voldailyLevel = in.readUTF();
+            BarCheckpointReader reader = new BarCheckpointReader(in);
+            RollupBarBuilder rollupBarBuilder = null;
+            if ( in.readBoolean() ) {
+                rollupBarBuilder = RollupBarBuilder.loadCheckpoint(tradingTimes, reader);
+            }
+            List<LeveledBarBuilderInfo> levelBuilders = new ArrayList<>();
+            int levelCount = in.readInt();
+            for(int i=0;i<levelCount;i++) {
+                LeveledBarBuilderInfo leveledBarBuilder = new LeveledBarBuilderInfo();
+                leveledBarBuilder.level = reader.readLevel();
+                if ( in.readBoolean() ) {
+                    leveledBarBuilder.barBuilder = rollupBarBuilder;
+                } else {
+                    leveledBarBuilder.barBuilder = FutureBarBuilder.loadCheckpoint(tradingTimes, reader);
+                }
+                levelBuilders.add(leveledBarBuilder);
+            }
+            this.levelBuilders = levelBuilders;
+            this.rollupBarBuilder = rollupBarBuilder;
+            this.cfgVoldailyLevel = StringUtil.isEmpty(cfgVoldailyLevel)?null:cfgVoldailyLevel;
+            this.voldailyLevel = StringUtil.isEmpty(voldailyLevel)?null:PriceLevel.valueOf(voldailyLevel);
+            this.lastTickTimestamp = timestamp;
+            this.checkpointTimestamp = timestamp;
+        }catch(Throwable t) {
+            logger.error("Load "+instrument+" checkpoint failed", t);
+            levelBuilders = new ArrayList<>();
+            rollupBarBuilder = null;
+            cfgVoldailyLevel = null;
+            voldailyLevel = null;
+            return false;
+        }
+        seriesLoader = new BarSeriesLoader(beansContainer, data).setInstrument(instrument);
+        for(String level:instrumentDef.levels) {
+            if ( (StringUtil.equals(level, "stroke") || StringUtil.equals(level, "section")) && null==tickTrendBarBuilder ) {
+                WaveBarOption option = new WaveBarOption(LongNum.fromRawValue(instrumentDef.strokeThreshold));
+                tickTrendBarBuilder = new StackedTrendBarBuilder(option, tradingTimes);
+            }
+        }
+        for(LeveledBarBuilderInfo leveledBarBuilder:levelBuilders) {
+            applyRetention(leveledBarBuilder);
+        }
+        //重放checkpoint之后的TICK
+        int replayCount = 0;
+        try{
+            MarketTimeService mtService = beansContainer.getBean(MarketTimeService.class);
+            seriesLoader.setEndTime(mtService.getMarketTime());
+            for(MarketData tick:seriesLoader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP)) {
+                if ( tick.updateTimestamp>checkpointTimestamp ) {
+                    onMarketData(tick);
+                    replayCount++;
+                }
+            }
+        }catch(Throwable t) {
+            logger.error("Replay "+instrument+" ticks after checkpoint failed", t);
+        }
+        replayedTimestamp = lastTickTimestamp;
+        logger.info("Instrument "+instrument+" bar builders were restored from checkpoint at "+DateUtil.date2str(DateUtil.long2datetime(instrument.exchange().getZoneId(), checkpointTimestamp))+", replayed ticks: "+replayCount);
+        return true;
+    }
+
     @Override
     public JsonElement toJson() {
         JsonObject json = new JsonObject();
@@ -123,6 +268,7 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
             JsonObject ljson = new JsonObject();
             ljson.addProperty("level", leveledBarBuilder.level.name());
             ljson.addProperty("barCount", leveledBarBuilder.barBuilder.getTimeSeries(leveledBarBuilder.level).getBarCount());
+            ljson.addProperty("retention", instrumentDef.getRetention(leveledBarBuilder.level));
             levels.add(ljson);
         }
         json.add("levels", levels);
@@ -144,9 +290,67 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
         }
     }
 
+    /**
+     * 模拟回测复用到新的交易日: 清除上一交易日注册的监听器, KBar按新交易日的交易时间继续计算.
+     * <BR>已有的KBar作为历史数据保留, 不重新加载; 日线不按TICK计算, 重新加载. 笔划和按上日持仓决定的成交量级别重新创建.
+     * <BR>新交易日不晚于当前交易日时(例如循环使用测试数据)重建全部KBar
+     */
+    public void resetForTradingDay(ExchangeableData data, LocalDate tradingDay) {
+        listeners.clear();
+        LocalDate lastTradingDay = tradingTimes.getTradingDay();
+        tradingTimes = instrument.exchange().getTradingTimes(instrument, tradingDay);
+        if ( !tradingDay.isAfter(lastTradingDay) ) {
+            closeSpillFiles();
+            levelBuilders = new ArrayList<>();
+            rollupBarBuilder = null;
+            tickTrendBarBuilder = null;
+            cfgVoldailyLevel = null;
+            voldailyLevel = null;
+            initBarBuilders(data);
+            return;
+        }
+        if ( null!=rollupBarBuilder ) {
+            rollupBarBuilder.rollTradingDay(tradingTimes);
+        }
+        List<LeveledBarBuilderInfo> lastLevelBuilders = levelBuilders;
+        levelBuilders = new ArrayList<>();
+        for(LeveledBarBuilderInfo leveledBarBuilder:lastLevelBuilders) {
+            if ( leveledBarBuilder.level.equals(voldailyLevel) ) {
+                closeSpillFile(leveledBarBuilder);
+                continue;
+            }
+            if ( leveledBarBuilder.barBuilder instanceof FutureBarBuilder ) {
+                FutureBarBuilder barBuilder = (FutureBarBuilder)leveledBarBuilder.barBuilder;
+                barBuilder.rollTradingDay(tradingTimes);
+                if ( leveledBarBuilder.level.prefix().equals(PriceLevel.LEVEL_DAY) ) {
+                    closeSpillFile(leveledBarBuilder);
+                    try{
+                        loadHistoryData(seriesLoader, barBuilder);
+                    }catch(Throwable t) {
+                        logger.error("Load "+instrument+" level "+leveledBarBuilder.level+" history data failed", t);
+                    }
+                    applyRetention(leveledBarBuilder);
+                }
+            }
+            levelBuilders.add(leveledBarBuilder);
+        }
+        voldailyLevel = null;
+        for(String level:instrumentDef.levels) {
+            if ( level.toLowerCase().startsWith("voldaily") ) {
+                cfgVoldailyLevel = level;
+            }
+        }
+        if ( null!=tickTrendBarBuilder ) {
+            WaveBarOption option = new WaveBarOption(LongNum.fromRawValue(instrumentDef.strokeThreshold));
+            tickTrendBarBuilder = new StackedTrendBarBuilder(option, tradingTimes);
+        }
+        logger.info("Instrument "+instrument+" bar builders were rolled to trading day "+tradingDay);
+    }
+
     private void initBarBuilders(ExchangeableData data) {
         seriesLoader = new BarSeriesLoader(beansContainer, data).setInstrument(instrument);
         List<PriceLevel> levels = new ArrayList<>();
+        List<PriceLevel> rollupLevels = new ArrayList<>();
         for(String level:instrumentDef.levels) {
             if ( StringUtil.equals(level, "stroke") || StringUtil.equals(level, "section") ) {
                 if ( null==tickTrendBarBuilder ) {
@@ -163,8 +367,15 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
                 leveledBarBuilder.level = PriceLevel.valueOf(level);
             }
 
+            if ( RollupBarBuilder.isRollupLevel(leveledBarBuilder.level) ) {
+                //分钟级别在最后统一创建
+                rollupLevels.add(leveledBarBuilder.level);
+                levelBuilders.add(leveledBarBuilder);
+                levels.add(leveledBarBuilder.level);
+                continue;
+            }
             leveledBarBuilder.barBuilder = new FutureBarBuilder(tradingTimes, leveledBarBuilder.level);
-            if ( leveledBarBuilder.level.prefix().equals(PriceLevel.LEVEL_MIN) || leveledBarBuilder.level.prefix().equals(PriceLevel.LEVEL_DAY) ) {
+            if ( leveledBarBuilder.level.prefix().equals(PriceLevel.LEVEL_DAY) ) {
                 try{
                     loadHistoryData(seriesLoader, (FutureBarBuilder)leveledBarBuilder.barBuilder);
                 }catch(Throwable t) {
@@ -174,17 +385,125 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
             levelBuilders.add(leveledBarBuilder);
             levels.add(leveledBarBuilder.level);
         }
+        if ( !rollupLevels.isEmpty() ) {
+            rollupBarBuilder = new RollupBarBuilder(tradingTimes, rollupLevels);
+            for(LeveledBarBuilderInfo leveledBarBuilder:levelBuilders) {
+                if ( leveledBarBuilder.barBuilder==null ) {
+                    leveledBarBuilder.barBuilder = rollupBarBuilder;
+                }
+            }
+            try{
+                loadHistoryData(seriesLoader, rollupBarBuilder);
+            }catch(Throwable t) {
+                logger.error("Load "+instrument+" levels "+rollupLevels+" history data failed", t);
+            }
+        }
+        for(LeveledBarBuilderInfo leveledBarBuilder:levelBuilders) {
+            applyRetention(leveledBarBuilder);
+        }
         logger.info("Instrument "+instrument+" bar builders were created for levels: "+levels);
     }
 
+    /**
+     * 按照配置限制内存中保留的KBar数量, 更早的KBar写入工作目录下的spill文件, 访问时再读取.
+     * 需要在加载历史数据之后调用
+     */
+    private void applyRetention(LeveledBarBuilderInfo leveledBarBuilder) {
+        int retention = instrumentDef.getRetention(leveledBarBuilder.level);
+        LeveledBarSeries series = leveledBarBuilder.barBuilder.getTimeSeries(leveledBarBuilder.level);
+        if ( retention<=0 || !(series instanceof BaseLeveledBarSeries) ) {
+            return;
+        }
+        retention = Math.max(retention, BaseLeveledBarSeries.MIN_RETENTION);
+        try{
+            File dir = getSpillDir();
+            dir.mkdirs();
+            File file = File.createTempFile(instrument.uniqueId()+"-"+leveledBarBuilder.level+"-", ".bar", dir);
+            ((BaseLeveledBarSeries)series).setRetention(retention, file);
+        }catch(Throwable t) {
+            logger.error("Set "+instrument+" level "+leveledBarBuilder.level+" retention "+retention+" failed", t);
+        }
+    }
+
+    /**
+     * 关闭并删除全部spill文件, 服务销毁或者品种不再使用时调用
+     */
+    void closeSpillFiles() {
+        for(LeveledBarBuilderInfo leveledBarBuilder:levelBuilders) {
+            closeSpillFile(leveledBarBuilder);
+        }
+    }
+
+    private void closeSpillFile(LeveledBarBuilderInfo leveledBarBuilder) {
+        LeveledBarSeries series = leveledBarBuilder.barBuilder.getTimeSeries(leveledBarBuilder.level);
+        if ( series instanceof BaseLeveledBarSeries ) {
+            try{
+                ((BaseLeveledBarSeries)series).closeSpillFile();
+            }catch(Throwable t) {
+                logger.error("Close "+instrument+" level "+leveledBarBuilder.level+" spill file failed", t);
+            }
+        }
+    }
+
+    /**
+     * 当前进程的spill文件目录: work/barSpill/PID, 多个进程共用工作目录时互不影响
+     */
+    static File getSpillDir() {
+        return new File(new File(TraderHomeUtil.getDirectory(TraderHomeUtil.DIR_WORK), "barSpill"), ""+ProcessHandle.current().pid());
+    }
+
+    /**
+     * 删除进程异常退出后遗留的spill文件: 已经退出的进程的目录, 以及 barSpill 下直接存放的旧文件
+     */
+    static void deleteStaleSpillFiles() {
+        File[] files = getSpillDir().getParentFile().listFiles();
+        if ( files==null ) {
+            return;
+        }
+        for(File file:files) {
+            if ( file.isDirectory() ) {
+                long pid = ConversionUtil.toLong(file.getName(), true);
+                if ( pid<=0 || ProcessHandle.of(pid).isPresent() ) {
+                    continue;
+                }
+            } else if ( !file.getName().endsWith(".bar") ) {
+                continue;
+            }
+            if ( FileUtil.delete(file) ) {
+                logger.info("Stale spill file "+file+" was deleted");
+            }
+        }
+    }
+
     /**
      * 加载历史数据. 目前只加载昨天的数据.
      * TODO 加载最近指定KBar数量的数据
      */
     private void loadHistoryData(BarSeriesLoader seriesLoader, FutureBarBuilder barBuilder) throws Exception
     {
-        PriceLevel level = barBuilder.getLevel();
-        MarketTimeService mtService = beansContainer.getBean(MarketTimeService.class);
+        setHistoryDays(seriesLoader, getHistoryDays(barBuilder.getLevel()));
+        barBuilder.loadHistoryData(seriesLoader);
+    }
+
+    /**
+     * 加载分钟级别历史数据: 加载天数相同的级别一起从MIN1合成
+     */
+    private void loadHistoryData(BarSeriesLoader seriesLoader, RollupBarBuilder barBuilder) throws Exception
+    {
+        Map<Integer, List<PriceLevel>> levelsByDays = new TreeMap<>();
+        for(PriceLevel level:barBuilder.getLevels()) {
+            levelsByDays.computeIfAbsent(getHistoryDays(level), (k)->new ArrayList<>()).add(level);
+        }
+        for(Map.Entry<Integer, List<PriceLevel>> entry:levelsByDays.entrySet()) {
+            setHistoryDays(seriesLoader, entry.getKey());
+            Map<PriceLevel, LeveledBarSeries> seriesByLevel = seriesLoader.loadLevels(entry.getValue());
+            for(PriceLevel level:entry.getValue()) {
+                barBuilder.setHistoryData(level, seriesByLevel.get(level), seriesLoader.getLoadedDates());
+            }
+        }
+    }
+
+    private static int getHistoryDays(PriceLevel level) {
         int dayBefore = 2;
         if ( PriceLevel.DAY.equals(level)) {
             dayBefore = 30;
@@ -195,13 +514,15 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
                 dayBefore = 2;
             }
         }
+        return dayBefore;
+    }
 
+    private void setHistoryDays(BarSeriesLoader seriesLoader, int dayBefore) {
+        MarketTimeService mtService = beansContainer.getBean(MarketTimeService.class);
         seriesLoader
             .setEndTradingDay(tradingTimes.getTradingDay())
             .setStartTradingDay(MarketDayUtil.nextMarketDays(instrument.exchange(), tradingTimes.getTradingDay(), -1*dayBefore))
             .setEndTime(mtService.getMarketTime());
-
-        barBuilder.loadHistoryData(seriesLoader);
     }
 
     /**
@@ -232,6 +553,14 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
      * 根据TICK数据更新KBar
      */
     public void onMarketData(MarketData tick) {
+        if ( tick.updateTimestamp<replayedTimestamp ) {
+            return;
+        }
+        lastTickTimestamp = tick.updateTimestamp;
+        if ( checkpointTimestamp==0 ) {
+            //第一个checkpoint从第一个TICK开始计算间隔
+            checkpointTimestamp = tick.updateTimestamp;
+        }
         if ( tick.mktStage!=MarketTimeStage.MarketOpen ) {
             return;
         }
@@ -243,14 +572,24 @@ public class TechnicalAnalysisAccessImpl implements TechnicalAnalysisAccess, Jso
                 dailyLeveledBarBuilder.level = voldailyLevel;
                 dailyLeveledBarBuilder.barBuilder = new FutureBarBuilder(tradingTimes, dailyLeveledBarBuilder.level);
                 levelBuilders.add(dailyLeveledBarBuilder);
+                applyRetention(dailyLeveledBarBuilder);
                 cfgVoldailyLevel = null;
             }
         }
 
         //日常更新KBAR
+        if ( null!=rollupBarBuilder ) {
+            rollupBarBuilder.update(tick);
+        }
         for(int i=0;i<levelBuilders.size();i++) {
             LeveledBarBuilderInfo leveledBarBuilder = levelBuilders.get(i);
-            if ( leveledBarBuilder.barBuilder.update(tick)) {
+            boolean newBar = false;
+            if ( leveledBarBuilder.barBuilder==rollupBarBuilder ) {
+                newBar = rollupBarBuilder.hasNewBar(leveledBarBuilder.level);
+            } else {
+                newBar = leveledBarBuilder.barBuilder.update(tick);
+            }
+            if ( newBar ) {
                 LeveledBarSeries series = leveledBarBuilder.barBuilder.getTimeSeries(leveledBarBuilder.level);
                 notifyListeners(series);
             }
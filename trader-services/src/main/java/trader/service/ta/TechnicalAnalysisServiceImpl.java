@@ -1,12 +1,22 @@
 package trader.service.ta;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import javax.annotation.PreDestroy;
 
@@ -22,6 +32,7 @@ import trader.common.exchangeable.Exchangeable;
 import trader.common.exchangeable.ExchangeableData;
 import trader.common.exchangeable.ExchangeableType;
 import trader.common.exchangeable.FutureCombo;
+import trader.common.util.ChecksumFileUtil;
 import trader.common.util.StringUtil;
 import trader.common.util.TraderHomeUtil;
 import trader.service.md.MarketData;
@@ -43,6 +54,13 @@ public class TechnicalAnalysisServiceImpl implements TechnicalAnalysisService, M
      * 关注的品种定义
      */
     public static final String ITEM_INSTRUMENTS = "/TechnicalAnalysisService/instrument[]";
+    /**
+     * KBar checkpoint 间隔, 例如 5m. 没有配置时不生成checkpoint, 启动时也不从checkpoint恢复
+     */
+    public static final String ITEM_CHECKPOINT_INTERVAL = "/TechnicalAnalysisService/checkpointInterval";
+
+    private static final int CHECKPOINT_MAGIC = 0X54414350; //TACP
+    private static final int CHECKPOINT_VERSION = 1;
 
     private BeansContainer beansContainer;
 
@@ -56,14 +74,32 @@ public class TechnicalAnalysisServiceImpl implements TechnicalAnalysisService, M
 
     private Map<Exchangeable, TechnicalAnalysisAccessImpl> accessors = new HashMap<>();
 
+    /**
+     * checkpoint间隔(ms), 0 表示不生成
+     */
+    private long checkpointInterval;
+
+    private File checkpointDir;
+
+    private ExecutorService executorService;
+
+    /**
+     * 已写入的checkpoint时间戳, 避免异步写入时旧的checkpoint覆盖新的
+     */
+    private Map<File, Long> checkpointTimestamps = new HashMap<>();
+
     @Override
     public void init(BeansContainer beansContainer) {
         state = ServiceState.Starting;
         this.beansContainer = beansContainer;
         data = TraderHomeUtil.getExchangeableData();
         mdService = beansContainer.getBean(MarketDataService.class);
+        executorService = beansContainer.getBean(ExecutorService.class);
+        checkpointInterval = ConfigUtil.getTime(ITEM_CHECKPOINT_INTERVAL, 0)*1000;
+        checkpointDir = new File(TraderHomeUtil.getDirectory(TraderHomeUtil.DIR_WORK), "taCheckpoint");
         mdService.addListener(this);
         instrumentDefs.putAll( loadInstrumentDefs());
+        TechnicalAnalysisAccessImpl.deleteStaleSpillFiles();
         buildAccessors();
         logger.info("Start with data dir "+data.getDataDir());
         state = ServiceState.Ready;
@@ -72,6 +108,11 @@ public class TechnicalAnalysisServiceImpl implements TechnicalAnalysisService, M
     @Override
     @PreDestroy
     public void destroy() {
+        state = ServiceState.Stopped;
+        //组合品种的多个合约共用一个accessor
+        for(TechnicalAnalysisAccessImpl accessor:new HashSet<>(accessors.values())) {
+            accessor.closeSpillFiles();
+        }
     }
 
     @Override
@@ -103,6 +144,36 @@ public class TechnicalAnalysisServiceImpl implements TechnicalAnalysisService, M
             TechnicalAnalysisAccessImpl accessor = accessors.get(tick.instrument);
             if ( accessor!=null ) {
                 accessor.onMarketData(tick);
+                if ( checkpointInterval>0 && tick.updateTimestamp-accessor.getCheckpointTimestamp()>=checkpointInterval ) {
+                    checkpoint(accessor);
+                }
+            }
+        }
+    }
+
+    /**
+     * 模拟回测复用到新的交易日: 保留品种定义和行情监听, 订阅的品种按新交易日重建KBar, 不再订阅的品种被移除.
+     * <BR>交易组需要重新注册监听器
+     */
+    public void resetForTradingDay(LocalDate tradingDay) {
+        Map<Exchangeable, TechnicalAnalysisAccessImpl> lastAccessors = accessors;
+        accessors = new HashMap<>();
+        for(Exchangeable e: mdService.getSubscriptions()) {
+            InstrumentDef def = instrumentDefs.get(InstrumentDef.instrument2key(e));
+            if ( def==null ) {
+                continue;
+            }
+            TechnicalAnalysisAccessImpl accessor = lastAccessors.get(e);
+            if ( accessor!=null && accessor.getInstrument().equals(e) ) {
+                accessor.resetForTradingDay(data, tradingDay);
+            } else {
+                accessor = new TechnicalAnalysisAccessImpl(beansContainer, data, e, def);
+            }
+            accessors.put(e, accessor);
+        }
+        for(TechnicalAnalysisAccessImpl accessor:new HashSet<>(lastAccessors.values())) {
+            if ( !accessors.containsValue(accessor) ) {
+                accessor.closeSpillFiles();
             }
         }
     }
@@ -129,18 +200,81 @@ public class TechnicalAnalysisServiceImpl implements TechnicalAnalysisService, M
             if ( def==null ) {
                 continue;
             }
-            TechnicalAnalysisAccessImpl accessor = new TechnicalAnalysisAccessImpl(beansContainer, data, e, def);
+            TechnicalAnalysisAccessImpl accessor = new TechnicalAnalysisAccessImpl(beansContainer, data, e, def, loadCheckpoint(e));
             accessors.put(e, accessor);
         }
     }
 
+    /**
+     * 在行情线程中保存KBar状态, 文件写入在后台线程完成
+     */
+    private void checkpoint(TechnicalAnalysisAccessImpl accessor) {
+        File file = getCheckpointFile(accessor.getInstrument());
+        try{
+            ByteArrayOutputStream body = new ByteArrayOutputStream(64*1024);
+            accessor.saveCheckpoint(new DataOutputStream(body));
+            byte[] data = body.toByteArray();
+            long timestamp = accessor.getCheckpointTimestamp();
+            if ( executorService!=null ) {
+                executorService.execute(()->{
+                    writeCheckpoint(file, data, timestamp);
+                });
+            } else {
+                writeCheckpoint(file, data, timestamp);
+            }
+        }catch(Throwable t) {
+            logger.error("Checkpoint "+accessor.getInstrument()+" failed", t);
+        }
+    }
+
+    /**
+     * 先写入临时文件再原子替换, 进程在写入过程中退出时保留上一个checkpoint
+     */
+    private void writeCheckpoint(File file, byte[] data, long timestamp) {
+        synchronized(checkpointTimestamps) {
+            Long lastTimestamp = checkpointTimestamps.get(file);
+            if ( lastTimestamp!=null && lastTimestamp>=timestamp ) {
+                return;
+            }
+            try{
+                ChecksumFileUtil.write(file, CHECKPOINT_MAGIC, CHECKPOINT_VERSION, null, data);
+                checkpointTimestamps.put(file, timestamp);
+            }catch(IOException e) {
+                logger.error("Write checkpoint "+file+" failed", e);
+            }
+        }
+    }
+
+    /**
+     * 加载并校验checkpoint文件
+     *
+     * @return null 如果没有启用checkpoint, 文件不存在或者校验失败
+     */
+    private DataInput loadCheckpoint(Exchangeable instrument) {
+        File file = getCheckpointFile(instrument);
+        if ( checkpointInterval<=0 || !file.exists() ) {
+            return null;
+        }
+        try{
+            byte[] data = ChecksumFileUtil.read(file, CHECKPOINT_MAGIC, CHECKPOINT_VERSION, null);
+            return new DataInputStream(new ByteArrayInputStream(data));
+        }catch(IOException e) {
+            logger.error("Load checkpoint file "+file+" failed", e);
+            return null;
+        }
+    }
+
+    private File getCheckpointFile(Exchangeable instrument) {
+        return new File(checkpointDir, instrument.uniqueId()+".checkpoint");
+    }
+
     private TechnicalAnalysisAccessImpl buildTechAccess(Exchangeable instrument) {
         TechnicalAnalysisAccessImpl result = accessors.get(instrument);
         if ( result==null) {
             String key = instrument.contract()+"."+instrument.exchange().name();
             InstrumentDef instrumentDef = instrumentDefs.get(key);
             if ( instrumentDef!=null ) {
-                result = new TechnicalAnalysisAccessImpl(beansContainer, data, instrument, instrumentDef);
+                result = new TechnicalAnalysisAccessImpl(beansContainer, data, instrument, instrumentDef, loadCheckpoint(instrument));
                 if ( instrument.getType()==ExchangeableType.FUTURE_COMBO) {
                     FutureCombo combo = (FutureCombo)instrument;
                     accessors.put(combo.getExchangeable1(), result);
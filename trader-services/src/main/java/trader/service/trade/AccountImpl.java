@@ -1,16 +1,21 @@
 package trader.service.trade;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.io.StringReader;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -31,9 +36,11 @@ import ch.qos.logback.core.FileAppender;
 import trader.common.beans.BeansContainer;
 import trader.common.exception.AppException;
 import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.Future;
 import trader.common.util.ConversionUtil;
 import trader.common.util.DateUtil;
 import trader.common.util.FileUtil;
+import trader.common.util.FileWatchListener;
 import trader.common.util.IniFile;
 import trader.common.util.JsonUtil;
 import trader.common.util.PriceUtil;
@@ -43,6 +50,7 @@ import trader.common.util.UUIDUtil;
 import trader.service.ServiceConstants.AccountState;
 import trader.service.ServiceConstants.ConnState;
 import trader.service.ServiceErrorConstants;
+import trader.service.event.AsyncEventService;
 import trader.service.md.MarketData;
 import trader.service.md.MarketDataListener;
 import trader.service.md.MarketDataService;
@@ -58,7 +66,7 @@ import trader.service.trade.spi.TxnSessionListener;
  * <BR>每个Account对象实例有自己的RingBuffer, 有独立的Log文件, 有独立的多线程处理策略.
  * <BR>每个交易策略实例是运行在独立的线程中, 使用disruptor作为独立的调度
  */
-public class AccountImpl implements Account, TxnSessionListener, TradeConstants, ServiceErrorConstants, MarketDataListener {
+public class AccountImpl implements Account, TxnSessionListener, TradeConstants, ServiceErrorConstants, MarketDataListener, FileWatchListener {
 
     private String id;
     private BeansContainer beansContainer;
@@ -71,7 +79,8 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
     private MarketTimeService mtService;
     private TradeService tradeService;
     private AbsTxnSession txnSession;
-    private TxnFeeEvaluator feeEvaluator;
+    private volatile TxnFeeEvaluator feeEvaluator;
+    private OrderRiskEngine riskEngine = new OrderRiskEngine();
     private Properties connectionProps;
     /**
      * 配置的期货公司的保证金调整
@@ -86,6 +95,27 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
     private Map<Exchangeable, AtomicInteger> cancelCounts = new ConcurrentHashMap<>();
     private Lock orderLock = new ReentrantLock();
     private Lock positionLock = new ReentrantLock();
+    /**
+     * 账户事件日志, 没有启用时为null
+     */
+    private AccountJournal journal;
+    private Properties journalProps = new Properties();
+    /**
+     * 串行化账户事件的记录和处理, 保证日志顺序与实际处理顺序一致.
+     * <BR>加锁顺序: eventLock -> order -> positionLock
+     */
+    private ReentrantLock eventLock = new ReentrantLock();
+    private boolean snapshotPending;
+    /**
+     * 正在从日志重放, 不写日志, 不通知监听器
+     */
+    private volatile boolean replaying;
+    private boolean journalRecoveryTried;
+    private AsyncEventService asyncEventService;
+    /**
+     * 首次初始化时记录或者恢复账户启动状态
+     */
+    private boolean startupRecordTried;
 
     public AccountImpl(TradeService tradeService, BeansContainer beansContainer, Map configElem) {
         this.tradeService = tradeService;
@@ -95,10 +125,12 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
         String provider = ConversionUtil.toString(configElem.get("provider"));
         repository = beansContainer.getBean(BORepository.class);
         mtService = beansContainer.getBean(MarketTimeService.class);
+        asyncEventService = beansContainer.getBean(AsyncEventService.class);
         LocalDate tradingDay = mtService.getTradingDay();
         tradingWorkDir = new File(TraderHomeUtil.getDirectory(TraderHomeUtil.DIR_WORK), DateUtil.date2str(tradingDay));
         createAccountLogger();
         update(configElem);
+        journal = createJournal();
         txnSession = createTxnSession(provider);
     }
 
@@ -166,6 +198,10 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
         return feeEvaluator;
     }
 
+    public OrderRiskEngine getRiskEngine() {
+        return riskEngine;
+    }
+
     @Override
     public List<Order> getOrders() {
         return Collections.unmodifiableList(orders);
@@ -224,50 +260,67 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
         }
         long[] localOrderMoney = (new OrderValidator(beansContainer, this, builder)).validate();
         //创建Order
-        Exchangeable e = builder.getInstrument();
         String orderId = BOEntity.ID_PREFIX_ORDER+UUIDUtil.genUUID58();
         String orderRef = tradeService.getOrderRefGen().nextRefId(id);
         OrderImpl order = new OrderImpl(orderId, this, mtService.getTradingDay(), orderRef, builder, null);
         if ( logger.isInfoEnabled() ) {
             logger.info("报单 "+order.toString());
         }
-        PositionImpl pos = null;
+        eventLock.lock();
+        try {
+            if ( journal!=null ) {
+                journalOrderCreated(order, builder, localOrderMoney);
+            }
+            synchronized(order) {
+                try {
+                    applyOrderCreated(order, localOrderMoney);
+                    //异步发送
+                    txnSession.asyncSendOrder(order);
+                    if ( journal!=null ) {
+                        journalOrderAttrs(order);
+                    }
+                    return order;
+                }catch(AppException t) {
+                    //回退本地已冻结资金和仓位
+                    if ( order.getStateTuple()==OrderStateTuple.STATE_UNKNOWN ) {
+                        OrderStateTuple newState = new OrderStateTuple(OrderState.Failed, OrderSubmitState.Unsubmitted, System.currentTimeMillis(), t.toString());
+                        onOrderStateChanged(order, newState, null);
+                    }
+                    logger.error("报单错误 "+t.toString()+" : "+order, t);
+                    throw t;
+                }
+            }
+        }finally {
+            unlockEvent();
+        }
+    }
+
+    /**
+     * 保存新报单, 本地冻结资金和仓位
+     */
+    private void applyOrderCreated(OrderImpl order, long[] localOrderMoney) throws AppException {
         orderLock.lock();
         try {
-            ordersByRef.put(orderRef, order);
-            ordersById.put(orderId, order);
+            ordersByRef.put(order.getRef(), order);
+            ordersById.put(order.getId(), order);
             orders.add(order);
         }finally {
             orderLock.unlock();
         }
-        synchronized(order) {
-            try {
-                //关联Position
-                pos = getOrCreatePosition(e, true);
-                //本地计算和冻结仓位和保证金
-                order.setMoney(OdrMoney.LocalFrozenMargin, localOrderMoney[OdrMoney.LocalFrozenMargin.ordinal()]);
-                order.setMoney(OdrMoney.LocalFrozenCommission, localOrderMoney[OdrMoney.LocalFrozenCommission.ordinal()]);
-                order.setMoney(OdrMoney.PriceCandidate, localOrderMoney[OdrMoney.PriceCandidate.ordinal()]);
-                positionLock.lock();
-                try {
-                    localFreeze(order);
-                    //仓位管理
-                    pos.localFreeze(order);
-                }finally {
-                    positionLock.unlock();
-                }
-                //异步发送
-                txnSession.asyncSendOrder(order);
-                return order;
-            }catch(AppException t) {
-                //回退本地已冻结资金和仓位
-                if ( order.getStateTuple()==OrderStateTuple.STATE_UNKNOWN ) {
-                    OrderStateTuple newState = new OrderStateTuple(OrderState.Failed, OrderSubmitState.Unsubmitted, System.currentTimeMillis(), t.toString());
-                    onOrderStateChanged(order, newState, null);
-                }
-                logger.error("报单错误 "+t.toString()+" : "+order, t);
-                throw t;
-            }
+        //关联Position
+        PositionImpl pos = getOrCreatePosition(order.getInstrument(), true);
+        //本地计算和冻结仓位和保证金
+        order.setMoney(OdrMoney.LocalFrozenMargin, localOrderMoney[OdrMoney.LocalFrozenMargin.ordinal()]);
+        order.setMoney(OdrMoney.LocalFrozenCommission, localOrderMoney[OdrMoney.LocalFrozenCommission.ordinal()]);
+        order.setMoney(OdrMoney.PriceCandidate, localOrderMoney[OdrMoney.PriceCandidate.ordinal()]);
+        positionLock.lock();
+        try {
+            localFreeze(order);
+            //仓位管理
+            pos.localFreeze(order);
+            riskEngine.onPositionChanged(pos);
+        }finally {
+            positionLock.unlock();
         }
     }
 
@@ -281,17 +334,23 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
         }
         Exchangeable e = order.getInstrument();
         boolean result = false;
-        synchronized(order) {
-            OrderStateTuple stateTuple = order.getStateTuple();
-            OrderSubmitState odrSubmitState = stateTuple.getSubmitState();
-            if ( stateTuple.getState().isRevocable()
-                    && !odrSubmitState.isSubmitting()
-                    && odrSubmitState!=OrderSubmitState.CancelSubmitted )
-            {
-                PositionImpl pos = getOrCreatePosition(e, true);
-                txnSession.asyncCancelOrder(order);
-                result = true;
+        eventLock.lock();
+        try {
+            synchronized(order) {
+                OrderStateTuple stateTuple = order.getStateTuple();
+                OrderSubmitState odrSubmitState = stateTuple.getSubmitState();
+                //排队中未发送的报单(Submitting)也可以撤单, 由交易通道的请求管道直接取消
+                if ( stateTuple.getState().isRevocable()
+                        && (!odrSubmitState.isSubmitting() || stateTuple.getState()==OrderState.Submitting)
+                        && odrSubmitState!=OrderSubmitState.CancelSubmitted )
+                {
+                    PositionImpl pos = getOrCreatePosition(e, true);
+                    txnSession.asyncCancelOrder(order);
+                    result = true;
+                }
             }
+        }finally {
+            unlockEvent();
         }
         return result;
     }
@@ -304,18 +363,34 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
         }
 
         boolean result = false;
-        synchronized(order) {
-            OrderStateTuple stateTuple = order.getStateTuple();
-            OrderSubmitState odrSubmitState = stateTuple.getSubmitState();
-            if ( stateTuple.getState().isRevocable()
-                    && !odrSubmitState.isSubmitting()
-                    && odrSubmitState!=OrderSubmitState.ModifySubmitted )
-            {
-                txnSession.asyncModifyOrder(order, builder);
-                logger.info("Order "+order.getRef()+" is modified, new limitPrice: "+PriceUtil.long2str(builder.getLimitPrice())+", old: "+PriceUtil.long2str(order.getLimitPrice()));
-                order.setLimitPrice(builder.getLimitPrice());
-                result = true;
+        eventLock.lock();
+        try {
+            synchronized(order) {
+                OrderStateTuple stateTuple = order.getStateTuple();
+                OrderSubmitState odrSubmitState = stateTuple.getSubmitState();
+                //排队中未发送的报单改单后, 发送时使用最新价格
+                if ( stateTuple.getState().isRevocable()
+                        && (!odrSubmitState.isSubmitting() || stateTuple.getState()==OrderState.Submitting)
+                        && odrSubmitState!=OrderSubmitState.ModifySubmitted )
+                {
+                    //先设置新价格再提交改单: 排队中的报单被管道发送线程发送时读取的是新价格
+                    long oldLimitPrice = order.getLimitPrice();
+                    order.setLimitPrice(builder.getLimitPrice());
+                    try {
+                        txnSession.asyncModifyOrder(order, builder);
+                    }catch(AppException | RuntimeException e) {
+                        order.setLimitPrice(oldLimitPrice);
+                        throw e;
+                    }
+                    logger.info("Order "+order.getRef()+" is modified, new limitPrice: "+PriceUtil.long2str(builder.getLimitPrice())+", old: "+PriceUtil.long2str(oldLimitPrice));
+                    if ( journal!=null ) {
+                        journalOrderModified(order, builder.getLimitPrice());
+                    }
+                    result = true;
+                }
             }
+        }finally {
+            unlockEvent();
         }
         return result;
     }
@@ -336,17 +411,53 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
                 File settlementFile = new File(TraderHomeUtil.getDirectory(TraderHomeUtil.DIR_WORK), getId()+"-"+DateUtil.date2str(mtService.getTradingDay())+".txt");
                 FileUtil.save(settlementFile, settlement);
             }
-            //查询账户
-            money = txnSession.syncQryAccounts();
-            //查询持仓
-            positions = loadPositions();
-            //加载品种的交易数据
-            if ( null==feeEvaluator ) {
-                loadFeeEvaluator();
+            //回放时恢复实盘启动时的报单和OrderRef序列
+            if ( isReplayMode() && !startupRecordTried ) {
+                startupRecordTried = true;
+                restoreStartupRecord();
+            }
+            //首次初始化时尝试从本地日志恢复, 成交重放需要手续费数据
+            boolean recovered = false;
+            if ( journal!=null && !journalRecoveryTried ) {
+                journalRecoveryTried = true;
+                if ( null==feeEvaluator ) {
+                    loadFeeEvaluator();
+                }
+                recovered = recoverFromJournal();
+            }
+            String posInfos = null;
+            if ( !recovered ) {
+                //查询账户
+                money = txnSession.syncQryAccounts();
+                //查询持仓
+                posInfos = txnSession.syncQryPositions();
+                positions = loadPositions(posInfos);
+                for(PositionImpl pos:positions.values()) {
+                    riskEngine.onPositionChanged(pos);
+                }
+                //加载品种的交易数据
+                if ( null==feeEvaluator ) {
+                    loadFeeEvaluator();
+                }
+                if ( journal!=null ) {
+                    takeSnapshot();
+                }
+            }
+            //记录异步事件时, 保存启动状态供回放使用
+            if ( asyncEventService!=null && asyncEventService.getRecordFile()!=null && !startupRecordTried ) {
+                startupRecordTried = true;
+                saveStartupRecord(asyncEventService.getRecordFile(), recovered?null:posInfos);
             }
             long t1 = System.currentTimeMillis();
             changeState(AccountState.Ready);
             logger.info("Account "+getId()+" initialize in "+(t1-t0)+" ms");
+            if ( recovered && ConversionUtil.toBoolean(journalProps.getProperty("reconcile", "true")) ) {
+                //异步与交易通道对账
+                ExecutorService executorService = beansContainer.getBean(ExecutorService.class);
+                executorService.execute(()->{
+                    reconcileWithBroker();
+                });
+            }
         }catch(Throwable t) {
             logger.error("Account "+getId()+" initialize failed", t);
             changeState(AccountState.NotReady);
@@ -357,6 +468,34 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
         if ( this.txnSession!=null ) {
             this.txnSession.close();
         }
+        if ( journal!=null ) {
+            journal.close();
+        }
+    }
+
+    /**
+     * 模拟回测复用到新的交易日: 关闭交易通道保存资金和持仓, 清除上一交易日的报单和成交, 然后重新连接.
+     * <BR>保留配置, 监听器和手续费数据
+     */
+    public void resetForTradingDay(LocalDate tradingDay) {
+        if ( txnSession!=null ) {
+            txnSession.close();
+        }
+        orderLock.lock();
+        try {
+            orders.clear();
+            ordersByRef.clear();
+            ordersById.clear();
+            txnsById.clear();
+            cancelCounts.clear();
+        }finally {
+            orderLock.unlock();
+        }
+        OrderRiskEngine riskEngine = new OrderRiskEngine();
+        riskEngine.setProperties(this.riskEngine.getProperties());
+        this.riskEngine = riskEngine;
+        tradingWorkDir = new File(TraderHomeUtil.getDirectory(TraderHomeUtil.DIR_WORK), DateUtil.date2str(tradingDay));
+        txnSession.connect(connectionProps);
     }
 
     /**
@@ -381,6 +520,21 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
             result = true;
         }
 
+        IniFile.Section riskControlSection = configIni.getSection("riskControl");
+        Properties riskControlProps = new Properties();
+        if ( riskControlSection!=null ) {
+            riskControlProps = riskControlSection.getProperties();
+        }
+        if ( !riskControlProps.equals(riskEngine.getProperties()) ) {
+            riskEngine.setProperties(riskControlProps);
+            result = true;
+        }
+
+        IniFile.Section journalSection = configIni.getSection("journal");
+        if ( journalSection!=null ) {
+            journalProps = journalSection.getProperties();
+        }
+
         Properties connectionProps2 = configIni.getSection("connectionProps").getProperties();
         if ( !connectionProps2.equals(connectionProps) ) {
             this.connectionProps = connectionProps2;
@@ -436,6 +590,25 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
 
     @Override
     public void onAccountTransfer(AccountTransferAction action, long tradeAmount) {
+        eventLock.lock();
+        try {
+            if ( journal!=null && !replaying ) {
+                try{
+                    DataOutput out = journal.beginRecord(AccountJournal.REC_ACCOUNT_TRANSFER);
+                    out.writeByte(action.ordinal());
+                    out.writeLong(tradeAmount);
+                    endJournalRecord();
+                }catch(Throwable t) {
+                    journalFailed(t);
+                }
+            }
+            applyAccountTransfer(action, tradeAmount);
+        }finally {
+            unlockEvent();
+        }
+    }
+
+    private void applyAccountTransfer(AccountTransferAction action, long tradeAmount) {
         long unit=1;
         switch(action) {
         case Deposit:
@@ -483,6 +656,12 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
             asyncReload();
             return;
         }
+        //从日志恢复后交易通道可能重复推送成交
+        if ( txnsById.containsKey(txnId) ) {
+            logger.info("Account "+getId()+" ignore duplicated txn id: "+txnId);
+            return;
+        }
+        long timestamp = System.currentTimeMillis();
         TransactionImpl txn = new TransactionImpl(
                 txnId,
                 getId(),
@@ -496,15 +675,27 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
                 txnTime,
                 txnData
                 );
-        txnsById.put(txnId, txn);
-        synchronized(order) {
-            onTransaction(order, txn, System.currentTimeMillis());
+        eventLock.lock();
+        try {
+            if ( journal!=null ) {
+                journalTransaction(txn, orderRef, timestamp);
+            }
+            applyTransaction(order, txn, timestamp);
+        }finally {
+            unlockEvent();
         }
         if ( null!=repository) {
             repository.asynSave(BOEntityType.Transaction, txnId, txn);
         }
     }
 
+    private void applyTransaction(OrderImpl order, TransactionImpl txn, long timestamp) {
+        txnsById.put(txn.getId(), txn);
+        synchronized(order) {
+            onTransaction(order, txn, timestamp);
+        }
+    }
+
     /**
      * 当报单状态发生变化时回调
      */
@@ -529,6 +720,19 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
             logger.error("状态无对应报单: "+newState);
             return null;
         }
+        eventLock.lock();
+        try {
+            if ( journal!=null && !replaying ) {
+                journalOrderState(order0, newState, attrs);
+            }
+            return applyOrderStateChanged(order0, newState, attrs);
+        }finally {
+            unlockEvent();
+        }
+    }
+
+    private OrderStateTuple applyOrderStateChanged(Order order0, OrderStateTuple newState, Map<String, String> attrs)
+    {
         if( newState.getState()==OrderState.Canceled ) {
             incrementCancelCount(order0.getInstrument());
         }
@@ -551,6 +755,7 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
                     localUnfreeze(order);
                     if ( pos!=null ) {
                         pos.localUnfreeze(order);
+                        riskEngine.onPositionChanged(pos);
                     } else {
                         logger.error("报单 "+order.getId()+" R: "+order.getRef()+" 无对应的仓位");
                     }
@@ -576,6 +781,36 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
         String orderRef = orderInfo.get("ref").getAsString();
         OrderImpl order = ordersByRef.get(orderRef);
         if ( order==null ) {
+            eventLock.lock();
+            try {
+                order = ordersByRef.get(orderRef);
+                if ( order==null ) {
+                    String orderId = BOEntity.ID_PREFIX_ORDER+UUIDUtil.genUUID58();
+                    long timestamp = System.currentTimeMillis();
+                    if ( journal!=null ) {
+                        try{
+                            DataOutput out = journal.beginRecord(AccountJournal.REC_ORDER_FROM_RESPONSE);
+                            out.writeUTF(orderId);
+                            out.writeLong(timestamp);
+                            out.writeUTF(orderInfo.toString());
+                            endJournalRecord();
+                        }catch(Throwable t) {
+                            journalFailed(t);
+                        }
+                    }
+                    order = applyOrderFromResponse(orderId, timestamp, orderInfo);
+                }
+            }finally {
+                unlockEvent();
+            }
+        }
+        return order;
+    }
+
+    private OrderImpl applyOrderFromResponse(String orderId, long timestamp, JsonObject orderInfo) {
+        String orderRef = orderInfo.get("ref").getAsString();
+        OrderImpl order = null;
+        {
             OrderBuilder orderBuilder = new OrderBuilder();
             orderBuilder.setExchagneable(Exchangeable.fromString(orderInfo.get("instrument").getAsString()))
             .setDirection(ConversionUtil.toEnum(OrderDirection.class, orderInfo.get("direction").getAsString()))
@@ -595,8 +830,7 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
             if ( orderInfo.has("stateMessage") ){
                 stateMessage = orderInfo.get("stateMessage").getAsString();
             }
-            OrderStateTuple stateTuple = new OrderStateTuple( orderState, orderSubmitState, System.currentTimeMillis(), stateMessage);
-            String orderId = BOEntity.ID_PREFIX_ORDER+UUIDUtil.genUUID58();
+            OrderStateTuple stateTuple = new OrderStateTuple( orderState, orderSubmitState, timestamp, stateMessage);
             order = new OrderImpl(orderId, this, mtService.getTradingDay(), orderRef, orderBuilder, stateTuple);
             orderLock.lock();
             try {
@@ -609,9 +843,6 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
             }
             logger.info("报单 "+orderId+" R:"+orderRef+" 从回报创建: "+order);
             publishOrderStateChanged(order, stateTuple);
-            if ( null!=repository ) {
-                repository.asynSave(BOEntityType.Order, order.getId(), order);
-            }
         }
         return order;
     }
@@ -621,6 +852,7 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
      */
     @Override
     public void onMarketData(MarketData marketData) {
+        riskEngine.onMarketData(marketData);
         if ( state!=AccountState.Ready ) {
             return;
         }
@@ -641,8 +873,11 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
         long[] lastOrderMoney = order.getMoney();
         long odrUnfrozenCommision0 = order.getMoney(OdrMoney.LocalUnfrozenCommission);
         long odrUsedCommission0 = order.getMoney(OdrMoney.LocalUsedCommission);
-        long[] txnFees = feeEvaluator.compute(txn);
-        assert(txnFees!=null);
+        long[] txnFees = FutureFeeEvaluator.threadFeesBuffer();
+        if ( !feeEvaluator.compute(txnFees, txn) ) {
+            logger.error("报单 "+order.getId()+" R:"+order.getRef()+" 成交 "+txn.getId()+" 无合约手续费数据");
+            return;
+        }
         OrderStateTuple orderOldState = order.getStateTuple();
         if ( !order.attachTransaction(txn, txnFees, timestamp) ) {
             if( logger.isErrorEnabled() ) {
@@ -679,6 +914,7 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
                 long closeProfit0 = position.getMoney(PosMoney.CloseProfit);
                 //更新持仓和资金
                 position.onTransaction(order, txn, txnFees, lastOrderMoney);
+                riskEngine.onPositionChanged(position);
                 long txnProfit2 = position.getMoney(PosMoney.CloseProfit)-closeProfit0;
                 //更新平仓利润
                 if ( txnProfit2!=0 ) {
@@ -705,7 +941,8 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
         if ( mdService!=null ) {
             subscriptions = mdService.getSubscriptions();
         }
-        if ( tradeService.getType()==TradeServiceType.Simulator ) {
+        if ( tradeService.getType()==TradeServiceType.Simulator || isReplayMode() ) {
+            //回放时使用记录的手续费率, 不使用交易日目录下可能已被修改的缓存文件
             String commissionsExchange = txnSession.syncLoadFeeEvaluator(subscriptions);
             FutureFeeEvaluator feeEvaluator = FutureFeeEvaluator.fromJson(brokerMarginRatio, (JsonObject)(new JsonParser()).parse(commissionsExchange));
             this.feeEvaluator = feeEvaluator;
@@ -715,6 +952,7 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
             if ( commissionsJson.exists() ) {
                 feeEvaluator = FutureFeeEvaluator.fromJson(brokerMarginRatio, (JsonObject)(new JsonParser()).parse(FileUtil.read(commissionsJson)));
                 logger.info("加载缓存 "+feeEvaluator.getInstruments().size()+" 合约手续费");
+                FileUtil.watchOn(commissionsJson, this);
             }else {
                 String commissionsExchange = txnSession.syncLoadFeeEvaluator(subscriptions);
                 File commissionsExchangeJson = new File(tradingWorkDir, id+".commissions-exchange.json");
@@ -723,14 +961,37 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
                 this.feeEvaluator = feeEvaluator;
                 this.brokerMarginRatio = feeEvaluator.getBrokerMarginRatio();
                 FileUtil.save(commissionsJson, feeEvaluator.toJson().toString());
+                FileUtil.watchOn(commissionsJson, this);
             }
         }
     }
 
+    /**
+     * 手续费文件修改后, 重新编译费率表并替换
+     */
+    @Override
+    public void onFileChanged(File file) {
+        try{
+            FutureFeeEvaluator feeEvaluator = FutureFeeEvaluator.fromJson(brokerMarginRatio, (JsonObject)(new JsonParser()).parse(FileUtil.read(file)));
+            this.feeEvaluator = feeEvaluator;
+            logger.info("重新加载 "+file+" "+feeEvaluator.getInstruments().size()+" 合约手续费");
+        }catch(Throwable t) {
+            logger.error("重新加载手续费文件 "+file+" 失败", t);
+        }
+    }
+
     private Map<Exchangeable, PositionImpl> loadPositions() throws Exception
+    {
+        return loadPositions(txnSession.syncQryPositions());
+    }
+
+    /**
+     * 从交易通道返回的持仓JSON创建持仓对象
+     */
+    private Map<Exchangeable, PositionImpl> loadPositions(String positionsJson) throws Exception
     {
         Map<Exchangeable, PositionImpl> positions = new HashMap<>();
-        JsonObject posInfos = (JsonObject)(new JsonParser()).parse(new StringReader(txnSession.syncQryPositions()));
+        JsonObject posInfos = (JsonObject)(new JsonParser()).parse(new StringReader(positionsJson));
         for(String posKey:posInfos.keySet()) {
             JsonObject posInfo = (JsonObject)posInfos.get(posKey);
             Exchangeable e = Exchangeable.fromString(posKey);
@@ -840,6 +1101,9 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
     }
 
     private void publishOrderStateChanged(Order order, OrderStateTuple lastStateTuple) {
+        if ( replaying ) {
+            return;
+        }
         OrderListener odrListener = order.getListener();
         try{
             if ( odrListener!=null ) {
@@ -861,6 +1125,9 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
     }
 
     private void publishTransaction(Order order, Transaction txn) {
+        if ( replaying ) {
+            return;
+        }
         OrderListener odrListener = order.getListener();
         try{
             if ( odrListener!=null ) {
@@ -961,12 +1228,555 @@ public class AccountImpl implements Account, TxnSessionListener, TradeConstants,
                 money = txnSession.syncQryAccounts();
                 //查询持仓
                 positions = loadPositions();
+                for(PositionImpl pos:positions.values()) {
+                    riskEngine.onPositionChanged(pos);
+                }
             }catch(Throwable t) {
                 logger.error("Reload asset info failed", t);
             }
         });
     }
 
+    /**
+     * 根据[journal]配置创建账户事件日志, 实盘缺省启用, 回测缺省不启用
+     */
+    private AccountJournal createJournal() {
+        //回放不读写实盘的账户日志
+        if ( isReplayMode() ) {
+            return null;
+        }
+        boolean enabled = tradeService.getType()==TradeServiceType.RealTime;
+        enabled = ConversionUtil.toBoolean(journalProps.getProperty("enabled"), enabled);
+        if ( !enabled ) {
+            return null;
+        }
+        int snapshotInterval = ConversionUtil.toInt(journalProps.getProperty("snapshotInterval", "1000"));
+        boolean fsync = ConversionUtil.toBoolean(journalProps.getProperty("fsync"), false);
+        return new AccountJournal(tradingWorkDir, id, snapshotInterval, fsync);
+    }
+
+    AccountJournal getJournal() {
+        return journal;
+    }
+
+    private boolean isReplayMode() {
+        return asyncEventService!=null && asyncEventService.isReplayMode();
+    }
+
+    /**
+     * 保存账户启动状态: 交易通道查询的资金, 持仓, 手续费率, 以及当日报单和OrderRef序列
+     *
+     * @param posInfos 本次初始化查询的持仓, 从日志恢复时为null, 重新查询
+     */
+    private void saveStartupRecord(File eventFile, String posInfos) {
+        try {
+            long[] brokerMoney = txnSession.syncQryAccounts();
+            if ( posInfos==null ) {
+                posInfos = txnSession.syncQryPositions();
+            }
+            JsonArray ordersJson = new JsonArray();
+            for(OrderImpl order:ordersById.values()) {
+                ordersJson.add(order.toJson());
+            }
+            int orderRefId = 0;
+            if ( tradeService.getOrderRefGen() instanceof OrderRefGenImpl ) {
+                orderRefId = ((OrderRefGenImpl)tradeService.getOrderRefGen()).getRefId(id);
+            }
+            AccountStartupRecord record = new AccountStartupRecord(brokerMoney, JsonParser.parseString(posInfos).getAsJsonObject(),
+                    feeEvaluator.toJson().getAsJsonObject(), ordersJson, orderRefId);
+            File file = AccountStartupRecord.getFile(eventFile, id);
+            record.save(file);
+            logger.info("Account "+getId()+" startup record is saved to "+file+", "+ordersJson.size()+" orders, order ref "+orderRefId);
+        }catch(Throwable t) {
+            logger.error("Account "+getId()+" save startup record failed", t);
+        }
+    }
+
+    /**
+     * 回放时从记录的启动状态恢复报单和OrderRef序列, 资金, 持仓和手续费率由 CtpReplayTxnSession 的查询接口返回
+     */
+    private void restoreStartupRecord() throws IOException {
+        File file = AccountStartupRecord.getFile(asyncEventService.getReplayFile(), id);
+        AccountStartupRecord record = AccountStartupRecord.load(file);
+        if ( record==null ) {
+            logger.warn("Account "+getId()+" startup record "+file+" doesn't exist, replay starts without orders");
+            return;
+        }
+        orderLock.lock();
+        try {
+            JsonArray ordersJson = record.getOrders();
+            for(int i=0;i<ordersJson.size();i++) {
+                OrderImpl order = new OrderImpl(repository, ordersJson.get(i).getAsJsonObject());
+                ordersById.put(order.getId(), order);
+                ordersByRef.put(order.getRef(), order);
+                for(Transaction txn:order.getTransactions()) {
+                    txnsById.put(txn.getId(), (TransactionImpl)txn);
+                }
+            }
+        }finally {
+            orderLock.unlock();
+        }
+        if ( tradeService.getOrderRefGen() instanceof OrderRefGenImpl ) {
+            ((OrderRefGenImpl)tradeService.getOrderRefGen()).setRefId(id, record.getOrderRefId());
+        }
+        logger.info("Account "+getId()+" restored "+record.getOrders().size()+" orders, order ref "+record.getOrderRefId()+" from startup record "+file);
+    }
+
+    /**
+     * 释放eventLock, 最外层释放时如果需要则生成快照
+     */
+    private void unlockEvent() {
+        try {
+            if ( snapshotPending && eventLock.getHoldCount()==1 && journal!=null ) {
+                takeSnapshot();
+            }
+        }finally {
+            eventLock.unlock();
+        }
+    }
+
+    private void endJournalRecord() throws IOException {
+        if ( journal.endRecord() ) {
+            snapshotPending = true;
+        }
+    }
+
+    /**
+     * 日志写入失败不影响交易, 停止写日志, 删除快照避免下次从不完整的日志恢复
+     */
+    private void journalFailed(Throwable t) {
+        logger.error("Account "+getId()+" journal write failed, journal is disabled", t);
+        AccountJournal journal = this.journal;
+        this.journal = null;
+        if ( journal!=null ) {
+            journal.close();
+            journal.getSnapshotFile().delete();
+        }
+    }
+
+    private void journalOrderCreated(OrderImpl order, OrderBuilder builder, long[] localOrderMoney) {
+        try{
+            DataOutput out = journal.beginRecord(AccountJournal.REC_ORDER_CREATED);
+            out.writeUTF(order.getId());
+            out.writeUTF(order.getRef());
+            out.writeUTF(order.getInstrument().uniqueId());
+            out.writeByte(order.getDirection().ordinal());
+            out.writeByte(order.getPriceType().ordinal());
+            out.writeByte(order.getOffsetFlags().ordinal());
+            out.writeByte(order.getVolumeCondition().ordinal());
+            out.writeLong(order.getLimitPrice());
+            out.writeInt(order.getVolume(OdrVolume.ReqVolume));
+            writeAttrs(out, (Map)builder.getAttrs());
+            out.writeLong(localOrderMoney[OdrMoney.LocalFrozenMargin.ordinal()]);
+            out.writeLong(localOrderMoney[OdrMoney.LocalFrozenCommission.ordinal()]);
+            out.writeLong(localOrderMoney[OdrMoney.PriceCandidate.ordinal()]);
+            endJournalRecord();
+        }catch(Throwable t) {
+            journalFailed(t);
+        }
+    }
+
+    /**
+     * 交易通道发送报单时设置的属性, 例如CTP FrontID/SessionID, 撤单需要
+     */
+    private void journalOrderAttrs(OrderImpl order) {
+        Map<String, String> attrs = new HashMap<>();
+        for(String attr:new String[] {Order.ODRATR_CTP_FRONT_ID, Order.ODRATR_CTP_SESSION_ID, Order.ODRATR_CTP_SYS_ID}) {
+            String value = order.getAttr(attr);
+            if ( value!=null ) {
+                attrs.put(attr, value);
+            }
+        }
+        if ( attrs.isEmpty() ) {
+            return;
+        }
+        try{
+            DataOutput out = journal.beginRecord(AccountJournal.REC_ORDER_ATTRS);
+            out.writeUTF(order.getId());
+            writeAttrs(out, attrs);
+            endJournalRecord();
+        }catch(Throwable t) {
+            journalFailed(t);
+        }
+    }
+
+    private void journalOrderState(Order order, OrderStateTuple newState, Map<String, String> attrs) {
+        try{
+            DataOutput out = journal.beginRecord(AccountJournal.REC_ORDER_STATE);
+            out.writeUTF(order.getId());
+            out.writeByte(newState.getState().ordinal());
+            out.writeByte(newState.getSubmitState().ordinal());
+            out.writeLong(newState.getTimestamp());
+            AccountJournal.writeString(out, newState.getStateMessage());
+            writeAttrs(out, attrs);
+            endJournalRecord();
+        }catch(Throwable t) {
+            journalFailed(t);
+        }
+    }
+
+    private void journalOrderModified(OrderImpl order, long limitPrice) {
+        try{
+            DataOutput out = journal.beginRecord(AccountJournal.REC_ORDER_MODIFIED);
+            out.writeUTF(order.getId());
+            out.writeLong(limitPrice);
+            endJournalRecord();
+        }catch(Throwable t) {
+            journalFailed(t);
+        }
+    }
+
+    private void journalTransaction(TransactionImpl txn, String orderRef, long timestamp) {
+        try{
+            DataOutput out = journal.beginRecord(AccountJournal.REC_TRANSACTION);
+            out.writeUTF(txn.getId());
+            out.writeUTF(orderRef);
+            out.writeUTF(txn.getInstrument().uniqueId());
+            out.writeByte(txn.getDirection().ordinal());
+            out.writeByte(txn.getOffsetFlags().ordinal());
+            out.writeLong(txn.getPrice());
+            out.writeInt(txn.getVolume());
+            out.writeLong(txn.getTime());
+            AccountJournal.writeString(out, ConversionUtil.toString(txn.getTxnData()));
+            out.writeLong(timestamp);
+            endJournalRecord();
+        }catch(Throwable t) {
+            journalFailed(t);
+        }
+    }
+
+    private static void writeAttrs(DataOutput out, Map<String, String> attrs) throws IOException {
+        if ( attrs==null ) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(attrs.size());
+        for(Map.Entry<String, String> entry:attrs.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readAttrs(DataInput in) throws IOException {
+        int count = in.readInt();
+        if ( count==0 ) {
+            return null;
+        }
+        Map<String, String> attrs = new HashMap<>();
+        for(int i=0;i<count;i++) {
+            attrs.put(in.readUTF(), in.readUTF());
+        }
+        return attrs;
+    }
+
+    /**
+     * 生成账户快照, 之后日志重新开始
+     */
+    private void takeSnapshot() {
+        eventLock.lock();
+        try {
+            snapshotPending = false;
+            AccountJournal journal = this.journal;
+            if ( journal!=null ) {
+                journal.writeSnapshot((out)->{
+                    writeSnapshot(out);
+                });
+            }
+        }catch(Throwable t) {
+            journalFailed(t);
+        }finally {
+            eventLock.unlock();
+        }
+    }
+
+    private void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(money.length);
+        for(int i=0;i<money.length;i++) {
+            out.writeLong(money[i]);
+        }
+        out.writeInt(txnsById.size());
+        for(TransactionImpl txn:txnsById.values()) {
+            txn.writeSnapshot(out);
+        }
+        //先保存报单列表中的报单, 再保存其它从BORepository恢复的报单
+        Set<String> orderIds = new HashSet<>();
+        out.writeInt(ordersById.size());
+        for(OrderImpl order:orders) {
+            orderIds.add(order.getId());
+            out.writeBoolean(true);
+            order.writeSnapshot(out);
+        }
+        for(OrderImpl order:ordersById.values()) {
+            if ( !orderIds.contains(order.getId()) ) {
+                out.writeBoolean(false);
+                order.writeSnapshot(out);
+            }
+        }
+        out.writeInt(positions.size());
+        for(PositionImpl pos:positions.values()) {
+            pos.writeSnapshot(out);
+        }
+        out.writeInt(cancelCounts.size());
+        for(Map.Entry<Exchangeable, AtomicInteger> entry:cancelCounts.entrySet()) {
+            out.writeUTF(entry.getKey().uniqueId());
+            out.writeInt(entry.getValue().get());
+        }
+    }
+
+    private void restoreSnapshot(DataInput in) throws IOException {
+        LocalDate tradingDay = mtService.getTradingDay();
+        long[] money = new long[this.money.length];
+        int moneyCount = in.readInt();
+        for(int i=0;i<moneyCount;i++) {
+            long v = in.readLong();
+            if ( i<money.length ) {
+                money[i] = v;
+            }
+        }
+        this.money = money;
+        txnsById.clear();
+        int txnCount = in.readInt();
+        for(int i=0;i<txnCount;i++) {
+            TransactionImpl txn = TransactionImpl.readSnapshot(in, id, tradingDay);
+            txnsById.put(txn.getId(), txn);
+        }
+        ordersById.clear();
+        ordersByRef.clear();
+        orders.clear();
+        int orderCount = in.readInt();
+        for(int i=0;i<orderCount;i++) {
+            boolean inOrderList = in.readBoolean();
+            OrderImpl order = OrderImpl.readSnapshot(in, id, tradingDay, txnsById);
+            ordersById.put(order.getId(), order);
+            ordersByRef.put(order.getRef(), order);
+            if ( inOrderList ) {
+                orders.add(order);
+            }
+        }
+        Map<Exchangeable, PositionImpl> positions = new HashMap<>();
+        int posCount = in.readInt();
+        for(int i=0;i<posCount;i++) {
+            PositionImpl pos = PositionImpl.readSnapshot(this, in, ordersByRef);
+            positions.put(pos.getInstrument(), pos);
+        }
+        this.positions = positions;
+        cancelCounts.clear();
+        int cancelCount = in.readInt();
+        for(int i=0;i<cancelCount;i++) {
+            cancelCounts.put(Future.fromString(in.readUTF()), new AtomicInteger(in.readInt()));
+        }
+    }
+
+    /**
+     * 重放一条日志记录, 与实际处理走相同的代码路径
+     */
+    private void replayRecord(byte recordType, DataInput in) throws IOException {
+        switch(recordType) {
+        case AccountJournal.REC_ORDER_CREATED:
+        {
+            String orderId = in.readUTF();
+            String orderRef = in.readUTF();
+            OrderBuilder builder = new OrderBuilder()
+                .setExchagneable(Future.fromString(in.readUTF()))
+                .setDirection(OrderDirection.values()[in.readByte()])
+                .setPriceType(OrderPriceType.values()[in.readByte()])
+                .setOffsetFlag(OrderOffsetFlag.values()[in.readByte()])
+                .setVolumeCondition(OrderVolumeCondition.values()[in.readByte()])
+                .setLimitPrice(in.readLong())
+                .setVolume(in.readInt());
+            Map<String, String> attrs = readAttrs(in);
+            if ( attrs!=null ) {
+                for(Map.Entry<String, String> entry:attrs.entrySet()) {
+                    builder.setAttr(entry.getKey(), entry.getValue());
+                }
+            }
+            long[] localOrderMoney = new long[OdrMoney.values().length];
+            localOrderMoney[OdrMoney.LocalFrozenMargin.ordinal()] = in.readLong();
+            localOrderMoney[OdrMoney.LocalFrozenCommission.ordinal()] = in.readLong();
+            localOrderMoney[OdrMoney.PriceCandidate.ordinal()] = in.readLong();
+            OrderImpl order = new OrderImpl(orderId, this, mtService.getTradingDay(), orderRef, builder, null);
+            try {
+                applyOrderCreated(order, localOrderMoney);
+            }catch(AppException e) {
+                throw new IOException(e);
+            }
+        }
+        break;
+        case AccountJournal.REC_ORDER_ATTRS:
+        {
+            OrderImpl order = ordersById.get(in.readUTF());
+            Map<String, String> attrs = readAttrs(in);
+            if ( order!=null && attrs!=null ) {
+                for(Map.Entry<String, String> entry:attrs.entrySet()) {
+                    order.setAttr(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        break;
+        case AccountJournal.REC_ORDER_STATE:
+        {
+            OrderImpl order = ordersById.get(in.readUTF());
+            OrderState state = OrderState.values()[in.readByte()];
+            OrderSubmitState submitState = OrderSubmitState.values()[in.readByte()];
+            long timestamp = in.readLong();
+            String stateMessage = AccountJournal.readString(in);
+            Map<String, String> attrs = readAttrs(in);
+            if ( order!=null ) {
+                applyOrderStateChanged(order, new OrderStateTuple(state, submitState, timestamp, stateMessage), attrs);
+            }
+        }
+        break;
+        case AccountJournal.REC_ORDER_MODIFIED:
+        {
+            OrderImpl order = ordersById.get(in.readUTF());
+            long limitPrice = in.readLong();
+            if ( order!=null ) {
+                order.setLimitPrice(limitPrice);
+            }
+        }
+        break;
+        case AccountJournal.REC_TRANSACTION:
+        {
+            String txnId = in.readUTF();
+            String orderRef = in.readUTF();
+            Exchangeable instrument = Future.fromString(in.readUTF());
+            OrderDirection direction = OrderDirection.values()[in.readByte()];
+            OrderOffsetFlag offsetFlag = OrderOffsetFlag.values()[in.readByte()];
+            long price = in.readLong();
+            int volume = in.readInt();
+            long txnTime = in.readLong();
+            String txnData = AccountJournal.readString(in);
+            long timestamp = in.readLong();
+            OrderImpl order = ordersByRef.get(orderRef);
+            if ( order!=null ) {
+                TransactionImpl txn = new TransactionImpl(txnId, getId(), instrument, mtService.getTradingDay(), order.getId(), direction, offsetFlag, price, volume, txnTime, txnData);
+                applyTransaction(order, txn, timestamp);
+            }
+        }
+        break;
+        case AccountJournal.REC_ORDER_FROM_RESPONSE:
+        {
+            String orderId = in.readUTF();
+            long timestamp = in.readLong();
+            JsonObject orderInfo = (JsonObject)JsonParser.parseString(in.readUTF());
+            if ( !ordersByRef.containsKey(orderInfo.get("ref").getAsString()) ) {
+                applyOrderFromResponse(orderId, timestamp, orderInfo);
+            }
+        }
+        break;
+        case AccountJournal.REC_ACCOUNT_TRANSFER:
+        {
+            AccountTransferAction action = AccountTransferAction.values()[in.readByte()];
+            applyAccountTransfer(action, in.readLong());
+        }
+        break;
+        default:
+            throw new IOException("Unsupported journal record type: "+recordType);
+        }
+    }
+
+    /**
+     * 从本地快照和日志恢复账户资金, 持仓, 报单和成交
+     *
+     * @return true 如果恢复成功
+     */
+    private boolean recoverFromJournal() {
+        long t0 = System.currentTimeMillis();
+        eventLock.lock();
+        replaying = true;
+        try {
+            int replayed = journal.recover(new AccountJournal.Replayer() {
+                @Override
+                public void restoreSnapshot(DataInput in) throws IOException {
+                    AccountImpl.this.restoreSnapshot(in);
+                }
+
+                @Override
+                public void replay(byte recordType, DataInput in) throws IOException {
+                    replayRecord(recordType, in);
+                }
+            });
+            if ( replayed<0 ) {
+                return false;
+            }
+            for(PositionImpl pos:positions.values()) {
+                riskEngine.onPositionChanged(pos);
+            }
+            updateAccountMoneyOnMarket();
+            long t1 = System.currentTimeMillis();
+            logger.info("Account "+getId()+" recovered from journal, "+ordersById.size()+" orders, "+txnsById.size()+" txns, "+replayed+" records replayed in "+(t1-t0)+" ms");
+            return true;
+        }catch(Throwable t) {
+            logger.error("Account "+getId()+" recover from journal failed", t);
+            ordersById.clear();
+            ordersByRef.clear();
+            orders.clear();
+            txnsById.clear();
+            cancelCounts.clear();
+            positions = new HashMap<>();
+            money = new long[AccMoney.values().length];
+            return false;
+        }finally {
+            replaying = false;
+            eventLock.unlock();
+        }
+    }
+
+    /**
+     * 日志恢复后与交易通道对账: 持仓不一致时以交易通道为准并重新生成快照, 在途报单按交易通道的最终状态更新
+     */
+    private void reconcileWithBroker() {
+        try{
+            long[] brokerMoney = txnSession.syncQryAccounts();
+            Map<Exchangeable, PositionImpl> brokerPositions = loadPositions();
+            JsonArray brokerOrders = (JsonArray)JsonParser.parseString(txnSession.syncQryOrders());
+            List<String> diffs = new ArrayList<>();
+            eventLock.lock();
+            try {
+                Set<Exchangeable> instruments = new HashSet<>(positions.keySet());
+                instruments.addAll(brokerPositions.keySet());
+                for(Exchangeable e:instruments) {
+                    PositionImpl pos = positions.get(e), brokerPos = brokerPositions.get(e);
+                    for(PosVolume vol:new PosVolume[] {PosVolume.LongPosition, PosVolume.ShortPosition}) {
+                        int localVol = pos!=null?pos.getVolume(vol):0;
+                        int brokerVol = brokerPos!=null?brokerPos.getVolume(vol):0;
+                        if ( localVol!=brokerVol ) {
+                            diffs.add(e+" "+vol+" local "+localVol+" broker "+brokerVol);
+                        }
+                    }
+                }
+                if ( !diffs.isEmpty() ) {
+                    logger.warn("Account "+getId()+" journal positions mismatch with broker, reload from broker: "+diffs);
+                    money = brokerMoney;
+                    positions = brokerPositions;
+                    for(PositionImpl pos:positions.values()) {
+                        riskEngine.onPositionChanged(pos);
+                    }
+                    snapshotPending = true;
+                }
+                for(int i=0;i<brokerOrders.size();i++) {
+                    JsonObject brokerOrder = brokerOrders.get(i).getAsJsonObject();
+                    OrderImpl order = ordersByRef.get(brokerOrder.get("ref").getAsString());
+                    if ( order==null || order.getStateTuple().getState().isDone() || !brokerOrder.has("lastState") ) {
+                        continue;
+                    }
+                    OrderStateTuple brokerState = new OrderStateTuple(brokerOrder.getAsJsonObject("lastState"));
+                    if ( brokerState.getState().isDone() && brokerState.getState()!=OrderState.Complete ) {
+                        logger.warn("Account "+getId()+" order "+order.getRef()+" is "+brokerState.getState()+" in broker");
+                        onOrderStateChanged(order, brokerState, null);
+                    }
+                }
+            }finally {
+                unlockEvent();
+            }
+            if ( diffs.isEmpty() ) {
+                logger.info("Account "+getId()+" journal positions match broker");
+            }
+        }catch(Throwable t) {
+            logger.error("Account "+getId()+" reconcile with broker failed", t);
+        }
+    }
+
     private void incrementCancelCount(Exchangeable e) {
         AtomicInteger value = cancelCounts.get(e);
         if ( value==null ) {
@@ -0,0 +1,262 @@
+package trader.service.trade;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import trader.common.util.ChecksumFileUtil;
+
+/**
+ * 账户事件日志: 报单创建, 报单状态变化, 成交等事件以二进制记录追加到日志文件, 并定期生成账户快照.
+ * <BR>重启时从快照加载, 再重放快照之后的日志记录, 不需要通过交易通道重新查询.
+ * <P>文件格式:
+ * <LI>快照 ACCOUNT_ID.snapshot: MAGIC, VERSION, 快照对应的记录序号, 内容长度, 内容CRC32, 内容
+ * <LI>日志 ACCOUNT_ID.journal: 连续的记录, 每条记录: 内容长度, 内容CRC32, 记录序号, 类型, 内容
+ * <P>日志末尾不完整或校验失败的记录(进程在写入过程中退出)在恢复时被截断丢弃.
+ * 快照先写入临时文件后原子替换, 替换后才截断日志, 日志中序号不大于快照序号的记录在恢复时忽略.
+ */
+public class AccountJournal implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AccountJournal.class);
+
+    private static final int SNAPSHOT_MAGIC = 0X54534E50; //TSNP
+    private static final int SNAPSHOT_VERSION = 1;
+    /**
+     * 记录头: 长度(int)+CRC(int)
+     */
+    private static final int RECORD_HEAD_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16*1024*1024;
+
+    public static final byte REC_ORDER_CREATED = 1;
+    public static final byte REC_ORDER_STATE = 2;
+    public static final byte REC_TRANSACTION = 3;
+    public static final byte REC_ORDER_FROM_RESPONSE = 4;
+    public static final byte REC_ORDER_MODIFIED = 5;
+    public static final byte REC_ACCOUNT_TRANSFER = 6;
+    public static final byte REC_ORDER_ATTRS = 7;
+
+    /**
+     * 快照写入接口
+     */
+    public static interface SnapshotWriter {
+        public void writeSnapshot(DataOutput out) throws IOException;
+    }
+
+    /**
+     * 恢复时的快照加载和记录重放接口
+     */
+    public static interface Replayer {
+        public void restoreSnapshot(DataInput in) throws IOException;
+
+        public void replay(byte recordType, DataInput in) throws IOException;
+    }
+
+    private File journalFile;
+    private File snapshotFile;
+    private int snapshotInterval;
+    private boolean fsync;
+    private FileChannel channel;
+    private long seq;
+    private int recordsSinceSnapshot;
+    private RecordBuffer recordBuffer = new RecordBuffer();
+    private DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+    private CRC32 crc = new CRC32();
+
+    public AccountJournal(File dir, String accountId, int snapshotInterval, boolean fsync) {
+        this.journalFile = new File(dir, accountId+".journal");
+        this.snapshotFile = new File(dir, accountId+".snapshot");
+        this.snapshotInterval = snapshotInterval;
+        this.fsync = fsync;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * 最后一条记录的序号
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    public boolean hasSnapshot() {
+        return snapshotFile.exists();
+    }
+
+    /**
+     * 从快照和日志恢复. 日志末尾不完整的记录会被截断.
+     *
+     * @return 重放的记录数, -1 代表没有快照无法恢复
+     */
+    public int recover(Replayer replayer) throws IOException {
+        if ( !snapshotFile.exists() ) {
+            return -1;
+        }
+        long[] snapshotSeq = new long[1];
+        byte[] snapshot = ChecksumFileUtil.read(snapshotFile, SNAPSHOT_MAGIC, SNAPSHOT_VERSION, (in)->{
+            snapshotSeq[0] = in.readLong();
+        });
+        replayer.restoreSnapshot(new DataInputStream(new ByteArrayInputStream(snapshot)));
+        seq = snapshotSeq[0];
+        int replayed = 0;
+        long validLength = 0;
+        if ( journalFile.exists() ) {
+            byte[] data = Files.readAllBytes(journalFile.toPath());
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while( buf.remaining()>=RECORD_HEAD_SIZE ) {
+                int pos = buf.position();
+                int len = buf.getInt();
+                int checksum = buf.getInt();
+                if ( len<9 || len>MAX_RECORD_SIZE || len>buf.remaining() || checksum!=checksum(data, pos+RECORD_HEAD_SIZE, len) ) {
+                    break;
+                }
+                long recSeq = buf.getLong();
+                byte recType = buf.get();
+                int bodyLen = len-9;
+                if ( recSeq>seq ) {
+                    replayer.replay(recType, new DataInputStream(new ByteArrayInputStream(data, buf.position(), bodyLen)));
+                    seq = recSeq;
+                    replayed++;
+                }
+                buf.position(buf.position()+bodyLen);
+                validLength = buf.position();
+            }
+            if ( validLength<data.length ) {
+                logger.warn("Journal "+journalFile+" truncated from "+data.length+" to "+validLength);
+            }
+        }
+        openChannel(validLength);
+        recordsSinceSnapshot = replayed;
+        return replayed;
+    }
+
+    /**
+     * 开始一条新记录, 返回的DataOutput在 endRecord() 前有效. 调用者需要保证串行访问
+     */
+    public DataOutput beginRecord(byte recordType) throws IOException {
+        recordBuffer.reset();
+        recordOutput.writeInt(0);
+        recordOutput.writeInt(0);
+        recordOutput.writeLong(seq+1);
+        recordOutput.writeByte(recordType);
+        return recordOutput;
+    }
+
+    /**
+     * 完成记录并写入文件
+     *
+     * @return true 如果需要生成新的快照
+     */
+    public boolean endRecord() throws IOException {
+        if ( channel==null ) {
+            openChannel(journalFile.exists()?journalFile.length():0);
+        }
+        byte[] data = recordBuffer.getBuffer();
+        int total = recordBuffer.size();
+        int len = total-RECORD_HEAD_SIZE;
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, total);
+        buf.putInt(0, len);
+        buf.putInt(4, checksum(data, RECORD_HEAD_SIZE, len));
+        while(buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        if ( fsync ) {
+            channel.force(false);
+        }
+        seq++;
+        recordsSinceSnapshot++;
+        return snapshotInterval>0 && recordsSinceSnapshot>=snapshotInterval;
+    }
+
+    /**
+     * 生成快照: 先写入临时文件再原子替换, 之后截断日志
+     */
+    public void writeSnapshot(SnapshotWriter writer) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64*1024);
+        writer.writeSnapshot(new DataOutputStream(body));
+        byte[] data = body.toByteArray();
+
+        long snapshotSeq = seq;
+        ChecksumFileUtil.write(snapshotFile, SNAPSHOT_MAGIC, SNAPSHOT_VERSION, (out)->{
+            out.writeLong(snapshotSeq);
+        }, data);
+        if ( channel==null ) {
+            openChannel(0);
+        }
+        channel.truncate(0);
+        channel.position(0);
+        recordsSinceSnapshot = 0;
+    }
+
+    @Override
+    public void close() {
+        if ( channel!=null ) {
+            try{
+                channel.close();
+            }catch(IOException e) {}
+            channel = null;
+        }
+    }
+
+    private void openChannel(long validLength) throws IOException {
+        journalFile.getParentFile().mkdirs();
+        @SuppressWarnings("resource")
+        FileChannel channel = new RandomAccessFile(journalFile, "rw").getChannel();
+        if ( channel.size()>validLength ) {
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+        this.channel = channel;
+    }
+
+    private int checksum(byte[] data, int offset, int len) {
+        crc.reset();
+        crc.update(data, offset, len);
+        return (int)crc.getValue();
+    }
+
+    public static void writeString(DataOutput out, String str) throws IOException {
+        out.writeBoolean(str!=null);
+        if ( str!=null ) {
+            out.writeUTF(str);
+        }
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        if ( in.readBoolean() ) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    /**
+     * 可复用的记录缓冲区
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer(){
+            super(512);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package trader.service.trade;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import trader.common.util.ConversionUtil;
+import trader.common.util.FileUtil;
+import trader.common.util.JsonEnabled;
+
+/**
+ * 账户启动时的状态: 交易通道查询的资金, 持仓, 手续费率, 以及当日报单和OrderRef序列.
+ * <BR>记录异步事件时保存在事件记录文件旁边, 回放时 CtpReplayTxnSession 从这里返回查询结果, 账户从这里恢复报单和OrderRef序列,
+ * 回放从实盘启动时的状态开始, 而不是从空仓开始
+ */
+public class AccountStartupRecord implements JsonEnabled, TradeConstants {
+
+    private long[] money;
+    private JsonObject positions;
+    private JsonObject feeEvaluator;
+    private JsonArray orders;
+    private int orderRefId;
+
+    public AccountStartupRecord(long[] money, JsonObject positions, JsonObject feeEvaluator, JsonArray orders, int orderRefId) {
+        this.money = money;
+        this.positions = positions;
+        this.feeEvaluator = feeEvaluator;
+        this.orders = orders;
+        this.orderRefId = orderRefId;
+    }
+
+    public AccountStartupRecord(JsonObject json) {
+        money = TradeConstants.json2accMoney(json.getAsJsonObject("money"));
+        positions = json.getAsJsonObject("positions");
+        feeEvaluator = json.getAsJsonObject("feeEvaluator");
+        orders = json.getAsJsonArray("orders");
+        orderRefId = ConversionUtil.toInt(json.get("orderRefId"), true);
+    }
+
+    /**
+     * 资金, syncQryAccounts() 的结果
+     */
+    public long[] getMoney() {
+        return money;
+    }
+
+    /**
+     * 持仓, syncQryPositions() 的结果
+     */
+    public JsonObject getPositions() {
+        return positions;
+    }
+
+    /**
+     * 手续费率, syncLoadFeeEvaluator() 的结果
+     */
+    public JsonObject getFeeEvaluator() {
+        return feeEvaluator;
+    }
+
+    /**
+     * 启动时已有的当日报单, OrderImpl.toJson() 格式
+     */
+    public JsonArray getOrders() {
+        return orders;
+    }
+
+    /**
+     * 启动时账户的OrderRef序列值
+     */
+    public int getOrderRefId() {
+        return orderRefId;
+    }
+
+    @Override
+    public JsonElement toJson() {
+        JsonObject json = new JsonObject();
+        json.add("money", TradeConstants.accMoney2json(money));
+        json.add("positions", positions);
+        json.add("feeEvaluator", feeEvaluator);
+        json.add("orders", orders);
+        json.addProperty("orderRefId", orderRefId);
+        return json;
+    }
+
+    public void save(File file) throws IOException {
+        FileUtil.save(file, toJson().toString());
+    }
+
+    /**
+     * 事件记录文件 EVENT_FILE 对应的账户启动状态文件: EVENT_FILE.ACCOUNT_ID.startup.json
+     */
+    public static File getFile(File eventFile, String accountId) {
+        return new File(eventFile.getParentFile(), eventFile.getName()+"."+accountId+".startup.json");
+    }
+
+    /**
+     * 加载账户启动状态, 文件不存在返回null
+     */
+    public static AccountStartupRecord load(File file) throws IOException {
+        if ( !file.exists() ) {
+            return null;
+        }
+        return new AccountStartupRecord(JsonParser.parseString(FileUtil.read(file)).getAsJsonObject());
+    }
+
+}
@@ -15,6 +15,8 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
 import trader.common.exchangeable.Exchangeable;
 import trader.common.util.ConversionUtil;
 import trader.common.util.JsonEnabled;
@@ -120,8 +122,33 @@ public class FutureFeeEvaluator implements TxnFeeEvaluator, TradeConstants {
 
     }
 
+    private static final int MARGIN_COLS = MarginRatio.values().length;
+    private static final int COMMISSION_COLS = CommissionRatio.values().length;
+    /**
+     * 开平标志对应的手续费率起始列: 按金额, 按手数
+     */
+    private static final int[] COMMISSION_COLUMNS = new int[OrderOffsetFlag.values().length];
+    static {
+        COMMISSION_COLUMNS[OrderOffsetFlag.OPEN.ordinal()] = CommissionRatio.OpenByMoney.ordinal();
+        COMMISSION_COLUMNS[OrderOffsetFlag.CLOSE.ordinal()] = CommissionRatio.CloseByMoney.ordinal();
+        COMMISSION_COLUMNS[OrderOffsetFlag.FORCE_CLOSE.ordinal()] = CommissionRatio.CloseByMoney.ordinal();
+        COMMISSION_COLUMNS[OrderOffsetFlag.CLOSE_YESTERDAY.ordinal()] = CommissionRatio.CloseByMoney.ordinal();
+        COMMISSION_COLUMNS[OrderOffsetFlag.CLOSE_TODAY.ordinal()] = CommissionRatio.CloseTodayByMoney.ordinal();
+    }
+
+    private static final ThreadLocal<long[]> feesBuffer = ThreadLocal.withInitial(()->{
+        return new long[3];
+    });
+
     private Map<Exchangeable, FutureFeeInfo> feeInfos;
     private Properties brokerMarginRatio;
+    /**
+     * 合约在费率表中的行号
+     */
+    private Object2IntOpenHashMap<Exchangeable> feeIndexes;
+    private int[] volumeMultiples;
+    private double[] marginRatios;
+    private double[] commissionRatios;
 
     public FutureFeeEvaluator(Properties brokerMarginRatio, Map<Exchangeable, FutureFeeInfo> feeInfos)
     {
@@ -137,6 +164,35 @@ public class FutureFeeEvaluator implements TxnFeeEvaluator, TradeConstants {
                 logger.error("Exchangeable "+e+" volumeMultiple "+(e.getVolumeMutiplier())+" is WRONG, expected value is "+feeVolumeMutiplier);
             }
         }
+        compileFeeTable();
+    }
+
+    /**
+     * 将每个合约的费率编译为连续的数组, 计算时只需要一次哈希查找
+     */
+    private void compileFeeTable() {
+        int count = feeInfos.size();
+        feeIndexes = new Object2IntOpenHashMap<>(count);
+        feeIndexes.defaultReturnValue(-1);
+        volumeMultiples = new int[count];
+        marginRatios = new double[count*MARGIN_COLS];
+        commissionRatios = new double[count*COMMISSION_COLS];
+        int idx=0;
+        for(Map.Entry<Exchangeable, FutureFeeInfo> entry:feeInfos.entrySet()) {
+            FutureFeeInfo feeInfo = entry.getValue();
+            feeIndexes.put(entry.getKey(), idx);
+            volumeMultiples[idx] = feeInfo.volumeMultiple;
+            System.arraycopy(feeInfo.marginRatios, 0, marginRatios, idx*MARGIN_COLS, Math.min(MARGIN_COLS, feeInfo.marginRatios.length));
+            System.arraycopy(feeInfo.commissionRatios, 0, commissionRatios, idx*COMMISSION_COLS, Math.min(COMMISSION_COLS, feeInfo.commissionRatios.length));
+            idx++;
+        }
+    }
+
+    /**
+     * 返回当前线程可重复使用的费用计算缓冲区, 长度为3
+     */
+    public static long[] threadFeesBuffer() {
+        return feesBuffer.get();
     }
 
     @Override
@@ -163,84 +219,82 @@ public class FutureFeeEvaluator implements TxnFeeEvaluator, TradeConstants {
         return compute(txn.getInstrument(), txn.getVolume(), txn.getPrice(), txn.getDirection(), txn.getOffsetFlags());
     }
 
+    @Override
+    public boolean compute(long[] result, Transaction txn) {
+        return compute(result, txn.getInstrument(), txn.getVolume(), txn.getPrice(), txn.getDirection(), txn.getOffsetFlags());
+    }
+
     @Override
     public long[] compute(Exchangeable e, int volume, long price, OrderDirection direction, OrderOffsetFlag offsetFlag) {
-        FutureFeeInfo feeInfo = feeInfos.get(e);
-        if ( feeInfo==null ) {
-            logger.error("No fee info for "+e);
+        long[] result = new long[3];
+        if ( !compute(result, e, volume, price, direction, offsetFlag) ) {
             return null;
         }
-        long turnover = volume*price*feeInfo.getVolumeMultiple();
-        long margin=0, commission=0;
-        {//保证金
-            if ( direction==OrderDirection.Buy ) {
-                double longByMoney = feeInfo.marginRatios[MarginRatio.LongByMoney.ordinal()];
-                double longByVolume = feeInfo.marginRatios[MarginRatio.LongByVolume.ordinal()];
-                long marginByMoney = (long)(longByMoney*turnover);
-                margin = marginByMoney;
-            }else {
-                double shortByMoney = feeInfo.marginRatios[MarginRatio.ShortByMoney.ordinal()];
-                double shortByVolume = feeInfo.marginRatios[MarginRatio.ShortByVolume.ordinal()];
-                long marginByMoney = (long)(shortByMoney*turnover);
-                margin = marginByMoney;
-            }
-        }
-        {//手续费
-            switch(offsetFlag) {
-            case OPEN:
-                long openMoney = (long)( turnover*feeInfo.commissionRatios[CommissionRatio.OpenByMoney.ordinal()] );
-                long openVolume = PriceUtil.price2long( volume*feeInfo.commissionRatios[CommissionRatio.OpenByVolume.ordinal()] );
-                commission = (openMoney+openVolume);
-                break;
-            case CLOSE:
-            case CLOSE_YESTERDAY:
-            case FORCE_CLOSE:
-                long closeMoney = (long)( turnover*feeInfo.commissionRatios[CommissionRatio.CloseByMoney.ordinal()] );
-                long closeVolume = PriceUtil.price2long( volume*feeInfo.commissionRatios[CommissionRatio.CloseByVolume.ordinal()] );
-                commission = closeMoney+closeVolume;
-                break;
-            case CLOSE_TODAY:
-                long closeTodayMoney = (long)( turnover*feeInfo.commissionRatios[CommissionRatio.CloseTodayByMoney.ordinal()] );
-                long closeTodayVolume = PriceUtil.price2long( volume*feeInfo.commissionRatios[CommissionRatio.CloseTodayByVolume.ordinal()] );
-                commission = closeTodayMoney+closeTodayVolume;
-                break;
-            }
+        return result;
+    }
+
+    @Override
+    public boolean compute(long[] result, Exchangeable e, int volume, long price, OrderDirection direction, OrderOffsetFlag offsetFlag) {
+        int idx = feeIndexes.getInt(e);
+        if ( idx<0 ) {
+            logger.error("No fee info for "+e);
+            return false;
         }
-        margin = PriceUtil.round(margin);
-        commission = PriceUtil.round(commission);
-        turnover = PriceUtil.round(turnover);
-        return new long[] {margin, commission, turnover};
+        long turnover = volume*price*volumeMultiples[idx];
+        //保证金
+        int marginCol = idx*MARGIN_COLS + (direction==OrderDirection.Buy?MarginRatio.LongByMoney.ordinal():MarginRatio.ShortByMoney.ordinal());
+        long margin = (long)(marginRatios[marginCol]*turnover);
+        //手续费
+        int commissionCol = idx*COMMISSION_COLS + COMMISSION_COLUMNS[offsetFlag.ordinal()];
+        long commissionByMoney = (long)( turnover*commissionRatios[commissionCol] );
+        long commissionByVolume = PriceUtil.price2long( volume*commissionRatios[commissionCol+1] );
+
+        result[0] = PriceUtil.round(margin);
+        result[1] = PriceUtil.round(commissionByMoney+commissionByVolume);
+        result[2] = PriceUtil.round(turnover);
+        return true;
     }
 
     @Override
     public long[] compute(Exchangeable e, int volume, long price, PosDirection direction){
-        FutureFeeInfo feeInfo = feeInfos.get(e);
-        if ( feeInfo==null ) {
+        int idx = feeIndexes.getInt(e);
+        if ( idx<0 ) {
             return null;
         }
-        long turnover = volume*price*feeInfo.getVolumeMultiple();
-        long margin = 0;
-        switch(direction) {
-        case Long:
-            {
-                double longByMoney = feeInfo.marginRatios[MarginRatio.LongByMoney.ordinal()];
-                double longByVolume = feeInfo.marginRatios[MarginRatio.LongByVolume.ordinal()];
-                long marginByMoney = (long)(longByMoney*turnover);
-                margin = marginByMoney;
-                break;
-            }
-        default:
-            {
-                double shortByMoney = feeInfo.marginRatios[MarginRatio.ShortByMoney.ordinal()];
-                double shortByVolume = feeInfo.marginRatios[MarginRatio.ShortByVolume.ordinal()];
-                long marginByMoney = (long)(shortByMoney*turnover);
-                margin = marginByMoney;
-                break;
-            }
+        return new long[] {computeMargin(e, volume, price, direction), computeValue(e, volume, price)};
+    }
+
+    @Override
+    public long computeMargin(Exchangeable e, int volume, long price, PosDirection direction) {
+        int idx = feeIndexes.getInt(e);
+        if ( idx<0 ) {
+            return 0;
+        }
+        long turnover = volume*price*volumeMultiples[idx];
+        int marginCol = idx*MARGIN_COLS + (direction==PosDirection.Long?MarginRatio.LongByMoney.ordinal():MarginRatio.ShortByMoney.ordinal());
+        return PriceUtil.round( (long)(marginRatios[marginCol]*turnover) );
+    }
+
+    @Override
+    public long computeCommission(Exchangeable e, int volume, long price, OrderOffsetFlag offsetFlag) {
+        int idx = feeIndexes.getInt(e);
+        if ( idx<0 ) {
+            return 0;
+        }
+        long turnover = volume*price*volumeMultiples[idx];
+        int commissionCol = idx*COMMISSION_COLS + COMMISSION_COLUMNS[offsetFlag.ordinal()];
+        long commissionByMoney = (long)( turnover*commissionRatios[commissionCol] );
+        long commissionByVolume = PriceUtil.price2long( volume*commissionRatios[commissionCol+1] );
+        return PriceUtil.round(commissionByMoney+commissionByVolume);
+    }
+
+    @Override
+    public long computeValue(Exchangeable e, int volume, long price) {
+        int idx = feeIndexes.getInt(e);
+        if ( idx<0 ) {
+            return 0;
         }
-        margin = PriceUtil.round(margin);
-        turnover = PriceUtil.round(turnover);
-        return new long[] {margin, turnover};
+        return PriceUtil.round( volume*price*volumeMultiples[idx] );
     }
 
     @Override
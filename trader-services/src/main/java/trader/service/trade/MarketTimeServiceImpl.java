@@ -9,15 +9,22 @@ import org.springframework.stereotype.Service;
 
 import trader.common.exchangeable.Exchange;
 import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.util.DateUtil;
 
 /**
  * 交易时间服务
+ * <BR>回放模式下使用虚拟时间, 由AsyncEventService按照记录的事件时间推进
  */
 @Service
 public class MarketTimeServiceImpl implements MarketTimeService {
 
     private LocalDate tradingDay;
 
+    /**
+     * 虚拟时间, 0代表使用系统时间
+     */
+    private volatile long virtualTime;
+
     @PostConstruct
     public void init() {
         ExchangeableTradingTimes tradingTimes = Exchange.SHFE.detectTradingTimes("au", LocalDateTime.now());
@@ -26,9 +33,24 @@ public class MarketTimeServiceImpl implements MarketTimeService {
         }
     }
 
+    /**
+     * 设置虚拟时间, 每小时重新计算一次交易日
+     */
+    public void setVirtualTime(long time) {
+        long lastTime = virtualTime;
+        virtualTime = time;
+        if ( lastTime/3600000!=time/3600000 ) {
+            ExchangeableTradingTimes tradingTimes = Exchange.SHFE.detectTradingTimes("au", DateUtil.long2datetime(time));
+            if ( tradingTimes!=null ) {
+                tradingDay = tradingTimes.getTradingDay();
+            }
+        }
+    }
+
     @Override
     public long currentTimeMillis() {
-        return System.currentTimeMillis();
+        long time = virtualTime;
+        return time!=0?time:System.currentTimeMillis();
     }
 
     /**
@@ -36,7 +58,8 @@ public class MarketTimeServiceImpl implements MarketTimeService {
      */
     @Override
     public LocalDateTime getMarketTime() {
-        return LocalDateTime.now();
+        long time = virtualTime;
+        return time!=0?DateUtil.long2datetime(time):LocalDateTime.now();
     }
 
     /**
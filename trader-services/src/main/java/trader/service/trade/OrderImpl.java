@@ -1,8 +1,15 @@
 package trader.service.trade;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.LocalDate;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.eclipse.jetty.util.StringUtil;
@@ -12,6 +19,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import trader.common.exchangeable.Exchangeable;
 import trader.common.exchangeable.Future;
 import trader.common.util.JsonEnabled;
 import trader.common.util.JsonUtil;
@@ -19,7 +27,15 @@ import trader.common.util.PriceUtil;
 import trader.service.repository.BORepository;
 import trader.service.repository.BORepositoryConstants.BOEntityType;
 
+/**
+ * 报单实现.
+ * <BR>为降低频繁报单/撤单时的内存分配, 历史状态以原始类型数组保存, 只在需要时构建状态元组列表;
+ * 成交列表和属性在首次使用时创建.
+ */
 public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
+    private static final OrderState[] ORDER_STATES = OrderState.values();
+    private static final OrderSubmitState[] SUBMIT_STATES = OrderSubmitState.values();
+    private static final int INITIAL_STATE_CAPACITY = 6;
 
     protected String ref;
     protected OrderDirection direction;
@@ -27,10 +43,25 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
     protected OrderPriceType priceType;
     protected OrderOffsetFlag offsetFlag;
     protected OrderVolumeCondition volumeCondition;
-    protected List<OrderStateTuple> stateTuples = new ArrayList<>(32);
+    /**
+     * 历史状态: 时间戳
+     */
+    protected long[] stateTimestamps = new long[INITIAL_STATE_CAPACITY];
+    /**
+     * 历史状态: OrderState.ordinal()<<8 | OrderSubmitState.ordinal()
+     */
+    protected short[] stateCodes = new short[INITIAL_STATE_CAPACITY];
+    /**
+     * 历史状态: 状态消息, 有消息时才创建
+     */
+    protected String[] stateMessages;
+    protected int stateCount;
     protected OrderStateTuple lastState;
-    protected List<Transaction> transactions = new ArrayList<>();
-    protected List<String> transactionIds = new ArrayList<>();
+    protected List<Transaction> transactions = Collections.emptyList();
+    protected List<String> transactionIds = Collections.emptyList();
+    /**
+     * 报单属性, 首次设置时创建
+     */
     private Properties attrs;
     protected long money[] = new long[OdrMoney.values().length];
     protected int[] volumes = new int[OdrVolume.values().length];
@@ -38,7 +69,12 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
 
     public OrderImpl(String id, AccountImpl account, LocalDate tradingDay, String ref, OrderBuilder builder, OrderStateTuple stateTuple)
     {
-        super(id, account.getId(), builder.getInstrument(), tradingDay);
+        this(id, account.getId(), tradingDay, ref, builder, stateTuple);
+    }
+
+    public OrderImpl(String id, String accountId, LocalDate tradingDay, String ref, OrderBuilder builder, OrderStateTuple stateTuple)
+    {
+        super(id, accountId, builder.getInstrument(), tradingDay);
         this.ref = ref;
         this.listener = builder.getListener();
 
@@ -48,16 +84,23 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
         this.limitPrice = builder.getLimitPrice();
         addVolume(OdrVolume.ReqVolume, builder.getVolume());
         this.volumeCondition = builder.getVolumeCondition();
-        this.attrs = builder.getAttrs();
+        Properties builderAttrs = builder.getAttrs();
+        if ( builderAttrs!=null && !builderAttrs.isEmpty() ) {
+            this.attrs = builderAttrs;
+        }
 
         if ( stateTuple==null ) {
             lastState = OrderStateTuple.STATE_UNKNOWN;
         }else {
             lastState = stateTuple;
-            stateTuples.add(stateTuple);
+            appendState(stateTuple);
         }
     }
 
+    private OrderImpl(String id, String accountId, Exchangeable instrument, LocalDate tradingDay) {
+        super(id, accountId, instrument, tradingDay);
+    }
+
     OrderImpl(BORepository repository, JsonObject json){
         super(JsonUtil.getProperty(json, "id", null),
                 JsonUtil.getProperty(json,"accountId",null),
@@ -74,17 +117,23 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
         volumes = TradeConstants.json2OdrVolume(json.get("volumes").getAsJsonObject());
         JsonArray stateTuples = json.get("stateTuples").getAsJsonArray();
         for(int i =0;i<stateTuples.size();i++) {
-            this.stateTuples.add(new OrderStateTuple(stateTuples.get(i).getAsJsonObject()));
+            lastState = new OrderStateTuple(stateTuples.get(i).getAsJsonObject());
+            appendState(lastState);
+        }
+        if ( lastState==null ) {
+            lastState = OrderStateTuple.STATE_UNKNOWN;
         }
-        lastState = this.stateTuples.get(this.stateTuples.size()-1);
-        this.attrs = new Properties();
         JsonObject attrs = json.get("attrs").getAsJsonObject();
         for(String key:attrs.keySet()) {
-            this.attrs.setProperty(key, attrs.get(key).getAsString());
+            setAttr(key, attrs.get(key).getAsString());
         }
-        this.transactionIds =  (List)JsonUtil.json2value(json.get("transactionIds"));
-        for(String txnId:transactionIds) {
-            this.transactions.add(TransactionImpl.load(repository, txnId, null));
+        List<String> transactionIds =  (List)JsonUtil.json2value(json.get("transactionIds"));
+        if ( transactionIds!=null && !transactionIds.isEmpty() ) {
+            this.transactionIds = new ArrayList<>(transactionIds);
+            this.transactions = new ArrayList<>(transactionIds.size());
+            for(String txnId:transactionIds) {
+                this.transactions.add(TransactionImpl.load(repository, txnId, null));
+            }
         }
     }
 
@@ -128,9 +177,58 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
         return lastState;
     }
 
+    /**
+     * 返回历史状态的只读视图, 状态元组在访问时构建
+     */
     @Override
     public List<OrderStateTuple> getStateTuples(){
-        return stateTuples;
+        return new AbstractList<OrderStateTuple>() {
+            @Override
+            public OrderStateTuple get(int index) {
+                return getStateTuple(index);
+            }
+
+            @Override
+            public int size() {
+                return stateCount;
+            }
+        };
+    }
+
+    private OrderStateTuple getStateTuple(int index) {
+        if ( index<0 || index>=stateCount ) {
+            throw new IndexOutOfBoundsException("Index: "+index+", Size: "+stateCount);
+        }
+        if ( index==stateCount-1 ) {
+            return lastState;
+        }
+        int code = stateCodes[index];
+        String message = null;
+        if ( stateMessages!=null ) {
+            message = stateMessages[index];
+        }
+        return new OrderStateTuple(ORDER_STATES[code>>8], SUBMIT_STATES[code&0XFF], stateTimestamps[index], message);
+    }
+
+    private void appendState(OrderStateTuple stateTuple) {
+        if ( stateCount==stateCodes.length ) {
+            int newCapacity = stateCount*2;
+            stateCodes = Arrays.copyOf(stateCodes, newCapacity);
+            stateTimestamps = Arrays.copyOf(stateTimestamps, newCapacity);
+            if ( stateMessages!=null ) {
+                stateMessages = Arrays.copyOf(stateMessages, newCapacity);
+            }
+        }
+        stateCodes[stateCount] = (short)((stateTuple.getState().ordinal()<<8) | stateTuple.getSubmitState().ordinal());
+        stateTimestamps[stateCount] = stateTuple.getTimestamp();
+        String message = stateTuple.getStateMessage();
+        if ( message!=null ) {
+            if ( stateMessages==null ) {
+                stateMessages = new String[stateCodes.length];
+            }
+            stateMessages[stateCount] = message;
+        }
+        stateCount++;
     }
 
     @Override
@@ -169,14 +267,22 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
 
     @Override
     public String getAttr(String attr) {
+        if ( attrs==null ) {
+            return null;
+        }
         return attrs.getProperty(attr);
     }
 
     @Override
     public void setAttr(String attr, String value) {
         if ( value==null ) {
-            attrs.remove(attr);
+            if ( attrs!=null ) {
+                attrs.remove(attr);
+            }
         }else {
+            if ( attrs==null ) {
+                attrs = new Properties();
+            }
             attrs.setProperty(attr, value);
         }
     }
@@ -204,8 +310,12 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
         json.addProperty("offsetFlag", offsetFlag.name());
         json.addProperty("volumeCondition", volumeCondition.name());
         json.addProperty("state", lastState.getState().name());
-        json.add("stateTuples", JsonUtil.object2json(stateTuples));
-        json.add("attrs", JsonUtil.object2json(attrs));
+        json.add("stateTuples", JsonUtil.object2json(getStateTuples()));
+        if ( attrs!=null ) {
+            json.add("attrs", JsonUtil.object2json(attrs));
+        } else {
+            json.add("attrs", new JsonObject());
+        }
         json.add("money", TradeConstants.odrMoney2json(money));
         json.add("volumes", TradeConstants.odrVolume2json(volumes));
         json.add("transactionIds", JsonUtil.object2json(transactionIds));
@@ -251,7 +361,7 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
         if ( !lastState.getState().isDone() && !lastState.equals(newState) ) {
             result = lastState;
             lastState = newState;
-            stateTuples.add(newState);
+            appendState(newState);
         }
         return result;
     }
@@ -270,6 +380,10 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
         if ( !txnAccepted ) {
             return false;
         }
+        if ( transactions.isEmpty() ) {
+            transactions = new ArrayList<>(4);
+            transactionIds = new ArrayList<>(4);
+        }
         transactions.add(txn);
         transactionIds.add(txn.getId());
         int tradeVolume = addVolume(OdrVolume.TradeVolume, txnVolume);
@@ -326,6 +440,90 @@ public class OrderImpl extends AbsTimedEntity implements Order, JsonEnabled {
         return true;
     }
 
+    /**
+     * 写入账户快照, 报单监听器不保存
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeUTF(id);
+        out.writeUTF(instrument.uniqueId());
+        out.writeUTF(ref);
+        out.writeByte(direction.ordinal());
+        out.writeByte(priceType.ordinal());
+        out.writeByte(offsetFlag.ordinal());
+        out.writeByte(volumeCondition.ordinal());
+        out.writeLong(limitPrice);
+        for(int i=0;i<money.length;i++) {
+            out.writeLong(money[i]);
+        }
+        for(int i=0;i<volumes.length;i++) {
+            out.writeInt(volumes[i]);
+        }
+        out.writeInt(stateCount);
+        for(int i=0;i<stateCount;i++) {
+            out.writeShort(stateCodes[i]);
+            out.writeLong(stateTimestamps[i]);
+            AccountJournal.writeString(out, stateMessages!=null?stateMessages[i]:null);
+        }
+        if ( attrs==null ) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(attrs.size());
+            for(String key:attrs.stringPropertyNames()) {
+                out.writeUTF(key);
+                out.writeUTF(attrs.getProperty(key));
+            }
+        }
+        out.writeInt(transactionIds.size());
+        for(String txnId:transactionIds) {
+            out.writeUTF(txnId);
+        }
+    }
+
+    /**
+     * 从账户快照恢复, 成交需要已经恢复
+     */
+    static OrderImpl readSnapshot(DataInput in, String accountId, LocalDate tradingDay, Map<String, TransactionImpl> txnsById) throws IOException {
+        String id = in.readUTF();
+        Exchangeable instrument = Future.fromString(in.readUTF());
+        OrderImpl order = new OrderImpl(id, accountId, instrument, tradingDay);
+        order.ref = in.readUTF();
+        order.direction = OrderDirection.values()[in.readByte()];
+        order.priceType = OrderPriceType.values()[in.readByte()];
+        order.offsetFlag = OrderOffsetFlag.values()[in.readByte()];
+        order.volumeCondition = OrderVolumeCondition.values()[in.readByte()];
+        order.limitPrice = in.readLong();
+        for(int i=0;i<order.money.length;i++) {
+            order.money[i] = in.readLong();
+        }
+        for(int i=0;i<order.volumes.length;i++) {
+            order.volumes[i] = in.readInt();
+        }
+        int stateCount = in.readInt();
+        order.lastState = OrderStateTuple.STATE_UNKNOWN;
+        for(int i=0;i<stateCount;i++) {
+            int code = in.readShort();
+            long timestamp = in.readLong();
+            String message = AccountJournal.readString(in);
+            order.lastState = new OrderStateTuple(ORDER_STATES[code>>8], SUBMIT_STATES[code&0XFF], timestamp, message);
+            order.appendState(order.lastState);
+        }
+        int attrCount = in.readInt();
+        for(int i=0;i<attrCount;i++) {
+            order.setAttr(in.readUTF(), in.readUTF());
+        }
+        int txnCount = in.readInt();
+        if ( txnCount>0 ) {
+            order.transactions = new ArrayList<>(txnCount);
+            order.transactionIds = new ArrayList<>(txnCount);
+            for(int i=0;i<txnCount;i++) {
+                String txnId = in.readUTF();
+                order.transactionIds.add(txnId);
+                order.transactions.add(txnsById.get(txnId));
+            }
+        }
+        return order;
+    }
+
     public static OrderImpl load(BORepository repository, String orderId, String data){
         OrderImpl result = (OrderImpl)cacheGet(orderId);
         if ( null==result ) {
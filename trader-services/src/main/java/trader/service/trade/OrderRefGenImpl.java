@@ -1,6 +1,9 @@
 package trader.service.trade;
 
 import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.util.StringUtil;
@@ -13,27 +16,42 @@ import trader.common.beans.BeansContainer;
 import trader.common.util.ConversionUtil;
 import trader.common.util.DateUtil;
 import trader.common.util.JsonEnabled;
+import trader.service.event.AsyncEventService;
 import trader.service.repository.BORepository;
 import trader.service.repository.BORepositoryConstants.BOEntityType;
 import trader.service.trade.TradeConstants.TradeServiceType;
 
 /**
- * <LI>OrderRef ID顺序生成
+ * <LI>OrderRef ID顺序生成, 每个账户(交易会话)有独立的单调递增序列
  * <LI>每交易日唯一
  * <LI>基于KVStore实现序列化和反序列化
+ * <LI>生成过程无锁, 持久化请求会合并, 同一时刻最多只有一个待执行的保存请求
+ * <LI>事件回放模式下不加载也不保存, 序列值从记录的账户启动状态恢复
  */
 public class OrderRefGenImpl implements OrderRefGen, JsonEnabled {
-    private AtomicInteger refId = new AtomicInteger();
+    /**
+     * OrderRef最小宽度, 不足补0
+     */
+    private static final int REF_WIDTH = 6;
+
+    /**
+     * 旧版本全局序列的值, 作为新账户序列的起点
+     */
+    private int baseRefId;
+    private Map<String, AtomicInteger> refIds = new ConcurrentHashMap<>();
 
     private String tradingDay;
     private String entityId=null;
     private BORepository boRepository = null;
+    private AtomicBoolean savePending = new AtomicBoolean();
 
     public OrderRefGenImpl(TradeService tradeService, LocalDate tradingDay, BeansContainer beansContainer)
     {
         this.tradingDay = DateUtil.date2str(tradingDay);
         boRepository = beansContainer.getBean(BORepository.class);
-        if ( null!=boRepository && tradeService.getType()==TradeServiceType.RealTime ) {
+        AsyncEventService asyncEventService = beansContainer.getBean(AsyncEventService.class);
+        boolean replayMode = asyncEventService!=null && asyncEventService.isReplayMode();
+        if ( null!=boRepository && tradeService.getType()==TradeServiceType.RealTime && !replayMode ) {
             entityId = DateUtil.date2str(tradingDay)+":OdrRef";
         }
         if ( null!=entityId ) {
@@ -41,7 +59,13 @@ public class OrderRefGenImpl implements OrderRefGen, JsonEnabled {
             if( !StringUtil.isEmpty(savedRefJson)) {
                 JsonObject json = (JsonObject)JsonParser.parseString(savedRefJson);
                 if ( json.has("refId") ) {
-                    refId.set(ConversionUtil.toInt(json.get("refId"), true));
+                    baseRefId = ConversionUtil.toInt(json.get("refId"), true);
+                }
+                if ( json.has("refIds") ) {
+                    JsonObject refIdsJson = json.getAsJsonObject("refIds");
+                    for(String accountId:refIdsJson.keySet()) {
+                        refIds.put(accountId, new AtomicInteger(ConversionUtil.toInt(refIdsJson.get(accountId), true)));
+                    }
                 }
             }
         }
@@ -49,40 +73,71 @@ public class OrderRefGenImpl implements OrderRefGen, JsonEnabled {
 
     @Override
     public String nextRefId(String accountId) {
-        int ref0 = refId.incrementAndGet();
-        //多线程方式设置 000xxx 格式的OrderRef
-        StringBuilder builder = new StringBuilder();
-        String ref0Str = Integer.toString(ref0);
-        int prefix0 = 6-ref0Str.length();
-        switch(prefix0) {
-        case 5:
-            builder.append("00000");
-            break;
-        case 4:
-            builder.append("0000");
-            break;
-        case 3:
-            builder.append("000");
-            break;
-        case 2:
-            builder.append("00");
-            break;
-        case 1:
-            builder.append("0");
-            break;
+        AtomicInteger refId = refIds.get(accountId);
+        if ( refId==null ) {
+            refId = refIds.computeIfAbsent(accountId, (k)->new AtomicInteger(baseRefId));
         }
-        if ( null!=entityId ) {
+        int ref0 = refId.incrementAndGet();
+        if ( null!=entityId && savePending.compareAndSet(false, true) ) {
             boRepository.asynSave(BOEntityType.Default, entityId, this);
         }
-        return builder.append(ref0Str).toString();
+        return formatRef(ref0);
+    }
+
+    /**
+     * 返回账户当前的OrderRef序列值
+     */
+    public int getRefId(String accountId) {
+        AtomicInteger refId = refIds.get(accountId);
+        if ( refId==null ) {
+            return baseRefId;
+        }
+        return refId.get();
     }
 
+    /**
+     * 设置账户当前的OrderRef序列值, 用于回放时恢复实盘启动时的序列
+     */
+    public void setRefId(String accountId, int refId) {
+        refIds.computeIfAbsent(accountId, (k)->new AtomicInteger()).set(refId);
+    }
+
+    /**
+     * 格式化为 000xxx 格式, 只分配结果字符串
+     */
+    static String formatRef(int ref0) {
+        int digits = 1;
+        for(int v=ref0/10; v>0; v/=10) {
+            digits++;
+        }
+        int len = Math.max(REF_WIDTH, digits);
+        char[] chars = new char[len];
+        int v = ref0;
+        for(int i=len-1;i>=0;i--) {
+            chars[i] = (char)('0'+(v%10));
+            v /= 10;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 序列化在异步保存线程中执行, 执行时清除待保存标记, 之后的新OrderRef会重新触发保存
+     */
     @Override
     public JsonElement toJson() {
+        savePending.set(false);
         JsonObject json = new JsonObject();
         json.addProperty("id", entityId);
         json.addProperty("tradingDay", tradingDay);
-        json.addProperty("refId", refId.get());
+        int maxRefId = baseRefId;
+        JsonObject refIdsJson = new JsonObject();
+        for(Map.Entry<String, AtomicInteger> entry:refIds.entrySet()) {
+            int refId = entry.getValue().get();
+            refIdsJson.addProperty(entry.getKey(), refId);
+            maxRefId = Math.max(maxRefId, refId);
+        }
+        json.addProperty("refId", maxRefId);
+        json.add("refIds", refIdsJson);
         return json;
     }
 
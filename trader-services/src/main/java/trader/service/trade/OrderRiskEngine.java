@@ -0,0 +1,427 @@
+package trader.service.trade;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.ConversionUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.StringUtil;
+import trader.service.ServiceErrorConstants;
+import trader.service.md.MarketData;
+
+/**
+ * 报单前置风控引擎.
+ * <BR>每个合约的风控限制在配置加载时预先计算, 运行时状态(最新价, 持仓和保证金预算, 报单速率)保存在原子变量中.
+ * <BR>检查过程不加锁, 不分配对象, 只返回检查结果的枚举值.
+ * <BR>配置来自账户的 [riskControl] 段, 可以使用 合约.参数 或 品种.参数 的方式覆盖全局参数:
+ * <pre>
+ * [riskControl]
+ * maxOrderVolume=100
+ * maxPosVolume=0
+ * priceBandTicks=50
+ * marginBudget=0
+ * maxOrdersPerSecond=5
+ * maxAccountOrdersPerSecond=20
+ * selfTradeCheck=false
+ * au.maxOrderVolume=10
+ * </pre>
+ * 参数值为0表示不做限制, 自成交检查缺省不启用
+ */
+public class OrderRiskEngine implements TradeConstants, ServiceErrorConstants {
+
+    public static final String ITEM_MAX_ORDER_VOLUME = "maxOrderVolume";
+    public static final String ITEM_MAX_POS_VOLUME = "maxPosVolume";
+    public static final String ITEM_PRICE_BAND_TICKS = "priceBandTicks";
+    public static final String ITEM_MARGIN_BUDGET = "marginBudget";
+    public static final String ITEM_MAX_ORDERS_PER_SECOND = "maxOrdersPerSecond";
+    public static final String ITEM_MAX_ACCOUNT_ORDERS_PER_SECOND = "maxAccountOrdersPerSecond";
+    public static final String ITEM_SELF_TRADE_CHECK = "selfTradeCheck";
+
+    /**
+     * 风控检查结果
+     */
+    public static enum RiskCheck{
+        Passed(0)
+        /**
+         * 报单数量无效
+         */
+        ,InvalidVolume(ERRCODE_TRADE_INVALID_ORDER)
+        /**
+         * 单笔报单数量超限
+         */
+        ,OrderVolumeExceedsLimit(ERRCODE_TRADE_VOL_EXCEEDS_LIMIT)
+        /**
+         * 平仓数量超出持仓
+         */
+        ,CloseVolumeExceedsPosition(ERRCODE_TRADE_VOL_EXCEEDS_LIMIT)
+        /**
+         * 开仓后持仓超限
+         */
+        ,PosVolumeExceedsLimit(ERRCODE_TRADE_VOL_EXCEEDS_LIMIT)
+        /**
+         * 报单价格超出最新价的价格带或者涨跌停
+         */
+        ,PriceOutOfBand(ERRCODE_TRADE_PRICE_OUT_OF_BAND)
+        /**
+         * 合约保证金预算不足
+         */
+        ,MarginBudgetExceeded(ERRCODE_TRADE_MARGIN_NOT_ENOUGH)
+        /**
+         * 可用资金不足
+         */
+        ,AvailNotEnough(ERRCODE_TRADE_MARGIN_NOT_ENOUGH)
+        /**
+         * 与本账户的在途报单自成交
+         */
+        ,SelfTrade(ERRCODE_TRADE_SELF_TRADE)
+        /**
+         * 报单速率超限
+         */
+        ,RateExceedsLimit(ERRCODE_TRADE_RATE_EXCEEDS_LIMIT);
+
+        private final int errorCode;
+
+        RiskCheck(int errorCode){
+            this.errorCode = errorCode;
+        }
+
+        public int getErrorCode() {
+            return errorCode;
+        }
+    }
+
+    /**
+     * 每秒报单数量的计数器, 无锁实现.
+     * <BR>秒数和计数保存在同一个long中: 高位是秒数, 低 COUNT_BITS 位是计数, 切换到新的一秒和计数在一次CAS中完成
+     */
+    static class RateCounter {
+        private static final int COUNT_BITS = 24;
+        private static final long COUNT_MASK = (1L<<COUNT_BITS)-1;
+
+        private final int maxPerSecond;
+        private final AtomicLong state = new AtomicLong();
+
+        RateCounter(int maxPerSecond){
+            this.maxPerSecond = (int)Math.min(maxPerSecond, COUNT_MASK);
+        }
+
+        /**
+         * 获取一个报单许可
+         */
+        boolean acquire(long currTimeMillis) {
+            if ( maxPerSecond<=0 ) {
+                return true;
+            }
+            long second = currTimeMillis/1000;
+            while(true) {
+                long state0 = state.get();
+                long second0 = state0>>>COUNT_BITS;
+                long state1;
+                if ( second>second0 ) {
+                    state1 = (second<<COUNT_BITS)|1;
+                } else {
+                    //时间早于当前窗口的按当前窗口计数
+                    if ( (state0&COUNT_MASK)>=maxPerSecond ) {
+                        return false;
+                    }
+                    state1 = state0+1;
+                }
+                if ( state.compareAndSet(state0, state1) ) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 其它检查失败时归还许可, 已经切换到新的一秒时不需要归还
+         */
+        void release(long currTimeMillis) {
+            if ( maxPerSecond<=0 ) {
+                return;
+            }
+            long second = currTimeMillis/1000;
+            while(true) {
+                long state0 = state.get();
+                if ( (state0>>>COUNT_BITS)!=second || (state0&COUNT_MASK)==0 ) {
+                    return;
+                }
+                if ( state.compareAndSet(state0, state0-1) ) {
+                    return;
+                }
+            }
+        }
+
+        int getCount() {
+            return (int)(state.get()&COUNT_MASK);
+        }
+    }
+
+    /**
+     * 单个合约的预计算风控限制和运行时状态
+     */
+    public static class InstrumentRisk {
+        final Exchangeable instrument;
+        final int maxOrderVolume;
+        final int maxPosVolume;
+        final long priceBand;
+        final long marginBudget;
+        final boolean selfTradeCheck;
+        final RateCounter rateCounter;
+
+        final AtomicLong lastPrice = new AtomicLong();
+        final AtomicLong highestPrice = new AtomicLong();
+        final AtomicLong lowestPrice = new AtomicLong();
+        final AtomicLong upperLimitPrice = new AtomicLong();
+        final AtomicLong lowerLimitPrice = new AtomicLong();
+
+        final AtomicInteger longPosition = new AtomicInteger();
+        final AtomicInteger shortPosition = new AtomicInteger();
+        final AtomicInteger longOpening = new AtomicInteger();
+        final AtomicInteger shortOpening = new AtomicInteger();
+        final AtomicLong usedMargin = new AtomicLong();
+        /**
+         * 在途买单的最高价, 0 表示没有
+         */
+        final AtomicLong restingBuyPrice = new AtomicLong();
+        /**
+         * 在途卖单的最低价, Long.MAX_VALUE 表示没有
+         */
+        final AtomicLong restingSellPrice = new AtomicLong(Long.MAX_VALUE);
+
+        InstrumentRisk(Exchangeable e, Properties props){
+            this.instrument = e;
+            maxOrderVolume = ConversionUtil.toInt(resolveItem(e, props, ITEM_MAX_ORDER_VOLUME, "0"));
+            maxPosVolume = ConversionUtil.toInt(resolveItem(e, props, ITEM_MAX_POS_VOLUME, "0"));
+            priceBand = ConversionUtil.toInt(resolveItem(e, props, ITEM_PRICE_BAND_TICKS, "0"))*e.getPriceTick();
+            marginBudget = PriceUtil.str2long(resolveItem(e, props, ITEM_MARGIN_BUDGET, "0"));
+            selfTradeCheck = ConversionUtil.toBoolean(resolveItem(e, props, ITEM_SELF_TRADE_CHECK, "false"));
+            rateCounter = new RateCounter(ConversionUtil.toInt(resolveItem(e, props, ITEM_MAX_ORDERS_PER_SECOND, "0")));
+        }
+
+        public Exchangeable getInstrument() {
+            return instrument;
+        }
+
+        public long getLastPrice() {
+            return lastPrice.get();
+        }
+
+        public long getHighestPrice() {
+            return highestPrice.get();
+        }
+
+        public long getLowestPrice() {
+            return lowestPrice.get();
+        }
+    }
+
+    private volatile Properties props = new Properties();
+    private volatile RateCounter accountRateCounter = new RateCounter(0);
+    private volatile Map<Exchangeable, InstrumentRisk> instrumentRisks = new ConcurrentHashMap<>();
+
+    public OrderRiskEngine() {
+    }
+
+    /**
+     * 更新风控参数, 已有的合约限制会重新计算, 运行时状态保留
+     */
+    public void setProperties(Properties props) {
+        if ( props==null ) {
+            props = new Properties();
+        }
+        this.props = props;
+        accountRateCounter = new RateCounter(ConversionUtil.toInt(props.getProperty(ITEM_MAX_ACCOUNT_ORDERS_PER_SECOND, "0")));
+        Map<Exchangeable, InstrumentRisk> instrumentRisks2 = new ConcurrentHashMap<>();
+        for(InstrumentRisk risk0:instrumentRisks.values()) {
+            InstrumentRisk risk = new InstrumentRisk(risk0.instrument, props);
+            copyState(risk0, risk);
+            instrumentRisks2.put(risk.instrument, risk);
+        }
+        instrumentRisks = instrumentRisks2;
+    }
+
+    public Properties getProperties() {
+        return props;
+    }
+
+    public InstrumentRisk getInstrumentRisk(Exchangeable e) {
+        InstrumentRisk result = instrumentRisks.get(e);
+        if ( result==null ) {
+            result = instrumentRisks.computeIfAbsent(e, (Exchangeable e0)->{
+                return new InstrumentRisk(e0, props);
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 更新最新价格和涨跌停, 价格带检查需要
+     */
+    public void onMarketData(MarketData md) {
+        InstrumentRisk risk = getInstrumentRisk(md.instrument);
+        risk.lastPrice.set(md.lastPrice);
+        risk.highestPrice.set(md.highestPrice);
+        risk.lowestPrice.set(md.lowestPrice);
+        risk.upperLimitPrice.set(md.upperLimitPrice);
+        risk.lowerLimitPrice.set(md.lowerLimitPrice);
+    }
+
+    /**
+     * 持仓或在途报单变化后更新合约的持仓, 保证金和在途报单价格.
+     * <BR>需要在持仓锁内调用
+     */
+    public void onPositionChanged(Position pos) {
+        int longOpening = 0, shortOpening = 0;
+        long restingBuyPrice = 0, restingSellPrice = Long.MAX_VALUE;
+        Collection<Order> activeOrders = pos.getActiveOrders();
+        for(Order order:activeOrders) {
+            if ( order.getStateTuple().getState().isDone() ) {
+                continue;
+            }
+            int odrVol = order.getVolume(OdrVolume.ReqVolume)-order.getVolume(OdrVolume.TradeVolume);
+            if ( order.getOffsetFlags()==OrderOffsetFlag.OPEN ) {
+                if ( order.getDirection()==OrderDirection.Buy ) {
+                    longOpening += odrVol;
+                } else {
+                    shortOpening += odrVol;
+                }
+            }
+            if ( order.getPriceType()==OrderPriceType.LimitPrice ) {
+                if ( order.getDirection()==OrderDirection.Buy ) {
+                    restingBuyPrice = Math.max(restingBuyPrice, order.getLimitPrice());
+                } else {
+                    restingSellPrice = Math.min(restingSellPrice, order.getLimitPrice());
+                }
+            }
+        }
+        updatePosition(pos.getInstrument(),
+                pos.getVolume(PosVolume.LongPosition),
+                pos.getVolume(PosVolume.ShortPosition),
+                longOpening,
+                shortOpening,
+                pos.getMoney(PosMoney.UseMargin)+pos.getMoney(PosMoney.FrozenMargin),
+                restingBuyPrice,
+                restingSellPrice);
+    }
+
+    public void updatePosition(Exchangeable e, int longPosition, int shortPosition, int longOpening, int shortOpening, long usedMargin, long restingBuyPrice, long restingSellPrice) {
+        InstrumentRisk risk = getInstrumentRisk(e);
+        risk.longPosition.set(longPosition);
+        risk.shortPosition.set(shortPosition);
+        risk.longOpening.set(longOpening);
+        risk.shortOpening.set(shortOpening);
+        risk.usedMargin.set(usedMargin);
+        risk.restingBuyPrice.set(restingBuyPrice);
+        risk.restingSellPrice.set(restingSellPrice);
+    }
+
+    /**
+     * 报单检查, 不加锁不分配对象.
+     *
+     * @param price 冻结保证金用的报单价格
+     * @param margin 报单需要的保证金
+     * @param commission 报单需要的手续费
+     * @param avail 账户可用资金
+     * @param currTimeMillis 当前时间, 用于报单速率检查
+     */
+    public RiskCheck check(Exchangeable e, OrderDirection direction, OrderOffsetFlag offsetFlag, OrderPriceType priceType, int volume, long price, long margin, long commission, long avail, long currTimeMillis)
+    {
+        if ( volume<=0 ) {
+            return RiskCheck.InvalidVolume;
+        }
+        InstrumentRisk risk = getInstrumentRisk(e);
+        if ( risk.maxOrderVolume>0 && volume>risk.maxOrderVolume ) {
+            return RiskCheck.OrderVolumeExceedsLimit;
+        }
+        boolean buy = direction==OrderDirection.Buy;
+        if ( offsetFlag==OrderOffsetFlag.OPEN ) {
+            if ( risk.maxPosVolume>0 ) {
+                int posVolume = buy?(risk.longPosition.get()+risk.longOpening.get()):(risk.shortPosition.get()+risk.shortOpening.get());
+                if ( posVolume+volume>risk.maxPosVolume ) {
+                    return RiskCheck.PosVolumeExceedsLimit;
+                }
+            }
+            if ( risk.marginBudget>0 && risk.usedMargin.get()+margin>risk.marginBudget ) {
+                return RiskCheck.MarginBudgetExceeded;
+            }
+            //这里出于保守起见, 不采用单边保证金机制(shfe)
+            if ( avail<=margin+commission ) {
+                return RiskCheck.AvailNotEnough;
+            }
+        } else {
+            int closable = buy?risk.shortPosition.get():risk.longPosition.get();
+            if ( closable<volume ) {
+                return RiskCheck.CloseVolumeExceedsPosition;
+            }
+        }
+        if ( priceType==OrderPriceType.LimitPrice ) {
+            long upperLimit = risk.upperLimitPrice.get(), lowerLimit = risk.lowerLimitPrice.get();
+            if ( (upperLimit>0 && price>upperLimit) || (lowerLimit>0 && price<lowerLimit) ) {
+                return RiskCheck.PriceOutOfBand;
+            }
+            long lastPrice = risk.lastPrice.get();
+            if ( risk.priceBand>0 && lastPrice>0 && Math.abs(price-lastPrice)>risk.priceBand ) {
+                return RiskCheck.PriceOutOfBand;
+            }
+            if ( risk.selfTradeCheck ) {
+                if ( buy ) {
+                    if ( price>=risk.restingSellPrice.get() ) {
+                        return RiskCheck.SelfTrade;
+                    }
+                } else {
+                    if ( price<=risk.restingBuyPrice.get() ) {
+                        return RiskCheck.SelfTrade;
+                    }
+                }
+            }
+        }
+        //最后检查报单速率, 避免其它检查失败时占用许可
+        RateCounter accountRate = accountRateCounter;
+        if ( !accountRate.acquire(currTimeMillis) ) {
+            return RiskCheck.RateExceedsLimit;
+        }
+        if ( !risk.rateCounter.acquire(currTimeMillis) ) {
+            accountRate.release(currTimeMillis);
+            return RiskCheck.RateExceedsLimit;
+        }
+        return RiskCheck.Passed;
+    }
+
+    private static void copyState(InstrumentRisk from, InstrumentRisk to) {
+        to.lastPrice.set(from.lastPrice.get());
+        to.highestPrice.set(from.highestPrice.get());
+        to.lowestPrice.set(from.lowestPrice.get());
+        to.upperLimitPrice.set(from.upperLimitPrice.get());
+        to.lowerLimitPrice.set(from.lowerLimitPrice.get());
+        to.longPosition.set(from.longPosition.get());
+        to.shortPosition.set(from.shortPosition.get());
+        to.longOpening.set(from.longOpening.get());
+        to.shortOpening.set(from.shortOpening.get());
+        to.usedMargin.set(from.usedMargin.get());
+        to.restingBuyPrice.set(from.restingBuyPrice.get());
+        to.restingSellPrice.set(from.restingSellPrice.get());
+    }
+
+    /**
+     * 按照 合约.参数, 品种.参数, 参数 的顺序查找配置
+     */
+    private static String resolveItem(Exchangeable e, Properties props, String item, String defaultValue) {
+        String value = props.getProperty(e.toString()+"."+item);
+        if ( StringUtil.isEmpty(value) ) {
+            value = props.getProperty(e.id()+"."+item);
+        }
+        if ( StringUtil.isEmpty(value) ) {
+            value = props.getProperty(e.contract()+"."+item);
+        }
+        if ( StringUtil.isEmpty(value) ) {
+            value = props.getProperty(item, defaultValue);
+        }
+        return value.trim();
+    }
+
+}
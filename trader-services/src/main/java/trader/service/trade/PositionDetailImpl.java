@@ -1,6 +1,10 @@
 package trader.service.trade;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -81,4 +85,23 @@ public class PositionDetailImpl implements PositionDetail, Comparable<PositionDe
         return json;
     }
 
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeByte(direction.ordinal());
+        out.writeInt(volume);
+        out.writeLong(price);
+        out.writeLong(openTime.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(openTime.getNano());
+        out.writeBoolean(today);
+    }
+
+    static PositionDetailImpl readSnapshot(DataInput in) throws IOException {
+        PosDirection direction = PosDirection.values()[in.readByte()];
+        int volume = in.readInt();
+        long price = in.readLong();
+        long epochSecond = in.readLong();
+        int nano = in.readInt();
+        boolean today = in.readBoolean();
+        return new PositionDetailImpl(direction, volume, price, LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC), today);
+    }
+
 }
@@ -1,5 +1,8 @@
 package trader.service.trade;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -8,6 +11,7 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +20,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.Future;
 import trader.common.util.DateUtil;
 import trader.common.util.JsonUtil;
 import trader.service.md.MarketData;
@@ -317,8 +322,7 @@ public class PositionImpl implements Position, TradeConstants {
         long closeAmount = txnFees[2];
         long openAmount = 0;
         for(PositionDetailImpl detail:closedDetails) {
-            long detailFees[] = feeEval.compute(instrument, detail.getVolume(), detail.getPrice(), detail.getDirection());
-            openAmount += detailFees[1];
+            openAmount += feeEval.computeValue(instrument, detail.getVolume(), detail.getPrice());
         }
         long txnProfit = 0;
         if ( txn.getDirection()==OrderDirection.Sell) {
@@ -347,16 +351,17 @@ public class PositionImpl implements Position, TradeConstants {
             PositionDetail detail = details.get(i);
             PosDirection detailDirection = detail.getDirection();
             int detailVolume = detail.getVolume();
-            long[] lastMarginValue = feeEval.compute(instrument, detailVolume, lastPrice, detailDirection);
-            long posValue = feeEval.compute(instrument, detailVolume, detail.getPrice(), detailDirection)[1];
+            long lastMargin = feeEval.computeMargin(instrument, detailVolume, lastPrice, detailDirection);
+            long lastValue = feeEval.computeValue(instrument, detailVolume, lastPrice);
+            long posValue = feeEval.computeValue(instrument, detailVolume, detail.getPrice());
 
-            long valueDiff = lastMarginValue[1]-posValue;
+            long valueDiff = lastValue-posValue;
             long valueDiffUnit = 1;
             if ( detailDirection==PosDirection.Short ) {
                 valueDiffUnit = -1;
-                shortUseMargin += lastMarginValue[0];;
+                shortUseMargin += lastMargin;
             }else{
-                longUseMargin += lastMarginValue[0];
+                longUseMargin += lastMargin;
             }
             posProfit += valueDiff*valueDiffUnit;
             if ( updateVolumes ) {
@@ -430,4 +435,55 @@ public class PositionImpl implements Position, TradeConstants {
         return result;
     }
 
+    /**
+     * 写入账户快照, 在途报单只保存REF
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeUTF(instrument.uniqueId());
+        out.writeByte(direction.ordinal());
+        out.writeLong(lastPrice);
+        for(int i=0;i<money.length;i++) {
+            out.writeLong(money[i]);
+        }
+        for(int i=0;i<volumes.length;i++) {
+            out.writeInt(volumes[i]);
+        }
+        out.writeInt(details.size());
+        for(PositionDetailImpl detail:details) {
+            detail.writeSnapshot(out);
+        }
+        out.writeInt(activeOrders.size());
+        for(String orderRef:activeOrders.keySet()) {
+            out.writeUTF(orderRef);
+        }
+    }
+
+    /**
+     * 从账户快照恢复, 报单需要已经恢复
+     */
+    static PositionImpl readSnapshot(AccountImpl account, DataInput in, Map<String, OrderImpl> ordersByRef) throws IOException {
+        PositionImpl pos = new PositionImpl(account, Future.fromString(in.readUTF()));
+        pos.direction = PosDirection.values()[in.readByte()];
+        pos.lastPrice = in.readLong();
+        for(int i=0;i<pos.money.length;i++) {
+            pos.money[i] = in.readLong();
+        }
+        for(int i=0;i<pos.volumes.length;i++) {
+            pos.volumes[i] = in.readInt();
+        }
+        int detailCount = in.readInt();
+        for(int i=0;i<detailCount;i++) {
+            pos.details.add(PositionDetailImpl.readSnapshot(in));
+        }
+        int activeOrderCount = in.readInt();
+        for(int i=0;i<activeOrderCount;i++) {
+            String orderRef = in.readUTF();
+            OrderImpl order = ordersByRef.get(orderRef);
+            if ( order!=null ) {
+                pos.activeOrders.put(orderRef, order);
+            }
+        }
+        return pos;
+    }
+
 }
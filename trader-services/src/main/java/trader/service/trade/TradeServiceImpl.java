@@ -32,6 +32,7 @@ import trader.service.md.MarketData;
 import trader.service.md.MarketDataService;
 import trader.service.plugin.Plugin;
 import trader.service.plugin.PluginService;
+import trader.service.trade.ctp.CtpReplayTxnSession;
 import trader.service.trade.ctp.CtpTxnSessionFactory;
 import trader.service.trade.spi.AbsTxnSession;
 
@@ -91,6 +92,12 @@ public class TradeServiceImpl implements TradeService, AsyncEventFilter {
 
         //自动发现交易接口API
         txnSessionFactories = discoverTxnSessionProviders(beansContainer);
+        if ( asyncEventService.isReplayMode() ) {
+            //回放模式下CTP账户使用记录的回报
+            txnSessionFactories.put(TxnSession.PROVIDER_CTP, (beansContainer0, account, listener)->{
+                return new CtpReplayTxnSession(beansContainer0, account, listener);
+            });
+        }
         reloadAccounts();
 
         scheduledExecutorService.scheduleAtFixedRate(()->{
@@ -238,8 +245,11 @@ public class TradeServiceImpl implements TradeService, AsyncEventFilter {
                 logger.debug(message);
             }
         }
-        for(AccountImpl account:newAccounts) {
-            account.restoreFromRepository();
+        //回放模式下报单从记录的账户启动状态恢复, 不加载实盘当天全部的报单
+        if ( !asyncEventService.isReplayMode() ) {
+            for(AccountImpl account:newAccounts) {
+                account.restoreFromRepository();
+            }
         }
         return updatedAccounts;
     }
@@ -1,5 +1,8 @@
 package trader.service.trade;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.LocalDate;
 import java.util.Collections;
 import java.util.List;
@@ -90,6 +93,10 @@ public class TransactionImpl extends AbsTimedEntity implements Transaction, Json
         return time;
     }
 
+    Object getTxnData() {
+        return txnData;
+    }
+
     @Override
     public PositionDetail getOpenDetail() {
         return openDetail;
@@ -151,4 +158,35 @@ public class TransactionImpl extends AbsTimedEntity implements Transaction, Json
         return result;
     }
 
+    /**
+     * 写入账户快照
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeUTF(id);
+        out.writeUTF(instrument.uniqueId());
+        out.writeUTF(orderId);
+        out.writeByte(direction.ordinal());
+        out.writeByte(offsetFlag.ordinal());
+        out.writeLong(price);
+        out.writeInt(volume);
+        out.writeLong(time);
+        AccountJournal.writeString(out, ConversionUtil.toString(txnData));
+    }
+
+    /**
+     * 从账户快照恢复
+     */
+    static TransactionImpl readSnapshot(DataInput in, String accountId, LocalDate tradingDay) throws IOException {
+        String id = in.readUTF();
+        Exchangeable instrument = Future.fromString(in.readUTF());
+        String orderId = in.readUTF();
+        OrderDirection direction = OrderDirection.values()[in.readByte()];
+        OrderOffsetFlag offsetFlag = OrderOffsetFlag.values()[in.readByte()];
+        long price = in.readLong();
+        int volume = in.readInt();
+        long time = in.readLong();
+        String txnData = AccountJournal.readString(in);
+        return new TransactionImpl(id, accountId, instrument, tradingDay, orderId, direction, offsetFlag, price, volume, time, txnData);
+    }
+
 }
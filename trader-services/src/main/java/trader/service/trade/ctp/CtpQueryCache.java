@@ -0,0 +1,162 @@
+package trader.service.trade.ctp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import trader.common.util.DateUtil;
+import trader.common.util.FileUtil;
+import trader.common.util.StringUtil;
+
+/**
+ * CTP 静态查询结果的本地缓存: 合约, 保证金率, 手续费率等在交易日内基本不变的数据, 按交易日缓存, 重启后不需要再次查询.
+ * <P>文件格式: 第一行为JSON格式的文件头(brokerId, userId, 交易日, 内容MD5), 之后为JSON格式的内容.
+ * 文件头不匹配或MD5校验失败时缓存作废, 重新查询.
+ * <BR>文件先写入临时文件再原子替换, 进程在写入过程中退出不会留下不完整的缓存.
+ */
+public class CtpQueryCache {
+    private static final Logger logger = LoggerFactory.getLogger(CtpQueryCache.class);
+
+    private static final int VERSION = 1;
+
+    private static final Gson gson = new Gson();
+
+    private File file;
+    private String brokerId;
+    private String userId;
+    private LocalDate tradingDay;
+    private JsonObject data = new JsonObject();
+    private boolean dirty;
+    private volatile long totalHits;
+    private volatile long totalMisses;
+
+    public CtpQueryCache(File file, String brokerId, String userId, LocalDate tradingDay) {
+        this.file = file;
+        this.brokerId = brokerId;
+        this.userId = userId;
+        this.tradingDay = tradingDay;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public LocalDate getTradingDay() {
+        return tradingDay;
+    }
+
+    public long getTotalHits() {
+        return totalHits;
+    }
+
+    public long getTotalMisses() {
+        return totalMisses;
+    }
+
+    /**
+     * 加载缓存文件
+     *
+     * @return true 加载成功, false 文件不存在或校验失败
+     */
+    public synchronized boolean load() {
+        data = new JsonObject();
+        dirty = false;
+        if ( !file.exists() ) {
+            return false;
+        }
+        try{
+            String text = FileUtil.read(file);
+            int headerEnd = text.indexOf('\n');
+            if ( headerEnd<0 ) {
+                throw new IOException("Missing header");
+            }
+            JsonObject header = JsonParser.parseString(text.substring(0, headerEnd)).getAsJsonObject();
+            String body = text.substring(headerEnd+1);
+            if ( header.get("version").getAsInt()!=VERSION
+                    || !StringUtil.equals(brokerId, header.get("brokerId").getAsString())
+                    || !StringUtil.equals(userId, header.get("userId").getAsString())
+                    || !StringUtil.equals(DateUtil.date2str(tradingDay), header.get("tradingDay").getAsString()) )
+            {
+                logger.info("Query cache "+file+" header mismatch: "+header);
+                return false;
+            }
+            if ( !StringUtil.equals(header.get("checksum").getAsString(), FileUtil.md5(body.getBytes(StringUtil.UTF8))) ) {
+                throw new IOException("Checksum mismatch");
+            }
+            data = JsonParser.parseString(body).getAsJsonObject();
+            return true;
+        }catch(Throwable t) {
+            logger.error("Query cache "+file+" is invalid and discarded: "+t);
+            data = new JsonObject();
+            return false;
+        }
+    }
+
+    /**
+     * 获取缓存的查询结果, 查询结果为空也会被缓存
+     *
+     * @return true 如果缓存存在
+     */
+    public synchronized boolean contains(String key) {
+        boolean result = data.has(key);
+        if ( result ) {
+            totalHits++;
+        }else {
+            totalMisses++;
+        }
+        return result;
+    }
+
+    /**
+     * 返回缓存的查询结果, 调用前需要先调用 contains() 判断缓存是否存在
+     */
+    public synchronized <T> T get(String key, Class<T> clazz) {
+        JsonElement json = data.get(key);
+        if ( json==null || json.isJsonNull() ) {
+            return null;
+        }
+        return gson.fromJson(json, clazz);
+    }
+
+    public synchronized void put(String key, Object value) {
+        data.add(key, value==null?JsonNull.INSTANCE:gson.toJsonTree(value));
+        dirty = true;
+    }
+
+    /**
+     * 有修改时保存到文件
+     */
+    public synchronized void save() {
+        if ( !dirty ) {
+            return;
+        }
+        try{
+            String body = data.toString();
+            JsonObject header = new JsonObject();
+            header.addProperty("version", VERSION);
+            header.addProperty("brokerId", brokerId);
+            header.addProperty("userId", userId);
+            header.addProperty("tradingDay", DateUtil.date2str(tradingDay));
+            header.addProperty("checksum", FileUtil.md5(body.getBytes(StringUtil.UTF8)));
+            file.getParentFile().mkdirs();
+            File tmpFile = new File(file.getParentFile(), file.getName()+".tmp");
+            FileUtil.save(tmpFile, header.toString()+"\n"+body);
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        }catch(Throwable t) {
+            logger.error("Save query cache "+file+" failed", t);
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package trader.service.trade.ctp;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Properties;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import trader.common.beans.BeansContainer;
+import trader.common.exception.AppException;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.ConversionUtil;
+import trader.common.util.FileUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.StringUtil;
+import trader.service.ServiceConstants.ConnState;
+import trader.service.event.AsyncEventService;
+import trader.service.trade.Account;
+import trader.service.trade.AccountStartupRecord;
+import trader.service.trade.FutureFeeEvaluator;
+import trader.service.trade.MarketTimeService;
+import trader.service.trade.Order;
+import trader.service.trade.OrderBuilder;
+import trader.service.trade.OrderStateTuple;
+import trader.service.trade.TradeConstants;
+import trader.service.trade.spi.AbsTxnSession;
+import trader.service.trade.spi.TxnSessionListener;
+
+/**
+ * 回放模式下替代CtpTxnSession的交易通道: 不连接CTP, 报单/撤单/改单请求只更新本地的提交状态,
+ * 报单和成交回报来自记录文件, 通过同一个 CtpTxnEventProcessor 处理.
+ * <BR>资金, 持仓, 报单和手续费率的查询返回实盘启动时记录的 AccountStartupRecord, 回放从实盘启动时的状态开始.
+ * <BR>没有启动状态记录时从空仓开始, 初始资金和手续费率文件从连接参数的 initMoney, commissionsFile 读取
+ */
+public class CtpReplayTxnSession extends AbsTxnSession implements TradeConstants {
+
+    private MarketTimeService mtService;
+    private AsyncEventService asyncEventService;
+    private CtpTxnEventProcessor processor;
+    private long[] money = new long[AccMoney.values().length];
+    private String positionsJson = (new JsonObject()).toString();
+    private String ordersJson = (new JsonArray()).toString();
+    private String feeEvaluatorJson;
+
+    public CtpReplayTxnSession(BeansContainer beansContainer, Account account, TxnSessionListener listener) {
+        super(beansContainer, account, listener);
+        mtService = beansContainer.getBean(MarketTimeService.class);
+        asyncEventService = beansContainer.getBean(AsyncEventService.class);
+        processor = new CtpTxnEventProcessor(account, this, listener);
+        asyncEventService.registerProcessor(processor);
+    }
+
+    @Override
+    public String getProvider() {
+        return PROVIDER_CTP;
+    }
+
+    @Override
+    public AccClassification getClassification() {
+        return AccClassification.Future;
+    }
+
+    @Override
+    public void connect(Properties connProps) {
+        changeState(ConnState.Connecting);
+        try {
+            tradingDay = mtService.getTradingDay();
+            File recordFile = AccountStartupRecord.getFile(asyncEventService.getReplayFile(), account.getId());
+            AccountStartupRecord record = AccountStartupRecord.load(recordFile);
+            if ( record!=null ) {
+                money = record.getMoney();
+                positionsJson = record.getPositions().toString();
+                ordersJson = record.getOrders().toString();
+                feeEvaluatorJson = record.getFeeEvaluator().toString();
+                logger.info("Replay account "+account.getId()+" from startup record "+recordFile);
+                changeState(ConnState.Connected);
+                return;
+            }
+            logger.warn("Startup record "+recordFile+" doesn't exist, replay account "+account.getId()+" starts from initMoney");
+            long initMoney = PriceUtil.price2long(ConversionUtil.toDouble(connProps.getProperty("initMoney"), true));
+            money = new long[AccMoney.values().length];
+            money[AccMoney.Balance.ordinal()] = initMoney;
+            money[AccMoney.PreBalance.ordinal()] = initMoney;
+            money[AccMoney.Available.ordinal()] = initMoney;
+            String commissionsFile = connProps.getProperty("commissionsFile");
+            if ( !StringUtil.isEmpty(commissionsFile) ) {
+                JsonObject commissionsJson = JsonParser.parseString(FileUtil.read(new File(commissionsFile))).getAsJsonObject();
+                feeEvaluatorJson = FutureFeeEvaluator.fromJson(null, commissionsJson).toJson().toString();
+            } else {
+                feeEvaluatorJson = (new JsonObject()).toString();
+            }
+            changeState(ConnState.Connected);
+        }catch(Throwable t) {
+            logger.error("Connect failed", t);
+            changeState(ConnState.ConnectFailed);
+        }
+    }
+
+    @Override
+    public String syncLoadFeeEvaluator(Collection<Exchangeable> subscriptions) throws Exception {
+        return feeEvaluatorJson;
+    }
+
+    @Override
+    public String syncConfirmSettlement() throws Exception {
+        return null;
+    }
+
+    @Override
+    public long[] syncQryAccounts() throws Exception {
+        long[] result = new long[money.length];
+        System.arraycopy(money, 0, result, 0, result.length);
+        return result;
+    }
+
+    @Override
+    public String syncQryPositions() throws Exception {
+        return positionsJson;
+    }
+
+    /**
+     * 返回记录的启动时报单, OrderImpl.toJson() 格式
+     */
+    @Override
+    public String syncQryOrders() throws Exception {
+        return ordersJson;
+    }
+
+    @Override
+    public Collection<Exchangeable> syncQueryInstruments() throws Exception {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void asyncSendOrder(Order order) throws AppException {
+        listener.onOrderStateChanged(order, new OrderStateTuple(OrderState.Submitting, OrderSubmitState.InsertSubmitting, mtService.currentTimeMillis()), null);
+    }
+
+    @Override
+    public void asyncCancelOrder(Order order) throws AppException {
+        OrderState state = order.getStateTuple().getState();
+        listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.CancelSubmitting, mtService.currentTimeMillis()), null);
+    }
+
+    @Override
+    public void asyncModifyOrder(Order order, OrderBuilder builder) throws AppException {
+        OrderState state = order.getStateTuple().getState();
+        listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.ModifySubmitting, mtService.currentTimeMillis()), null);
+    }
+
+    @Override
+    protected void closeImpl() {
+    }
+
+}
@@ -27,6 +27,7 @@ import trader.service.trade.Account;
 import trader.service.trade.Order;
 import trader.service.trade.OrderStateTuple;
 import trader.service.trade.TradeConstants;
+import trader.service.trade.spi.AbsTxnSession;
 import trader.service.trade.spi.TxnSessionListener;
 
 /**
@@ -44,16 +45,29 @@ public class CtpTxnEventProcessor implements AsyncEventProcessor, JctpConstants,
     public static final int DATA_TYPE_RSP_ORDER_ACTION = 5;
     public static final int DATA_TYPE_RTN_ACCOUNT_TRANSFER = 6;
 
-    private CtpTxnSession session;
+    private String id;
+    private AbsTxnSession session;
     private TxnSessionListener listener;
     protected Logger logger;
 
-    public CtpTxnEventProcessor(Account account, CtpTxnSession session, TxnSessionListener listener) {
+    /**
+     * @param session CtpTxnSession, 或者回放模式下的 CtpReplayTxnSession
+     */
+    public CtpTxnEventProcessor(Account account, AbsTxnSession session, TxnSessionListener listener) {
+        this.id = account.getId();
         this.session = session;
         this.listener = listener;
         logger = LoggerFactory.getLogger(account.getLoggerCategory()+"."+getClass().getSimpleName());
     }
 
+    /**
+     * 使用账户ID
+     */
+    @Override
+    public String getId() {
+        return id;
+    }
+
     /**
      * 异步报单/成交回报事件处理入口函数
      */
@@ -4,12 +4,14 @@ import java.io.File;
 import java.lang.reflect.Field;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -33,6 +35,9 @@ import trader.service.ServiceConstants.ConnState;
 import trader.service.ServiceErrorConstants;
 import trader.service.event.AsyncEventService;
 import trader.service.md.MarketDataService;
+import trader.service.stats.StatsCollector;
+import trader.service.stats.StatsItem;
+import trader.service.stats.StatsItemType;
 import trader.service.trade.Account;
 import trader.service.trade.MarketTimeService;
 import trader.service.trade.Order;
@@ -40,12 +45,42 @@ import trader.service.trade.OrderBuilder;
 import trader.service.trade.OrderStateTuple;
 import trader.service.trade.TradeConstants;
 import trader.service.trade.spi.AbsTxnSession;
+import trader.service.trade.spi.TxnRequestPipeline;
+import trader.service.trade.spi.TxnRequestPipeline.RequestSender;
+import trader.service.trade.spi.TxnRequestPipeline.RequestType;
 import trader.service.trade.spi.TxnSessionListener;
 
 /**
  * CTP的交易会话实现类. 目前使用异步多线程处理模式: 在收到报单/成交回报事件后, 将事件排队到AsyncEventService中异步处理.
  */
-public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstants, TradeConstants, JctpConstants{
+public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstants, TradeConstants, JctpConstants, RequestSender{
+    /**
+     * CTP 前置缺省流控: 每秒6笔报单/撤单请求
+     */
+    private static final String DEFAULT_ORDER_RATE_LIMIT = "6";
+    /**
+     * CTP 前置缺省流控: 每秒1笔查询请求
+     */
+    private static final String DEFAULT_QUERY_RATE_LIMIT = "1";
+
+    private static final String CACHE_INSTRUMENTS = "instruments";
+    private static final String CACHE_MARGIN_RATE = "marginRate.";
+    private static final String CACHE_COMMISSION_RATE = "commissionRate.";
+
+    /**
+     * 启动过程的各个阶段, 按照执行顺序排列
+     */
+    public static enum StartupStep{
+        FrontConnected
+        ,Login
+        ,ConfirmSettlement
+        ,QryAccounts
+        ,QryPositions
+        ,QryInstruments
+        ,QryMarginRates
+        ,QryCommissionRates
+        ,LoadFeeEvaluator
+    }
 
     private AsyncEventService asyncEventService;
 
@@ -77,6 +112,29 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
 
     private CtpTxnEventProcessor processor;
 
+    /**
+     * 报单/撤单/改单请求通过流控管道异步发送
+     */
+    private TxnRequestPipeline requestPipeline;
+
+    /**
+     * 查询请求最小间隔(毫秒)
+     */
+    private long queryInterval;
+    private long nextQueryTime;
+    private volatile long totalQueries;
+    private volatile long totalQueryWaitTime;
+    private boolean queryCacheEnabled;
+    /**
+     * 合约/保证金率/手续费率等静态查询结果的缓存, 登录后按照交易日创建
+     */
+    private CtpQueryCache queryCache;
+    private long connectTime;
+    /**
+     * 各启动阶段完成时间, 相对于开始连接时间的毫秒数
+     */
+    private long[] startupTimeline = new long[StartupStep.values().length];
+
     public CtpTxnSession(BeansContainer beansContainer, Account account, TxnSessionListener listener) {
         super(beansContainer, account, listener);
         asyncEventService = beansContainer.getBean(AsyncEventService.class);
@@ -92,17 +150,46 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
         return AccClassification.Future;
     }
 
+    /**
+     * 查询请求次数, 包括被缓存跳过的查询
+     */
+    public long getTotalQueries() {
+        return totalQueries;
+    }
+
+    /**
+     * 查询流控累计等待时间(毫秒)
+     */
+    public long getTotalQueryWaitTime() {
+        return totalQueryWaitTime;
+    }
+
+    public CtpQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * 返回各启动阶段完成时间, 相对于开始连接时间的毫秒数, 0代表未完成
+     */
+    public long getStartupTime(StartupStep step) {
+        return startupTimeline[step.ordinal()];
+    }
+
     @Override
     public void connect(Properties connProps) {
-        brokerId = decrypt(connProps.getProperty("brokerId"));
-        userId = decrypt(connProps.getProperty("userId"));
-        authCode = connProps.getProperty("authCode");
-        password = connProps.getProperty("password");
-        appId = decrypt(connProps.getProperty("appId"));
-        userProductInfo = connProps.getProperty("userProductInfo");
         try {
             changeState(ConnState.Connecting);
             closeImpl();
+            loadConnProps(connProps);
+            registerStartupStats();
+            double orderRateLimit = ConversionUtil.toDouble(connProps.getProperty("orderRateLimit", DEFAULT_ORDER_RATE_LIMIT));
+            int orderBurstLimit = ConversionUtil.toInt(connProps.getProperty("orderBurstLimit", DEFAULT_ORDER_RATE_LIMIT));
+            requestPipeline = new TxnRequestPipeline(account.getId(), this, orderRateLimit, orderBurstLimit, System::currentTimeMillis);
+            if ( connProps.containsKey("orderRetryDelay") ) {
+                requestPipeline.setRetryDelay(ConversionUtil.toLong(connProps.getProperty("orderRetryDelay")));
+            }
+            requestPipeline.registerStats(beansContainer.getBean(StatsCollector.class));
+            requestPipeline.start();
 
             traderApi = new TraderApi();
             traderApi.setListener(new TraderApiAdapter() {
@@ -842,7 +929,8 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
                 }
 
             });
-            traderApi.setFlowControl(true);
+            //查询请求由 paceQuery() 按照 queryRateLimit 控制频率, 报单请求由 requestPipeline 控制
+            traderApi.setFlowControl(false);
             traderApi.SubscribePrivateTopic(JctpConstants.THOST_TERT_QUICK);
             traderApi.SubscribePublicTopic(JctpConstants.THOST_TERT_QUICK);
             String frontUrl = connProps.getProperty("frontUrl");
@@ -854,8 +942,101 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
         }
     }
 
+    /**
+     * 解析连接参数
+     */
+    void loadConnProps(Properties connProps) {
+        brokerId = decrypt(connProps.getProperty("brokerId"));
+        userId = decrypt(connProps.getProperty("userId"));
+        authCode = connProps.getProperty("authCode");
+        password = connProps.getProperty("password");
+        appId = decrypt(connProps.getProperty("appId"));
+        userProductInfo = connProps.getProperty("userProductInfo");
+        double queryRateLimit = ConversionUtil.toDouble(connProps.getProperty("queryRateLimit", DEFAULT_QUERY_RATE_LIMIT));
+        queryInterval = queryRateLimit>0?(long)Math.ceil(1000/queryRateLimit):0;
+        queryCacheEnabled = ConversionUtil.toBoolean(connProps.getProperty("queryCache", "true"));
+        connectTime = System.currentTimeMillis();
+        Arrays.fill(startupTimeline, 0);
+    }
+
+    private void registerStartupStats() {
+        StatsCollector statsCollector = beansContainer.getBean(StatsCollector.class);
+        if ( statsCollector==null ) {
+            return;
+        }
+        String service = CtpTxnSession.class.getSimpleName();
+        for(StartupStep step:StartupStep.values()) {
+            StatsItem stepItem = new StatsItem(service, id, "startup"+step.name());
+            stepItem.setType(StatsItemType.Instant);
+            statsCollector.registerStatsItem(stepItem, (StatsItem itemInfo) -> {
+                return startupTimeline[step.ordinal()];
+            });
+        }
+        statsCollector.registerStatsItem(new StatsItem(service, id, "totalQueries"), (StatsItem itemInfo) -> {
+            return totalQueries;
+        });
+        statsCollector.registerStatsItem(new StatsItem(service, id, "totalQueryWaitTime"), (StatsItem itemInfo) -> {
+            return totalQueryWaitTime;
+        });
+        statsCollector.registerStatsItem(new StatsItem(service, id, "queryCacheHits"), (StatsItem itemInfo) -> {
+            CtpQueryCache queryCache = this.queryCache;
+            return queryCache!=null?queryCache.getTotalHits():0;
+        });
+    }
+
+    /**
+     * 记录启动阶段完成时间
+     */
+    private void markStartup(StartupStep step) {
+        if ( startupTimeline[step.ordinal()]!=0 ) {
+            return;
+        }
+        startupTimeline[step.ordinal()] = Math.max(1, System.currentTimeMillis()-connectTime);
+        if ( logger.isInfoEnabled() ) {
+            logger.info("Startup step "+step+" done at "+startupTimeline[step.ordinal()]+" ms");
+        }
+    }
+
+    /**
+     * 登录后创建并加载当前交易日的查询缓存
+     */
+    void initQueryCache() {
+        queryCache = null;
+        instruments = null;
+        if ( !queryCacheEnabled || tradingDay==null ) {
+            return;
+        }
+        File tradingDayDir = new File(TraderHomeUtil.getDirectory(TraderHomeUtil.DIR_WORK), DateUtil.date2str(tradingDay));
+        CtpQueryCache queryCache = new CtpQueryCache(new File(tradingDayDir, "ctp-"+brokerId+"-"+userId+".query-cache.json"), brokerId, userId, tradingDay);
+        if ( queryCache.load() ) {
+            logger.info("Load query cache "+queryCache.getFile());
+        }
+        this.queryCache = queryCache;
+    }
+
+    /**
+     * 查询请求流控: 按照 queryRateLimit 控制查询间隔, 只在距离上次查询不足间隔时等待.
+     */
+    private void paceQuery() throws InterruptedException {
+        long waitTime = 0;
+        synchronized(this) {
+            long now = System.currentTimeMillis();
+            waitTime = nextQueryTime-now;
+            nextQueryTime = Math.max(now, nextQueryTime)+queryInterval;
+        }
+        totalQueries++;
+        if ( waitTime>0 ) {
+            totalQueryWaitTime += waitTime;
+            Thread.sleep(waitTime);
+        }
+    }
+
     @Override
     protected void closeImpl() {
+        if ( requestPipeline!=null ) {
+            requestPipeline.stop();
+            requestPipeline = null;
+        }
         if ( traderApi!=null ) {
             TraderApi traderApi0 = traderApi;
             Thread closeThread = new Thread("Ctp txn close thread") {
@@ -886,6 +1067,7 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
         String settlement = null;
         long t0 = System.currentTimeMillis();
         CThostFtdcQrySettlementInfoConfirmField qryInfoField = new CThostFtdcQrySettlementInfoConfirmField(brokerId, userId, userId, null);
+        paceQuery();
         CThostFtdcSettlementInfoConfirmField infoConfirmField = traderApi.SyncReqQrySettlementInfoConfirm(qryInfoField);
         if ( infoConfirmField!=null && StringUtil.equals(traderApi.GetTradingDay(),infoConfirmField.ConfirmDate) ) {
             confirmed = true;
@@ -896,6 +1078,7 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
             qryField.BrokerID = brokerId;
             qryField.AccountID = userId;
             qryField.InvestorID = userId;
+            paceQuery();
             CThostFtdcSettlementInfoField[] infoFields = traderApi.SyncAllReqQrySettlementInfo(qryField);
             if ( infoFields==null || infoFields.length==0 ){
                 if ( logger.isDebugEnabled() ) {
@@ -918,6 +1101,7 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
             long t1 = System.currentTimeMillis();
             logger.info("Investor "+confirmResult.InvestorID+" settlement "+confirmResult.SettlementID+" is confirmed in "+(t1-t0)+" ms");
         }
+        markStartup(StartupStep.ConfirmSettlement);
         return settlement;
     }
 
@@ -928,7 +1112,9 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
     public long[] syncQryAccounts() throws Exception {
         long[] result = new long[AccMoney.values().length];
         CThostFtdcQryTradingAccountField q = new CThostFtdcQryTradingAccountField(brokerId, userId, null, THOST_FTDC_BZTP_Future, null);
+        paceQuery();
         CThostFtdcTradingAccountField r = traderApi.SyncReqQryTradingAccount(q);
+        markStartup(StartupStep.QryAccounts);
 
         result[AccMoney.Balance.ordinal()] = PriceUtil.price2long(r.Balance);
         result[AccMoney.Available.ordinal()] = PriceUtil.price2long(r.Available);
@@ -1015,14 +1201,14 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
         {
             Map<String, double[]> contract2ratios = new HashMap<>();
             for(Exchangeable e:primaryInstruments) {
-                CThostFtdcQryInstrumentMarginRateField f = new CThostFtdcQryInstrumentMarginRateField();
-                f.HedgeFlag=JctpConstants.THOST_FTDC_HF_Speculation; f.BrokerID = brokerId; f.InvestorID = userId; f.ExchangeID = e.exchange().name().toUpperCase(); f.InstrumentID = e.id();
-                CThostFtdcInstrumentMarginRateField r = traderApi.SyncReqQryInstrumentMarginRate(f);
+                CThostFtdcInstrumentMarginRateField r = cachedQuery(CACHE_MARGIN_RATE+e, CThostFtdcInstrumentMarginRateField.class, ()->{
+                    return qryInstrumentMarginRate(e);
+                });
                 if ( null==r) {
                     continue;
                 }
                 if (null!=r && r.LongMarginRatioByMoney==0 && r.LongMarginRatioByVolume==0) {
-                    logger.error("Ctp "+id+" 忽略全0保证金比率数据, req "+f+", resp: "+r);
+                    logger.error("Ctp "+id+" 忽略全0保证金比率数据, "+e+", resp: "+r);
                     continue;
                 }
                 double[] marginRatios = new double[MarginRatio.values().length];
@@ -1036,6 +1222,8 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
                 }
                 contract2ratios.put(e.contract(), marginRatios);
             }
+            saveQueryCache();
+            markStartup(StartupStep.QryMarginRates);
             //应用到全部合约
             for(String instrumentId:feeInfos.keySet()) {
                 JsonObject info = (JsonObject)feeInfos.get(instrumentId);
@@ -1059,9 +1247,9 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
                 if ( info==null ) {
                     continue;
                 }
-                CThostFtdcQryInstrumentCommissionRateField f = new CThostFtdcQryInstrumentCommissionRateField();
-                f.BrokerID = brokerId; f.InvestorID = userId; f.InstrumentID = e.id();
-                CThostFtdcInstrumentCommissionRateField r = traderApi.SyncReqQryInstrumentCommissionRate(f);
+                CThostFtdcInstrumentCommissionRateField r = cachedQuery(CACHE_COMMISSION_RATE+e, CThostFtdcInstrumentCommissionRateField.class, ()->{
+                    return qryInstrumentCommissionRate(e);
+                });
                 if( r==null ) {
                     continue;
                 }
@@ -1076,6 +1264,8 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
                 info.add("commissionRatios", JsonUtil.object2json(commissionRatios));
                 contract2commissions.put(e.contract(), commissionRatios);
             }
+            saveQueryCache();
+            markStartup(StartupStep.QryCommissionRates);
             //应用到全部合约
             for(String instrumentId:feeInfos.keySet()) {
                 JsonObject info = (JsonObject)feeInfos.get(instrumentId);
@@ -1114,6 +1304,7 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
         if ( brokerMarginRatio.size()>0) {
             logger.info("Account "+account.getId()+" 探测期货代理保证金率: "+brokerMarginRatio);
         }
+        markStartup(StartupStep.LoadFeeEvaluator);
         return result.toString();
     }
 
@@ -1156,6 +1347,7 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
         String tradingDay = traderApi.GetTradingDay();
         CThostFtdcQryInvestorPositionField f = new CThostFtdcQryInvestorPositionField();
         f.BrokerID = brokerId; f.InvestorID = userId;
+        paceQuery();
         CThostFtdcInvestorPositionField[] posFields= traderApi.SyncAllReqQryInvestorPosition(f);
         JsonObject posInfos = new JsonObject();
         Map<String, int[]> posVolumes = new HashMap<>();
@@ -1204,6 +1396,7 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
         CThostFtdcQryInvestorPositionDetailField f2 = new CThostFtdcQryInvestorPositionDetailField();
         f2.BrokerID = brokerId;
         f2.InvestorID = userId;
+        paceQuery();
         CThostFtdcInvestorPositionDetailField[] posDetailFields = traderApi.SyncAllReqQryInvestorPositionDetail(f2);
         for(int i=0;i<posDetailFields.length;i++){
             CThostFtdcInvestorPositionDetailField d= posDetailFields[i];
@@ -1255,12 +1448,14 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
             posInfo.add("volumes", TradeConstants.posVolume2json(volumes));
             posInfo.add("money", TradeConstants.posMoney2json(money));
         }
+        markStartup(StartupStep.QryPositions);
         return posInfos.toString();
     }
 
     public String syncQryOrders() throws Exception
     {
         CThostFtdcQryOrderField f = new CThostFtdcQryOrderField();
+        paceQuery();
         CThostFtdcOrderField[] orderFields = traderApi.SyncAllReqQryOrder(f);
         JsonArray result = new JsonArray();
         for(CThostFtdcOrderField orderField:orderFields) {
@@ -1310,7 +1505,74 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
     public void asyncSendOrder(Order order) throws AppException {
         order.setAttr(Order.ODRATR_CTP_FRONT_ID, Integer.toString(frontId));
         order.setAttr(Order.ODRATR_CTP_SESSION_ID, Integer.toString(sessionId));
+        listener.onOrderStateChanged(order, new OrderStateTuple(OrderState.Submitting, OrderSubmitState.InsertSubmitting, System.currentTimeMillis()), null);
+        submitRequest(RequestType.Insert, order, null);
+    }
 
+    /**
+     * 取消报单动作
+     */
+    @Override
+    public void asyncCancelOrder(Order order) throws AppException
+    {
+        submitRequest(RequestType.Cancel, order, null);
+    }
+
+    @Override
+    public void asyncModifyOrder(Order order, OrderBuilder builder) throws AppException
+    {
+        submitRequest(RequestType.Modify, order, builder);
+    }
+
+    private void submitRequest(RequestType type, Order order, OrderBuilder builder) throws AppException {
+        TxnRequestPipeline requestPipeline = this.requestPipeline;
+        if ( requestPipeline==null ) {
+            throw new AppException(ERRCODE_TRADE_SESSION_NOT_READY, "CTP "+frontId+" is not connected");
+        }
+        requestPipeline.submit(type, order, builder);
+    }
+
+    /**
+     * 由报单管道在流控允许时调用, 实际发送请求
+     */
+    @Override
+    public boolean sendRequest(RequestType type, Order order, OrderBuilder builder) throws Exception {
+        switch(type) {
+        case Insert:
+            return sendOrderInsert(order);
+        case Cancel:
+        {
+            CThostFtdcInputOrderActionField action = fillOrderAction(order);
+            action.ActionFlag = JctpConstants.THOST_FTDC_AF_Delete;
+            OrderState state = order.getStateTuple().getState();
+            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.CancelSubmitting, System.currentTimeMillis()), null);
+            if ( isFlowControlled(traderApi.ReqOrderAction(action)) ) {
+                return false;
+            }
+            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.CancelSubmitted, System.currentTimeMillis()), null);
+            return true;
+        }
+        case Modify:
+        {
+            CThostFtdcInputOrderActionField action = fillOrderAction(order);
+            action.ActionFlag = JctpConstants.THOST_FTDC_AF_Modify;
+            action.LimitPrice = PriceUtil.long2price(builder.getLimitPrice());
+            if ( builder.getVolume()>0 ) {
+                action.VolumeChange = builder.getVolume();
+            }
+            OrderState state = order.getStateTuple().getState();
+            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.ModifySubmitting, System.currentTimeMillis()), null);
+            if ( isFlowControlled(traderApi.ReqOrderAction(action)) ) {
+                return false;
+            }
+            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.ModifySubmitted, System.currentTimeMillis()), null);
+            return true;
+        }
+        }
+        return true;
+    }
+
+    private boolean sendOrderInsert(Order order) throws Exception {
         CThostFtdcInputOrderField req = new CThostFtdcInputOrderField();
         req.BrokerID = brokerId;
         req.UserID = userId;
@@ -1332,71 +1594,113 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
         req.IsAutoSuspend = false;
         req.MinVolume = 1;
 
-        listener.onOrderStateChanged(order, new OrderStateTuple(OrderState.Submitting, OrderSubmitState.InsertSubmitting, System.currentTimeMillis()), null);
-        try{
-            traderApi.ReqOrderInsert(req);
-            listener.onOrderStateChanged(order, new OrderStateTuple(OrderState.Submitted, OrderSubmitState.InsertSubmitting, System.currentTimeMillis()), null);
-        }catch(Throwable t) {
-            logger.error("ReqOrderInsert failed: "+order, t);
-            listener.onOrderStateChanged(order, new OrderStateTuple(OrderState.Failed, OrderSubmitState.InsertRejected, System.currentTimeMillis()), null);
-            throw new AppException(t, ERRCODE_TRADE_SEND_ORDER_FAILED, "CTP "+frontId+" ReqOrderInsert failed: "+t.toString());
+        if ( isFlowControlled(traderApi.ReqOrderInsert(req)) ) {
+            return false;
         }
+        listener.onOrderStateChanged(order, new OrderStateTuple(OrderState.Submitted, OrderSubmitState.InsertSubmitting, System.currentTimeMillis()), null);
+        return true;
     }
 
     /**
-     * 取消报单动作
+     * CTP请求返回值: -2 未处理请求超过许可数, -3 每秒发送请求数超过许可数
      */
-    @Override
-    public void asyncCancelOrder(Order order) throws AppException
-    {
-        CThostFtdcInputOrderActionField action = fillOrderAction(order);
-        action.ActionFlag = JctpConstants.THOST_FTDC_AF_Delete;
+    private static boolean isFlowControlled(int reqResult) {
+        return reqResult==-2 || reqResult==-3;
+    }
 
+    @Override
+    public void onRequestFailed(RequestType type, Order order, OrderBuilder builder, Throwable t) {
         OrderState state = order.getStateTuple().getState();
-        try{
-            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.CancelSubmitting, System.currentTimeMillis()), null);
-            traderApi.ReqOrderAction(action);
-            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.CancelSubmitted, System.currentTimeMillis()), null);
-        }catch(Throwable t) {
+        switch(type) {
+        case Insert:
+            logger.error("ReqOrderInsert failed: "+order, t);
+            listener.onOrderStateChanged(order, new OrderStateTuple(OrderState.Failed, OrderSubmitState.InsertRejected, System.currentTimeMillis(), "CTP "+frontId+" ReqOrderInsert failed: "+t.toString()), null);
+            break;
+        case Cancel:
             logger.error("ReqOrderAction cancel order "+order.getRef()+" failed: "+order, t);
-            throw new AppException(t, ERRCODE_TRADE_CANCEL_ORDER_FAILED, "CTP "+frontId+" ReqOrderAction cancel order "+order.getRef()+" failed: "+t.toString());
+            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.CancelRejected, System.currentTimeMillis(), "CTP "+frontId+" ReqOrderAction cancel order "+order.getRef()+" failed: "+t.toString()), null);
+            break;
+        case Modify:
+            logger.error("ReqOrderAction modify order "+order.getRef()+" failed: "+order, t);
+            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.ModifyRejected, System.currentTimeMillis(), "CTP "+frontId+" ReqOrderAction modify order "+order.getRef()+" failed: "+t.toString()), null);
+            break;
         }
     }
 
     @Override
-    public void asyncModifyOrder(Order order, OrderBuilder builder) throws AppException
-    {
-        CThostFtdcInputOrderActionField action = fillOrderAction(order);
-        action.ActionFlag = JctpConstants.THOST_FTDC_AF_Modify;
-        action.LimitPrice = PriceUtil.long2price(builder.getLimitPrice());
-        if ( builder.getVolume()>0 ) {
-            action.VolumeChange = builder.getVolume();
-        }
-
-        OrderState state = order.getStateTuple().getState();
-        try{
-            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.ModifySubmitting, System.currentTimeMillis()), null);
-            traderApi.ReqOrderAction(action);
-            listener.onOrderStateChanged(order, new OrderStateTuple(state, OrderSubmitState.ModifySubmitted, System.currentTimeMillis()), null);
-        }catch(Throwable t) {
-            logger.error("ReqOrderAction modify order "+order.getRef()+" failed: "+order, t);
-            throw new AppException(t, ERRCODE_TRADE_MODIFY_ORDER_FAILED, "CTP "+frontId+" ReqOrderAction modify order "+order.getRef()+" failed: "+t.toString());
-        }
+    public void onInsertCanceled(Order order) {
+        listener.onOrderStateChanged(order, new OrderStateTuple(OrderState.Canceled, OrderSubmitState.Accepted, System.currentTimeMillis(), "报单未发送已撤单"), null);
     }
 
     private CThostFtdcInstrumentField[] syncQueryInstruments0() throws Exception
     {
         if ( null==instruments) {
-            traderApi.setSyncReqTimeout(120);
             long t5_0 = System.currentTimeMillis();
-            instruments = traderApi.SyncAllReqQryInstrument(new CThostFtdcQryInstrumentField());
+            CThostFtdcInstrumentField[] instruments = cachedQuery(CACHE_INSTRUMENTS, CThostFtdcInstrumentField[].class, ()->{
+                return qryInstruments();
+            });
+            saveQueryCache();
             long t5_1 = System.currentTimeMillis();
             logger.info("加载 "+instruments.length+" 合约, 耗时 "+(t5_1-t5_0)+" 毫秒");
-            traderApi.setSyncReqTimeout(30);
+            this.instruments = instruments;
+            markStartup(StartupStep.QryInstruments);
         }
         return instruments;
     }
 
+    /**
+     * 优先从缓存返回查询结果, 缓存不存在时按照查询流控查询并加入缓存
+     */
+    private <T> T cachedQuery(String key, Class<T> clazz, Callable<T> query) throws Exception {
+        CtpQueryCache queryCache = this.queryCache;
+        if ( queryCache!=null && queryCache.contains(key) ) {
+            return queryCache.get(key, clazz);
+        }
+        paceQuery();
+        T result = query.call();
+        if ( queryCache!=null ) {
+            queryCache.put(key, result);
+        }
+        return result;
+    }
+
+    private void saveQueryCache() {
+        CtpQueryCache queryCache = this.queryCache;
+        if ( queryCache!=null ) {
+            queryCache.save();
+        }
+    }
+
+    /**
+     * 查询全部合约
+     */
+    protected CThostFtdcInstrumentField[] qryInstruments() throws Exception {
+        traderApi.setSyncReqTimeout(120);
+        try{
+            return traderApi.SyncAllReqQryInstrument(new CThostFtdcQryInstrumentField());
+        }finally {
+            traderApi.setSyncReqTimeout(30);
+        }
+    }
+
+    /**
+     * 查询合约的投机保证金率
+     */
+    protected CThostFtdcInstrumentMarginRateField qryInstrumentMarginRate(Exchangeable e) throws Exception {
+        CThostFtdcQryInstrumentMarginRateField f = new CThostFtdcQryInstrumentMarginRateField();
+        f.HedgeFlag=JctpConstants.THOST_FTDC_HF_Speculation; f.BrokerID = brokerId; f.InvestorID = userId; f.ExchangeID = e.exchange().name().toUpperCase(); f.InstrumentID = e.id();
+        return traderApi.SyncReqQryInstrumentMarginRate(f);
+    }
+
+    /**
+     * 查询合约的手续费率
+     */
+    protected CThostFtdcInstrumentCommissionRateField qryInstrumentCommissionRate(Exchangeable e) throws Exception {
+        CThostFtdcQryInstrumentCommissionRateField f = new CThostFtdcQryInstrumentCommissionRateField();
+        f.BrokerID = brokerId; f.InvestorID = userId; f.InstrumentID = e.id();
+        return traderApi.SyncReqQryInstrumentCommissionRate(f);
+    }
+
     private CThostFtdcInputOrderActionField fillOrderAction(Order order) {
         CThostFtdcInputOrderActionField action = new CThostFtdcInputOrderActionField();
         action.ActionFlag = JctpConstants.THOST_FTDC_AF_Delete;
@@ -1468,6 +1772,7 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
 
     public void ctpOnFrontConnected() {
         logger.info("OnFrontConnected");
+        markStartup(StartupStep.FrontConnected);
         if ( getState()==ConnState.Connecting ) {
             //login
             if ( shouldAuthenticate() ) {
@@ -1497,8 +1802,10 @@ public class CtpTxnSession extends AbsTxnSession implements ServiceErrorConstant
         if ( pRspInfo.ErrorID==0 ) {
             frontId = pRspUserLogin.FrontID;
             sessionId = pRspUserLogin.SessionID;
-            changeState(ConnState.Connected);
             tradingDay = DateUtil.str2localdate(pRspUserLogin.TradingDay);
+            markStartup(StartupStep.Login);
+            initQueryCache();
+            changeState(ConnState.Connected);
             LocalDate tradingDay2 = beansContainer.getBean(MarketTimeService.class).getTradingDay();
             if ( !tradingDay.equals(tradingDay2)) {
                 logger.error("计算交易日失败, CTP: "+tradingDay+", 计算: "+tradingDay2);
@@ -17,11 +17,13 @@ import trader.common.beans.Lifecycle;
 import trader.common.config.ConfigUtil;
 import trader.common.util.ConversionUtil;
 import trader.common.util.StringUtil;
+import trader.service.event.AsyncEventService;
 import trader.service.trade.AccountListener;
 import trader.service.util.ConcurrentUtil;
 
 /**
  * 交易策略分组的单线程引擎, 每个对象必须独占一个线程
+ * <BR>事件回放模式下不使用独立线程, 事件在回放线程中同步处理, 保证处理顺序与记录的顺序一致
  */
 public class TradletGroupEngine extends AbsTradletGroupEngine implements Lifecycle, EventHandler<TradletEvent>, AccountListener {
     private static final Logger logger = LoggerFactory.getLogger(TradletGroupEngine.class);
@@ -30,6 +32,7 @@ public class TradletGroupEngine extends AbsTradletGroupEngine implements Lifecyc
     private Disruptor<TradletEvent> disruptor;
     private RingBuffer<TradletEvent> ringBuffer;
     private volatile long lastEventTime;
+    private boolean synchronous;
 
     public TradletGroupEngine(TradletGroupImpl group) {
         this.group = group;
@@ -42,6 +45,11 @@ public class TradletGroupEngine extends AbsTradletGroupEngine implements Lifecyc
     @Override
     public void init(BeansContainer beansContainer) {
         super.init(beansContainer);
+        AsyncEventService asyncEventService = beansContainer.getBean(AsyncEventService.class);
+        if ( asyncEventService!=null && asyncEventService.isReplayMode() ) {
+            synchronous = true;
+            return;
+        }
 
         ExecutorService executorService = beansContainer.getBean(ExecutorService.class);
 
@@ -88,6 +96,14 @@ public class TradletGroupEngine extends AbsTradletGroupEngine implements Lifecyc
 
     @Override
     public void queueEvent(int eventType, Object data) {
+        if ( synchronous ) {
+            try {
+                processEvent(eventType, data);
+            } catch (Throwable t) {
+                logger.error("Tradlet group "+group.getId()+" process event "+String.format("%08X", eventType)+" failed", t);
+            }
+            return;
+        }
         if( null==ringBuffer) {
             return;
         }
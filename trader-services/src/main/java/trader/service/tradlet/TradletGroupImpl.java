@@ -116,7 +116,7 @@ public class TradletGroupImpl implements TradletGroup, ServiceErrorCodes {
     }
 
     public Tradlet getTradlet(String tradletId) {
-        for(int i=0;i<=enabledTradletHolders.size();i++) {
+        for(int i=0;i<enabledTradletHolders.size();i++) {
             TradletHolder holder = enabledTradletHolders.get(i);
             if ( holder.getId().equals(tradletId)) {
                 return holder.getTradlet();
@@ -126,7 +126,7 @@ public class TradletGroupImpl implements TradletGroup, ServiceErrorCodes {
     }
 
     public String getTradletId(Tradlet tradlet) {
-        for(int i=0;i<=enabledTradletHolders.size();i++) {
+        for(int i=0;i<enabledTradletHolders.size();i++) {
             TradletHolder holder = enabledTradletHolders.get(i);
             if ( holder.getTradlet()==tradlet) {
                 return holder.getId();
@@ -138,7 +138,7 @@ public class TradletGroupImpl implements TradletGroup, ServiceErrorCodes {
     @Override
     public List<Tradlet> getTradlets(){
         List<Tradlet> result = new ArrayList<>(enabledTradletHolders.size());
-        for(int i=0;i<=enabledTradletHolders.size();i++) {
+        for(int i=0;i<enabledTradletHolders.size();i++) {
             TradletHolder holder = enabledTradletHolders.get(i);
             result.add(holder.getTradlet());
         }
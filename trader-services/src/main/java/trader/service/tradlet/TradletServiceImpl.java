@@ -32,6 +32,7 @@ import trader.common.util.JsonUtil;
 import trader.common.util.StringUtil;
 import trader.service.ServiceErrorConstants;
 import trader.service.beans.DiscoverableRegistry;
+import trader.service.event.AsyncEventService;
 import trader.service.md.MarketData;
 import trader.service.md.MarketDataService;
 import trader.service.plugin.Plugin;
@@ -77,9 +78,13 @@ public class TradletServiceImpl extends AbsTradletService implements TradletCons
         tradletInfos = reloadTradletInfos(loadStandardTradlets(), filterTradletPlugins(pluginService.getPlugins()), allTradletIds, null, updatedPluginIds);
         logger.info("Load "+allTradletIds.size()+" tradlets: "+allTradletIds+" from plugins: "+updatedPluginIds);
         reloadGroups();
-        scheduledExecutorService.scheduleAtFixedRate(()->{
-            queueNoopSecondEvent();
-        }, 1000, 1, TimeUnit.SECONDS);
+        //回放模式下不使用系统时间产生空闲事件, 避免引入记录之外的事件
+        AsyncEventService asyncEventService = beansContainer.getBean(AsyncEventService.class);
+        if ( asyncEventService==null || !asyncEventService.isReplayMode() ) {
+            scheduledExecutorService.scheduleAtFixedRate(()->{
+                queueNoopSecondEvent();
+            }, 1000, 1, TimeUnit.SECONDS);
+        }
     }
 
     @Override
@@ -4,7 +4,6 @@ import trader.common.beans.BeansContainer;
 import trader.common.exchangeable.Exchangeable;
 import trader.common.exchangeable.ExchangeableTradingTimes;
 import trader.common.util.ConversionUtil;
-import trader.common.util.DateUtil;
 import trader.common.util.JsonEnabled;
 import trader.common.util.PriceUtil;
 import trader.service.md.MarketData;
@@ -47,8 +46,8 @@ public abstract class AbsStopPolicy implements JsonEnabled, TradletConstants {
             if ( tradingTimes==null ) {
                 tradingTimes = e.exchange().detectTradingTimes(e, mtService.getMarketTime());
             }
-            int beginMarketTime = tradingTimes.getTradingTime(DateUtil.long2datetime(e.exchange().getZoneId(), beginTime));
-            int endMarketTime = tradingTimes.getTradingTime(DateUtil.long2datetime(e.exchange().getZoneId(), endTime));
+            int beginMarketTime = tradingTimes.getTradingTime(beginTime);
+            int endMarketTime = tradingTimes.getTradingTime(endTime);
 
             if ( (endMarketTime-beginMarketTime)>=marketTime ) {
                 return true;
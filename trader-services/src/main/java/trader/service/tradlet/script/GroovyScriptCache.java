@@ -0,0 +1,33 @@
+package trader.service.tradlet.script;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import groovy.lang.GroovyClassLoader;
+
+/**
+ * 已编译的脚本类, 按脚本内容索引.
+ * <BR>回测时由跨越交易日的BeansContainer持有, 每个交易日重新创建的交易组不重复编译相同的脚本, 回测结束后随之释放.
+ * 没有这个对象时每次加载都重新编译, 脚本修改后旧的脚本类可以被回收.
+ */
+public class GroovyScriptCache {
+
+    private final Map<String, Class<GroovyScriptBase>> compiledScripts = new ConcurrentHashMap<>();
+
+    /**
+     * 返回已编译的脚本类, 不存在时使用 scriptLoader 编译
+     */
+    public Class<GroovyScriptBase> getScriptClass(String scriptText, GroovyClassLoader scriptLoader) {
+        Class<GroovyScriptBase> result = compiledScripts.get(scriptText);
+        if ( result==null ) {
+            result = scriptLoader.parseClass(scriptText);
+            compiledScripts.put(scriptText, result);
+        }
+        return result;
+    }
+
+    public int size() {
+        return compiledScripts.size();
+    }
+
+}
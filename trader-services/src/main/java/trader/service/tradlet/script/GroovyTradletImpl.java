@@ -85,7 +85,13 @@ public class GroovyTradletImpl implements Tradlet, ScriptContext {
     public void reload(TradletContext context) throws Exception
     {
         try{
-            scriptClass = scriptLoader.parseClass(context.getConfigText());
+            //回测时相同脚本的多个实例不重复编译, 例如每个交易日重新创建的交易组
+            GroovyScriptCache scriptCache = beansContainer.getBean(GroovyScriptCache.class);
+            if ( scriptCache!=null ) {
+                scriptClass = scriptCache.getScriptClass(context.getConfigText(), scriptLoader);
+            } else {
+                scriptClass = scriptLoader.parseClass(context.getConfigText());
+            }
             script = scriptClass.getDeclaredConstructor().newInstance();
             script.setId(group.getId());
             script.setContext(this);
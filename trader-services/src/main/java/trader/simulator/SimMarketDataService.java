@@ -13,6 +13,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -27,6 +28,7 @@ import trader.common.exception.AppRuntimeException;
 import trader.common.exchangeable.Exchange;
 import trader.common.exchangeable.Exchangeable;
 import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.ExchangeableDataCache;
 import trader.common.exchangeable.ExchangeableData.DataInfo;
 import trader.common.exchangeable.ExchangeableTradingTimes;
 import trader.common.exchangeable.Future;
@@ -52,43 +54,89 @@ import trader.service.util.SimpleBeansContainer;
 public class SimMarketDataService implements MarketDataService, SimMarketTimeAware {
     private final static Logger logger = LoggerFactory.getLogger(SimMarketDataService.class);
 
+    /**
+     * 单个品种的行情游标, 按需从CSV中解析TICK, 解析出的行情对象只保留最后通知和下一个待通知的两个.
+     * <BR>原始CSV文本仍然一次读入内存, 在游标读完之前一直保留, 大小与当天TICK数量成正比(每行约数百字节), 读完后释放.
+     * 节省的是整个交易日的 MarketData 对象列表, 而不是CSV文本本身.
+     * <BR>使用 SimTickCache 时从共享的已解码行情列表中读取
+     */
     private static class SimMDInfo {
+        Exchangeable instrument;
+        /**
+         * 订阅顺序, 同一时间片的多个品种按照订阅顺序通知
+         */
+        int order;
+        LocalDate tradingDay;
         ExchangeableTradingTimes tradingTimes;
-        List<MarketData> ticks = new ArrayList<>();
-        int nextDataIndex = 0;
+        ZoneId zoneId;
+        CSVDataSet csvDataSet;
+        CSVMarshallHelper csvMarshallHelper;
+        MarketDataProducer mdProducer;
+        long lastTimestamp;
+        /**
+         * 共享的已解码行情, 已经完成时间戳修正和 postProcess()
+         */
+        List<MarketData> sharedTicks;
+        int sharedTickIndex;
+        /**
+         * 最后一个已通知的行情
+         */
+        MarketData lastTick;
+        /**
+         * 下一个未通知的行情
+         */
+        MarketData nextTick;
 
+        /**
+         * 下一个未通知的行情时间, null代表全部通知完毕
+         */
+        LocalDateTime nextTime() {
+            if ( nextTick!=null ) {
+                return nextTick.updateTime;
+            }
+            return null;
+        }
 
         /**
-         * 寻找下一个行情数据
+         * 解析下一个TICK, 同时修正重复的时间戳, 规则与 postprocessTicks() 相同
          */
-        public MarketData seek(LocalDateTime lastTime, LocalDateTime actionTime) {
-            MarketData result = null;
-            if ( lastTime==null ) { //第一次, 寻找与市场时间相等或最后一个小于市场时间的行情切片
-                for(int i=0;i<ticks.size();i++) {
-                    MarketData md = ticks.get(i);
-                    int actionTimeCompare= actionTime.compareTo(md.updateTime);
-                    if ( actionTimeCompare>=0 ) { //actionTime >= marketDataTime
-                        nextDataIndex = i+1;
-                        result = md;
-                        continue;
-                    } else {
-                        nextDataIndex = i;
-                        break;
-                    }
-                }
-            } else { //后续, 寻找lastTime<=updateTime&&updateTime<=actionTime
-                for(int i=nextDataIndex;i<ticks.size();i++) {
-                    MarketData md = ticks.get(i);
-                    int actionTimeCompare= actionTime.compareTo(md.updateTime);
-                    if ( actionTimeCompare>=0 ) { //actionTime >= marketDataTime
-                        nextDataIndex = i+1;
-                        result = md;
-                        continue;
-                    } else {
-                        nextDataIndex = i;
-                        break;
-                    }
+        private void advance() {
+            nextTick = null;
+            if ( sharedTicks!=null ) {
+                if ( sharedTickIndex<sharedTicks.size() ) {
+                    nextTick = sharedTicks.get(sharedTickIndex++);
                 }
+                return;
+            }
+            if ( csvDataSet==null ) {
+                return;
+            }
+            if ( !csvDataSet.next() ) {
+                csvDataSet.close();
+                csvDataSet = null;
+                return;
+            }
+            MarketData tick = mdProducer.createMarketData(csvMarshallHelper.unmarshall(csvDataSet.getRow()), tradingDay);
+            if ( zoneId==null ) {
+                zoneId = tick.instrument.exchange().getZoneId();
+            }
+            if ( tick.updateTimestamp<=lastTimestamp ) {
+                tick.updateTimestamp=lastTimestamp+200;
+                tick.updateTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(tick.updateTimestamp), zoneId).toLocalDateTime();
+            }
+            lastTimestamp = tick.updateTimestamp;
+            nextTick = tick;
+        }
+
+        /**
+         * 寻找与市场时间相等或最后一个小于市场时间的行情切片, 之前的行情被跳过
+         */
+        public MarketData seek(LocalDateTime actionTime) {
+            MarketData result = null;
+            while( nextTick!=null && actionTime.compareTo(nextTick.updateTime)>=0 ) { //actionTime >= marketDataTime
+                result = nextTick;
+                lastTick = nextTick;
+                advance();
             }
             return result;
         }
@@ -102,6 +150,22 @@ public class SimMarketDataService implements MarketDataService, SimMarketTimeAwa
     protected Map<Exchangeable, List<MarketDataListener>> listeners = new HashMap<>();
     protected Set<Exchangeable> subscriptions = new TreeSet<>();
     protected Map<Exchangeable, SimMDInfo> mdInfos = new HashMap<>();
+    /**
+     * 按照下一个行情时间排序的品种游标堆, 多个品种的行情在这里归并, 时间相同时按订阅顺序.
+     * <BR>每个时间片只处理有新行情的品种, 不需要遍历全部订阅; 堆顶同时是事件驱动模式的下一个事件时间
+     */
+    private PriorityQueue<SimMDInfo> pendingInfos = new PriorityQueue<>((SimMDInfo i1, SimMDInfo i2)->{
+        int result = i1.nextTime().compareTo(i2.nextTime());
+        if ( result==0 ) {
+            result = Integer.compare(i1.order, i2.order);
+        }
+        return result;
+    });
+    private List<SimMDInfo> dueInfos = new ArrayList<>();
+    /**
+     * 配置中以$开头的主力合约订阅, 切换交易日时重新计算
+     */
+    private Map<String, Exchangeable> primarySubscriptions = new HashMap<>();
 
     protected LocalDateTime lastTime;
 
@@ -134,8 +198,8 @@ public class SimMarketDataService implements MarketDataService, SimMarketTimeAwa
     public MarketData getLastData(Exchangeable e) {
         MarketData result = null;
         SimMDInfo mdInfo = mdInfos.get(e);
-        if ( mdInfo!=null && mdInfo.nextDataIndex>0 ) {
-            result = mdInfo.ticks.get(mdInfo.nextDataIndex-1);
+        if ( mdInfo!=null ) {
+            result = mdInfo.lastTick;
         }
         return result;
     }
@@ -175,6 +239,7 @@ public class SimMarketDataService implements MarketDataService, SimMarketTimeAwa
             Exchangeable instrument = null;
             if ( instrumentId.startsWith("$")) {
                 instrument = getPrimaryInstrument(null, instrumentId.substring(1));
+                primarySubscriptions.put(instrumentId.substring(1), instrument);
             }else {
                 instrument = Exchangeable.fromString(instrumentId);
             }
@@ -193,6 +258,33 @@ public class SimMarketDataService implements MarketDataService, SimMarketTimeAwa
 
     }
 
+    /**
+     * 复用到新的交易日: 保留监听器和行情解析器, 释放上一交易日的行情游标, 主力合约按新交易日重新计算.
+     * <BR>新交易日的行情在第一个时间片加载
+     */
+    public void resetForTradingDay(LocalDate tradingDay) {
+        for(SimMDInfo mdInfo:mdInfos.values()) {
+            if ( mdInfo.csvDataSet!=null ) {
+                mdInfo.csvDataSet.close();
+            }
+        }
+        mdInfos.clear();
+        pendingInfos.clear();
+        dueInfos.clear();
+        lastTime = null;
+        for(Map.Entry<String, Exchangeable> entry:primarySubscriptions.entrySet()) {
+            Exchangeable lastInstrument = entry.getValue();
+            Exchangeable instrument = getPrimaryInstrument(null, entry.getKey(), tradingDay);
+            if ( lastInstrument!=null && !lastInstrument.equals(instrument) && !listeners.containsKey(lastInstrument) ) {
+                subscriptions.remove(lastInstrument);
+            }
+            if ( instrument!=null ) {
+                subscriptions.add(instrument);
+            }
+            entry.setValue(instrument);
+        }
+    }
+
     @Override
     public void onTimeChanged(LocalDate tradingDay, LocalDateTime actionTime) {
         //通知行情数据
@@ -200,20 +292,32 @@ public class SimMarketDataService implements MarketDataService, SimMarketTimeAwa
             //第一次调用, 需要加载数据
             loadMarketData(tradingDay);
         }
-        for(Exchangeable e:subscriptions) {
-            SimMDInfo mdInfo = mdInfos.get(e);
-            if ( mdInfo==null ) {
-                continue;
+        //取出有新行情的品种, 按订阅顺序通知
+        dueInfos.clear();
+        while( !pendingInfos.isEmpty() && pendingInfos.peek().nextTime().compareTo(actionTime)<=0 ) {
+            dueInfos.add(pendingInfos.poll());
+        }
+        if ( dueInfos.size()>1 ) {
+            dueInfos.sort((SimMDInfo i1, SimMDInfo i2)->{
+                return Integer.compare(i1.order, i2.order);
+            });
+        }
+        for(int i=0;i<dueInfos.size();i++) {
+            SimMDInfo mdInfo = dueInfos.get(i);
+            MarketData md = mdInfo.seek(actionTime);
+            if ( mdInfo.nextTime()!=null ) {
+                pendingInfos.add(mdInfo);
             }
-            MarketData md = mdInfo.seek(lastTime, actionTime);
             if ( md==null ) {
                 continue;
             }
-            md.postProcess(mdInfo.tradingTimes);
+            if ( mdInfo.sharedTicks==null ) {
+                md.postProcess(mdInfo.tradingTimes);
+            }
             for(MarketDataListener listener:genericListeners) {
                 listener.onMarketData(md);
             }
-            List<MarketDataListener> eListeners = listeners.get(e);
+            List<MarketDataListener> eListeners = listeners.get(mdInfo.instrument);
             if ( eListeners!=null ) {
                 for(MarketDataListener listener:eListeners) {
                     listener.onMarketData(md);
@@ -223,31 +327,105 @@ public class SimMarketDataService implements MarketDataService, SimMarketTimeAwa
         lastTime = actionTime;
     }
 
+    /**
+     * 下一个行情的时间. 第一次调用前需要在下一个时间片加载数据
+     */
+    @Override
+    public LocalDateTime nextEventTime(LocalDateTime currTime) {
+        if ( lastTime==null ) {
+            return currTime;
+        }
+        SimMDInfo mdInfo = pendingInfos.peek();
+        if ( mdInfo==null ) {
+            return null;
+        }
+        return mdInfo.nextTime();
+    }
+
+    /**
+     * 为每个品种创建行情游标, TICK在通知时才解析. 存在 SimTickCache 时使用共享的已解码行情
+     */
     private void loadMarketData(LocalDate tradingDay) {
-        ExchangeableData data = TraderHomeUtil.getExchangeableData();
+        DataInfo tickInfo = ExchangeableData.TICK_CTP;
+        SimTickCache tickCache = beansContainer.getBean(SimTickCache.class);
         for(Exchangeable e:subscriptions) {
             SimMDInfo mdInfo  =new SimMDInfo();
+            mdInfo.instrument = e;
+            mdInfo.order = mdInfos.size();
+            mdInfo.tradingDay = tradingDay;
             mdInfo.tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
-            DataInfo tickInfo = ExchangeableData.TICK_CTP;
-            String tickCsv = null;
+            boolean loaded = false;
             try{
-                tickCsv = data.load(e, tickInfo, tradingDay);
+                if ( tickCache!=null ) {
+                    mdInfo.sharedTicks = tickCache.getTicks(e, tradingDay, ()->{
+                        return decodeTicks(e, tickInfo, tradingDay, mdInfo.tradingTimes);
+                    });
+                    loaded = mdInfo.sharedTicks!=null;
+                } else {
+                    loaded = openTickCsv(mdInfo, tickInfo);
+                }
             }catch(Throwable t) {
                 logger.error("加载 "+e+" 交易日 "+tradingDay+" TICK行情数据失败", t);
                 throw new RuntimeException(t);
             }
-
-            CSVMarshallHelper csvMarshallHelper = createCSVMarshallHelper(tickInfo);
-            MarketDataProducer mdProducer = createMarketDataProducer(tickInfo);
-
-            CSVDataSet csvDataSet = CSVUtil.parse(tickCsv);
-            while(csvDataSet.next()) {
-                MarketData marketData = mdProducer.createMarketData(csvMarshallHelper.unmarshall(csvDataSet.getRow()), tradingDay);
-                mdInfo.ticks.add(marketData);
+            if ( !loaded ) {
+                logger.warn(e+" 交易日 "+tradingDay+" 无TICK行情数据");
+                continue;
             }
-            postprocessTicks(mdInfo.ticks);
+            mdInfo.advance();
             mdInfos.put(e, mdInfo);
+            if ( mdInfo.nextTime()!=null ) {
+                pendingInfos.add(mdInfo);
+            }
+        }
+    }
+
+    /**
+     * 加载完整的CSV文本后在其上创建逐行解析的游标. CSV文本在游标读完或者交易日结束前常驻内存
+     */
+    private boolean openTickCsv(SimMDInfo mdInfo, DataInfo tickInfo) throws IOException {
+        String tickCsv = loadTickCsv(mdInfo.instrument, tickInfo, mdInfo.tradingDay);
+        if ( tickCsv==null ) {
+            return false;
+        }
+        mdInfo.csvMarshallHelper = createCSVMarshallHelper(tickInfo);
+        mdInfo.mdProducer = createMarketDataProducer(tickInfo);
+        mdInfo.csvDataSet = CSVUtil.parse(tickCsv);
+        return true;
+    }
+
+    /**
+     * 一次解码某个品种某个交易日的全部TICK, 用于多个回测共享
+     *
+     * @return null 如果数据不存在
+     */
+    private List<MarketData> decodeTicks(Exchangeable e, DataInfo tickInfo, LocalDate tradingDay, ExchangeableTradingTimes tradingTimes) throws IOException {
+        SimMDInfo mdInfo = new SimMDInfo();
+        mdInfo.instrument = e;
+        mdInfo.tradingDay = tradingDay;
+        if ( !openTickCsv(mdInfo, tickInfo) ) {
+            return null;
+        }
+        List<MarketData> result = new ArrayList<>();
+        for(mdInfo.advance(); mdInfo.nextTick!=null; mdInfo.advance()) {
+            mdInfo.nextTick.postProcess(tradingTimes);
+            result.add(mdInfo.nextTick);
         }
+        return result;
+    }
+
+    /**
+     * 加载某个品种某个交易日的原始TICK数据.
+     * <BR>ExchangeableData 只提供整个文件的读取, 读取时持有数据文件锁, 因此这里一次返回全部文本, 不在交易日内持有文件以流的方式读取
+     *
+     * @return null 如果数据不存在
+     */
+    protected String loadTickCsv(Exchangeable e, DataInfo tickInfo, LocalDate tradingDay) throws IOException {
+        ExchangeableData data = TraderHomeUtil.getExchangeableData();
+        if ( !data.exists(e, tickInfo, tradingDay) ) {
+            return null;
+        }
+        return data.load(e, tickInfo, tradingDay);
     }
 
     private CSVMarshallHelper createCSVMarshallHelper(DataInfo tickInfo) {
@@ -295,8 +473,6 @@ public class SimMarketDataService implements MarketDataService, SimMarketTimeAwa
         return null;
     }
 
-    protected static final Map<String, String> cachedDayStats = new HashMap<>();
-
     public static Exchangeable getPrimaryInstrument(Exchange exchange, String contract, LocalDate tradingDay) {
         int occurence=0;
         char cc = contract.charAt(contract.length()-1);
@@ -312,13 +488,14 @@ public class SimMarketDataService implements MarketDataService, SimMarketTimeAwa
         TreeMap<Long, Exchangeable> instruments = new TreeMap<>();
         //Load daily stats data
         try {
-            if ( edata.exists(cf, ExchangeableData.DAYSTATS, null)) {
-                String key = cf.uniqueId()+"-"+tradingDay;
-                String cachedData = cachedDayStats.get(key);
-                if ( cachedData==null ) {
-                    cachedData = edata.load(cf, ExchangeableData.DAYSTATS, null);
-                    cachedDayStats.put(key, cachedData);
+            //dayStats 文件包含全部交易日, 不区分交易日缓存
+            String cachedData = ExchangeableDataCache.getDefault().get(cf, ExchangeableData.DAYSTATS, null, ()->{
+                if ( !edata.exists(cf, ExchangeableData.DAYSTATS, null)) {
+                    return null;
                 }
+                return edata.load(cf, ExchangeableData.DAYSTATS, null);
+            });
+            if ( cachedData!=null ) {
                 CSVDataSet csvDataSet = CSVUtil.parse(cachedData);
                 while(csvDataSet.next()) {
                     String statTradingDay = csvDataSet.get(ExchangeableData.COLUMN_TRADINGDAY);
@@ -329,7 +506,7 @@ public class SimMarketDataService implements MarketDataService, SimMarketTimeAwa
                     }
                 }
             }
-        }catch(IOException ioe) {
+        }catch(Exception ioe) {
             throw new AppRuntimeException(ioe, ServiceErrorConstants.ERR_DATA_LOAD_FAILED,
                     MessageFormat.format("{0} 加载 dayStats 文件失败: {1}", contract, ioe) );
         }
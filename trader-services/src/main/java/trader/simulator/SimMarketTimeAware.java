@@ -10,4 +10,15 @@ public interface SimMarketTimeAware {
 
     public void onTimeChanged(LocalDate tradingDay, LocalDateTime actionTime);
 
+    /**
+     * 事件驱动模式下, 返回下一个需要通知的时间, 在此之前的时间片可以跳过.
+     * <BR>返回值不晚于 currTime 代表下一个时间片需要通知; 返回 null 代表没有待处理的事件.
+     * <BR>缺省实现要求每个时间片都通知, 与步进模式相同.
+     *
+     * @param currTime 下一个时间片的时间
+     */
+    public default LocalDateTime nextEventTime(LocalDateTime currTime) {
+        return currTime;
+    }
+
 }
@@ -1,5 +1,6 @@
 package trader.simulator;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -13,6 +14,10 @@ import trader.service.trade.MarketTimeService;
 
 /**
  * 模拟市场时间驱动
+ * <P>有两种模式:
+ * <LI>步进模式: 每次前进固定的时间片(100ms), 每个时间片都通知所有的 SimMarketTimeAware
+ * <LI>事件驱动模式: 从所有 SimMarketTimeAware 的 nextEventTime() 中找到最早的事件时间, 直接跳到事件所在的时间片, 跳过没有事件的时间片.
+ * 跳转后的时间仍然对齐到步进模式的时间片, 所以两种模式的通知时间和结果完全相同.
  */
 public class SimMarketTimeService implements MarketTimeService {
 
@@ -29,6 +34,11 @@ public class SimMarketTimeService implements MarketTimeService {
      */
     private int minTimeInterval = 100;
 
+    private boolean eventDriven;
+    private boolean started;
+    private long totalTimePieces;
+    private long totalSkippedTimePieces;
+
     @Override
     public long currentTimeMillis() {
         Instant instant = time.atZone(timeZone).toInstant();
@@ -45,6 +55,31 @@ public class SimMarketTimeService implements MarketTimeService {
         return tradingDay;
     }
 
+    public boolean isEventDriven() {
+        return eventDriven;
+    }
+
+    /**
+     * 设置事件驱动模式
+     */
+    public void setEventDriven(boolean eventDriven) {
+        this.eventDriven = eventDriven;
+    }
+
+    /**
+     * 已通知的时间片数
+     */
+    public long getTotalTimePieces() {
+        return totalTimePieces;
+    }
+
+    /**
+     * 事件驱动模式下跳过的时间片数
+     */
+    public long getTotalSkippedTimePieces() {
+        return totalSkippedTimePieces;
+    }
+
     public void addListener(SimMarketTimeAware timeAware) {
         timeListeners.add(timeAware);
     }
@@ -56,6 +91,9 @@ public class SimMarketTimeService implements MarketTimeService {
             this.timeRanges[i/2] = new LocalDateTime[] { timeRanges[i], timeRanges[i+1]};
         }
         this.time = timeRanges[0];
+        //复用到下一个交易日时从头开始
+        this.timeRangeIndex = 0;
+        this.started = false;
     }
 
     /**
@@ -74,6 +112,19 @@ public class SimMarketTimeService implements MarketTimeService {
             timeRangeIndex++;
             return nextTimePiece();
         }
+        if ( eventDriven && started ) {
+            LocalDateTime eventTime = nextEventTime();
+            if ( eventTime.compareTo(time)>0 ) {
+                //跳到事件所在的时间片, 然后重新检查时间范围
+                long stepNanos = minTimeInterval*1000000L;
+                long steps = (Duration.between(time, eventTime).toNanos()+stepNanos-1)/stepNanos;
+                time = time.plusNanos(steps*stepNanos);
+                totalSkippedTimePieces += steps;
+                return nextTimePiece();
+            }
+        }
+        started = true;
+        totalTimePieces++;
         LocalDateTime dt = time;
         for(SimMarketTimeAware c:timeListeners)
             c.onTimeChanged(tradingDay, dt);
@@ -81,6 +132,23 @@ public class SimMarketTimeService implements MarketTimeService {
         return true;
     }
 
+    /**
+     * 所有时间通知对象中最早的事件时间, 没有事件时返回结束时间
+     */
+    private LocalDateTime nextEventTime() {
+        LocalDateTime result = timeRanges[timeRanges.length-1][1];
+        for(int i=0;i<timeListeners.size();i++) {
+            LocalDateTime eventTime = timeListeners.get(i).nextEventTime(time);
+            if ( eventTime!=null && eventTime.compareTo(result)<0 ) {
+                result = eventTime;
+                if ( result.compareTo(time)<=0 ) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
     public String toString() {
         return DateUtil.date2str(time);
     }
@@ -1,5 +1,6 @@
 package trader.simulator;
 
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -74,6 +75,15 @@ public class SimScheduledExecutorService implements ScheduledExecutorService, Li
 
     }
 
+    /**
+     * 复用到新的交易日: 保留定时任务, 触发时间在新交易日的第一个时间片重新计算
+     */
+    public void resetForTradingDay(LocalDate tradingDay) {
+        for(int i=0;i<schedulerEntries.size();i++) {
+            schedulerEntries.get(i).nextTriggerMillis = 0;
+        }
+    }
+
     @Override
     public void shutdown() {
 
@@ -175,4 +185,23 @@ public class SimScheduledExecutorService implements ScheduledExecutorService, Li
         }
     }
 
+    /**
+     * 最早的定时任务触发时间. 新加入的定时任务需要在下一个时间片初始化触发时间
+     */
+    @Override
+    public LocalDateTime nextEventTime(LocalDateTime currTime) {
+        long nextTriggerMillis = Long.MAX_VALUE;
+        for(int i=0;i<schedulerEntries.size();i++) {
+            TimeScheduleEntry entry = schedulerEntries.get(i);
+            if ( entry.nextTriggerMillis==0 ) {
+                return currTime;
+            }
+            nextTriggerMillis = Math.min(nextTriggerMillis, entry.nextTriggerMillis);
+        }
+        if ( nextTriggerMillis==Long.MAX_VALUE ) {
+            return null;
+        }
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(nextTriggerMillis), zoneId);
+    }
+
 }
@@ -0,0 +1,103 @@
+package trader.simulator;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.ExchangeableDataCache;
+import trader.service.md.MarketData;
+
+/**
+ * 多个回测共享的已解码TICK行情.
+ * <BR>每个品种每个交易日只解码一次, 解码结果是不可修改的列表, 行情对象已经完成时间戳修正和 postProcess(), 使用者只能读取.
+ * 同一个交易日的多个回测同时请求时, 只有第一个请求解码, 其它请求等待解码结果.
+ * <BR>数据保存在 ExchangeableDataCache 中, 缺省使用JVM共享的有上限的缓存, 与 BarSeriesLoader 加载的TICK共用. 回测完一个交易日后调用 evict() 释放内存,
+ * 只释放通过这里加载的 (品种, TICK_CTP, 交易日) 数据, 共享缓存中其它数据不受影响
+ */
+public class SimTickCache {
+
+    private ExchangeableDataCache dataCache;
+    private AtomicLong decodeCount = new AtomicLong();
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong decodeTime = new AtomicLong();
+    private Map<LocalDate, Set<Exchangeable>> loadedKeys = new ConcurrentHashMap<>();
+
+    public SimTickCache() {
+        this(ExchangeableDataCache.getDefault());
+    }
+
+    public SimTickCache(ExchangeableDataCache dataCache) {
+        this.dataCache = dataCache;
+    }
+
+    public ExchangeableDataCache getDataCache() {
+        return dataCache;
+    }
+
+    /**
+     * 返回某个品种某个交易日的行情, 不存在时调用loader解码
+     *
+     * @return 不可修改的行情列表, null 如果数据不存在
+     */
+    public List<MarketData> getTicks(Exchangeable e, LocalDate tradingDay, Callable<List<MarketData>> loader) throws Exception
+    {
+        loadedKeys.computeIfAbsent(tradingDay, (day)->ConcurrentHashMap.newKeySet()).add(e);
+        boolean[] decoded = new boolean[1];
+        List<MarketData> result = dataCache.get(e, ExchangeableData.TICK_CTP, tradingDay, ()->{
+            long t0 = System.nanoTime();
+            List<MarketData> ticks = loader.call();
+            decodeTime.addAndGet(System.nanoTime()-t0);
+            decodeCount.incrementAndGet();
+            decoded[0] = true;
+            if ( ticks!=null ) {
+                ticks = Collections.unmodifiableList(ticks);
+            }
+            return ticks;
+        });
+        if ( !decoded[0] ) {
+            hitCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * 释放某个交易日通过这里加载的行情
+     */
+    public void evict(LocalDate tradingDay) {
+        Set<Exchangeable> instruments = loadedKeys.remove(tradingDay);
+        if ( instruments!=null ) {
+            for(Exchangeable e:instruments) {
+                dataCache.invalidate(e, ExchangeableData.TICK_CTP, tradingDay);
+            }
+        }
+    }
+
+    /**
+     * 解码次数
+     */
+    public long getDecodeCount() {
+        return decodeCount.get();
+    }
+
+    /**
+     * 复用已解码行情的次数
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 解码累计耗时(毫秒)
+     */
+    public long getDecodeTime() {
+        return decodeTime.get()/1000000;
+    }
+
+}
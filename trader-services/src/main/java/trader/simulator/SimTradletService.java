@@ -1,5 +1,6 @@
 package trader.simulator;
 
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -48,6 +49,17 @@ public class SimTradletService extends AbsTradletService implements TradletServi
 
     private Map<String, TradletInfo> tradletInfos = new HashMap<>();
     private List<SimTradletGroupEngine> groupEngines = new ArrayList<>();
+    /**
+     * 不为null时代替配置文件中的交易组
+     */
+    private List<Map<String, Object>> groupElems;
+
+    /**
+     * 使用指定的交易组配置代替配置文件, 需要在 init() 之前调用
+     */
+    public void setGroupElems(List<Map<String, Object>> groupElems) {
+        this.groupElems = groupElems;
+    }
 
     @Override
     public void init(BeansContainer beansContainer) throws Exception
@@ -83,6 +95,20 @@ public class SimTradletService extends AbsTradletService implements TradletServi
         }
     }
 
+    /**
+     * 复用到新的交易日: 保留策略信息和定时任务, 交易组和策略按新交易日重新创建, 脚本策略复用已编译的脚本.
+     * <BR>需要在行情, 技术分析和交易服务切换交易日之后调用
+     */
+    public void resetForTradingDay(LocalDate tradingDay) throws AppException {
+        for(SimTradletGroupEngine engine:groupEngines) {
+            if ( engine.getGroup().getAccount()!=null ) {
+                engine.getGroup().getAccount().removeAccountListener(engine);
+            }
+            engine.destroy();
+        }
+        groupEngines = loadGroups();
+    }
+
     @Override
     public Collection<TradletInfo> getTradletInfos() {
         return tradletInfos.values();
@@ -150,7 +176,11 @@ public class SimTradletService extends AbsTradletService implements TradletServi
     private List<SimTradletGroupEngine> loadGroups()  throws AppException
     {
         List<SimTradletGroupEngine> result = new ArrayList<>();
-        for(Map groupElem:(List<Map>)ConfigUtil.getObject(ITEM_TRADLETGROUPS)) {
+        List<Map<String, Object>> groupElems = this.groupElems;
+        if ( groupElems==null ) {
+            groupElems = (List<Map<String, Object>>)ConfigUtil.getObject(ITEM_TRADLETGROUPS);
+        }
+        for(Map<String, Object> groupElem:groupElems) {
             TradletGroupImpl group = createGroup(groupElem);
             SimTradletGroupEngine engine = new SimTradletGroupEngine(group);
             engine.init(beansContainer);
@@ -0,0 +1,360 @@
+package trader.simulator.trade;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.CSVWriter;
+import trader.common.util.DateUtil;
+import trader.common.util.JsonEnabled;
+import trader.common.util.PriceUtil;
+import trader.service.trade.TradeConstants.OrderOffsetFlag;
+
+/**
+ * 一个账户的回测绩效指标, 随资金采样和成交增量计算, 内存占用与采样数量无关.
+ * <LI>资金采样: 收益率的均值/方差(Welford算法)和下行平方和, 计算夏普和索提诺比率; 峰值和最大回撤
+ * <LI>成交: 成交额, 平仓次数和盈利次数, 每个品种的平仓盈亏/手续费/成交额
+ * <P>指定序列文件时, 每个采样点按 时间(ms)+资金 两个long追加写入, 每条16字节. 单线程使用
+ */
+public class SimEquityMetrics implements JsonEnabled {
+
+    /**
+     * 每个品种的累计盈亏
+     */
+    public static class InstrumentPnl {
+        private int txnCount;
+        private long turnover;
+        private long closeProfit;
+        private long commission;
+
+        public int getTxnCount() {
+            return txnCount;
+        }
+
+        public long getTurnover() {
+            return turnover;
+        }
+
+        public long getCloseProfit() {
+            return closeProfit;
+        }
+
+        public long getCommission() {
+            return commission;
+        }
+
+        /**
+         * 平仓盈亏-手续费
+         */
+        public long getNetProfit() {
+            return closeProfit-commission;
+        }
+    }
+
+    /**
+     * 读取资金序列的回调
+     */
+    public static interface EquityVisitor {
+        public void visit(long time, long equity);
+    }
+
+    private static final int TRADING_DAYS_PER_YEAR = 250;
+
+    private String accountId;
+    private File seriesFile;
+    private DataOutputStream seriesOutput;
+
+    private LocalDate lastTradingDay;
+    private int tradingDays;
+    private long sampleCount;
+    private long initEquity;
+    private long lastEquity;
+    private long peakEquity;
+    private long maxDrawdown;
+    private double maxDrawdownRatio;
+    /**
+     * 收益率数量, 均值, 离差平方和, 下行平方和
+     */
+    private long returnCount;
+    private double returnMean;
+    private double returnM2;
+    private double downsideSq;
+
+    private long turnover;
+    private int txnCount;
+    private int closeCount;
+    private int winCount;
+    private Map<Exchangeable, InstrumentPnl> instrumentPnls = new LinkedHashMap<>();
+
+    /**
+     * @param seriesFile 资金序列文件, null 代表不保存序列
+     */
+    public SimEquityMetrics(String accountId, File seriesFile) {
+        this.accountId = accountId;
+        this.seriesFile = seriesFile;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public File getSeriesFile() {
+        return seriesFile;
+    }
+
+    /**
+     * 资金采样
+     *
+     * @param time 采样时间(ms)
+     */
+    public void onEquity(LocalDate tradingDay, long time, long equity) throws IOException {
+        if ( !tradingDay.equals(lastTradingDay) ) {
+            lastTradingDay = tradingDay;
+            tradingDays++;
+        }
+        if ( sampleCount==0 ) {
+            initEquity = equity;
+            peakEquity = equity;
+        } else if ( lastEquity!=0 ) {
+            double r = ((double)(equity-lastEquity))/lastEquity;
+            returnCount++;
+            double delta = r-returnMean;
+            returnMean += delta/returnCount;
+            returnM2 += delta*(r-returnMean);
+            if ( r<0 ) {
+                downsideSq += r*r;
+            }
+        }
+        sampleCount++;
+        lastEquity = equity;
+        if ( equity>peakEquity ) {
+            peakEquity = equity;
+        }
+        long drawdown = peakEquity-equity;
+        if ( drawdown>maxDrawdown ) {
+            maxDrawdown = drawdown;
+        }
+        if ( peakEquity>0 ) {
+            maxDrawdownRatio = Math.max(maxDrawdownRatio, ((double)drawdown)/peakEquity);
+        }
+        if ( seriesFile!=null ) {
+            if ( seriesOutput==null ) {
+                seriesFile.getParentFile().mkdirs();
+                seriesOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(seriesFile)));
+            }
+            seriesOutput.writeLong(time);
+            seriesOutput.writeLong(equity);
+        }
+    }
+
+    /**
+     * 成交
+     *
+     * @param value 成交金额
+     * @param closeProfit 本次成交的平仓盈亏, 开仓为0
+     * @param commission 本次成交的手续费
+     */
+    public void onTxn(Exchangeable instrument, OrderOffsetFlag offsetFlag, long value, long closeProfit, long commission) {
+        txnCount++;
+        turnover += value;
+        if ( offsetFlag!=OrderOffsetFlag.OPEN ) {
+            closeCount++;
+            if ( closeProfit-commission>0 ) {
+                winCount++;
+            }
+        }
+        InstrumentPnl pnl = instrumentPnls.get(instrument);
+        if ( pnl==null ) {
+            pnl = new InstrumentPnl();
+            instrumentPnls.put(instrument, pnl);
+        }
+        pnl.txnCount++;
+        pnl.turnover += value;
+        pnl.closeProfit += closeProfit;
+        pnl.commission += commission;
+    }
+
+    /**
+     * 关闭资金序列文件
+     */
+    public void close() throws IOException {
+        if ( seriesOutput!=null ) {
+            seriesOutput.close();
+            seriesOutput = null;
+        }
+    }
+
+    public int getTradingDays() {
+        return tradingDays;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getInitEquity() {
+        return initEquity;
+    }
+
+    public long getEquity() {
+        return lastEquity;
+    }
+
+    public long getProfit() {
+        return lastEquity-initEquity;
+    }
+
+    public long getMaxDrawdown() {
+        return maxDrawdown;
+    }
+
+    public double getMaxDrawdownRatio() {
+        return maxDrawdownRatio;
+    }
+
+    /**
+     * 年化夏普比率, 无风险利率为0. 每年的采样数按每年250个交易日和平均每个交易日的采样数估计
+     */
+    public double getSharpe() {
+        if ( returnCount<2 ) {
+            return 0;
+        }
+        double std = Math.sqrt(returnM2/(returnCount-1));
+        return std>0?returnMean/std*Math.sqrt(getSamplesPerYear()):0;
+    }
+
+    /**
+     * 年化索提诺比率, 目标收益率为0
+     */
+    public double getSortino() {
+        if ( returnCount<2 ) {
+            return 0;
+        }
+        double downsideStd = Math.sqrt(downsideSq/returnCount);
+        return downsideStd>0?returnMean/downsideStd*Math.sqrt(getSamplesPerYear()):0;
+    }
+
+    public long getTurnover() {
+        return turnover;
+    }
+
+    public int getTxnCount() {
+        return txnCount;
+    }
+
+    public int getCloseCount() {
+        return closeCount;
+    }
+
+    public int getWinCount() {
+        return winCount;
+    }
+
+    /**
+     * 盈利的平仓次数/平仓次数, 盈利扣除手续费
+     */
+    public double getWinRate() {
+        return closeCount>0?((double)winCount)/closeCount:0;
+    }
+
+    public Map<Exchangeable, InstrumentPnl> getInstrumentPnls(){
+        return Collections.unmodifiableMap(instrumentPnls);
+    }
+
+    private double getSamplesPerYear() {
+        return ((double)returnCount)/Math.max(1, tradingDays)*TRADING_DAYS_PER_YEAR;
+    }
+
+    /**
+     * 指标报表, 每行一个指标, 品种指标的名称以品种开头
+     */
+    public String toCsv() {
+        CSVWriter csvWriter = new CSVWriter("Metric", "Value");
+        JsonObject json = (JsonObject)toJson();
+        for(String key:json.keySet()) {
+            if ( key.equals("instruments") ) {
+                continue;
+            }
+            csvWriter.next();
+            csvWriter.set("Metric", key);
+            csvWriter.set("Value", json.get(key).getAsString());
+        }
+        JsonObject instrumentsJson = json.getAsJsonObject("instruments");
+        for(String instrument:instrumentsJson.keySet()) {
+            JsonObject pnlJson = instrumentsJson.getAsJsonObject(instrument);
+            for(String key:pnlJson.keySet()) {
+                csvWriter.next();
+                csvWriter.set("Metric", instrument+"."+key);
+                csvWriter.set("Value", pnlJson.get(key).getAsString());
+            }
+        }
+        return csvWriter.toString();
+    }
+
+    @Override
+    public JsonElement toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("accountId", accountId);
+        if ( lastTradingDay!=null ) {
+            json.addProperty("lastTradingDay", DateUtil.date2str(lastTradingDay));
+        }
+        json.addProperty("tradingDays", tradingDays);
+        json.addProperty("samples", sampleCount);
+        json.addProperty("initEquity", PriceUtil.long2str(initEquity));
+        json.addProperty("equity", PriceUtil.long2str(lastEquity));
+        json.addProperty("profit", PriceUtil.long2str(getProfit()));
+        json.addProperty("maxDrawdown", PriceUtil.long2str(maxDrawdown));
+        json.addProperty("maxDrawdownRatio", String.format("%.6f", maxDrawdownRatio));
+        json.addProperty("sharpe", String.format("%.4f", getSharpe()));
+        json.addProperty("sortino", String.format("%.4f", getSortino()));
+        json.addProperty("turnover", PriceUtil.long2str(turnover));
+        json.addProperty("txnCount", txnCount);
+        json.addProperty("closeCount", closeCount);
+        json.addProperty("winRate", String.format("%.4f", getWinRate()));
+        JsonObject instrumentsJson = new JsonObject();
+        for(Exchangeable instrument:instrumentPnls.keySet()) {
+            InstrumentPnl pnl = instrumentPnls.get(instrument);
+            JsonObject pnlJson = new JsonObject();
+            pnlJson.addProperty("txnCount", pnl.txnCount);
+            pnlJson.addProperty("turnover", PriceUtil.long2str(pnl.turnover));
+            pnlJson.addProperty("closeProfit", PriceUtil.long2str(pnl.closeProfit));
+            pnlJson.addProperty("commission", PriceUtil.long2str(pnl.commission));
+            pnlJson.addProperty("netProfit", PriceUtil.long2str(pnl.getNetProfit()));
+            instrumentsJson.add(instrument.toString(), pnlJson);
+        }
+        json.add("instruments", instrumentsJson);
+        return json;
+    }
+
+    /**
+     * 顺序读取资金序列文件
+     */
+    public static void readSeries(File seriesFile, EquityVisitor visitor) throws IOException {
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(seriesFile)));){
+            while(true) {
+                long time = 0;
+                try {
+                    time = input.readLong();
+                }catch(EOFException e) {
+                    break;
+                }
+                visitor.visit(time, input.readLong());
+            }
+        }
+    }
+
+}
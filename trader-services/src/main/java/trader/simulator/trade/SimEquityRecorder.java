@@ -0,0 +1,189 @@
+package trader.simulator.trade;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.FileUtil;
+import trader.common.util.JsonUtil;
+import trader.service.ServiceConstants.AccountState;
+import trader.service.trade.Account;
+import trader.service.trade.AccountListener;
+import trader.service.trade.Order;
+import trader.service.trade.OrderStateTuple;
+import trader.service.trade.Position;
+import trader.service.trade.TradeConstants.AccMoney;
+import trader.service.trade.TradeConstants.PosMoney;
+import trader.service.trade.Transaction;
+import trader.simulator.SimMarketTimeAware;
+import trader.simulator.SimMarketTimeService;
+
+/**
+ * 回测资金曲线和绩效指标的记录.
+ * <BR>与 SimTxnStateStore 一样放在跨交易日的服务容器中, SimTradeService 初始化时为每个账户挂接监听器,
+ * 按市场时间每隔 sampleInterval 秒采样一次账户净值, 交易日结束时再采样一次收盘净值.
+ * 指标按账户ID累计, 每个交易日重建服务对象时延续.
+ * <BR>输出目录下每个账户生成: ACCOUNT.equity (资金序列), ACCOUNT.metrics.json, ACCOUNT.metrics.csv
+ */
+public class SimEquityRecorder {
+    private final static Logger logger = LoggerFactory.getLogger(SimEquityRecorder.class);
+
+    private File outputDir;
+    private int sampleInterval;
+    private Map<String, SimEquityMetrics> metrics = new TreeMap<>();
+    private List<AccountRecorder> recorders = new ArrayList<>();
+
+    /**
+     * 挂接在一个账户上的监听器
+     */
+    private class AccountRecorder implements AccountListener, SimMarketTimeAware {
+        private Account account;
+        private SimMarketTimeService mtService;
+        private SimEquityMetrics accountMetrics;
+        private LocalDateTime nextSampleTime;
+        private LocalDate tradingDay;
+        /**
+         * 每个品种上一次成交后的平仓盈亏和手续费, 用于计算每次成交的盈亏
+         */
+        private Map<Exchangeable, long[]> lastPosMoney = new HashMap<>();
+
+        AccountRecorder(Account account, SimMarketTimeService mtService, SimEquityMetrics accountMetrics) {
+            this.account = account;
+            this.mtService = mtService;
+            this.accountMetrics = accountMetrics;
+        }
+
+        @Override
+        public void onTimeChanged(LocalDate tradingDay, LocalDateTime actionTime) {
+            if ( !tradingDay.equals(this.tradingDay) ) {
+                //持仓的平仓盈亏和手续费可能按交易日重新累计
+                this.tradingDay = tradingDay;
+                lastPosMoney.clear();
+                nextSampleTime = actionTime;
+            }
+            if ( sampleInterval>0 && !actionTime.isBefore(nextSampleTime) ) {
+                sample();
+                nextSampleTime = actionTime.plusSeconds(sampleInterval);
+            }
+        }
+
+        /**
+         * 采样不需要额外的时间片, 在行情或其它事件推进的时间片上进行
+         */
+        @Override
+        public LocalDateTime nextEventTime(LocalDateTime currTime) {
+            return null;
+        }
+
+        @Override
+        public void onTransaction(Account account, Order order, Transaction txn) {
+            Exchangeable instrument = order.getInstrument();
+            Position pos = account.getPosition(instrument);
+            long closeProfit = 0, commission = 0;
+            if ( pos!=null ) {
+                long[] posMoney = lastPosMoney.get(instrument);
+                if ( posMoney==null ) {
+                    posMoney = new long[2];
+                    lastPosMoney.put(instrument, posMoney);
+                }
+                closeProfit = pos.getMoney(PosMoney.CloseProfit)-posMoney[0];
+                commission = pos.getMoney(PosMoney.Commission)-posMoney[1];
+                posMoney[0] = pos.getMoney(PosMoney.CloseProfit);
+                posMoney[1] = pos.getMoney(PosMoney.Commission);
+            }
+            long value = account.getFeeEvaluator().computeValue(instrument, txn.getVolume(), txn.getPrice());
+            accountMetrics.onTxn(instrument, txn.getOffsetFlags(), value, closeProfit, commission);
+        }
+
+        @Override
+        public void onOrderStateChanged(Account account, Order order, OrderStateTuple lastStateTuple) {
+        }
+
+        @Override
+        public void onAccountStateChanged(Account account, AccountState oldState) {
+        }
+
+        void sample() {
+            try {
+                accountMetrics.onEquity(mtService.getTradingDay(), mtService.currentTimeMillis(), account.getMoney(AccMoney.Balance));
+            }catch(IOException e) {
+                logger.error("Account "+account.getId()+" write equity series failed", e);
+            }
+        }
+    }
+
+    /**
+     * @param outputDir 输出目录, null 代表只在内存中计算指标
+     * @param sampleInterval 采样间隔(秒), 0 代表只采样每个交易日的收盘净值
+     */
+    public SimEquityRecorder(File outputDir, int sampleInterval) {
+        this.outputDir = outputDir;
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * 挂接账户, 同一个账户ID重新挂接时替换上一个交易日的服务对象
+     */
+    public synchronized void attach(Account account, SimMarketTimeService mtService) {
+        for(Iterator<AccountRecorder> it=recorders.iterator(); it.hasNext();) {
+            AccountRecorder recorder = it.next();
+            if ( recorder.account.getId().equals(account.getId()) ) {
+                recorder.account.removeAccountListener(recorder);
+                it.remove();
+            }
+        }
+        SimEquityMetrics accountMetrics = metrics.get(account.getId());
+        if ( accountMetrics==null ) {
+            File seriesFile = null;
+            if ( outputDir!=null ) {
+                seriesFile = new File(outputDir, account.getId()+".equity");
+            }
+            accountMetrics = new SimEquityMetrics(account.getId(), seriesFile);
+            metrics.put(account.getId(), accountMetrics);
+        }
+        AccountRecorder recorder = new AccountRecorder(account, mtService, accountMetrics);
+        recorders.add(recorder);
+        account.addAccountListener(recorder);
+        mtService.addListener(recorder);
+    }
+
+    /**
+     * 交易日结束, 采样全部账户的收盘净值
+     */
+    public synchronized void endTradingDay() {
+        for(AccountRecorder recorder:recorders) {
+            recorder.sample();
+        }
+    }
+
+    public synchronized Map<String, SimEquityMetrics> getMetrics(){
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * 关闭资金序列文件, 输出每个账户的 JSON 和 CSV 报表
+     */
+    public synchronized void writeReports() throws IOException {
+        for(SimEquityMetrics accountMetrics:metrics.values()) {
+            accountMetrics.close();
+            if ( outputDir!=null ) {
+                outputDir.mkdirs();
+                FileUtil.save(new File(outputDir, accountMetrics.getAccountId()+".metrics.json"), JsonUtil.json2str(accountMetrics.toJson(), true));
+                FileUtil.save(new File(outputDir, accountMetrics.getAccountId()+".metrics.csv"), accountMetrics.toCsv());
+            }
+        }
+    }
+
+}
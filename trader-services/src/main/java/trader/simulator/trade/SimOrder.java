@@ -15,7 +15,7 @@ import trader.service.trade.TradeConstants;
 
 /**
  * 模拟报单. 报单状态改变后, 需要下一个时间片发送回报
- * <BR>目前模拟报单不支持部分成交, 不支持市价
+ * <BR>排队撮合模型支持部分成交, 目前不支持市价
  */
 public class SimOrder implements TradeConstants, JsonEnabled {
 
@@ -51,6 +51,22 @@ public class SimOrder implements TradeConstants, JsonEnabled {
     private String errorReason;
     private String sysId;
     private String ref;
+    /**
+     * 已成交数量
+     */
+    private int tradeVolume;
+    /**
+     * 报单到达交易所的时间(ms), 之前不参与撮合
+     */
+    private long activeTime;
+    /**
+     * 撤单生效的时间(ms), 0 代表没有撤单
+     */
+    private long cancelTime;
+    /**
+     * 排在前面的数量, 由 SimQueueMatcher 维护
+     */
+    long queueAhead = SimQueueMatcher.QUEUE_NEW;
 
     public SimOrder(Order order, LocalDateTime time) {
         instrument = order.getInstrument();
@@ -102,6 +118,37 @@ public class SimOrder implements TradeConstants, JsonEnabled {
         return volume;
     }
 
+    public int getTradeVolume() {
+        return tradeVolume;
+    }
+
+    /**
+     * 未成交的数量
+     */
+    public int getRemainingVolume() {
+        return volume-tradeVolume;
+    }
+
+    public void addTradeVolume(int tradeVolume) {
+        this.tradeVolume += tradeVolume;
+    }
+
+    public long getActiveTime() {
+        return activeTime;
+    }
+
+    public void setActiveTime(long activeTime) {
+        this.activeTime = activeTime;
+    }
+
+    public long getCancelTime() {
+        return cancelTime;
+    }
+
+    public void setCancelTime(long cancelTime) {
+        this.cancelTime = cancelTime;
+    }
+
     public long getFrozenMargin() {
         return frozenMargin;
     }
@@ -131,8 +178,12 @@ public class SimOrder implements TradeConstants, JsonEnabled {
         this.errorReason = reason;
     }
 
+    /**
+     * 修改价格后重新排队
+     */
     public void modify(OrderBuilder builder) {
         limitPrice = builder.getLimitPrice();
+        queueAhead = SimQueueMatcher.QUEUE_NEW;
     }
 
     private static final AtomicInteger nextSysId = new AtomicInteger();
@@ -150,6 +201,7 @@ public class SimOrder implements TradeConstants, JsonEnabled {
         json.addProperty("offsetFlag", offsetFlag.name());
         json.addProperty("state", state.name());
         json.addProperty("volume", volume);
+        json.addProperty("tradeVolume", tradeVolume);
 
         json.addProperty("limitPrice", limitPrice);
         json.addProperty("priceType", priceType.name());
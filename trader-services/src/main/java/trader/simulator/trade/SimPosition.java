@@ -17,6 +17,7 @@ import trader.common.util.JsonEnabled;
 import trader.common.util.PriceUtil;
 import trader.common.util.StringUtil;
 import trader.service.trade.TradeConstants;
+import trader.service.trade.TxnFeeEvaluator;
 import trader.simulator.trade.SimOrder.SimOrderState;
 
 /**
@@ -133,11 +134,13 @@ public class SimPosition implements JsonEnabled, TradeConstants {
         }
         long txnProfit = 0;
         SimOrder order = txn.getOrder();
-        orders.remove(order);
+        if ( order.getState()!=SimOrderState.Placed ) {
+            //部分成交的报单继续冻结剩余部分
+            orders.remove(order);
+        }
 
         //手续费
-        long orderValues[] = session.getFeeEvaluator().compute(instrument, txn.getVolume(), txn.getPrice(), order.getDirection(), order.getOffsetFlag());
-        money[PosMoney.Commission.ordinal()] += orderValues[1];
+        money[PosMoney.Commission.ordinal()] += session.getFeeEvaluator().computeCommission(instrument, txn.getVolume(), txn.getPrice(), order.getOffsetFlag());
 
         //修改持仓
         if ( order.getOffsetFlag()==OrderOffsetFlag.OPEN ) {
@@ -200,9 +203,11 @@ public class SimPosition implements JsonEnabled, TradeConstants {
         int longPos = 0, shortPos = 0, longTodayPos=0, longYdPos = 0, shortTodayPos=0, shortYdPos=0;
         int longFrozenPos=0, shortFrozenPos=0;
         LocalDate tradingDay = session.getTradingDay();
+        TxnFeeEvaluator feeEvaluator = session.getFeeEvaluator();
         for(SimPositionDetail d:details) {
-            long[] posOpenValues = session.getFeeEvaluator().compute(instrument, d.getVolume(), d.getOpenPrice(), d.getDirection());
-            long[] posValues = session.getFeeEvaluator().compute(instrument, d.getVolume(), lastPrice, d.getDirection());
+            long posOpenValue = feeEvaluator.computeValue(instrument, d.getVolume(), d.getOpenPrice());
+            long posValue = feeEvaluator.computeValue(instrument, d.getVolume(), lastPrice);
+            long posMargin = feeEvaluator.computeMargin(instrument, d.getVolume(), lastPrice, d.getDirection());
             if ( d.getDirection()==PosDirection.Long ) {
                 longPos+=d.getVolume();
                 if ( tradingDay.equals(d.getOpenTime().toLocalDate()) ) {
@@ -210,7 +215,7 @@ public class SimPosition implements JsonEnabled, TradeConstants {
                 }else {
                     longYdPos += d.getVolume();
                 }
-                longMargin += posValues[0];
+                longMargin += posMargin;
             }else {
                 shortPos+=d.getVolume();
                 if ( tradingDay.equals(d.getOpenTime().toLocalDate()) ) {
@@ -218,29 +223,33 @@ public class SimPosition implements JsonEnabled, TradeConstants {
                 }else {
                     shortYdPos += d.getVolume();
                 }
-                shortMargin += posValues[0];
+                shortMargin += posMargin;
             }
-            posProfit += (posValues[1] - posOpenValues[1]);
+            posProfit += (posValue - posOpenValue);
         }
         for(SimOrder o:orders) {
+            if ( o.getState()!=SimOrderState.Placed ) {
+                continue;
+            }
+            int orderVolume = o.getRemainingVolume();
             if ( o.getOffsetFlag()==OrderOffsetFlag.OPEN ) {
-                long[] orderValues = session.getFeeEvaluator().compute(instrument, o.getVolume(), o.getLimitPrice(), o.getDirection(), o.getOffsetFlag());
-                frozenCommission += orderValues[1];
+                long orderMargin = feeEvaluator.computeMargin(instrument, orderVolume, o.getLimitPrice(), o.getDirection().toPosDirection());
+                frozenCommission += feeEvaluator.computeCommission(instrument, orderVolume, o.getLimitPrice(), o.getOffsetFlag());
                 //开仓
                 if ( o.getDirection()==OrderDirection.Buy ) {
                     //开多
-                    longFrozenMargin += orderValues[0];
+                    longFrozenMargin += orderMargin;
                 }else {
                     //开空
-                    shortFrozenMargin += orderValues[0];
+                    shortFrozenMargin += orderMargin;
                 }
             } else {
                 if ( o.getDirection()==OrderDirection.Sell ) {
                     //平多
-                    longFrozenPos += o.getVolume();
+                    longFrozenPos += orderVolume;
                 }else {
                     //平空
-                    shortFrozenPos += o.getVolume();
+                    shortFrozenPos += orderVolume;
                 }
             }
         }
@@ -297,15 +306,15 @@ public class SimPosition implements JsonEnabled, TradeConstants {
             if ( lastPd&&lastPartCloseVolume>0 ){
                 volumeToClose = lastPartCloseVolume;
             }
-            long pdOpenValue[] = session.getFeeEvaluator().compute(instrument, volumeToClose, pd.getOpenPrice(), direction);
-            long pdCloseValue[] = session.getFeeEvaluator().compute(instrument, volumeToClose, t.getPrice(), direction);
+            long pdOpenValue = session.getFeeEvaluator().computeValue(instrument, volumeToClose, pd.getOpenPrice());
+            long pdCloseValue = session.getFeeEvaluator().computeValue(instrument, volumeToClose, t.getPrice());
             long pdCloseProfit = 0;
             switch(t.getDirection()){
             case Sell:
-                pdCloseProfit = pdCloseValue[1]-pdOpenValue[1];
+                pdCloseProfit = pdCloseValue-pdOpenValue;
                 break;
             case Buy:
-                pdCloseProfit = pdOpenValue[1]-pdCloseValue[1];
+                pdCloseProfit = pdOpenValue-pdCloseValue;
                 break;
             }
             totalCloseProfit += pdCloseProfit;
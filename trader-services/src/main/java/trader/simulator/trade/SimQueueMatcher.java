@@ -0,0 +1,170 @@
+package trader.simulator.trade;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.service.md.MarketData;
+import trader.service.trade.TradeConstants.OrderDirection;
+
+/**
+ * 考虑排队位置的限价报单撮合模型.
+ * <P>报单到达交易所时(报单延迟之后):
+ * <LI>可以立即成交的部分按对手方一档的价格和挂单量成交
+ * <LI>剩余部分在报单价格排队, 排在前面的数量用当时该价位的挂单量估计, 价位不在盘口中时等到出现在盘口后再估计
+ * <P>之后的每个行情切片:
+ * <LI>价格穿过报单价格(买单的最新价低于报单价格, 或者卖一价不高于报单价格), 剩余部分全部成交
+ * <LI>否则根据成交量和成交额的增量, 估计在报单价位上对手方主动成交的数量, 先消耗排在前面的数量, 多出的部分成交
+ * <LI>报单价位的挂单量少于排在前面的数量时, 认为前面有撤单, 排在前面的数量减少到挂单量
+ * <P>每个切片的计算只使用当前和上一个行情切片, 没有成交时不分配内存. 单线程使用
+ */
+public class SimQueueMatcher {
+    /**
+     * 报单还没有到达交易所, 或者修改价格后需要重新排队
+     */
+    public static final long QUEUE_NEW = -2;
+    /**
+     * 报单价位不在盘口中, 排队位置未知
+     */
+    public static final long QUEUE_UNKNOWN = -1;
+
+    /**
+     * 每个品种的上一个行情切片
+     */
+    private Map<Exchangeable, MarketData> lastTicks = new HashMap<>();
+    /**
+     * 每个品种的成交额乘数: 成交额=成交量*价格*乘数
+     */
+    private Map<Exchangeable, Double> turnoverMultipliers = new HashMap<>();
+
+    /**
+     * 用新的行情切片撮合报单, 报单的成交量和排队位置被更新, 但是报单状态不变.
+     * 需要在同一品种的全部报单撮合完后调用 onMarketData()
+     *
+     * @return 本切片的成交, null 代表没有成交
+     */
+    public SimTxn match(SimOrder order, MarketData md, LocalDateTime time) {
+        int remaining = order.getRemainingVolume();
+        if ( remaining<=0 ) {
+            return null;
+        }
+        boolean buy = order.getDirection()==OrderDirection.Buy;
+        long price = order.getLimitPrice();
+        long oppositePrice = buy?md.lastAskPrice():md.lastBidPrice();
+        boolean marketable = oppositePrice>0 && (buy?oppositePrice<=price:oppositePrice>=price);
+        int fillVolume = 0;
+        long fillPrice = price;
+        if ( order.queueAhead==QUEUE_NEW ) {
+            //报单到达: 与对手方一档成交, 剩余部分排队
+            if ( marketable ) {
+                fillVolume = Math.min(remaining, oppositeVolume(md, buy));
+                fillPrice = oppositePrice;
+            }
+            order.queueAhead = volumeAt(md, buy, price);
+        } else if ( marketable || (buy?md.lastPrice<price:md.lastPrice>price) ) {
+            //价格穿过报单价格
+            fillVolume = remaining;
+        } else {
+            long traded = tradedAt(md, buy, price);
+            long visible = volumeAt(md, buy, price);
+            if ( order.queueAhead==QUEUE_UNKNOWN ) {
+                order.queueAhead = visible;
+            } else {
+                if ( traded>order.queueAhead ) {
+                    fillVolume = (int)Math.min(remaining, traded-order.queueAhead);
+                }
+                order.queueAhead = Math.max(0, order.queueAhead-traded);
+                if ( visible>=0 && visible<order.queueAhead ) {
+                    order.queueAhead = visible;
+                }
+            }
+        }
+        if ( fillVolume<=0 ) {
+            return null;
+        }
+        order.addTradeVolume(fillVolume);
+        return new SimTxn(order, fillVolume, fillPrice, time);
+    }
+
+    /**
+     * 品种的全部报单撮合完后, 记录行情切片
+     */
+    public void onMarketData(MarketData md) {
+        lastTicks.put(md.instrument, md);
+    }
+
+    /**
+     * 报单价位在盘口中的挂单量: 价格优于本方一档时为0, 不在盘口中时为 QUEUE_UNKNOWN
+     */
+    private static long volumeAt(MarketData md, boolean buy, long price) {
+        long[] prices = buy?md.bidPrices:md.askPrices;
+        int[] volumes = buy?md.bidVolumes:md.askVolumes;
+        if ( prices==null || prices.length==0 ) {
+            return QUEUE_UNKNOWN;
+        }
+        if ( prices[0]==0 || (buy?price>prices[0]:price<prices[0]) ) {
+            return 0;
+        }
+        for(int i=0;i<prices.length && i<volumes.length;i++) {
+            if ( prices[i]==price ) {
+                return volumes[i];
+            }
+        }
+        return QUEUE_UNKNOWN;
+    }
+
+    private static int oppositeVolume(MarketData md, boolean buy) {
+        int[] volumes = buy?md.askVolumes:md.bidVolumes;
+        if ( volumes==null || volumes.length==0 ) {
+            return Integer.MAX_VALUE;
+        }
+        return volumes[0];
+    }
+
+    /**
+     * 估计上一个切片之后在报单价位上对手方主动成交的数量.
+     * <BR>成交只发生在上一切片的买一和卖一两个价格上, 用成交均价在两个价格之间的位置划分主动卖出和主动买入的数量.
+     * 报单价格比上一切片的本方一档差时, 成交先由更优的价位吸收, 返回0
+     */
+    private long tradedAt(MarketData md, boolean buy, long price) {
+        MarketData lastMd = lastTicks.get(md.instrument);
+        if ( lastMd==null ) {
+            return 0;
+        }
+        long volume = md.volume-lastMd.volume;
+        if ( volume<=0 ) {
+            return 0;
+        }
+        long bid = lastMd.lastBidPrice(), ask = lastMd.lastAskPrice();
+        if ( buy?price<bid:price>ask ) {
+            return 0;
+        }
+        double multiplier = turnoverMultiplier(md);
+        double sellRatio;
+        if ( ask<=bid || multiplier<=0 ) {
+            //无法从成交额划分时, 用最新价判断
+            sellRatio = md.lastPrice<=bid?1:0;
+        } else {
+            double avgPrice = (md.turnover-lastMd.turnover)/multiplier/volume;
+            sellRatio = Math.max(0, Math.min(1, (ask-avgPrice)/(ask-bid)));
+        }
+        return Math.round(volume*(buy?sellRatio:1-sellRatio));
+    }
+
+    /**
+     * 成交额/(成交量*价格), 从累计的成交额估计后取整, 兼容成交额是否包含合约乘数的不同交易所
+     */
+    private double turnoverMultiplier(MarketData md) {
+        Double result = turnoverMultipliers.get(md.instrument);
+        if ( result==null ) {
+            if ( md.volume<=0 || md.turnover<=0 || md.lastPrice<=0 ) {
+                return 0;
+            }
+            result = (double)Math.max(1, Math.round((double)md.turnover/md.volume/md.lastPrice));
+            turnoverMultipliers.put(md.instrument, result);
+        }
+        return result;
+    }
+
+}
@@ -1,5 +1,6 @@
 package trader.simulator.trade;
 
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -27,6 +28,7 @@ import trader.service.trade.TradeServiceListener;
 import trader.service.trade.TxnSession;
 import trader.service.trade.TxnSessionFactory;
 import trader.service.trade.spi.AbsTxnSession;
+import trader.simulator.SimMarketTimeService;
 
 /**
  * 模拟成交服务
@@ -45,16 +47,27 @@ public class SimTradeService implements TradeService {
 
     private OrderRefGen orderRefGen;
 
+    /**
+     * orderRefGen 是否由本服务按交易日创建
+     */
+    private boolean dailyOrderRefGen;
+
     private List<AccountImpl> accounts = new ArrayList<>();
 
     private AccountImpl primaryAccount = null;
 
+    /**
+     * 不为null时代替配置文件中的账户
+     */
+    private List<Map<String, Object>> accountElems;
+
     @Override
     public void init(BeansContainer beansContainer) throws Exception {
         this.beansContainer = beansContainer;
         MarketTimeService mtService = beansContainer.getBean(MarketTimeService.class);
         if ( orderRefGen==null ) {
             orderRefGen = new OrderRefGenImpl(this, mtService.getTradingDay(), beansContainer);
+            dailyOrderRefGen = true;
         }
         orderIdGen = new TimestampSeqGen(mtService);
         MarketDataService mdService = beansContainer.getBean(MarketDataService.class);
@@ -66,6 +79,12 @@ public class SimTradeService implements TradeService {
         txnSessionFactories = discoverTxnSessionProviders(beansContainer);
         loadAccounts();
         connectTxnSessions(accounts);
+        SimEquityRecorder equityRecorder = beansContainer.getBean(SimEquityRecorder.class);
+        if ( equityRecorder!=null ) {
+            for(AccountImpl account:accounts) {
+                equityRecorder.attach(account, beansContainer.getBean(SimMarketTimeService.class));
+            }
+        }
     }
 
     @Override
@@ -75,6 +94,20 @@ public class SimTradeService implements TradeService {
         }
     }
 
+    /**
+     * 复用到新的交易日: 保留账户和监听器, 账户保存上一交易日的资金持仓后重新连接
+     */
+    public void resetForTradingDay(LocalDate tradingDay) {
+        MarketTimeService mtService = beansContainer.getBean(MarketTimeService.class);
+        if ( dailyOrderRefGen ) {
+            orderRefGen = new OrderRefGenImpl(this, tradingDay, beansContainer);
+        }
+        orderIdGen = new TimestampSeqGen(mtService);
+        for(AccountImpl account:accounts) {
+            account.resetForTradingDay(tradingDay);
+        }
+    }
+
     public TradeServiceType getType() {
         return TradeServiceType.Simulator;
     }
@@ -120,11 +153,21 @@ public class SimTradeService implements TradeService {
         this.orderRefGen = orderRefGen;
     }
 
+    /**
+     * 使用指定的账户配置代替配置文件, 需要在 init() 之前调用
+     */
+    public void setAccountElems(List<Map<String, Object>> accountElems) {
+        this.accountElems = accountElems;
+    }
+
     private void loadAccounts() {
-        List<Map> accountElems = (List<Map>)ConfigUtil.getObject(ITEM_ACCOUNTS);
+        List<Map<String, Object>> accountElems = this.accountElems;
+        if ( accountElems==null ) {
+            accountElems = (List<Map<String, Object>>)ConfigUtil.getObject(ITEM_ACCOUNTS);
+        }
         List<AccountImpl> allAccounts = new ArrayList<>();
         if ( accountElems!=null ) {
-            for (Map accountElem:accountElems) {
+            for (Map<String, Object> accountElem:accountElems) {
                 accountElem.put("provider", TxnSession.PROVIDER_SIM);
                 String id = ConversionUtil.toString(accountElem.get("id"));
                 AccountImpl currAccount = createAccount(accountElem);
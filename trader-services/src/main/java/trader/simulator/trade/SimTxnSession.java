@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -34,6 +35,7 @@ import trader.service.ServiceConstants.ConnState;
 import trader.service.md.MarketData;
 import trader.service.md.MarketDataListener;
 import trader.service.md.MarketDataService;
+import trader.service.stats.StatsCollector;
 import trader.service.trade.Account;
 import trader.service.trade.FutureFeeEvaluator;
 import trader.service.trade.Order;
@@ -42,6 +44,9 @@ import trader.service.trade.OrderStateTuple;
 import trader.service.trade.TradeConstants;
 import trader.service.trade.TxnFeeEvaluator;
 import trader.service.trade.spi.AbsTxnSession;
+import trader.service.trade.spi.TxnRequestPipeline;
+import trader.service.trade.spi.TxnRequestPipeline.RequestSender;
+import trader.service.trade.spi.TxnRequestPipeline.RequestType;
 import trader.service.trade.spi.TxnSessionListener;
 import trader.simulator.SimMarketTimeAware;
 import trader.simulator.SimMarketTimeService;
@@ -51,7 +56,7 @@ import trader.simulator.trade.SimResponse.ResponseType;
 /**
  * 模拟行情连接
  */
-public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeConstants, SimMarketTimeAware, MarketDataListener {
+public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeConstants, SimMarketTimeAware, MarketDataListener, RequestSender {
     private final static Logger logger = LoggerFactory.getLogger(SimTxnSession.class);
 
     private MarketDataService mdService;
@@ -62,6 +67,30 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
     private List<SimTxn> allTxns = new ArrayList<>();
     private List<SimResponse> pendingResponses = new ArrayList<>();
     private TxnFeeEvaluator feeEvaluator;
+    /**
+     * 已加载的手续费文件, 重新连接时文件不变则不重复解析
+     */
+    private String feeCommissionsFile;
+    /**
+     * 配置orderRateLimit后模拟期货公司流控, 按市场时间发送请求
+     */
+    private TxnRequestPipeline requestPipeline;
+    /**
+     * 配置 matchModel=queue 时使用排队撮合模型, 否则限价报单在对手价满足时全部成交
+     */
+    private SimQueueMatcher queueMatcher;
+    /**
+     * 报单到达交易所的延迟(ms)
+     */
+    private long orderLatency;
+    /**
+     * 撤单生效的延迟(ms)
+     */
+    private long cancelLatency;
+    /**
+     * 等待生效的撤单
+     */
+    private List<SimOrder> pendingCancels = new ArrayList<>();
 
     public SimTxnSession(BeansContainer beansContainer, Account account, TxnSessionListener listener) {
         super(beansContainer, account, listener);
@@ -136,9 +165,32 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
         changeState(ConnState.Connecting);
         try {
             tradingDay = mtService.getTradingDay();
+            //复用到新的交易日时重新连接, 清除上一交易日的数据
+            money = new long[AccMoney.values().length];
+            positions.clear();
+            orders.clear();
+            allTxns.clear();
+            pendingResponses.clear();
             String commissionsFile = connProps.getProperty("commissionsFile");
-            feeEvaluator = FutureFeeEvaluator.fromJson(null, (JsonObject)(new JsonParser()).parse(FileUtil.read(new File(commissionsFile))));
-            //从KVStore加载数据
+            if ( feeEvaluator==null || !commissionsFile.equals(feeCommissionsFile) ) {
+                feeEvaluator = FutureFeeEvaluator.fromJson(null, (JsonObject)(new JsonParser()).parse(FileUtil.read(new File(commissionsFile))));
+                feeCommissionsFile = commissionsFile;
+            }
+            requestPipeline = null;
+            pendingCancels.clear();
+            queueMatcher = null;
+            if ( "queue".equalsIgnoreCase(connProps.getProperty("matchModel")) ) {
+                queueMatcher = new SimQueueMatcher();
+            }
+            orderLatency = ConversionUtil.toLong(connProps.getProperty("orderLatency", "0"));
+            cancelLatency = ConversionUtil.toLong(connProps.getProperty("cancelLatency", "0"));
+            double orderRateLimit = ConversionUtil.toDouble(connProps.getProperty("orderRateLimit", "0"));
+            if ( orderRateLimit>0 ) {
+                int orderBurstLimit = ConversionUtil.toInt(connProps.getProperty("orderBurstLimit", "1"));
+                requestPipeline = new TxnRequestPipeline(account.getId(), this, orderRateLimit, orderBurstLimit, ()->mtService.currentTimeMillis());
+                requestPipeline.registerStats(beansContainer.getBean(StatsCollector.class));
+            }
+            //加载前一交易日的资金和持仓
             if ( !loadData() ) {
                 initData(connProps);
             }
@@ -180,14 +232,87 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
         return (new JsonArray()).toString();
     }
 
+    public TxnRequestPipeline getRequestPipeline() {
+        return requestPipeline;
+    }
+
     @Override
     public void asyncSendOrder(Order order0) throws AppException
+    {
+        if ( requestPipeline==null ) {
+            sendOrder0(order0);
+        }else {
+            long currTime= DateUtil.localdatetime2long(order0.getInstrument().exchange().getZoneId(), mtService.getMarketTime());
+            listener.onOrderStateChanged(order0, new OrderStateTuple(OrderState.Submitting, OrderSubmitState.InsertSubmitting, currTime), null);
+            requestPipeline.submit(RequestType.Insert, order0, null);
+        }
+    }
+
+    @Override
+    public void asyncCancelOrder(Order order0) throws AppException {
+        if ( requestPipeline==null ) {
+            cancelOrder0(order0);
+        }else {
+            requestPipeline.submit(RequestType.Cancel, order0, null);
+        }
+    }
+
+    @Override
+    public void asyncModifyOrder(Order order0, OrderBuilder builder) throws AppException {
+        if ( requestPipeline==null ) {
+            modifyOrder0(order0, builder);
+        }else {
+            requestPipeline.submit(RequestType.Modify, order0, builder);
+        }
+    }
+
+    @Override
+    public boolean sendRequest(RequestType type, Order order0, OrderBuilder builder) throws Exception {
+        switch(type) {
+        case Insert:
+            sendOrder0(order0);
+            break;
+        case Cancel:
+            cancelOrder0(order0);
+            break;
+        case Modify:
+            modifyOrder0(order0, builder);
+            break;
+        }
+        return true;
+    }
+
+    @Override
+    public void onRequestFailed(RequestType type, Order order0, OrderBuilder builder, Throwable t) {
+        long currTime= DateUtil.localdatetime2long(order0.getInstrument().exchange().getZoneId(), mtService.getMarketTime());
+        OrderState state = order0.getStateTuple().getState();
+        switch(type) {
+        case Insert:
+            listener.onOrderStateChanged(order0, new OrderStateTuple(OrderState.Failed, OrderSubmitState.InsertRejected, currTime, t.toString()), null);
+            break;
+        case Cancel:
+            listener.onOrderStateChanged(order0, new OrderStateTuple(state, OrderSubmitState.CancelRejected, currTime, t.toString()), null);
+            break;
+        case Modify:
+            listener.onOrderStateChanged(order0, new OrderStateTuple(state, OrderSubmitState.ModifyRejected, currTime, t.toString()), null);
+            break;
+        }
+    }
+
+    @Override
+    public void onInsertCanceled(Order order0) {
+        long currTime= DateUtil.localdatetime2long(order0.getInstrument().exchange().getZoneId(), mtService.getMarketTime());
+        listener.onOrderStateChanged(order0, new OrderStateTuple(OrderState.Canceled, OrderSubmitState.Accepted, currTime, "已撤单"), null);
+    }
+
+    private void sendOrder0(Order order0) throws AppException
     {
         Exchangeable instrument = order0.getInstrument();
         SimOrder order = new SimOrder(order0, mtService.getMarketTime());
         checkNewOrder(order);
         orders.add(order);
         long currTime= DateUtil.localdatetime2long(order0.getInstrument().exchange().getZoneId(), mtService.getMarketTime());
+        order.setActiveTime(currTime+orderLatency);
         if ( order.getState()==SimOrderState.Placed ) {
             SimPosition pos = getPosition(instrument, true);
             pos.addOrder(order);
@@ -202,8 +327,7 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
         }
     }
 
-    @Override
-    public void asyncCancelOrder(Order order0) throws AppException {
+    private void cancelOrder0(Order order0) throws AppException {
         Exchangeable instrument = order0.getInstrument();
         SimOrder order = null;
         SimPosition pos = getPosition(instrument, false);
@@ -213,19 +337,22 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
         if ( order!=null ) {
             long currTime= DateUtil.localdatetime2long(order0.getInstrument().exchange().getZoneId(), mtService.getMarketTime());
             listener.onOrderStateChanged(order0, new OrderStateTuple(OrderState.Accepted, OrderSubmitState.CancelSubmitted, currTime), null);
-            cancelOrder(order);
-            //更新账户数据
-            pos.updateOnMarketData(mdService.getLastData(instrument).lastPrice);
-            updateAccount();
-            respondLater(instrument, ResponseType.RtnOrder, order, new OrderStateTuple(OrderState.Canceled, OrderSubmitState.Accepted, currTime+2, "已撤单"));
+            if ( cancelLatency>0 ) {
+                //撤单生效之前报单仍然可以成交
+                if ( !pendingCancels.contains(order) ) {
+                    order.setCancelTime(currTime+cancelLatency);
+                    pendingCancels.add(order);
+                }
+            } else {
+                cancelOrder(order, pos, currTime);
+            }
         }else {
             //返回无对应报单错误
             respondLater(instrument, ResponseType.RspOrderAction, order0);
         }
     }
 
-    @Override
-    public void asyncModifyOrder(Order order0, OrderBuilder builder) throws AppException {
+    private void modifyOrder0(Order order0, OrderBuilder builder) throws AppException {
         Exchangeable instrument = order0.getInstrument();
         SimOrder order = null;
         SimPosition pos = positions.get(instrument);
@@ -244,7 +371,7 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
 
     @Override
     protected void closeImpl() {
-        //保存数据到KVStore
+        //保存资金和持仓, 用于下一交易日
         saveData();
         changeState(ConnState.Disconnected);
     }
@@ -254,34 +381,79 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
         if (tradingDay==null) {
             tradingDay = DateUtil.str2localdate(md.tradingDay);
         }
+        if ( !pendingCancels.isEmpty() ) {
+            processPendingCancels(mtService.getMarketTime());
+        }
         SimPosition pos = positions.get(md.instrument);
         if ( pos!=null ) {
             List<SimOrder> orders = new ArrayList<>(pos.getOrders());
             for(SimOrder order:orders) {
-                SimTxn txn = completeOrder(order, md);
+                if ( orderLatency>0 && md.updateTimestamp<order.getActiveTime() ) {
+                    continue;
+                }
+                SimTxn txn = null;
+                if ( queueMatcher!=null && order.getPriceType()==OrderPriceType.LimitPrice ) {
+                    txn = matchOrder(order, md);
+                } else {
+                    txn = completeOrder(order, md);
+                }
                 if ( txn!=null ) {
                     pos.updateOnTxn(txn, md.updateTime);
                     long currTime= md.updateTimestamp;
-                    respondLater(order.getInstrument(), ResponseType.RtnOrder, order, new OrderStateTuple(OrderState.Complete, OrderSubmitState.Accepted, currTime, "全部成交"));
+                    if ( order.getState()==SimOrderState.Completed ) {
+                        respondLater(order.getInstrument(), ResponseType.RtnOrder, order, new OrderStateTuple(OrderState.Complete, OrderSubmitState.Accepted, currTime, "全部成交"));
+                    }
                     respondLater(order.getInstrument(), ResponseType.RtnTrade, txn);
                 }
             }
             pos.updateOnMarketData(md.lastPrice);
         }
+        if ( queueMatcher!=null ) {
+            queueMatcher.onMarketData(md);
+        }
         updateAccount();
         sendResponses();
     }
 
     @Override
     public void onTimeChanged(LocalDate tradingDay, LocalDateTime actionTime) {
+        if ( requestPipeline!=null ) {
+            requestPipeline.drain();
+        }
+        if ( !pendingCancels.isEmpty() ) {
+            processPendingCancels(actionTime);
+        }
         sendResponses();
     }
 
+    /**
+     * 有待发送的回报或排队中的请求时需要下一个时间片, 有等待生效的撤单时需要撤单生效的时间片, 否则由行情驱动
+     */
+    @Override
+    public LocalDateTime nextEventTime(LocalDateTime currTime) {
+        if ( !pendingResponses.isEmpty() || (requestPipeline!=null && requestPipeline.getQueueSize()>0) ) {
+            return currTime;
+        }
+        LocalDateTime result = null;
+        for(int i=0;i<pendingCancels.size();i++) {
+            SimOrder order = pendingCancels.get(i);
+            LocalDateTime cancelTime = DateUtil.long2datetime(order.getInstrument().exchange().getZoneId(), order.getCancelTime());
+            if ( result==null || cancelTime.isBefore(result) ) {
+                result = cancelTime;
+            }
+        }
+        return result;
+    }
+
     /**
      * 加载数据
      */
     private boolean loadData() {
-        String jsonText = null; //kvStore.getAsString("simTxn");
+        SimTxnStateStore stateStore = beansContainer.getBean(SimTxnStateStore.class);
+        String jsonText = null;
+        if ( stateStore!=null ) {
+            jsonText = stateStore.get(account.getId());
+        }
         if ( StringUtil.isEmpty(jsonText)) {
             return false;
         }
@@ -332,7 +504,10 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
             posJson.add(pos.toJson());
         }
         json.add("positions", posJson);
-        //kvStore.put("simTxn", json.toString());
+        SimTxnStateStore stateStore = beansContainer.getBean(SimTxnStateStore.class);
+        if ( stateStore!=null ) {
+            stateStore.put(account.getId(), json.toString());
+        }
     }
 
     private void respondLater(Exchangeable e, ResponseType responseType, Object ...data) {
@@ -445,7 +620,12 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
             return;
         }
         //检查保证金需求
-        long[] values = feeEvaluator.compute(instrument, order.getVolume(), (order.getLimitPrice()), order.getDirection(), order.getOffsetFlag());
+        long[] values = FutureFeeEvaluator.threadFeesBuffer();
+        if ( !feeEvaluator.compute(values, instrument, order.getVolume(), (order.getLimitPrice()), order.getDirection(), order.getOffsetFlag()) ) {
+            order.setState(SimOrderState.Invalid, mtService.getMarketTime());
+            order.setErrorReason(instrument+" 无手续费数据");
+            return;
+        }
         long frozenMargin = values[0];
         long frozenCommissions = values[1];
 
@@ -502,10 +682,50 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
     }
 
     /**
-     * 取消报单
+     * 取消报单剩余的部分, 有成交时回报部分撤单
      */
-    private void cancelOrder(SimOrder order) {
+    private void cancelOrder(SimOrder order, SimPosition pos, long currTime) {
+        Exchangeable instrument = order.getInstrument();
         order.setState(SimOrderState.Canceled, mtService.getMarketTime());
+        //更新账户数据
+        pos.updateOnMarketData(mdService.getLastData(instrument).lastPrice);
+        updateAccount();
+        OrderState state = order.getTradeVolume()>0?OrderState.PartiallyDeleted:OrderState.Canceled;
+        respondLater(instrument, ResponseType.RtnOrder, order, new OrderStateTuple(state, OrderSubmitState.Accepted, currTime+2, "已撤单"));
+    }
+
+    /**
+     * 执行已经到达生效时间的撤单, 已经全部成交的报单不再撤单
+     */
+    private void processPendingCancels(LocalDateTime time) {
+        for(Iterator<SimOrder> it=pendingCancels.iterator(); it.hasNext();) {
+            SimOrder order = it.next();
+            long currTime = DateUtil.localdatetime2long(order.getInstrument().exchange().getZoneId(), time);
+            if ( order.getCancelTime()>currTime ) {
+                continue;
+            }
+            it.remove();
+            if ( order.getState()==SimOrderState.Placed ) {
+                cancelOrder(order, getPosition(order.getInstrument(), true), currTime);
+            }
+        }
+    }
+
+    /**
+     * 使用排队撮合模型成交报单, 可能部分成交
+     */
+    private SimTxn matchOrder(SimOrder order, MarketData md) {
+        if ( order.getState()!=SimOrderState.Placed ) {
+            return null;
+        }
+        SimTxn result = queueMatcher.match(order, md, mtService.getMarketTime());
+        if ( result!=null ) {
+            if ( order.getRemainingVolume()==0 ) {
+                order.setState(SimOrderState.Completed, mtService.getMarketTime());
+            }
+            allTxns.add(result);
+        }
+        return result;
     }
 
     /**
@@ -536,7 +756,8 @@ public class SimTxnSession extends AbsTxnSession implements JsonEnabled, TradeCo
             }
         }
         if ( txnPrice!=0 ) {
-            result = new SimTxn(order, txnPrice, mtService.getMarketTime());
+            result = new SimTxn(order, order.getRemainingVolume(), txnPrice, mtService.getMarketTime());
+            order.addTradeVolume(result.getVolume());
             order.setState(SimOrderState.Completed, mtService.getMarketTime());
             allTxns.add(result);
             assert(result.getVolume()>0);
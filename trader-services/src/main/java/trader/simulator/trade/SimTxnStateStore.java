@@ -0,0 +1,27 @@
+package trader.simulator.trade;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 模拟账户的跨交易日状态: 资金和持仓.
+ * <BR>回测时同一批连续交易日共享一个实例, 交易日结束关闭交易会话时保存, 下一个交易日连接时加载.
+ * 没有这个对象时每个交易日都从初始资金开始.
+ */
+public class SimTxnStateStore {
+
+    private Map<String, String> states = new HashMap<>();
+
+    public synchronized String get(String accountId) {
+        return states.get(accountId);
+    }
+
+    public synchronized void put(String accountId, String state) {
+        states.put(accountId, state);
+    }
+
+    public synchronized void clear() {
+        states.clear();
+    }
+
+}
@@ -0,0 +1,266 @@
+package trader.tool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import trader.common.beans.BeansContainer;
+import trader.common.exchangeable.Exchange;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.util.ConversionUtil;
+import trader.common.util.DateUtil;
+import trader.common.util.StringUtil;
+import trader.common.util.StringUtil.KVPair;
+import trader.common.util.TraderHomeUtil;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.ta.BarSeriesLoader;
+import trader.service.ta.label.LabelDatasetWriter;
+import trader.service.ta.label.TripBarrierLabeler;
+import trader.service.ta.label.TripBarrierLabeler.DayLabels;
+import trader.service.util.CmdAction;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+
+/**
+ * 从历史TICK生成三重界限标注和特征数据集.
+ * <P>每个(品种, 交易日)在线程池中独立解码和标注, 结果按品种和交易日顺序合并:
+ * 交易日结束时没有碰到界限的采样使用下一个交易日开始部分的TICK继续计算, 然后写入列式文件.
+ * 输出内容与并行线程数无关.
+ */
+public class RepositoryLabelDatasetAction implements CmdAction {
+
+    private List<String> instrumentFilters = new ArrayList<>();
+    private LocalDate beginDate;
+    private LocalDate endDate;
+    private int topTicks = 10;
+    private int bottomTicks = 10;
+    private int maxTime = 5*60*1000;
+    private int sampleInterval = 0;
+    private String features = "ret:20, ma:60, std:100, vol:100, oi:100, spread, imbalance, time";
+    private File outputFile;
+    private int parallel = Runtime.getRuntime().availableProcessors();
+    private PrintWriter writer;
+
+    /**
+     * 标注统计
+     */
+    public static class LabelStats {
+        public int days;
+        public long ticks;
+        public long rows;
+        /**
+         * 数据结束时仍然没有碰到界限的采样
+         */
+        public long unresolved;
+        public long time;
+    }
+
+    @Override
+    public String getCommand() {
+        return "repository.labelDataset";
+    }
+
+    @Override
+    public void usage(PrintWriter writer) {
+        writer.println("repository labelDataset --instruments=e1,e2,e3 --output=FILE [--beginDate=beginDate] [--endDate=endDate] [--top=PRICE_TICKS] [--bottom=PRICE_TICKS] [--maxTime=5m] [--sampleInterval=MILLIS] [--features=ret:20,ma:60,std:100,vol:100,oi:100,spread,imbalance,time] [--parallel=THREADS]");
+        writer.println("\t从历史TICK生成三重界限标注和特征数据集");
+    }
+
+    @Override
+    public int execute(BeansContainer beansContainer, PrintWriter writer, List<KVPair> options) throws Exception {
+        this.writer = writer;
+        if ( !parseOptions(options) ) {
+            return 1;
+        }
+        ExchangeableData data = TraderHomeUtil.getExchangeableData();
+        List<Exchangeable> instruments = new ArrayList<>();
+        for(Exchange exchange:Exchange.getInstances()) {
+            for(Exchangeable instrument: data.listHistoryExchangeableIds(exchange)) {
+                if ( acceptInstrument(instrument)) {
+                    instruments.add(instrument);
+                }
+            }
+        }
+        Collections.sort(instruments, (e1, e2)->e1.uniqueId().compareTo(e2.uniqueId()));
+        TripBarrierLabeler labeler = new TripBarrierLabeler(topTicks, bottomTicks, maxTime, sampleInterval, features);
+        LabelStats stats = null;
+        try(OutputStream os = new FileOutputStream(outputFile);){
+            stats = label(data, instruments, labeler, os);
+        }
+        writer.println("品种 "+instruments.size()+" 交易日 "+stats.days+" TICK "+stats.ticks+" 标注 "+stats.rows+" 未完成 "+stats.unresolved
+                +" 耗时 "+stats.time+" ms, "+(stats.ticks*1000/Math.max(1, stats.time))+" TICK/s");
+        return 0;
+    }
+
+    public void setParallel(int parallel) {
+        this.parallel = parallel;
+    }
+
+    public void setDates(LocalDate beginDate, LocalDate endDate) {
+        this.beginDate = beginDate;
+        this.endDate = endDate;
+    }
+
+    /**
+     * 标注全部品种的历史数据, 写入 os
+     */
+    public LabelStats label(ExchangeableData data, List<Exchangeable> instruments, TripBarrierLabeler labeler, OutputStream os) throws Exception {
+        long t0 = System.currentTimeMillis();
+        LabelStats stats = new LabelStats();
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimMarketDataService mdService = new SimMarketDataService();
+        mdService.init(beansContainer);
+        beansContainer.addBean(MarketDataService.class, mdService);
+
+        int threads = Math.max(1, parallel);
+        ThreadPoolExecutor executorService = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        LabelDatasetWriter datasetWriter = new LabelDatasetWriter(os, labeler.getFeatureNames());
+        try {
+            //按顺序提交, 最多同时保留 threads*2 个结果
+            LinkedList<Future<DayLabels>> dayFutures = new LinkedList<>();
+            List<DayLabels> pendingDays = new ArrayList<>();
+            Exchangeable lastInstrument = null;
+            for(Exchangeable instrument:instruments) {
+                for(LocalDate tradingDay:getTradingDays(data, instrument)) {
+                    dayFutures.add(executorService.submit(()->{
+                        List<MarketData> ticks = new BarSeriesLoader(beansContainer, data).setInstrument(instrument).loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+                        return labeler.labelDay(instrument, tradingDay, ticks);
+                    }));
+                    while( dayFutures.size()>=threads*2 ) {
+                        lastInstrument = merge(labeler, datasetWriter, stats, pendingDays, lastInstrument, dayFutures.removeFirst().get());
+                    }
+                }
+            }
+            while( !dayFutures.isEmpty() ) {
+                lastInstrument = merge(labeler, datasetWriter, stats, pendingDays, lastInstrument, dayFutures.removeFirst().get());
+            }
+            flush(datasetWriter, stats, pendingDays, true);
+        } finally {
+            executorService.shutdownNow();
+            datasetWriter.close();
+        }
+        stats.rows = datasetWriter.getRowCount();
+        stats.time = System.currentTimeMillis()-t0;
+        return stats;
+    }
+
+    /**
+     * 按顺序合并一个交易日的结果: 延续之前交易日没有碰到界限的采样, 写入已经全部完成的交易日
+     */
+    private Exchangeable merge(TripBarrierLabeler labeler, LabelDatasetWriter datasetWriter, LabelStats stats, List<DayLabels> pendingDays, Exchangeable lastInstrument, DayLabels day) throws Exception {
+        stats.days++;
+        stats.ticks += day.tickCount;
+        if ( lastInstrument!=null && !lastInstrument.equals(day.instrument) ) {
+            flush(datasetWriter, stats, pendingDays, true);
+        }
+        labeler.carryOver(pendingDays, day);
+        pendingDays.add(day);
+        flush(datasetWriter, stats, pendingDays, false);
+        return day.instrument;
+    }
+
+    /**
+     * 按顺序写入已经完成的交易日
+     *
+     * @param all 品种数据结束, 全部写入
+     */
+    private void flush(LabelDatasetWriter datasetWriter, LabelStats stats, List<DayLabels> pendingDays, boolean all) throws Exception {
+        while( !pendingDays.isEmpty() && (all || pendingDays.get(0).getOpenCount()==0) ) {
+            DayLabels day = pendingDays.remove(0);
+            stats.unresolved += day.getOpenCount();
+            datasetWriter.write(day);
+        }
+    }
+
+    private List<LocalDate> getTradingDays(ExchangeableData data, Exchangeable instrument) throws Exception {
+        List<LocalDate> result = new ArrayList<>();
+        List<LocalDate> tradingDays = new ArrayList<>(data.list(instrument, ExchangeableData.TICK_CTP));
+        Collections.sort(tradingDays);
+        for(LocalDate tradingDay:tradingDays) {
+            if ( (beginDate!=null && tradingDay.isBefore(beginDate)) || (endDate!=null && tradingDay.isAfter(endDate)) ) {
+                continue;
+            }
+            if ( instrument.exchange().getTradingTimes(instrument, tradingDay)==null) {
+                continue;
+            }
+            result.add(tradingDay);
+        }
+        return result;
+    }
+
+    private boolean acceptInstrument(Exchangeable instrument) {
+        for(String f:instrumentFilters) {
+            if ( instrument.uniqueId().indexOf(f)>=0 ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected boolean parseOptions(List<KVPair> options) {
+        for(KVPair kv:options) {
+            if ( StringUtil.isEmpty(kv.v)) {
+                continue;
+            }
+            switch(kv.k.toLowerCase()) {
+            case "begindate":
+                beginDate = DateUtil.str2localdate(kv.v);
+                break;
+            case "enddate":
+                endDate = DateUtil.str2localdate(kv.v);
+                break;
+            case "instrument":
+                instrumentFilters.add(kv.v);
+                break;
+            case "instruments":
+                for(String p:StringUtil.split(kv.v, ",|;")) {
+                    instrumentFilters.add(p);
+                }
+                break;
+            case "top":
+                topTicks = ConversionUtil.toInt(kv.v);
+                break;
+            case "bottom":
+                bottomTicks = ConversionUtil.toInt(kv.v);
+                break;
+            case "maxtime":
+                maxTime = (int)(ConversionUtil.str2seconds(kv.v)*1000);
+                break;
+            case "sampleinterval":
+                sampleInterval = ConversionUtil.toInt(kv.v);
+                break;
+            case "features":
+                features = kv.v;
+                break;
+            case "output":
+                outputFile = new File(kv.v);
+                break;
+            case "parallel":
+                parallel = ConversionUtil.toInt(kv.v);
+                break;
+            }
+        }
+        if ( instrumentFilters.isEmpty() ) {
+            writer.println("需要指定过滤表达式");
+            return false;
+        }
+        if ( outputFile==null ) {
+            writer.println("需要指定输出文件 --output=FILE");
+            return false;
+        }
+        return true;
+    }
+
+}
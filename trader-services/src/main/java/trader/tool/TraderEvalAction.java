@@ -1,19 +1,29 @@
 package trader.tool;
 
+import java.io.File;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import trader.common.beans.BeansContainer;
 import trader.common.beans.Lifecycle;
 import trader.common.exchangeable.Exchange;
 import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableDataCache;
 import trader.common.exchangeable.ExchangeableTradingTimes;
 import trader.common.exchangeable.MarketDayUtil;
+import trader.common.util.ConversionUtil;
 import trader.common.util.DateUtil;
 import trader.common.util.PriceUtil;
 import trader.common.util.StringUtil;
@@ -22,6 +32,7 @@ import trader.service.concurrent.OrderedExecutor;
 import trader.service.md.MarketDataService;
 import trader.service.plugin.PluginService;
 import trader.service.plugin.PluginServiceImpl;
+import trader.service.repository.BORepository;
 import trader.service.ta.TechnicalAnalysisServiceImpl;
 import trader.service.trade.Account;
 import trader.service.trade.MarketTimeService;
@@ -29,25 +40,90 @@ import trader.service.trade.Order;
 import trader.service.trade.TradeConstants.AccMoney;
 import trader.service.trade.TradeConstants.OdrVolume;
 import trader.service.trade.TradeService;
+import trader.service.trade.Transaction;
 import trader.service.tradlet.TradletService;
+import trader.service.tradlet.script.GroovyScriptCache;
 import trader.service.util.CmdAction;
 import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimBORepository;
 import trader.simulator.SimMarketDataService;
 import trader.simulator.SimMarketTimeService;
 import trader.simulator.SimOrderedExecutor;
 import trader.simulator.SimScheduledExecutorService;
 import trader.simulator.SimTradletService;
+import trader.simulator.trade.SimEquityMetrics;
+import trader.simulator.trade.SimEquityRecorder;
 import trader.simulator.trade.SimTradeService;
+import trader.simulator.trade.SimTxnStateStore;
 
 /**
  * 回测
+ * <P>回测按照 品种组*连续交易日 划分为多个分片, 每个分片使用独立的服务对象, 按交易日顺序回测并延续资金和持仓;
+ * 分片之间互相独立, 可以并行回测. 全部分片完成后按分片顺序输出, 并汇总成交和资金曲线.
+ * 并行和顺序回测的输出完全相同.
+ * <P>reuseBeans 时分片内的交易日复用同一组服务对象, 每个交易日只重置交易日相关的数据, 结果与每日新建服务对象相同.
+ * <P>指定 metricsDir 时每隔 equityInterval 秒记录账户净值, 增量计算绩效指标, 每个分片结束时输出资金序列和报表.
  */
 public class TraderEvalAction implements CmdAction {
     protected PrintWriter writer;
     protected LocalDate beginDate;
     protected LocalDate endDate;
     protected List<Exchangeable> instruments = new ArrayList<>();
-    protected Exchangeable mdInstrument = null;
+    /**
+     * 事件驱动模式, 跳过没有行情/定时任务/回报的时间片
+     */
+    protected boolean eventDriven = true;
+    /**
+     * 并行回测的线程数
+     */
+    protected int parallel = 1;
+    /**
+     * 每个分片的交易日数, 0 代表不按交易日分片
+     */
+    protected int shardDays = 0;
+    /**
+     * 每个品种单独回测
+     */
+    protected boolean shardInstruments = false;
+    /**
+     * 分片内的多个交易日复用同一组服务对象, 每个交易日只重置交易日相关的数据
+     */
+    protected boolean reuseBeans = false;
+    /**
+     * 资金序列和绩效报表的输出目录, null 代表不记录
+     */
+    protected File metricsDir;
+    /**
+     * 资金采样间隔(秒)
+     */
+    protected int equityInterval = 60;
+
+    /**
+     * 回测分片: 一组品种的一段连续交易日
+     */
+    protected static class EvalShard {
+        int index;
+        List<Exchangeable> instruments;
+        List<LocalDate> tradingDays;
+        StringWriter output = new StringWriter();
+        List<DayResult> dayResults = new ArrayList<>();
+
+        EvalShard(int index, List<Exchangeable> instruments, List<LocalDate> tradingDays){
+            this.index = index;
+            this.instruments = instruments;
+            this.tradingDays = tradingDays;
+        }
+    }
+
+    /**
+     * 一个交易日的回测结果
+     */
+    protected static class DayResult {
+        LocalDate tradingDay;
+        long preBalance;
+        long balance;
+        List<String> txns = new ArrayList<>();
+    }
 
     @Override
     public String getCommand() {
@@ -56,7 +132,7 @@ public class TraderEvalAction implements CmdAction {
 
     @Override
     public void usage(PrintWriter writer) {
-        writer.println("eval -Dtrader.configFile=TRADE_XML --beginDate=YYYYMMDD --endDate=YYYYMMDD [--instruments=INSTRUMENT1,INSTRUMENT2]");
+        writer.println("eval -Dtrader.configFile=TRADE_XML --beginDate=YYYYMMDD --endDate=YYYYMMDD [--instruments=INSTRUMENT1,INSTRUMENT2] [--clock=event|stepped] [--parallel=THREADS] [--shardDays=DAYS] [--shardInstruments=true] [--reuseBeans=true] [--metricsDir=DIR] [--equityInterval=SECONDS]");
         writer.println("\t回测");
     }
 
@@ -67,21 +143,176 @@ public class TraderEvalAction implements CmdAction {
         if ( !parseOptions(options)) {
             return 1;
         }
-        SimpleBeansContainer globalBeans = createGlobalBeans();
+        List<EvalShard> shards = createShards();
+        runShards(shards);
+        reduce(shards);
+        return 0;
+    }
+
+    /**
+     * 按照品种和交易日划分回测分片
+     */
+    protected List<EvalShard> createShards() {
+        List<LocalDate> tradingDays = getTradingDays();
+        List<List<Exchangeable>> instrumentGroups = new ArrayList<>();
+        if ( shardInstruments && instruments.size()>1 ) {
+            for(Exchangeable e:instruments) {
+                instrumentGroups.add(Collections.singletonList(e));
+            }
+        } else {
+            instrumentGroups.add(instruments);
+        }
+        int daysPerShard = shardDays>0?shardDays:Math.max(1, tradingDays.size());
+        List<EvalShard> result = new ArrayList<>();
+        for(List<Exchangeable> instrumentGroup:instrumentGroups) {
+            for(int i=0;i<tradingDays.size();i+=daysPerShard) {
+                List<LocalDate> shardTradingDays = tradingDays.subList(i, Math.min(tradingDays.size(), i+daysPerShard));
+                result.add(new EvalShard(result.size(), instrumentGroup, shardTradingDays));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 回测时间段内的全部交易日
+     */
+    protected List<LocalDate> getTradingDays() {
+        Exchange exchange = Exchange.SHFE;
+        if ( !instruments.isEmpty() ) {
+            exchange = instruments.get(0).exchange();
+        }
+        List<LocalDate> tradingDays = new ArrayList<>();
         LocalDate tradingDay = beginDate;
-        if ( !MarketDayUtil.isMarketDay(Exchange.SHFE, tradingDay)) {
-            tradingDay = MarketDayUtil.nextMarketDay(Exchange.SHFE, tradingDay);
+        if ( !MarketDayUtil.isMarketDay(exchange, tradingDay)) {
+            tradingDay = MarketDayUtil.nextMarketDay(exchange, tradingDay);
         }
         while(!tradingDay.isAfter(endDate)) {
-            SimpleBeansContainer beans = getBeansFor(globalBeans, instruments, tradingDay);
-            doTrade(beans);
-            destroyBeans(globalBeans, beans);
-            tradingDay = MarketDayUtil.nextMarketDay(mdInstrument.exchange(), tradingDay);
+            tradingDays.add(tradingDay);
+            tradingDay = MarketDayUtil.nextMarketDay(exchange, tradingDay);
+        }
+        return tradingDays;
+    }
+
+    /**
+     * 回测全部分片, parallel>1 时并行
+     */
+    protected void runShards(List<EvalShard> shards) throws Exception {
+        if ( parallel<=1 || shards.size()<=1 ) {
+            for(EvalShard shard:shards) {
+                runShard(shard);
+            }
+            return;
+        }
+        int threads = Math.min(parallel, shards.size());
+        ThreadPoolExecutor executorService = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        try {
+            List<Future<EvalShard>> shardFutures = new ArrayList<>();
+            for(EvalShard shard:shards) {
+                shardFutures.add(executorService.submit(()->{
+                    runShard(shard);
+                    return shard;
+                }));
+            }
+            for(Future<EvalShard> shardFuture:shardFutures) {
+                shardFuture.get();
+            }
+        }finally {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * 按交易日顺序回测一个分片, 资金和持仓通过 SimTxnStateStore 延续到下一个交易日
+     */
+    protected void runShard(EvalShard shard) throws Exception {
+        SimpleBeansContainer globalBeans = createGlobalBeans();
+        globalBeans.addBean(SimTxnStateStore.class, new SimTxnStateStore());
+        SimEquityRecorder equityRecorder = null;
+        if ( metricsDir!=null ) {
+            File outputDir = metricsDir;
+            if ( shardDays>0 || shardInstruments ) {
+                outputDir = new File(metricsDir, "shard-"+shard.index);
+            }
+            equityRecorder = new SimEquityRecorder(outputDir, equityInterval);
+            globalBeans.addBean(SimEquityRecorder.class, equityRecorder);
+        }
+        PrintWriter out = new PrintWriter(shard.output);
+        SimpleBeansContainer beans = null;
+        try {
+            for(LocalDate tradingDay:shard.tradingDays) {
+                if ( beans==null ) {
+                    beans = getBeansFor(globalBeans, shard.instruments, tradingDay);
+                } else {
+                    resetBeansFor(beans, tradingDay);
+                }
+                shard.dayResults.add(doTrade(beans, out));
+                if ( equityRecorder!=null ) {
+                    equityRecorder.endTradingDay();
+                }
+                if ( !reuseBeans ) {
+                    destroyBeans(globalBeans, beans);
+                    beans = null;
+                }
+            }
+            if ( equityRecorder!=null ) {
+                equityRecorder.writeReports();
+                printMetrics(equityRecorder, out);
+            }
+        }finally {
+            out.flush();
+            if ( beans!=null ) {
+                destroyBeans(globalBeans, beans);
+            }
+            destroyBeans(null, globalBeans);
         }
-        return 0;
     }
 
-    private boolean parseOptions(List<KVPair> options) {
+    /**
+     * 按分片顺序输出每个交易日的结果, 然后汇总成交和资金曲线
+     */
+    protected void reduce(List<EvalShard> shards) {
+        for(EvalShard shard:shards) {
+            if ( shards.size()>1 ) {
+                writer.println("=== 分片 "+shard.index+" "+shard.instruments+" "+DateUtil.date2str(shard.tradingDays.get(0))+"-"+DateUtil.date2str(shard.tradingDays.get(shard.tradingDays.size()-1))+" ===");
+            }
+            writer.print(shard.output.toString());
+        }
+        //资金曲线从最早交易日的期初资金开始, 累加每个交易日所有分片的盈亏
+        TreeMap<LocalDate, List<DayResult>> dayResults = new TreeMap<>();
+        for(EvalShard shard:shards) {
+            for(DayResult dayResult:shard.dayResults) {
+                dayResults.computeIfAbsent(dayResult.tradingDay, (k)->new ArrayList<>()).add(dayResult);
+            }
+        }
+        if ( dayResults.isEmpty() ) {
+            return;
+        }
+        long equity = 0;
+        for(DayResult dayResult:dayResults.firstEntry().getValue()) {
+            equity += dayResult.preBalance;
+        }
+        writer.println("--- 汇总 ---");
+        writer.println("成交:");
+        for(List<DayResult> results:dayResults.values()) {
+            for(DayResult dayResult:results) {
+                for(String txn:dayResult.txns) {
+                    writer.println(txn);
+                }
+            }
+        }
+        writer.println("资金曲线:");
+        for(LocalDate tradingDay:dayResults.keySet()) {
+            long profit = 0;
+            for(DayResult dayResult:dayResults.get(tradingDay)) {
+                profit += dayResult.balance-dayResult.preBalance;
+            }
+            equity += profit;
+            writer.println(String.format("%8s %12s %12s", DateUtil.date2str(tradingDay), PriceUtil.long2str(profit), PriceUtil.long2str(equity)));
+        }
+        writer.flush();
+    }
+
+    protected boolean parseOptions(List<KVPair> options) {
         beginDate = null;
         for(KVPair kv:options) {
             if ( StringUtil.isEmpty(kv.v)) {
@@ -97,6 +328,27 @@ public class TraderEvalAction implements CmdAction {
             case "instrument":
                 instruments.add(Exchangeable.fromString(kv.v));
                 break;
+            case "parallel":
+                parallel = ConversionUtil.toInt(kv.v);
+                break;
+            case "sharddays":
+                shardDays = ConversionUtil.toInt(kv.v);
+                break;
+            case "shardinstruments":
+                shardInstruments = ConversionUtil.toBoolean(kv.v);
+                break;
+            case "reusebeans":
+                reuseBeans = ConversionUtil.toBoolean(kv.v);
+                break;
+            case "metricsdir":
+                metricsDir = new File(kv.v);
+                break;
+            case "equityinterval":
+                equityInterval = ConversionUtil.toInt(kv.v);
+                break;
+            case "clock":
+                eventDriven = !"stepped".equalsIgnoreCase(kv.v);
+                break;
             case "instruments":
                 for(String instrument:StringUtil.split(kv.v, ",")) {
                     instruments.add(Exchangeable.fromString(instrument));
@@ -111,7 +363,7 @@ public class TraderEvalAction implements CmdAction {
         return true;
     }
 
-    private void doTrade(SimpleBeansContainer beansContainer) {
+    private DayResult doTrade(SimpleBeansContainer beansContainer, PrintWriter writer) {
         SimMarketTimeService mtService = beansContainer.getBean(SimMarketTimeService.class);
         //时间片段循环
         while(mtService.nextTimePiece());
@@ -141,35 +393,86 @@ public class TraderEvalAction implements CmdAction {
                 PriceUtil.long2str(account.getMoney(AccMoney.CloseProfit))
                 );
         writer.println(accountLine);
+
+        return getDayResult(account, mtService.getTradingDay());
+    }
+
+    /**
+     * 输出每个账户的绩效指标
+     */
+    protected void printMetrics(SimEquityRecorder equityRecorder, PrintWriter writer) {
+        writer.println("绩效:");
+        for(SimEquityMetrics metrics:equityRecorder.getMetrics().values()) {
+            writer.println(String.format("%12s 净利润: %10s 最大回撤: %10s 夏普: %8.3f 索提诺: %8.3f 成交额: %12s 胜率: %6.2f%% 采样: %d",
+                    metrics.getAccountId(),
+                    PriceUtil.long2str(metrics.getProfit()),
+                    PriceUtil.long2str(metrics.getMaxDrawdown()),
+                    metrics.getSharpe(),
+                    metrics.getSortino(),
+                    PriceUtil.long2str(metrics.getTurnover()),
+                    metrics.getWinRate()*100,
+                    metrics.getSampleCount()
+                    ));
+        }
+    }
+
+    /**
+     * 账户在一个交易日的资金和成交
+     */
+    protected DayResult getDayResult(Account account, LocalDate tradingDay) {
+        DayResult result = new DayResult();
+        result.tradingDay = tradingDay;
+        result.preBalance = account.getMoney(AccMoney.PreBalance);
+        result.balance = account.getMoney(AccMoney.Balance);
+        for(Order order:account.getOrders()) {
+            for(Transaction txn:order.getTransactions()) {
+                result.txns.add(String.format("%8s %12s %12s %6s %8s %8s %4d",
+                        DateUtil.date2str(result.tradingDay),
+                        DateUtil.date2str(DateUtil.long2datetime(txn.getTime())),
+                        order.getInstrument(),
+                        txn.getDirection(),
+                        txn.getOffsetFlags(),
+                        PriceUtil.long2str(txn.getPrice()),
+                        txn.getVolume()
+                        ));
+            }
+        }
+        return result;
     }
 
     /**
      * 创建一些跨越交易日的服务
      */
-    private SimpleBeansContainer createGlobalBeans() throws Exception
+    protected SimpleBeansContainer createGlobalBeans() throws Exception
     {
         SimpleBeansContainer globalBeans = new SimpleBeansContainer();
 
         PluginServiceImpl pluginService = new PluginServiceImpl();
         pluginService.init();
         globalBeans.addBean(PluginService.class, pluginService);
+        //历史TICK/KBar加载和模拟行情共用有上限的缓存
+        globalBeans.addBean(ExchangeableDataCache.class, ExchangeableDataCache.getDefault());
+        //每个交易日重新创建的交易组共用已编译的脚本
+        globalBeans.addBean(GroovyScriptCache.class, new GroovyScriptCache());
         return globalBeans;
     }
 
     /**
      * 为某个交易日创建运行环境
      */
-    private SimpleBeansContainer getBeansFor(SimpleBeansContainer globalBeans, List<Exchangeable> instruments, LocalDate tradingDay)
+    protected SimpleBeansContainer getBeansFor(SimpleBeansContainer globalBeans, List<Exchangeable> instruments, LocalDate tradingDay)
             throws Exception
     {
         SimpleBeansContainer beansContainer = new SimpleBeansContainer(globalBeans);
         SimMarketTimeService mtService = new SimMarketTimeService();
+        mtService.setEventDriven(eventDriven);
         SimOrderedExecutor orderedExecutor = new SimOrderedExecutor();
         SimScheduledExecutorService scheduledExecutorService = new SimScheduledExecutorService();
         SimMarketDataService mdService = new SimMarketDataService();
-        SimTradeService tradeService = new SimTradeService();
+        SimTradeService tradeService = createTradeService(globalBeans);
         TechnicalAnalysisServiceImpl taService = new TechnicalAnalysisServiceImpl();
-        SimTradletService tradletService = new SimTradletService();
+        SimTradletService tradletService = createTradletService(globalBeans);
+        SimBORepository repository = new SimBORepository();
 
         beansContainer.addBean(MarketTimeService.class, mtService);
         beansContainer.addBean(OrderedExecutor.class, orderedExecutor);
@@ -178,12 +481,13 @@ public class TraderEvalAction implements CmdAction {
         beansContainer.addBean(TradeService.class, tradeService);
         beansContainer.addBean(TechnicalAnalysisServiceImpl.class, taService);
         beansContainer.addBean(TradletService.class, tradletService);
+        beansContainer.addBean(BORepository.class, repository);
 
         scheduledExecutorService.init(beansContainer);
         mdService.addSubscriptions(instruments);
         mdService.init(beansContainer);
         Collection<Exchangeable> mdInstruments = mdService.getSubscriptions();
-        mdInstrument = mdInstruments.iterator().next();
+        Exchangeable mdInstrument = mdInstruments.iterator().next();
         ExchangeableTradingTimes tradingTimes = mdInstrument.exchange().getTradingTimes(mdInstrument, tradingDay);
         mtService.setTimeRanges(tradingDay, tradingTimes.getMarketTimes() );
         taService.init(beansContainer);
@@ -192,9 +496,46 @@ public class TraderEvalAction implements CmdAction {
         return beansContainer;
     }
 
-    private void destroyBeans(SimpleBeansContainer globalBeans, SimpleBeansContainer beans) {
+    /**
+     * 复用上一交易日的运行环境, 按照 getBeansFor() 的初始化顺序切换到新的交易日.
+     * <BR>行情游标, 时间, KBar, 账户报单和交易组按新交易日重建; 账户, 监听器, 品种定义, 手续费和已编译的脚本保留
+     */
+    protected void resetBeansFor(SimpleBeansContainer beansContainer, LocalDate tradingDay) throws Exception
+    {
+        SimMarketTimeService mtService = beansContainer.getBean(SimMarketTimeService.class);
+        SimScheduledExecutorService scheduledExecutorService = beansContainer.getBean(SimScheduledExecutorService.class);
+        SimMarketDataService mdService = beansContainer.getBean(SimMarketDataService.class);
+        SimTradeService tradeService = beansContainer.getBean(SimTradeService.class);
+        TechnicalAnalysisServiceImpl taService = beansContainer.getBean(TechnicalAnalysisServiceImpl.class);
+        SimTradletService tradletService = beansContainer.getBean(SimTradletService.class);
+
+        scheduledExecutorService.resetForTradingDay(tradingDay);
+        mdService.resetForTradingDay(tradingDay);
+        Exchangeable mdInstrument = mdService.getSubscriptions().iterator().next();
+        ExchangeableTradingTimes tradingTimes = mdInstrument.exchange().getTradingTimes(mdInstrument, tradingDay);
+        mtService.setTimeRanges(tradingDay, tradingTimes.getMarketTimes() );
+        taService.resetForTradingDay(tradingDay);
+        tradeService.resetForTradingDay(tradingDay);
+        tradletService.resetForTradingDay(tradingDay);
+    }
+
+    /**
+     * 创建模拟交易服务, 子类可以指定账户
+     */
+    protected SimTradeService createTradeService(SimpleBeansContainer globalBeans) {
+        return new SimTradeService();
+    }
+
+    /**
+     * 创建模拟策略服务, 子类可以指定交易组
+     */
+    protected SimTradletService createTradletService(SimpleBeansContainer globalBeans) {
+        return new SimTradletService();
+    }
+
+    protected void destroyBeans(SimpleBeansContainer globalBeans, SimpleBeansContainer beans) {
         for(Class beanClass:beans.getAllBeans().keySet()) {
-            if ( globalBeans.getBean(beanClass)!=null ) {
+            if ( globalBeans!=null && globalBeans.getBean(beanClass)!=null ) {
                 continue;
             }
             Object bean = beans.getBean(beanClass);
@@ -0,0 +1,591 @@
+package trader.tool;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import trader.common.beans.BeansContainer;
+import trader.common.config.ConfigUtil;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.ConversionUtil;
+import trader.common.util.IniFile;
+import trader.common.util.PriceUtil;
+import trader.common.util.StringUtil;
+import trader.common.util.StringUtil.KVPair;
+import trader.service.trade.TradeService;
+import trader.service.tradlet.TradletConstants;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketTimeService;
+import trader.simulator.SimTickCache;
+import trader.simulator.SimTradletService;
+import trader.simulator.trade.SimTradeService;
+import trader.simulator.trade.SimEquityRecorder;
+import trader.simulator.trade.SimTxnStateStore;
+
+/**
+ * 参数扫描回测
+ * <P>从一个模板交易组和参数空间生成多组参数, 每组参数对应一个独立的交易组和模拟账户.
+ * 参数组合被分为多个批次, 每个批次的交易组在同一套模拟服务中回测, 批次之间并行.
+ * 所有批次按交易日同步推进, 每个交易日的TICK只解码一次, 通过 SimTickCache 共享给全部批次, 交易日完成后释放.
+ * <P>模板交易组配置中的 ${参数名} 被替换为参数值, 账户被替换为每组参数独立的账户.
+ * 全部交易日完成后按照指标排序输出结果.
+ */
+public class TraderSweepAction extends TraderEvalAction {
+    private static final String ITEM_ACCOUNTS = "/TradeService/account[]";
+
+    public static final String RANK_PROFIT = "profit";
+    public static final String RANK_SHARPE = "sharpe";
+    public static final String RANK_DRAWDOWN = "drawdown";
+
+    public static final String SAMPLING_GRID = "grid";
+    public static final String SAMPLING_RANDOM = "random";
+    public static final String SAMPLING_LHS = "lhs";
+
+    /**
+     * 模板交易组ID, 缺省为第一个交易组
+     */
+    protected String templateGroupId;
+    /**
+     * 参数名和候选值, 按命令行顺序
+     */
+    protected Map<String, List<String>> params = new LinkedHashMap<>();
+    protected String sampling = SAMPLING_GRID;
+    /**
+     * random/lhs 抽样数量
+     */
+    protected int samples = 10;
+    protected long seed = 0;
+    protected String rankBy = RANK_PROFIT;
+    /**
+     * 每个批次的交易组数量, 0 代表按线程数平均分配
+     */
+    protected int groupsPerRun = 0;
+    /**
+     * 多个批次共享解码后的TICK
+     */
+    protected boolean shareTicks = true;
+    protected SimTickCache tickCache;
+
+    /**
+     * 一组参数的回测
+     */
+    protected static class SweepRun {
+        int index;
+        Map<String, String> params;
+        String accountId;
+        String groupId;
+        List<DayResult> dayResults = new ArrayList<>();
+        long initBalance;
+        long profit;
+        long maxDrawdown;
+        double sharpe;
+        int txnCount;
+        int winDays;
+    }
+
+    /**
+     * 在同一套模拟服务中回测的一批交易组
+     */
+    protected static class SweepBatch {
+        List<SweepRun> runs = new ArrayList<>();
+        List<Map<String, Object>> accountElems = new ArrayList<>();
+        List<Map<String, Object>> groupElems = new ArrayList<>();
+        SimpleBeansContainer globalBeans;
+        /**
+         * reuseBeans 时跨交易日复用的服务对象
+         */
+        SimpleBeansContainer beans;
+    }
+
+    @Override
+    public String getCommand() {
+        return "sweep";
+    }
+
+    @Override
+    public void usage(PrintWriter writer) {
+        writer.println("sweep -Dtrader.configFile=TRADE_XML --beginDate=YYYYMMDD --endDate=YYYYMMDD [--instruments=INSTRUMENT1,INSTRUMENT2] [--group=TEMPLATE_GROUP] --param.NAME=V1,V2,V3|FROM:TO:STEP [--sampling=grid|random|lhs] [--samples=N] [--seed=SEED] [--rankBy=profit|sharpe|drawdown] [--parallel=THREADS] [--groupsPerRun=GROUPS] [--shareTicks=true|false] [--reuseBeans=true] [--metricsDir=DIR] [--equityInterval=SECONDS]");
+        writer.println("\t参数扫描回测");
+    }
+
+    public SimTickCache getTickCache() {
+        return tickCache;
+    }
+
+    /**
+     * 使用外部提供的行情缓存, 需要在 execute() 之前设置
+     */
+    public void setTickCache(SimTickCache tickCache) {
+        this.tickCache = tickCache;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int execute(BeansContainer beansContainer, PrintWriter writer, List<KVPair> options) throws Exception
+    {
+        this.writer = writer;
+        if ( !parseOptions(options)) {
+            return 1;
+        }
+        Map<String, Object> templateAccount = null;
+        Map<String, Object> templateGroup = null;
+        for(Map<String, Object> groupElem:(List<Map<String, Object>>)ConfigUtil.getObject(TradletConstants.ITEM_TRADLETGROUPS)) {
+            if ( templateGroupId==null || templateGroupId.equals(groupElem.get("id")) ) {
+                templateGroup = groupElem;
+                break;
+            }
+        }
+        if ( templateGroup==null ) {
+            writer.println("模板交易组 "+templateGroupId+" 不存在");
+            return 1;
+        }
+        IniFile.Section commonSection = new IniFile(new StringReader(ConversionUtil.toString(templateGroup.get("text")))).getSection("common");
+        String accountId = commonSection!=null?commonSection.getProperties().getProperty("account"):null;
+        for(Map<String, Object> accountElem:(List<Map<String, Object>>)ConfigUtil.getObject(ITEM_ACCOUNTS)) {
+            if ( accountId==null || accountId.equals(accountElem.get("id")) ) {
+                templateAccount = accountElem;
+                break;
+            }
+        }
+        if ( templateAccount==null ) {
+            writer.println("模板交易组 "+templateGroup.get("id")+" 的账户 "+accountId+" 不存在");
+            return 1;
+        }
+        if ( instruments.isEmpty() && commonSection!=null ) {
+            for(String instrument:StringUtil.split(commonSection.getProperties().getProperty("instruments", ""), ",|;")) {
+                instruments.add(Exchangeable.fromString(instrument));
+            }
+        }
+
+        if ( tickCache==null && shareTicks ) {
+            tickCache = new SimTickCache();
+        }
+        return executeSweep(templateAccount, templateGroup);
+    }
+
+    /**
+     * 使用找到的模板账户和交易组回测全部参数组合
+     */
+    protected int executeSweep(Map<String, Object> templateAccount, Map<String, Object> templateGroup) throws Exception {
+        long t0 = System.currentTimeMillis();
+        List<SweepRun> runs = createRuns(templateAccount, templateGroup);
+        int runsPerBatch = groupsPerRun;
+        if ( runsPerBatch<=0 ) {
+            runsPerBatch = (runs.size()+Math.max(1, parallel)-1)/Math.max(1, parallel);
+        }
+        List<SweepBatch> batches = createBatches(runs, templateAccount, templateGroup, runsPerBatch);
+        List<LocalDate> tradingDays = getTradingDays();
+        runBatches(batches, tradingDays, Math.min(Math.max(1, parallel), batches.size()));
+        for(SweepRun run:runs) {
+            computeMetrics(run);
+        }
+        long t1 = System.currentTimeMillis();
+        report(runs, batches.size(), tradingDays.size(), t1-t0);
+        return 0;
+    }
+
+    @Override
+    protected boolean parseOptions(List<KVPair> options) {
+        if ( !super.parseOptions(options) ) {
+            return false;
+        }
+        for(KVPair kv:options) {
+            if ( StringUtil.isEmpty(kv.v)) {
+                continue;
+            }
+            String key = kv.k.toLowerCase();
+            if ( key.startsWith("param.") ) {
+                params.put(kv.k.substring("param.".length()), parseParamValues(kv.v));
+                continue;
+            }
+            switch(key) {
+            case "group":
+                templateGroupId = kv.v;
+                break;
+            case "sampling":
+                sampling = kv.v.toLowerCase();
+                break;
+            case "samples":
+                samples = ConversionUtil.toInt(kv.v);
+                break;
+            case "seed":
+                seed = ConversionUtil.toLong(kv.v);
+                break;
+            case "rankby":
+                rankBy = kv.v.toLowerCase();
+                break;
+            case "groupsperrun":
+                groupsPerRun = ConversionUtil.toInt(kv.v);
+                break;
+            case "shareticks":
+                shareTicks = ConversionUtil.toBoolean(kv.v);
+                break;
+            }
+        }
+        if ( params.isEmpty() ) {
+            writer.println("需要提供扫描参数 --param.NAME=...");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 解析参数候选值: V1,V2,V3 或者 FROM:TO:STEP
+     */
+    protected static List<String> parseParamValues(String text) {
+        List<String> result = new ArrayList<>();
+        if ( text.indexOf(':')>0 ) {
+            String[] parts = StringUtil.split(text, ":");
+            BigDecimal from = new BigDecimal(parts[0].trim());
+            BigDecimal to = new BigDecimal(parts[1].trim());
+            BigDecimal step = parts.length>2?new BigDecimal(parts[2].trim()):BigDecimal.ONE;
+            if ( step.signum()<=0 ) {
+                throw new IllegalArgumentException("参数步长必须大于0: "+text);
+            }
+            for(BigDecimal v=from; v.compareTo(to)<=0; v=v.add(step)) {
+                result.add(v.toPlainString());
+            }
+        } else {
+            for(String v:StringUtil.split(text, ",")) {
+                result.add(v.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 按照抽样方式生成参数组合
+     */
+    protected List<Map<String, String>> sampleParams() {
+        List<String> names = new ArrayList<>(params.keySet());
+        List<Map<String, String>> result = new ArrayList<>();
+        Random random = new Random(seed);
+        switch(sampling) {
+        case SAMPLING_RANDOM:
+            for(int i=0;i<samples;i++) {
+                Map<String, String> combination = new LinkedHashMap<>();
+                for(String name:names) {
+                    List<String> values = params.get(name);
+                    combination.put(name, values.get(random.nextInt(values.size())));
+                }
+                result.add(combination);
+            }
+            break;
+        case SAMPLING_LHS:
+            //拉丁超立方: 每个参数的候选值范围被均分为samples层, 每层恰好抽样一次, 各参数的层随机组合
+            for(int i=0;i<samples;i++) {
+                result.add(new LinkedHashMap<>());
+            }
+            for(String name:names) {
+                List<String> values = params.get(name);
+                List<Integer> strata = new ArrayList<>();
+                for(int i=0;i<samples;i++) {
+                    strata.add(i);
+                }
+                Collections.shuffle(strata, random);
+                for(int i=0;i<samples;i++) {
+                    int valueIndex = (int)((strata.get(i)+random.nextDouble())*values.size()/samples);
+                    result.get(i).put(name, values.get(Math.min(valueIndex, values.size()-1)));
+                }
+            }
+            break;
+        default:
+            //网格: 后面的参数变化最快
+            result.add(new LinkedHashMap<>());
+            for(String name:names) {
+                List<Map<String, String>> expanded = new ArrayList<>();
+                for(Map<String, String> combination:result) {
+                    for(String value:params.get(name)) {
+                        Map<String, String> combination0 = new LinkedHashMap<>(combination);
+                        combination0.put(name, value);
+                        expanded.add(combination0);
+                    }
+                }
+                result = expanded;
+            }
+            break;
+        }
+        return result;
+    }
+
+    protected List<SweepRun> createRuns(Map<String, Object> templateAccount, Map<String, Object> templateGroup) {
+        List<SweepRun> result = new ArrayList<>();
+        for(Map<String, String> combination:sampleParams()) {
+            SweepRun run = new SweepRun();
+            run.index = result.size();
+            run.params = combination;
+            run.accountId = templateAccount.get("id")+"-s"+run.index;
+            run.groupId = templateGroup.get("id")+"-s"+run.index;
+            result.add(run);
+        }
+        return result;
+    }
+
+    /**
+     * 将参数组合划分为批次, 每个批次最多 runsPerBatch 组参数, 为每组参数生成账户和交易组配置
+     */
+    protected List<SweepBatch> createBatches(List<SweepRun> runs, Map<String, Object> templateAccount, Map<String, Object> templateGroup, int runsPerBatch) {
+        String templateText = ConversionUtil.toString(templateGroup.get("text"));
+        List<SweepBatch> result = new ArrayList<>();
+        SweepBatch batch = null;
+        for(SweepRun run:runs) {
+            if ( batch==null || batch.runs.size()>=runsPerBatch ) {
+                batch = new SweepBatch();
+                result.add(batch);
+            }
+            Map<String, Object> accountElem = new HashMap<>(templateAccount);
+            accountElem.put("id", run.accountId);
+            Map<String, Object> groupElem = new HashMap<>(templateGroup);
+            groupElem.put("id", run.groupId);
+            groupElem.put("text", createGroupConfig(templateText, run));
+            batch.runs.add(run);
+            batch.accountElems.add(accountElem);
+            batch.groupElems.add(groupElem);
+        }
+        return result;
+    }
+
+    /**
+     * 替换模板中的参数, 并使用独立的账户. 模板交易组可以是禁用状态, 生成的交易组总是启用
+     */
+    protected static String createGroupConfig(String templateText, SweepRun run) {
+        String text = templateText;
+        for(Map.Entry<String, String> param:run.params.entrySet()) {
+            text = text.replace("${"+param.getKey()+"}", param.getValue());
+        }
+        StringBuilder result = new StringBuilder();
+        boolean commonSection = false;
+        for(String line:StringUtil.text2lines(text, false, false)) {
+            String line0 = line.trim();
+            if ( line0.startsWith("[") ) {
+                commonSection = line0.equals("[common]");
+                result.append(line).append("\n");
+                if ( commonSection ) {
+                    result.append("state=enabled\n");
+                    result.append("account=").append(run.accountId).append("\n");
+                }
+                continue;
+            }
+            if ( commonSection && (line0.startsWith("state") || line0.startsWith("account")) && line0.indexOf('=')>0 ) {
+                String key = line0.substring(0, line0.indexOf('=')).trim();
+                if ( key.equals("state") || key.equals("account") ) {
+                    continue;
+                }
+            }
+            result.append(line).append("\n");
+        }
+        return result.toString();
+    }
+
+    /**
+     * 按交易日同步推进全部批次, 同一交易日的批次使用 threads 个线程并行回测
+     */
+    protected void runBatches(List<SweepBatch> batches, List<LocalDate> tradingDays, int threads) throws Exception {
+        for(SweepBatch batch:batches) {
+            batch.globalBeans = createGlobalBeans();
+            batch.globalBeans.addBean(SimTxnStateStore.class, new SimTxnStateStore());
+            batch.globalBeans.addBean(SweepBatch.class, batch);
+            if ( tickCache!=null ) {
+                batch.globalBeans.addBean(SimTickCache.class, tickCache);
+            }
+            if ( metricsDir!=null ) {
+                //每组参数使用不同的账户, 报表文件不会冲突
+                batch.globalBeans.addBean(SimEquityRecorder.class, new SimEquityRecorder(metricsDir, equityInterval));
+            }
+        }
+        ThreadPoolExecutor executorService = null;
+        if ( threads>1 ) {
+            executorService = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        }
+        try {
+            for(LocalDate tradingDay:tradingDays) {
+                if ( executorService==null ) {
+                    for(SweepBatch batch:batches) {
+                        runBatchDay(batch, tradingDay);
+                    }
+                } else {
+                    List<Future<SweepBatch>> batchFutures = new ArrayList<>();
+                    for(SweepBatch batch:batches) {
+                        batchFutures.add(executorService.submit(()->{
+                            runBatchDay(batch, tradingDay);
+                            return batch;
+                        }));
+                    }
+                    for(Future<SweepBatch> batchFuture:batchFutures) {
+                        batchFuture.get();
+                    }
+                }
+                onTradingDayDone(tradingDay);
+            }
+        } finally {
+            if ( executorService!=null ) {
+                executorService.shutdown();
+            }
+            for(SweepBatch batch:batches) {
+                if ( batch.beans!=null ) {
+                    destroyBeans(batch.globalBeans, batch.beans);
+                }
+                SimEquityRecorder equityRecorder = batch.globalBeans.getBean(SimEquityRecorder.class);
+                if ( equityRecorder!=null ) {
+                    equityRecorder.writeReports();
+                }
+                destroyBeans(null, batch.globalBeans);
+            }
+        }
+    }
+
+    /**
+     * 全部批次完成一个交易日后释放这个交易日的行情
+     */
+    protected void onTradingDayDone(LocalDate tradingDay) {
+        if ( tickCache!=null ) {
+            tickCache.evict(tradingDay);
+        }
+    }
+
+    /**
+     * 回测一个批次的一个交易日, 记录每组参数的账户结果
+     */
+    protected void runBatchDay(SweepBatch batch, LocalDate tradingDay) throws Exception {
+        SimpleBeansContainer beans = batch.beans;
+        if ( beans==null ) {
+            beans = getBeansFor(batch.globalBeans, instruments, tradingDay);
+        } else {
+            resetBeansFor(beans, tradingDay);
+        }
+        try {
+            SimMarketTimeService mtService = beans.getBean(SimMarketTimeService.class);
+            while(mtService.nextTimePiece());
+            TradeService tradeService = beans.getBean(TradeService.class);
+            for(SweepRun run:batch.runs) {
+                run.dayResults.add(getDayResult(tradeService.getAccount(run.accountId), tradingDay));
+            }
+            SimEquityRecorder equityRecorder = batch.globalBeans.getBean(SimEquityRecorder.class);
+            if ( equityRecorder!=null ) {
+                equityRecorder.endTradingDay();
+            }
+        } finally {
+            if ( reuseBeans ) {
+                batch.beans = beans;
+            } else {
+                destroyBeans(batch.globalBeans, beans);
+            }
+        }
+    }
+
+    @Override
+    protected SimTradeService createTradeService(SimpleBeansContainer globalBeans) {
+        SimTradeService result = super.createTradeService(globalBeans);
+        result.setAccountElems(globalBeans.getBean(SweepBatch.class).accountElems);
+        return result;
+    }
+
+    @Override
+    protected SimTradletService createTradletService(SimpleBeansContainer globalBeans) {
+        SimTradletService result = super.createTradletService(globalBeans);
+        result.setGroupElems(globalBeans.getBean(SweepBatch.class).groupElems);
+        return result;
+    }
+
+    /**
+     * 根据每日资金计算: 净利润, 最大回撤, 年化夏普比率(按日收益, 无风险利率为0), 成交次数, 盈利天数
+     */
+    protected static void computeMetrics(SweepRun run) {
+        if ( run.dayResults.isEmpty() ) {
+            return;
+        }
+        run.initBalance = run.dayResults.get(0).preBalance;
+        long equity = run.initBalance, peak = equity;
+        double[] returns = new double[run.dayResults.size()];
+        for(int i=0;i<returns.length;i++) {
+            DayResult dayResult = run.dayResults.get(i);
+            long profit = dayResult.balance-dayResult.preBalance;
+            returns[i] = equity!=0?((double)profit)/equity:0;
+            equity += profit;
+            peak = Math.max(peak, equity);
+            run.maxDrawdown = Math.max(run.maxDrawdown, peak-equity);
+            run.txnCount += dayResult.txns.size();
+            if ( profit>0 ) {
+                run.winDays++;
+            }
+        }
+        run.profit = equity-run.initBalance;
+        double mean = 0, variance = 0;
+        for(double r:returns) {
+            mean += r;
+        }
+        mean /= returns.length;
+        for(double r:returns) {
+            variance += (r-mean)*(r-mean);
+        }
+        double std = returns.length>1?Math.sqrt(variance/(returns.length-1)):0;
+        run.sharpe = std>0?mean/std*Math.sqrt(250):0;
+    }
+
+    protected Comparator<SweepRun> getRankComparator(){
+        Comparator<SweepRun> result = null;
+        switch(rankBy) {
+        case RANK_SHARPE:
+            result = Comparator.comparingDouble((SweepRun run)->-run.sharpe);
+            break;
+        case RANK_DRAWDOWN:
+            result = Comparator.comparingLong((SweepRun run)->run.maxDrawdown);
+            break;
+        default:
+            result = Comparator.comparingLong((SweepRun run)->-run.profit);
+            break;
+        }
+        return result.thenComparingInt((SweepRun run)->run.index);
+    }
+
+    protected void report(List<SweepRun> runs, int batchCount, int dayCount, long elapsedTime) {
+        List<SweepRun> rankedRuns = new ArrayList<>(runs);
+        rankedRuns.sort(getRankComparator());
+        writer.println("--- 参数扫描: "+runs.size()+" 组参数, "+dayCount+" 个交易日, "+batchCount+" 个批次, 排序: "+rankBy+" ---");
+        StringBuilder header = new StringBuilder();
+        header.append(String.format("%4s", "排名"));
+        for(String name:params.keySet()) {
+            header.append(String.format(" %10s", name));
+        }
+        header.append(String.format(" %12s %8s %12s %8s %6s %8s", "净利润", "收益率%", "最大回撤", "夏普", "成交", "盈利天数"));
+        writer.println(header);
+        for(int i=0;i<rankedRuns.size();i++) {
+            SweepRun run = rankedRuns.get(i);
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%4d", i+1));
+            for(String name:params.keySet()) {
+                line.append(String.format(" %10s", run.params.get(name)));
+            }
+            double returnRate = run.initBalance!=0?100.0*run.profit/run.initBalance:0;
+            line.append(String.format(" %12s %8.3f %12s %8.3f %6d %4d/%-3d",
+                    PriceUtil.long2str(run.profit),
+                    returnRate,
+                    PriceUtil.long2str(run.maxDrawdown),
+                    run.sharpe,
+                    run.txnCount,
+                    run.winDays,
+                    run.dayResults.size()
+                    ));
+            writer.println(line);
+        }
+        if ( tickCache!=null ) {
+            writer.println("行情解码: "+tickCache.getDecodeCount()+" 次 "+tickCache.getDecodeTime()+" ms, 复用 "+tickCache.getHitCount()+" 次");
+        }
+        writer.println("耗时: "+elapsedTime+" ms");
+        writer.flush();
+    }
+
+}
@@ -0,0 +1,301 @@
+package trader.tool;
+
+import java.io.PrintWriter;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import trader.common.util.ConversionUtil;
+import trader.common.util.DateUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.StringUtil;
+import trader.common.util.StringUtil.KVPair;
+
+/**
+ * 滚动窗口的样本外回测(Walk-Forward)
+ * <P>按照 MarketDayUtil 计算的交易日把回测时间段划分为滚动窗口: 每个窗口前 inSample 个交易日为样本内, 之后 outSample 个交易日为样本外,
+ * 下一个窗口向后移动 step 个交易日. 每个窗口在样本内扫描全部参数组合, 按照 rankBy 选出最优参数, 再用最优参数回测样本外.
+ * 窗口之间相互独立, 使用 parallel 个线程并行, 共享解码后的TICK, 一个交易日的行情在所有用到它的窗口完成后释放.
+ * <P>输出每个窗口的最优参数和样本内/样本外结果, 拼接后的样本外每日资金和指标, 以及最优参数在窗口之间的稳定性
+ */
+public class TraderWalkForwardAction extends TraderSweepAction {
+
+    /**
+     * 样本内交易日数量
+     */
+    protected int inSampleDays = 5;
+    /**
+     * 样本外交易日数量
+     */
+    protected int outSampleDays = 1;
+    /**
+     * 窗口移动的交易日数量, 0 代表与 outSampleDays 相同, 样本外首尾相接
+     */
+    protected int stepDays = 0;
+
+    /**
+     * 每个交易日还有多少个窗口阶段需要使用
+     */
+    private Map<LocalDate, AtomicInteger> dayRefCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 一个滚动窗口
+     */
+    protected static class WalkForwardWindow {
+        int index;
+        List<LocalDate> inSampleDays;
+        List<LocalDate> outSampleDays;
+        List<SweepRun> inSampleRuns;
+        SweepRun bestRun;
+        SweepRun outSampleRun;
+    }
+
+    @Override
+    public String getCommand() {
+        return "walkforward";
+    }
+
+    @Override
+    public void usage(PrintWriter writer) {
+        writer.println("walkforward -Dtrader.configFile=TRADE_XML --beginDate=YYYYMMDD --endDate=YYYYMMDD [--instruments=INSTRUMENT1,INSTRUMENT2] [--group=TEMPLATE_GROUP] --param.NAME=V1,V2,V3|FROM:TO:STEP [--sampling=grid|random|lhs] [--samples=N] [--seed=SEED] [--rankBy=profit|sharpe|drawdown] --inSample=DAYS --outSample=DAYS [--step=DAYS] [--parallel=THREADS] [--groupsPerRun=GROUPS] [--shareTicks=true|false] [--reuseBeans=true]");
+        writer.println("\t滚动窗口的参数优化和样本外回测");
+    }
+
+    @Override
+    protected int executeSweep(Map<String, Object> templateAccount, Map<String, Object> templateGroup) throws Exception {
+        long t0 = System.currentTimeMillis();
+        List<WalkForwardWindow> windows = createWindows(getTradingDays());
+        if ( windows.isEmpty() ) {
+            writer.println("交易日数量不足一个窗口: 样本内 "+inSampleDays+" 天, 样本外 "+outSampleDays+" 天");
+            return 1;
+        }
+        for(WalkForwardWindow window:windows) {
+            addDayRefs(window.inSampleDays);
+            addDayRefs(window.outSampleDays);
+        }
+        int threads = Math.min(Math.max(1, parallel), windows.size());
+        if ( threads<=1 ) {
+            for(WalkForwardWindow window:windows) {
+                runWindow(window, templateAccount, templateGroup);
+            }
+        } else {
+            ThreadPoolExecutor executorService = new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            try {
+                List<Future<WalkForwardWindow>> windowFutures = new ArrayList<>();
+                for(WalkForwardWindow window:windows) {
+                    windowFutures.add(executorService.submit(()->{
+                        runWindow(window, templateAccount, templateGroup);
+                        return window;
+                    }));
+                }
+                for(Future<WalkForwardWindow> windowFuture:windowFutures) {
+                    windowFuture.get();
+                }
+            } finally {
+                executorService.shutdown();
+            }
+        }
+        long t1 = System.currentTimeMillis();
+        reportWindows(windows, t1-t0);
+        return 0;
+    }
+
+    @Override
+    protected boolean parseOptions(List<KVPair> options) {
+        if ( !super.parseOptions(options) ) {
+            return false;
+        }
+        for(KVPair kv:options) {
+            if ( StringUtil.isEmpty(kv.v)) {
+                continue;
+            }
+            switch(kv.k.toLowerCase()) {
+            case "insample":
+                inSampleDays = ConversionUtil.toInt(kv.v);
+                break;
+            case "outsample":
+                outSampleDays = ConversionUtil.toInt(kv.v);
+                break;
+            case "step":
+                stepDays = ConversionUtil.toInt(kv.v);
+                break;
+            }
+        }
+        if ( inSampleDays<=0 || outSampleDays<=0 ) {
+            writer.println("样本内和样本外交易日数量必须大于0");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 划分滚动窗口, 最后一个窗口的样本外可以不足 outSampleDays 个交易日
+     */
+    protected List<WalkForwardWindow> createWindows(List<LocalDate> tradingDays) {
+        int step = stepDays>0?stepDays:outSampleDays;
+        List<WalkForwardWindow> result = new ArrayList<>();
+        for(int begin=0; begin+inSampleDays<tradingDays.size(); begin+=step) {
+            WalkForwardWindow window = new WalkForwardWindow();
+            window.index = result.size();
+            window.inSampleDays = tradingDays.subList(begin, begin+inSampleDays);
+            window.outSampleDays = tradingDays.subList(begin+inSampleDays, Math.min(tradingDays.size(), begin+inSampleDays+outSampleDays));
+            result.add(window);
+        }
+        return result;
+    }
+
+    /**
+     * 样本内扫描全部参数组合选出最优参数, 再回测样本外. 窗口内的批次在当前线程中顺序执行
+     */
+    protected void runWindow(WalkForwardWindow window, Map<String, Object> templateAccount, Map<String, Object> templateGroup) throws Exception {
+        window.inSampleRuns = createRuns(templateAccount, templateGroup);
+        for(SweepRun run:window.inSampleRuns) {
+            run.accountId = templateAccount.get("id")+"-w"+window.index+"-s"+run.index;
+            run.groupId = templateGroup.get("id")+"-w"+window.index+"-s"+run.index;
+        }
+        List<SweepBatch> inSampleBatches = createBatches(window.inSampleRuns, templateAccount, templateGroup, groupsPerRun>0?groupsPerRun:window.inSampleRuns.size());
+        runBatches(inSampleBatches, window.inSampleDays, 1);
+        for(SweepRun run:window.inSampleRuns) {
+            computeMetrics(run);
+        }
+        List<SweepRun> rankedRuns = new ArrayList<>(window.inSampleRuns);
+        rankedRuns.sort(getRankComparator());
+        window.bestRun = rankedRuns.get(0);
+
+        SweepRun outSampleRun = new SweepRun();
+        outSampleRun.index = window.bestRun.index;
+        outSampleRun.params = window.bestRun.params;
+        outSampleRun.accountId = templateAccount.get("id")+"-w"+window.index+"-oos";
+        outSampleRun.groupId = templateGroup.get("id")+"-w"+window.index+"-oos";
+        List<SweepRun> outSampleRuns = new ArrayList<>();
+        outSampleRuns.add(outSampleRun);
+        runBatches(createBatches(outSampleRuns, templateAccount, templateGroup, 1), window.outSampleDays, 1);
+        computeMetrics(outSampleRun);
+        window.outSampleRun = outSampleRun;
+    }
+
+    private void addDayRefs(List<LocalDate> tradingDays) {
+        for(LocalDate tradingDay:tradingDays) {
+            dayRefCounts.computeIfAbsent(tradingDay, (k)->new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    /**
+     * 所有用到这个交易日的窗口阶段都完成后才释放行情
+     */
+    @Override
+    protected void onTradingDayDone(LocalDate tradingDay) {
+        AtomicInteger refCount = dayRefCounts.get(tradingDay);
+        if ( refCount==null || refCount.decrementAndGet()<=0 ) {
+            super.onTradingDayDone(tradingDay);
+        }
+    }
+
+    protected void reportWindows(List<WalkForwardWindow> windows, long elapsedTime) {
+        writer.println("--- 滚动窗口: "+windows.size()+" 个窗口, 样本内 "+inSampleDays+" 天, 样本外 "+outSampleDays+" 天, "+windows.get(0).inSampleRuns.size()+" 组参数, 排序: "+rankBy+" ---");
+        StringBuilder header = new StringBuilder();
+        header.append(String.format("%4s %17s %17s", "窗口", "样本内", "样本外"));
+        for(String name:params.keySet()) {
+            header.append(String.format(" %10s", name));
+        }
+        header.append(String.format(" %12s %8s %12s %8s", "样本内净利润", "样本内夏普", "样本外净利润", "样本外成交"));
+        writer.println(header);
+        //拼接全部样本外交易日
+        SweepRun stitchedRun = new SweepRun();
+        for(WalkForwardWindow window:windows) {
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%4d %17s %17s", window.index, dayRange(window.inSampleDays), dayRange(window.outSampleDays)));
+            for(String name:params.keySet()) {
+                line.append(String.format(" %10s", window.bestRun.params.get(name)));
+            }
+            line.append(String.format(" %12s %8.3f %12s %8d",
+                    PriceUtil.long2str(window.bestRun.profit),
+                    window.bestRun.sharpe,
+                    PriceUtil.long2str(window.outSampleRun.profit),
+                    window.outSampleRun.txnCount
+                    ));
+            writer.println(line);
+            stitchedRun.dayResults.addAll(window.outSampleRun.dayResults);
+        }
+        computeMetrics(stitchedRun);
+        writer.println("样本外资金曲线:");
+        long equity = stitchedRun.initBalance;
+        for(DayResult dayResult:stitchedRun.dayResults) {
+            equity += dayResult.balance-dayResult.preBalance;
+            writer.println(String.format("%8s %12s", DateUtil.date2str(dayResult.tradingDay), PriceUtil.long2str(equity)));
+        }
+        double returnRate = stitchedRun.initBalance!=0?100.0*stitchedRun.profit/stitchedRun.initBalance:0;
+        writer.println(String.format("样本外: 净利润: %s 收益率: %.3f%% 最大回撤: %s 夏普: %.3f 成交: %d 盈利天数: %d/%d",
+                PriceUtil.long2str(stitchedRun.profit),
+                returnRate,
+                PriceUtil.long2str(stitchedRun.maxDrawdown),
+                stitchedRun.sharpe,
+                stitchedRun.txnCount,
+                stitchedRun.winDays,
+                stitchedRun.dayResults.size()
+                ));
+        writer.println("参数稳定性:");
+        for(String name:params.keySet()) {
+            writer.println("\t"+name+": "+paramStability(windows, name));
+        }
+        if ( tickCache!=null ) {
+            writer.println("行情解码: "+tickCache.getDecodeCount()+" 次 "+tickCache.getDecodeTime()+" ms, 复用 "+tickCache.getHitCount()+" 次");
+        }
+        writer.println("耗时: "+elapsedTime+" ms");
+        writer.flush();
+    }
+
+    /**
+     * 最优参数在窗口之间的稳定性: 不同取值的数量和次数, 相邻窗口的变化次数; 数值参数的均值和变异系数
+     */
+    protected static String paramStability(List<WalkForwardWindow> windows, String name) {
+        Map<String, Integer> valueCounts = new TreeMap<>();
+        int changes = 0;
+        String lastValue = null;
+        boolean numeric = true;
+        double sum = 0, sumSq = 0;
+        for(WalkForwardWindow window:windows) {
+            String value = window.bestRun.params.get(name);
+            valueCounts.put(value, valueCounts.getOrDefault(value, 0)+1);
+            if ( lastValue!=null && !lastValue.equals(value) ) {
+                changes++;
+            }
+            lastValue = value;
+            try {
+                double v = Double.parseDouble(value);
+                sum += v;
+                sumSq += v*v;
+            }catch(NumberFormatException e) {
+                numeric = false;
+            }
+        }
+        Map<String, Integer> sortedCounts = new LinkedHashMap<>();
+        valueCounts.entrySet().stream()
+            .sorted((e1, e2)->e2.getValue()-e1.getValue())
+            .forEach((e)->sortedCounts.put(e.getKey(), e.getValue()));
+        StringBuilder result = new StringBuilder();
+        result.append("取值 ").append(valueCounts.size()).append(" 个 ").append(sortedCounts);
+        result.append(", 变化 ").append(changes).append(" 次");
+        if ( numeric ) {
+            int n = windows.size();
+            double mean = sum/n;
+            double std = Math.sqrt(Math.max(0, sumSq/n-mean*mean));
+            result.append(String.format(", 均值 %.4f, 变异系数 %.4f", mean, mean!=0?std/Math.abs(mean):0));
+        }
+        return result.toString();
+    }
+
+    private static String dayRange(List<LocalDate> tradingDays) {
+        return DateUtil.date2str(tradingDays.get(0))+"-"+DateUtil.date2str(tradingDays.get(tradingDays.size()-1));
+    }
+
+}
@@ -0,0 +1,273 @@
+package trader.api.ta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.ta4j.core.Bar;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.tick.PriceLevel;
+import trader.common.util.JsonUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.ta.BarSeriesLoader;
+import trader.service.ta.FutureBar;
+import trader.service.ta.LeveledBarSeries;
+import trader.service.ta.LongNum;
+import trader.service.ta.bar.FutureBarBuilder;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+
+/**
+ * KBar分页: cursor遍历, 时间范围, 二进制格式, ETag, 以及并发追加KBar时的一致性
+ */
+public class BarSeriesPageTest {
+
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    static final LocalDate TRADING_DAY = LocalDate.of(2020, 8, 7);
+
+    private static List<MarketData> loadTicks(Exchangeable e, LocalDate tradingDay) throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        final SimMarketDataService mdService = new SimMarketDataService();
+        mdService.init(beansContainer);
+        beansContainer.addBean(MarketDataService.class, mdService);
+        ExchangeableData data = TraderHomeUtil.getExchangeableData();
+        BarSeriesLoader loader = new BarSeriesLoader(beansContainer, data).setInstrument(e);
+        List<MarketData> result = loader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+        assertTrue(!result.isEmpty());
+        return result;
+    }
+
+    private static FutureBarBuilder buildBars(List<MarketData> ticks) {
+        Exchangeable e = ticks.get(0).instrument;
+        ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, TRADING_DAY);
+        FutureBarBuilder result = new FutureBarBuilder(tradingTimes, PriceLevel.MIN1);
+        for(MarketData tick:ticks) {
+            result.update(tick);
+        }
+        return result;
+    }
+
+    /**
+     * KBar按照二进制格式的列转换为行: beginTime, endTime, open, high, low, close, volume, amount, openInt
+     */
+    static long[] bar2row(Bar bar) {
+        return new long[] {
+            bar.getBeginTime().toInstant().toEpochMilli(), bar.getEndTime().toInstant().toEpochMilli()
+            ,((LongNum)bar.getOpenPrice()).rawValue(), ((LongNum)bar.getHighPrice()).rawValue(), ((LongNum)bar.getLowPrice()).rawValue(), ((LongNum)bar.getClosePrice()).rawValue()
+            ,bar.getVolume().longValue(), ((LongNum)bar.getAmount()).rawValue(), ((FutureBar)bar).getEndOpenInt()
+        };
+    }
+
+    /**
+     * 解析二进制格式, 返回头部 [barCount, beginIndex, count, flags] 和每个KBar一行
+     */
+    static int[] decodeBinary(byte[] data, List<long[]> rows) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        assertEquals(BarSeriesPage.BINARY_MAGIC, dis.readInt());
+        assertEquals(BarSeriesPage.BINARY_VERSION, dis.readInt());
+        int[] header = new int[] {dis.readInt(), dis.readInt(), dis.readInt(), dis.readInt()};
+        int count = header[2];
+        long[][] columns = new long[9][count];
+        for(int c=0;c<columns.length;c++) {
+            for(int i=0;i<count;i++) {
+                columns[c][i] = dis.readLong();
+            }
+        }
+        assertEquals(-1, dis.read());
+        for(int i=0;i<count;i++) {
+            long[] row = new long[columns.length];
+            for(int c=0;c<columns.length;c++) {
+                row[c] = columns[c][i];
+            }
+            rows.add(row);
+        }
+        return header;
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        LeveledBarSeries series = buildBars(loadTicks(e, TRADING_DAY)).getTimeSeries(PriceLevel.MIN1);
+        assertTrue(series.getBarCount()>100);
+
+        //JSON格式, 使用cursor遍历
+        List<String> bars = new ArrayList<>();
+        String cursor = null;
+        int pageCount = 0;
+        while(true) {
+            BarSeriesPage page = BarSeriesPage.query(series, cursor, null, null, null, null, 37);
+            JsonObject json = page.toJson().getAsJsonObject();
+            assertEquals(series.getBarCount(), json.get("barCount").getAsInt());
+            int beginIndex = json.get("beginIndex").getAsInt();
+            assertTrue(beginIndex<=bars.size());
+            while(bars.size()>beginIndex) {
+                bars.remove(bars.size()-1);
+            }
+            JsonArray array = json.get("bars").getAsJsonArray();
+            for(int i=0;i<array.size();i++) {
+                bars.add(array.get(i).toString());
+            }
+            cursor = json.get("cursor").getAsString();
+            pageCount++;
+            if ( !json.get("hasMore").getAsBoolean() ) {
+                break;
+            }
+        }
+        assertEquals((series.getBarCount()+36)/37, pageCount);
+        assertEquals(series.getBarCount(), bars.size());
+        for(int i=0;i<bars.size();i++) {
+            assertEquals(JsonUtil.object2json(series.getBar(i)).toString(), bars.get(i));
+        }
+        //到达末尾后, cursor指向最后一个KBar
+        BarSeriesPage page = BarSeriesPage.query(series, cursor, null, null, null, null, 0);
+        assertEquals(series.getBarCount()-1, page.getBeginIndex());
+        assertEquals(1, page.getBars().size());
+        //重新创建的序列, 从头开始
+        LeveledBarSeries series2 = buildBars(loadTicks(e, TRADING_DAY)).getTimeSeries(PriceLevel.MIN1);
+        page = BarSeriesPage.query(series2, cursor, null, null, null, null, 10);
+        assertTrue(page.isReset());
+        assertEquals(0, page.getBeginIndex());
+        assertEquals(10, page.getBars().size());
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        LeveledBarSeries series = buildBars(loadTicks(e, TRADING_DAY)).getTimeSeries(PriceLevel.MIN1);
+
+        BarSeriesPage page = BarSeriesPage.query(series, null, 10, 20, null, null, 0);
+        assertEquals(10, page.getBeginIndex());
+        assertEquals(20, page.getEndIndex());
+        assertTrue(page.hasMore());
+        for(int i=0;i<10;i++) {
+            assertTrue(series.getBar(10+i)==page.getBars().get(i));
+        }
+
+        //开始时间 [beginTime, endTime)
+        Bar bar10 = series.getBar(10), bar30 = series.getBar(30);
+        page = BarSeriesPage.query(series, null, null, null, bar10.getBeginTime().toLocalDateTime(), bar30.getBeginTime().toLocalDateTime(), 0);
+        assertEquals(10, page.getBeginIndex());
+        assertEquals(30, page.getEndIndex());
+        page = BarSeriesPage.query(series, null, null, null, bar10.getBeginTime().toLocalDateTime().plusSeconds(1), null, 5);
+        assertEquals(11, page.getBeginIndex());
+        assertEquals(16, page.getEndIndex());
+
+        //二进制格式
+        page = BarSeriesPage.query(series, null, 5, null, null, null, 0);
+        List<long[]> rows = new ArrayList<>();
+        int[] header = decodeBinary(page.toBinary(), rows);
+        assertEquals(series.getBarCount(), header[0]);
+        assertEquals(5, header[1]);
+        assertEquals(series.getBarCount()-5, header[2]);
+        assertEquals(0, header[3]);
+        for(int i=0;i<rows.size();i++) {
+            assertTrue(Arrays.equals(bar2row(series.getBar(5+i)), rows.get(i)));
+        }
+    }
+
+    @Test
+    public void testETag() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        List<MarketData> ticks = loadTicks(e, TRADING_DAY);
+        FutureBarBuilder barBuilder = buildBars(ticks.subList(0, ticks.size()/2));
+        LeveledBarSeries series = barBuilder.getTimeSeries(PriceLevel.MIN1);
+
+        String etag = BarSeriesPage.getETag(series);
+        String pageETag = BarSeriesPage.query(series, null, 0, 10, null, null, 0).getETag();
+        assertEquals(etag, BarSeriesPage.getETag(series));
+        assertEquals(pageETag, BarSeriesPage.query(series, null, 0, 10, null, null, 0).getETag());
+        assertNotEquals(pageETag, BarSeriesPage.query(series, null, 10, 20, null, null, 0).getETag());
+        //最后一个KBar更新后改变
+        int barCount = series.getBarCount();
+        for(MarketData tick:ticks.subList(ticks.size()/2, ticks.size())) {
+            if ( !barBuilder.update(tick) && !etag.equals(BarSeriesPage.getETag(series)) ) {
+                break;
+            }
+        }
+        assertEquals(barCount, series.getBarCount());
+        assertNotEquals(etag, BarSeriesPage.getETag(series));
+        assertNotEquals(pageETag, BarSeriesPage.query(series, null, 0, 10, null, null, 0).getETag());
+    }
+
+    /**
+     * 一个线程逐个TICK更新KBar, 另一个线程使用cursor获取二进制格式的KBar.
+     * 结束后客户端得到的KBar与最终的KBar相同
+     */
+    @Test
+    public void testConcurrentAppend() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        List<MarketData> ticks = loadTicks(e, TRADING_DAY);
+        ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, TRADING_DAY);
+        FutureBarBuilder barBuilder = new FutureBarBuilder(tradingTimes, PriceLevel.MIN1);
+        LeveledBarSeries series = barBuilder.getTimeSeries(PriceLevel.MIN1);
+
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(()->{
+            for(int i=0;i<ticks.size();i++) {
+                barBuilder.update(ticks.get(i));
+                if ( i%16==0 ) {
+                    Thread.yield();
+                }
+            }
+            done.set(true);
+        });
+        writer.start();
+
+        List<long[]> rows = new ArrayList<>();
+        String cursor = null;
+        int pageCount = 0;
+        while(true) {
+            boolean writerDone = done.get();
+            BarSeriesPage page = BarSeriesPage.query(series, cursor, null, null, null, null, 23);
+            List<long[]> pageRows = new ArrayList<>();
+            int[] header = decodeBinary(page.toBinary(), pageRows);
+            int beginIndex = header[1];
+            assertTrue(beginIndex<=rows.size());
+            assertTrue(header[0]>=rows.size());
+            while(rows.size()>beginIndex) {
+                rows.remove(rows.size()-1);
+            }
+            for(long[] row:pageRows) {
+                //开始时间递增
+                if ( !rows.isEmpty() ) {
+                    assertTrue(rows.get(rows.size()-1)[0]<row[0]);
+                }
+                rows.add(row);
+            }
+            cursor = page.getCursor();
+            pageCount++;
+            if ( writerDone && (header[3]&BarSeriesPage.FLAG_HAS_MORE)==0 ) {
+                break;
+            }
+        }
+        writer.join();
+        assertTrue(pageCount>1);
+        assertEquals(series.getBarCount(), rows.size());
+        for(int i=0;i<rows.size();i++) {
+            assertTrue("Bar #"+i, Arrays.equals(bar2row(series.getBar(i)), rows.get(i)));
+        }
+    }
+
+}
@@ -15,7 +15,21 @@ public class TraderHomeHelper {
 
     private static File lastCfgFile = null;
 
-    public static void init(File cfgFile) {
+    private static XMLConfigProvider lastProvider = null;
+
+    /**
+     * 当前使用的配置文件
+     */
+    public static File getCfgFile() {
+        return lastCfgFile;
+    }
+
+    /**
+     * 使用配置文件, 替换之前使用的配置文件
+     *
+     * @param cfgFile null 代表缺省的 etc/trader.xml
+     */
+    public static synchronized void init(File cfgFile) {
         if ( cfgFile ==null ) {
             cfgFile = DEFAULT_CFG_FILE;
         }
@@ -31,7 +45,12 @@ public class TraderHomeHelper {
             System.setProperty(TraderHomeUtil.PROP_REPOSITORY_DIR, dataDir.getAbsolutePath());
 
             System.setProperty(TraderHomeUtil.PROP_TRADER_CONFIG_FILE, traderHome.getAbsolutePath());
-            ConfigServiceImpl.staticRegisterProvider("TRADER", new XMLConfigProvider(cfgFile));
+            if ( lastProvider!=null ) {
+                ConfigServiceImpl.staticUnregisterProvider(lastProvider.getURI());
+            }
+            XMLConfigProvider provider = new XMLConfigProvider(cfgFile);
+            ConfigServiceImpl.staticRegisterProvider("TRADER", provider);
+            lastProvider = provider;
         } catch (Throwable t) {
             throw new RuntimeException(t);
         }
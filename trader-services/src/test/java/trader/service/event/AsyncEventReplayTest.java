@@ -0,0 +1,778 @@
+package trader.service.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import net.jctp.CThostFtdcOrderField;
+import net.jctp.CThostFtdcTradeField;
+import net.jctp.JctpConstants;
+import trader.common.beans.BeansContainer;
+import trader.common.exception.AppException;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.ConversionUtil;
+import trader.common.util.DateUtil;
+import trader.common.util.FileUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.ServiceConstants.AccountState;
+import trader.service.ServiceConstants.ConnState;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.repository.BORepository;
+import trader.service.ta.LeveledBarSeries;
+import trader.service.ta.TechnicalAnalysisAccess;
+import trader.service.ta.TechnicalAnalysisListener;
+import trader.service.ta.TechnicalAnalysisService;
+import trader.service.trade.Account;
+import trader.service.trade.AccountImpl;
+import trader.service.trade.AccountStartupRecord;
+import trader.service.trade.FutureFeeEvaluator;
+import trader.service.trade.MarketTimeService;
+import trader.service.trade.MarketTimeServiceImpl;
+import trader.service.trade.Order;
+import trader.service.trade.OrderBuilder;
+import trader.service.trade.OrderRefGen;
+import trader.service.trade.OrderRefGenImpl;
+import trader.service.trade.OrderStateTuple;
+import trader.service.trade.Position;
+import trader.service.trade.TradeConstants;
+import trader.service.trade.TradeService;
+import trader.service.trade.TradeServiceListener;
+import trader.service.trade.TxnSession;
+import trader.service.trade.TxnSessionFactory;
+import trader.service.trade.ctp.CtpReplayTxnSession;
+import trader.service.trade.ctp.CtpTxnEventProcessor;
+import trader.service.trade.ctp.CtpUtil;
+import trader.service.trade.spi.AbsTxnSession;
+import trader.service.trade.spi.TxnSessionListener;
+import trader.service.tradlet.AbsTradletService;
+import trader.service.tradlet.Playbook;
+import trader.service.tradlet.PlaybookStateTuple;
+import trader.service.tradlet.Tradlet;
+import trader.service.tradlet.TradletContext;
+import trader.service.tradlet.TradletEvent;
+import trader.service.tradlet.TradletGroup;
+import trader.service.tradlet.TradletGroupEngine;
+import trader.service.tradlet.TradletGroupImpl;
+import trader.service.tradlet.TradletGroupTemplate;
+import trader.service.tradlet.TradletInfo;
+import trader.service.tradlet.TradletInfoImpl;
+import trader.service.tradlet.TradletService;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimBORepository;
+import trader.simulator.SimMarketDataService;
+import trader.simulator.SimMarketTimeService;
+import trader.simulator.SimScheduledExecutorService;
+
+/**
+ * 记录实时事件后回放, 策略的决策必须与实时运行时完全相同
+ */
+public class AsyncEventReplayTest {
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    static final String PROCESSOR_ID = "acc1";
+
+    /**
+     * 成交回报
+     */
+    public static class Fill {
+        int volume;
+        long price;
+    }
+
+    /**
+     * 简单的状态相关的策略: 价格偏离均线时报单, 成交回报之前不再报单. 决策依赖行情和回报的先后顺序
+     */
+    static class DecisionStrategy implements AsyncEventFilter, AsyncEventProcessor {
+        List<String> decisions = new ArrayList<>();
+        BlockingQueue<Integer> orderQueue;
+        AtomicInteger ticks = new AtomicInteger();
+        AtomicInteger fills = new AtomicInteger();
+        long ema;
+        int position;
+        boolean pending;
+
+        @Override
+        public String getId() {
+            return PROCESSOR_ID;
+        }
+
+        @Override
+        public boolean onEvent(AsyncEvent event) {
+            if ( event.eventType==AsyncEvent.EVENT_TYPE_MARKETDATA ) {
+                MarketData md = (MarketData)event.data;
+                long price = md.lastPrice;
+                ema = ema==0?price:ema+(price-ema)/8;
+                int dir = 0;
+                if ( !pending && price>ema && position<=0 ) {
+                    dir = 1;
+                } else if ( !pending && price<ema && position>=0 ) {
+                    dir = -1;
+                }
+                if ( dir!=0 ) {
+                    pending = true;
+                    decisions.add((dir>0?"BUY ":"SELL ")+md.updateTime+" "+price+" pos "+position);
+                    if ( orderQueue!=null ) {
+                        orderQueue.add(dir);
+                    }
+                }
+                ticks.incrementAndGet();
+            } else {
+                event.processor.process(event.eventType, event.data, event.data2);
+            }
+            return true;
+        }
+
+        @Override
+        public void process(int dataType, Object data, Object data2) {
+            Fill fill = (Fill)data;
+            position += fill.volume;
+            pending = false;
+            decisions.add("FILL "+fill.volume+" "+fill.price+" pos "+position);
+            fills.incrementAndGet();
+        }
+    }
+
+    private List<MarketData> loadTicks() throws Exception {
+        Exchangeable ap010 = Exchangeable.fromString("AP010");
+        LocalDateTime beginTime = LocalDateTime.of(2020, Month.AUGUST, 3, 8, 50);
+        LocalDateTime endTime = LocalDateTime.of(2020, Month.AUGUST, 3, 15, 04);
+        LocalDate tradingDay = ap010.exchange().detectTradingTimes(ap010, beginTime).getTradingDay();
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimMarketTimeService mtService = new SimMarketTimeService();
+        SimMarketDataService mdService = new SimMarketDataService();
+        SimScheduledExecutorService scheduledExecutorService = new SimScheduledExecutorService();
+        beansContainer.addBean(MarketDataService.class, mdService);
+        beansContainer.addBean(MarketTimeService.class, mtService);
+        beansContainer.addBean(ScheduledExecutorService.class, scheduledExecutorService);
+        scheduledExecutorService.init(beansContainer);
+        mtService.setTimeRanges(tradingDay, new LocalDateTime[]{beginTime, endTime} );
+        mdService.addSubscriptions(Arrays.asList(new Exchangeable[] {ap010}));
+        mdService.init(beansContainer);
+        List<MarketData> ticks = new ArrayList<>();
+        mdService.addListener((md)->{
+            ticks.add(md);
+        }, ap010);
+        while(mtService.nextTimePiece());
+        return ticks;
+    }
+
+    private static AsyncEventServiceImpl createService(ExecutorService executorService, MarketTimeService mtService, DecisionStrategy strategy, File recordFile, File replayFile) throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        beansContainer.addBean(ExecutorService.class, executorService);
+        beansContainer.addBean(MarketTimeService.class, mtService);
+        AsyncEventServiceImpl asyncEventService = new AsyncEventServiceImpl();
+        beansContainer.addBean(AsyncEventService.class, asyncEventService);
+        asyncEventService.addFilter(AsyncEventService.FILTER_CHAIN_MAIN, strategy, AsyncEvent.EVENT_TYPE_MARKETDATA_MASK);
+        asyncEventService.addFilter(AsyncEventService.FILTER_CHAIN_MAIN, strategy, AsyncEvent.EVENT_TYPE_PROCESSOR_MASK);
+        asyncEventService.registerProcessor(strategy);
+        asyncEventService.setRecordFile(recordFile);
+        asyncEventService.setReplayFile(replayFile);
+        asyncEventService.init(beansContainer);
+        asyncEventService.start();
+        return asyncEventService;
+    }
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        List<MarketData> ticks = loadTicks();
+        assertTrue(ticks.size()>1000);
+        File recordFile = new File(TraderHomeUtil.getTraderHome(), "work/replay-test/events.log.gz");
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            //实时运行: 行情和回报在两个线程中发布, 回报的延迟随机
+            DecisionStrategy liveStrategy = new DecisionStrategy();
+            liveStrategy.orderQueue = new LinkedBlockingQueue<>();
+            long liveBeginTime = System.currentTimeMillis();
+            AsyncEventServiceImpl liveService = createService(executorService, new MarketTimeServiceImpl(), liveStrategy, recordFile, null);
+            assertTrue(!liveService.isReplayMode());
+            AtomicInteger fillsPublished = new AtomicInteger();
+            Thread responder = new Thread(()->{
+                Random random = new Random();
+                try {
+                    while(true) {
+                        Integer dir = liveStrategy.orderQueue.take();
+                        if ( random.nextBoolean() ) {
+                            Thread.sleep(random.nextInt(2));
+                        }
+                        Fill fill = new Fill();
+                        fill.volume = dir;
+                        fill.price = ticks.get(random.nextInt(ticks.size())).lastPrice;
+                        liveService.publishProcessorEvent(liveStrategy, 1, fill, null);
+                        fillsPublished.incrementAndGet();
+                    }
+                }catch(InterruptedException e) {}
+            });
+            responder.start();
+            for(int i=0;i<ticks.size();i++) {
+                liveService.publishMarketData(ticks.get(i));
+                if ( i%16==0 ) {
+                    Thread.sleep(0, 100000);
+                }
+            }
+            while(liveStrategy.ticks.get()<ticks.size()) {
+                Thread.sleep(10);
+            }
+            while(!liveStrategy.orderQueue.isEmpty()) {
+                Thread.sleep(10);
+            }
+            responder.interrupt();
+            responder.join();
+            while(liveStrategy.fills.get()<fillsPublished.get()) {
+                Thread.sleep(10);
+            }
+            liveService.destroy();
+            long liveEndTime = System.currentTimeMillis();
+            List<String> liveDecisions = new ArrayList<>(liveStrategy.decisions);
+            assertTrue(fillsPublished.get()>10);
+
+            //回放两次, 决策完全相同
+            //交易时段的时长(毫秒)
+            long span = ticks.get(ticks.size()-1).mktTime;
+            assertTrue(span>3*3600*1000);
+            for(int round=0;round<2;round++) {
+                DecisionStrategy replayStrategy = new DecisionStrategy();
+                MarketTimeServiceImpl mtService = new MarketTimeServiceImpl();
+                AsyncEventServiceImpl replayService = createService(executorService, mtService, replayStrategy, null, recordFile);
+                assertTrue(replayService.isReplayMode());
+                long t0 = System.currentTimeMillis();
+                long count = replayService.replay();
+                long elapsed = System.currentTimeMillis()-t0;
+                System.out.println("Replay "+count+" events in "+elapsed+" ms, session span "+span+" ms");
+                assertEquals(ticks.size()+fillsPublished.get(), count);
+                assertEquals(liveDecisions, replayStrategy.decisions);
+                //市场时间推进到最后一个事件的记录时间
+                assertTrue(mtService.currentTimeMillis()>=liveBeginTime && mtService.currentTimeMillis()<=liveEndTime);
+                assertTrue(elapsed*50<span);
+            }
+        }finally {
+            executorService.shutdownNow();
+            executorService.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        assertTrue(recordFile.delete());
+    }
+
+    static final String ACCOUNT_ID = "replay-account1";
+    static final String TRADLET_ID = "REPLAYTEST";
+
+    /**
+     * 测试用交易策略: 每20个行情检查一次, 没有今仓时价格高于均线开多, 有今仓时价格低于均线平今, 上一个报单未完成时不报单.
+     * <BR>决策依赖账户的资金, 持仓和报单状态
+     */
+    public static class ReplayTestTradlet implements Tradlet, TradeConstants {
+        List<String> decisions = new ArrayList<>();
+        AtomicInteger ticks = new AtomicInteger();
+        volatile Order lastOrder;
+        Account account;
+        Exchangeable instrument;
+        long ema;
+
+        @Override
+        public void init(TradletContext context) throws Exception {
+            account = context.getGroup().getAccount();
+            instrument = context.getGroup().getInstruments().get(0);
+        }
+
+        @Override
+        public void reload(TradletContext context) throws Exception {
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public Object onRequest(String path, Map<String, String> params, String payload) {
+            return null;
+        }
+
+        @Override
+        public void onPlaybookStateChanged(Playbook playbook, PlaybookStateTuple oldStateTuple) {
+        }
+
+        @Override
+        public void onTick(MarketData tick) {
+            long price = tick.lastPrice;
+            ema = ema==0?price:ema+(price-ema)/8;
+            if ( ticks.get()%20==0 && (lastOrder==null || lastOrder.getStateTuple().getState().isDone()) ) {
+                Position pos = account.getPosition(instrument);
+                int longPos = pos!=null?pos.getVolume(PosVolume.LongPosition):0;
+                int longTodayPos = pos!=null?pos.getVolume(PosVolume.LongTodayPosition):0;
+                OrderBuilder builder = null;
+                if ( longTodayPos==0 && price>ema ) {
+                    builder = new OrderBuilder().setExchagneable(instrument).setDirection(OrderDirection.Buy)
+                            .setOffsetFlag(OrderOffsetFlag.OPEN).setLimitPrice(price).setVolume(1);
+                } else if ( longTodayPos>0 && price<ema ) {
+                    builder = new OrderBuilder().setExchagneable(instrument).setDirection(OrderDirection.Sell)
+                            .setOffsetFlag(OrderOffsetFlag.CLOSE_TODAY).setLimitPrice(price).setVolume(1);
+                }
+                if ( builder!=null ) {
+                    String decision = builder.getDirection()+" "+builder.getOffsetFlag()+" "+tick.updateTime+" "+PriceUtil.long2str(price)
+                        +" long "+longPos+" avail "+PriceUtil.long2str(account.getMoney(AccMoney.Available));
+                    try {
+                        lastOrder = account.createOrder(builder);
+                        decisions.add(decision+" ref "+lastOrder.getRef());
+                    }catch(AppException e) {
+                        decisions.add(decision+" failed "+e.getCode());
+                    }
+                }
+            }
+            ticks.incrementAndGet();
+        }
+
+        @Override
+        public void onNewBar(LeveledBarSeries series) {
+        }
+
+        @Override
+        public void onNoopSecond() {
+        }
+    }
+
+    /**
+     * 模拟CTP交易通道: 报单按照限价全部成交, 回报在独立线程中以CTP回报格式通过AsyncEventService发布, 与实盘一样被记录.
+     * <BR>启动时有2手昨仓多头
+     */
+    static class SimCtpTxnSession extends AbsTxnSession implements JctpConstants, TradeConstants {
+        private MarketTimeService mtService;
+        private AsyncEventService asyncEventService;
+        private ExecutorService executorService;
+        private CtpTxnEventProcessor processor;
+        private AtomicInteger tradeId = new AtomicInteger();
+        private long[] money;
+        private String feeEvaluatorJson;
+
+        SimCtpTxnSession(BeansContainer beansContainer, Account account, TxnSessionListener listener) {
+            super(beansContainer, account, listener);
+            mtService = beansContainer.getBean(MarketTimeService.class);
+            asyncEventService = beansContainer.getBean(AsyncEventService.class);
+            executorService = beansContainer.getBean(ExecutorService.class);
+            processor = new CtpTxnEventProcessor(account, this, listener);
+            asyncEventService.registerProcessor(processor);
+        }
+
+        @Override
+        public String getProvider() {
+            return PROVIDER_CTP;
+        }
+
+        @Override
+        public AccClassification getClassification() {
+            return AccClassification.Future;
+        }
+
+        @Override
+        public void connect(Properties connProps) {
+            tradingDay = mtService.getTradingDay();
+            long initMoney = PriceUtil.price2long(ConversionUtil.toDouble(connProps.getProperty("initMoney"), true));
+            money = new long[AccMoney.values().length];
+            money[AccMoney.Balance.ordinal()] = initMoney;
+            money[AccMoney.PreBalance.ordinal()] = initMoney;
+            money[AccMoney.Available.ordinal()] = initMoney;
+            try {
+                JsonObject commissionsJson = JsonParser.parseString(FileUtil.read(new File(connProps.getProperty("commissionsFile")))).getAsJsonObject();
+                feeEvaluatorJson = FutureFeeEvaluator.fromJson(null, commissionsJson).toJson().toString();
+            }catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+            changeState(ConnState.Connected);
+        }
+
+        @Override
+        public String syncLoadFeeEvaluator(Collection<Exchangeable> subscriptions) throws Exception {
+            return feeEvaluatorJson;
+        }
+
+        @Override
+        public String syncConfirmSettlement() throws Exception {
+            return null;
+        }
+
+        @Override
+        public long[] syncQryAccounts() throws Exception {
+            return Arrays.copyOf(money, money.length);
+        }
+
+        @Override
+        public String syncQryPositions() throws Exception {
+            Exchangeable ap010 = Exchangeable.fromString("AP010");
+            int[] volumes = new int[PosVolume.values().length];
+            volumes[PosVolume.Position.ordinal()] = 2;
+            volumes[PosVolume.YdPosition.ordinal()] = 2;
+            volumes[PosVolume.LongPosition.ordinal()] = 2;
+            volumes[PosVolume.LongYdPosition.ordinal()] = 2;
+            JsonObject detail = new JsonObject();
+            detail.addProperty("openDate", DateUtil.date2str(tradingDay.minusDays(3)));
+            detail.addProperty("direction", PosDirection.Long.name());
+            detail.addProperty("volume", 2);
+            detail.addProperty("price", "7000");
+            JsonArray details = new JsonArray();
+            details.add(detail);
+            JsonObject posInfo = new JsonObject();
+            posInfo.addProperty("direction", PosDirection.Long.name());
+            posInfo.add("volumes", TradeConstants.posVolume2json(volumes));
+            posInfo.add("money", TradeConstants.posMoney2json(new long[PosMoney.values().length]));
+            posInfo.add("details", details);
+            JsonObject posInfos = new JsonObject();
+            posInfos.add(ap010.toString(), posInfo);
+            return posInfos.toString();
+        }
+
+        @Override
+        public String syncQryOrders() throws Exception {
+            return (new JsonArray()).toString();
+        }
+
+        @Override
+        public Collection<Exchangeable> syncQueryInstruments() throws Exception {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void asyncSendOrder(Order order) throws AppException {
+            listener.onOrderStateChanged(order, new OrderStateTuple(OrderState.Submitting, OrderSubmitState.InsertSubmitting, System.currentTimeMillis()), null);
+            executorService.execute(()->{
+                int id = tradeId.incrementAndGet();
+                asyncEventService.publishProcessorEvent(processor, CtpTxnEventProcessor.DATA_TYPE_RTN_ORDER, orderField(order, id, THOST_FTDC_OST_NoTradeQueueing, 0), null);
+                CThostFtdcTradeField trade = new CThostFtdcTradeField();
+                trade.TradeID = ""+id;
+                trade.OrderSysID = ""+id;
+                trade.OrderRef = order.getRef();
+                trade.ExchangeID = order.getInstrument().exchange().name();
+                trade.InstrumentID = order.getInstrument().id();
+                trade.Direction = CtpUtil.orderDirection2ctp(order.getDirection());
+                trade.OffsetFlag = CtpUtil.orderOffsetFlag2ctp(order.getOffsetFlags()).charAt(0);
+                trade.Price = PriceUtil.long2price(order.getLimitPrice());
+                trade.Volume = order.getVolume(OdrVolume.ReqVolume);
+                trade.TradeDate = DateUtil.date2str(tradingDay);
+                trade.TradeTime = DateTimeFormatter.ofPattern("HH:mm:ss").format(mtService.getMarketTime());
+                asyncEventService.publishProcessorEvent(processor, CtpTxnEventProcessor.DATA_TYPE_RTN_TRADE, trade, null);
+                asyncEventService.publishProcessorEvent(processor, CtpTxnEventProcessor.DATA_TYPE_RTN_ORDER, orderField(order, id, THOST_FTDC_OST_AllTraded, trade.Volume), null);
+            });
+        }
+
+        private CThostFtdcOrderField orderField(Order order, int id, char status, int volumeTraded) {
+            CThostFtdcOrderField field = new CThostFtdcOrderField();
+            field.OrderRef = order.getRef();
+            field.OrderSysID = ""+id;
+            field.ExchangeID = order.getInstrument().exchange().name();
+            field.InstrumentID = order.getInstrument().id();
+            field.Direction = CtpUtil.orderDirection2ctp(order.getDirection());
+            field.CombOffsetFlag = CtpUtil.orderOffsetFlag2ctp(order.getOffsetFlags());
+            field.LimitPrice = PriceUtil.long2price(order.getLimitPrice());
+            field.VolumeTotalOriginal = order.getVolume(OdrVolume.ReqVolume);
+            field.VolumeTraded = volumeTraded;
+            field.OrderStatus = status;
+            field.OrderSubmitStatus = THOST_FTDC_OSS_Accepted;
+            return field;
+        }
+
+        @Override
+        public void asyncCancelOrder(Order order) throws AppException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void asyncModifyOrder(Order order, OrderBuilder builder) throws AppException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void closeImpl() {
+        }
+    }
+
+    static class TestTradeService implements TradeService {
+        OrderRefGenImpl orderRefGen;
+        Map<String, TxnSessionFactory> txnSessionFactories = new HashMap<>();
+        Account account;
+
+        TestTradeService(BeansContainer beansContainer, TxnSessionFactory txnSessionFactory) {
+            orderRefGen = new OrderRefGenImpl(this, beansContainer.getBean(MarketTimeService.class).getTradingDay(), beansContainer);
+            txnSessionFactories.put(TxnSession.PROVIDER_CTP, txnSessionFactory);
+        }
+
+        @Override
+        public void init(BeansContainer beansContainer) throws Exception {
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public TradeServiceType getType() {
+            return TradeServiceType.RealTime;
+        }
+
+        @Override
+        public Account getPrimaryAccount() {
+            return account;
+        }
+
+        @Override
+        public Account getAccount(String id) {
+            return account;
+        }
+
+        @Override
+        public List<Account> getAccounts() {
+            return Arrays.asList(account);
+        }
+
+        @Override
+        public Map<String, TxnSessionFactory> getTxnSessionFactories() {
+            return txnSessionFactories;
+        }
+
+        @Override
+        public OrderRefGen getOrderRefGen() {
+            return orderRefGen;
+        }
+
+        @Override
+        public void addListener(TradeServiceListener listener) {
+        }
+    }
+
+    static class TestTradletService extends AbsTradletService {
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        TradletInfo tradletInfo = new TradletInfoImpl(TRADLET_ID, (Class)ReplayTestTradlet.class, null, 0);
+
+        @Override
+        public void init(BeansContainer beansContainer) throws Exception {
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public Collection<TradletInfo> getTradletInfos() {
+            return Arrays.asList(tradletInfo);
+        }
+
+        @Override
+        public TradletInfo getTradletInfo(String tradletId) {
+            return TRADLET_ID.equals(tradletId)?tradletInfo:null;
+        }
+
+        @Override
+        public Collection<TradletGroup> getGroups() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public TradletGroup getGroup(String groupId) {
+            return null;
+        }
+
+        @Override
+        public JsonObject reloadGroups() throws AppException {
+            return new JsonObject();
+        }
+    }
+
+    static class TestTechnicalAnalysisService implements TechnicalAnalysisService {
+        @Override
+        public void init(BeansContainer beansContainer) throws Exception {
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public TechnicalAnalysisAccess forInstrument(Exchangeable instrument) {
+            return null;
+        }
+
+        @Override
+        public Collection<Exchangeable> getInstruments() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean registerListener(List<Exchangeable> instruments, TechnicalAnalysisListener listener) {
+            return true;
+        }
+    }
+
+    /**
+     * 一次策略组运行: 异步事件服务, CTP账户和策略组, 事件处理与 MarketDataServiceImpl, TradeServiceImpl 相同
+     */
+    static class TradletRun {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        AsyncEventServiceImpl asyncEventService = new AsyncEventServiceImpl();
+        TestTradeService tradeService;
+        AccountImpl account;
+        TradletGroupEngine engine;
+        ReplayTestTradlet tradlet;
+
+        TradletRun(ExecutorService executorService, File recordFile, File replayFile, TxnSessionFactory txnSessionFactory, String initMoney) throws Exception {
+            LocalDate tradingDay = LocalDate.of(2020, Month.AUGUST, 3);
+            MarketTimeServiceImpl mtService = new MarketTimeServiceImpl() {
+                @Override
+                public LocalDate getTradingDay() {
+                    return tradingDay;
+                }
+            };
+            beansContainer.addBean(ExecutorService.class, executorService);
+            beansContainer.addBean(MarketTimeService.class, mtService);
+            beansContainer.addBean(AsyncEventService.class, asyncEventService);
+            beansContainer.addBean(BORepository.class, new SimBORepository());
+            beansContainer.addBean(TechnicalAnalysisService.class, new TestTechnicalAnalysisService());
+            asyncEventService.addFilter(AsyncEventService.FILTER_CHAIN_MAIN, (event)->{
+                MarketData md = (MarketData)event.data;
+                account.onMarketData(md);
+                engine.queueEvent(TradletEvent.EVENT_TYPE_MD_TICK, md);
+                return true;
+            }, AsyncEvent.EVENT_TYPE_MARKETDATA_MASK);
+            asyncEventService.addFilter(AsyncEventService.FILTER_CHAIN_MAIN, (event)->{
+                event.processor.process(event.eventType, event.data, event.data2);
+                return true;
+            }, AsyncEvent.EVENT_TYPE_PROCESSOR_MASK);
+            asyncEventService.setRecordFile(recordFile);
+            asyncEventService.setReplayFile(replayFile);
+            asyncEventService.init(beansContainer);
+
+            tradeService = new TestTradeService(beansContainer, txnSessionFactory);
+            beansContainer.addBean(TradeService.class, tradeService);
+            TestTradletService tradletService = new TestTradletService();
+            beansContainer.addBean(TradletService.class, tradletService);
+            Map<String, Object> config = new HashMap<>();
+            config.put("id", ACCOUNT_ID);
+            config.put("provider", TxnSession.PROVIDER_CTP);
+            config.put("text", "[connectionProps]\n"
+                    +"initMoney="+initMoney+"\n"
+                    +"commissionsFile="+TraderHomeUtil.getTraderHome()+"/etc/sim-account1.commissions.json\n"
+                    +"[journal]\n"
+                    +"enabled=false\n");
+            account = new AccountImpl(tradeService, beansContainer, config);
+            tradeService.account = account;
+            TradletGroupImpl group = new TradletGroupImpl(tradletService, beansContainer, "replay-group1");
+            group.init(TradletGroupTemplate.parse(beansContainer, group, "[common]\naccount="+ACCOUNT_ID+"\ninstruments=AP010\n["+TRADLET_ID+"]\n"));
+            engine = new TradletGroupEngine(group);
+            engine.init(beansContainer);
+            tradlet = (ReplayTestTradlet)group.getTradlets().get(0);
+            asyncEventService.start();
+        }
+
+        void connect() throws Exception {
+            ((AbsTxnSession)account.getSession()).connect(account.getConnectionProps());
+            long t0 = System.currentTimeMillis();
+            while(account.getState()!=AccountState.Ready && System.currentTimeMillis()-t0<10000) {
+                Thread.sleep(10);
+            }
+            assertEquals(AccountState.Ready, account.getState());
+        }
+
+        /**
+         * 报单的OrderRef, 方向, 开平, 价格, 数量, 成交数量和最终状态
+         */
+        List<String> getOrders() {
+            List<String> result = new ArrayList<>();
+            for(Order order:account.getOrders()) {
+                result.add(order.getRef()+" "+order.getDirection()+" "+order.getOffsetFlags()+" "+PriceUtil.long2str(order.getLimitPrice())
+                    +" "+order.getVolume(TradeConstants.OdrVolume.ReqVolume)+" "+order.getVolume(TradeConstants.OdrVolume.TradeVolume)+" "+order.getStateTuple().getState());
+            }
+            Collections.sort(result);
+            return result;
+        }
+
+        void destroy() {
+            engine.destroy();
+            account.destroy();
+            asyncEventService.destroy();
+        }
+    }
+
+    /**
+     * 实盘运行策略组, 模拟CTP通道的回报通过AsyncEventService发布并记录, 然后使用 CtpReplayTxnSession 回放.
+     * <BR>回放时账户从记录的启动状态开始: 资金, 昨仓, 手续费率和OrderRef序列, 策略的决策和报单必须与实盘完全相同
+     */
+    @Test
+    public void testTradletGroupReplay() throws Exception {
+        List<MarketData> ticks = loadTicks();
+        File recordFile = new File(TraderHomeUtil.getTraderHome(), "work/replay-test/tradlet-events.log.gz");
+        File startupFile = AccountStartupRecord.getFile(recordFile, ACCOUNT_ID);
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            //实盘运行: 每个行情等待策略处理以及报单回报处理完成后再发布下一个, 策略看到的事件顺序与记录的顺序一致
+            TradletRun live = new TradletRun(executorService, recordFile, null, (beansContainer0, account, listener)->{
+                return new SimCtpTxnSession(beansContainer0, account, listener);
+            }, "500000.00");
+            live.tradeService.orderRefGen.setRefId(ACCOUNT_ID, 100);
+            live.connect();
+            assertTrue(startupFile.exists());
+            for(int i=0;i<ticks.size();i++) {
+                live.asyncEventService.publishMarketData(ticks.get(i));
+                while(live.tradlet.ticks.get()<=i) {
+                    Thread.yield();
+                }
+                Order order = live.tradlet.lastOrder;
+                while(order!=null && !order.getStateTuple().getState().isDone()) {
+                    Thread.yield();
+                }
+            }
+            live.destroy();
+            List<String> liveDecisions = live.tradlet.decisions;
+            List<String> liveOrders = live.getOrders();
+            assertTrue(liveOrders.size()>10);
+            assertTrue(liveOrders.get(0).startsWith("000101 "));
+            assertTrue(liveDecisions.get(0).contains(" long 2 "));
+
+            //回放: 连接参数的初始资金不同, 账户状态必须从启动记录恢复
+            long span = ticks.get(ticks.size()-1).mktTime;
+            TradletRun replay = new TradletRun(executorService, null, recordFile, (beansContainer0, account, listener)->{
+                return new CtpReplayTxnSession(beansContainer0, account, listener);
+            }, "1000.00");
+            replay.connect();
+            long t0 = System.currentTimeMillis();
+            long count = replay.asyncEventService.replay();
+            long elapsed = System.currentTimeMillis()-t0;
+            System.out.println("Replay tradlet group "+count+" events in "+elapsed+" ms, session span "+span+" ms");
+            assertEquals(liveDecisions, replay.tradlet.decisions);
+            assertEquals(liveOrders, replay.getOrders());
+            assertTrue(elapsed*50<span);
+            replay.destroy();
+        }finally {
+            executorService.shutdownNow();
+            executorService.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        assertTrue(recordFile.delete());
+        assertTrue(startupFile.delete());
+    }
+
+}
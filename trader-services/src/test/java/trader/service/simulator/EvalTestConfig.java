@@ -0,0 +1,68 @@
+package trader.service.simulator;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import trader.common.util.FileUtil;
+import trader.service.TraderHomeHelper;
+
+/**
+ * 回测测试使用的配置: 一个模拟账户, 不订阅其它品种, 计算AP的KBar, 交易组都是禁用状态.
+ * <BR>测试类在 @BeforeClass 中调用 init() 替换全局配置, 在 @AfterClass 中调用 restore() 恢复之前的配置
+ */
+class EvalTestConfig {
+    private static File cfgFile = null;
+    private static File previousCfgFile = null;
+
+    static synchronized void init() {
+        try{
+            if ( cfgFile==null ) {
+                cfgFile = createCfgFile();
+            }
+            previousCfgFile = TraderHomeHelper.getCfgFile();
+            TraderHomeHelper.init(cfgFile);
+        }catch(Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    static synchronized void restore() {
+        TraderHomeHelper.init(previousCfgFile);
+        previousCfgFile = null;
+    }
+
+    /**
+     * 配置文件写入临时目录
+     */
+    private static File createCfgFile() throws Exception {
+        File traderHome = new File(EvalTestConfig.class.getClassLoader().getResource("etc/trader.xml").getFile()).getParentFile().getParentFile();
+        File cfgDir = Files.createTempDirectory("eval-test").toFile();
+        cfgDir.deleteOnExit();
+        File cfgFile = new File(cfgDir, "eval-test.xml");
+        cfgFile.deleteOnExit();
+        FileUtil.save(cfgFile,
+                "<root><TradeService><account id=\"sim-account1\"><![CDATA[\n"
+                +"[connectionProps]\n"
+                +"initMoney=500000.00\n"
+                +"commissionsFile="+traderHome.getAbsolutePath()+"/etc/sim-account1.commissions.json\n"
+                +"]]></account></TradeService>"
+                +"<TechnicalAnalysisService><instrument id=\"au.shfe\" strokeThreshold=\"0.4\" lineWidth=\"0.4\" />"
+                +"<instrument id=\"AP.czce\" levels=\"min1,min5,stroke\" strokeThreshold=\"2\" lineWidth=\"2\" /></TechnicalAnalysisService>"
+                +"<TradletService><tradletGroup id=\"group_test\"><![CDATA[\n"
+                +"[common]\n"
+                +"state=disabled\n"
+                +"instruments=AP010\n"
+                +"account=sim-account1\n"
+                +"]]></tradletGroup>"
+                +"<tradletGroup id=\"group_sweep\"><![CDATA[\n"
+                +"[common]\n"
+                +"state=disabled\n"
+                +"instruments=AP010\n"
+                +"account=sim-account1\n"
+                +"[SWEEPTEST]\n"
+                +"interval=${interval}\n"
+                +"slippage=${slippage}\n"
+                +"]]></tradletGroup></TradletService></root>");
+        return cfgFile;
+    }
+}
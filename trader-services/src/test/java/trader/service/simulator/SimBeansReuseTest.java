@@ -0,0 +1,147 @@
+package trader.service.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.tick.PriceLevel;
+import trader.common.util.ConversionUtil;
+import trader.common.util.StringUtil;
+import trader.common.util.StringUtil.KVPair;
+import trader.service.ta.LeveledBarSeries;
+import trader.service.ta.TechnicalAnalysisAccess;
+import trader.service.ta.TechnicalAnalysisAccessImpl;
+import trader.service.ta.TechnicalAnalysisServiceImpl;
+import trader.service.trade.TradeService;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketTimeService;
+import trader.tool.TraderEvalAction;
+import trader.tool.TraderSweepAction;
+
+/**
+ * 跨交易日复用服务对象: 结果必须和每个交易日新建服务对象相同
+ */
+public class SimBeansReuseTest {
+    @BeforeClass
+    public static void beforeClass() {
+        EvalTestConfig.init();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        EvalTestConfig.restore();
+    }
+
+    static final Exchangeable ap010 = Exchangeable.fromString("AP010");
+
+    private static class ReuseEvalAction extends TraderEvalAction {
+        List<LocalDate> tradingDays;
+        SimpleBeansContainer globalBeans;
+
+        ReuseEvalAction() throws Exception {
+            List<KVPair> options = new ArrayList<>();
+            options.add(new KVPair("beginDate", "20200803", null));
+            options.add(new KVPair("endDate", "20200811", null));
+            options.add(new KVPair("instrument", "AP010", null));
+            writer = new PrintWriter(new StringWriter());
+            parseOptions(options);
+            tradingDays = getTradingDays();
+            globalBeans = createGlobalBeans();
+        }
+
+        SimpleBeansContainer createBeans(LocalDate tradingDay) throws Exception {
+            return getBeansFor(globalBeans, instruments, tradingDay);
+        }
+
+        void resetBeans(SimpleBeansContainer beans, LocalDate tradingDay) throws Exception {
+            resetBeansFor(beans, tradingDay);
+        }
+
+        void destroyBeans(SimpleBeansContainer beans) {
+            destroyBeans(globalBeans, beans);
+        }
+    }
+
+    @Test
+    public void testReuseSameAsFresh() throws Exception {
+        String fresh = TraderSweepActionTest.sweep(new TraderSweepAction(), "endDate", "20200811", "param.interval", "1000,2000", "param.slippage", "3", "reuseBeans", "false");
+        String reuse = TraderSweepActionTest.sweep(new TraderSweepAction(), "endDate", "20200811", "param.interval", "1000,2000", "param.slippage", "3", "reuseBeans", "true");
+        System.out.println(reuse);
+        assertEquals(TraderSweepActionTest.resultTable(fresh), TraderSweepActionTest.resultTable(reuse));
+        assertTrue(reuse.indexOf("2 组参数, 7 个交易日")>0);
+        List<String> lines = StringUtil.text2lines(TraderSweepActionTest.resultTable(reuse), true, true);
+        assertEquals(3, lines.size());
+        for(int i=1;i<lines.size();i++) {
+            String[] fields = lines.get(i).split("\\s+");
+            assertTrue(ConversionUtil.toInt(fields[fields.length-2])>0);
+        }
+    }
+
+    @Test
+    public void testResetRollsTradingDay() throws Exception {
+        ReuseEvalAction action = new ReuseEvalAction();
+        SimpleBeansContainer beans = action.createBeans(action.tradingDays.get(0));
+        TechnicalAnalysisServiceImpl taService = beans.getBean(TechnicalAnalysisServiceImpl.class);
+        TechnicalAnalysisAccess taAccess = taService.forInstrument(ap010);
+        TradeService tradeService = beans.getBean(TradeService.class);
+        SimMarketTimeService mtService = beans.getBean(SimMarketTimeService.class);
+        while(mtService.nextTimePiece());
+        LeveledBarSeries series = taAccess.getSeries(PriceLevel.MIN1);
+        int day1Bars = series.getBarCount();
+        assertTrue(day1Bars>0);
+
+        LocalDate tradingDay2 = action.tradingDays.get(1);
+        action.resetBeans(beans, tradingDay2);
+        assertEquals(tradingDay2, mtService.getTradingDay());
+        //服务对象不变, KBar保留并按新交易日继续计算, 不重新加载历史数据
+        assertTrue(taAccess==taService.forInstrument(ap010));
+        assertTrue(series==taAccess.getSeries(PriceLevel.MIN1));
+        assertEquals(tradingDay2, ((TechnicalAnalysisAccessImpl)taAccess).getTradingTimes().getTradingDay());
+        //KBar只有上一交易日的历史数据
+        int historyBars = taAccess.getSeries(PriceLevel.MIN1).getBarCount();
+        assertEquals(day1Bars, historyBars);
+        assertEquals(action.tradingDays.get(0), taAccess.getSeries(PriceLevel.MIN1).getBar(0).getEndTime().toLocalDate());
+        assertEquals(0, tradeService.getPrimaryAccount().getOrders().size());
+        assertEquals(tradingDay2, tradeService.getPrimaryAccount().getSession().getTradingDay());
+        while(mtService.nextTimePiece());
+        assertTrue(taAccess.getSeries(PriceLevel.MIN1).getBarCount()>historyBars);
+        action.destroyBeans(beans);
+    }
+
+    /**
+     * 250个交易日的准备耗时: 每日新建服务对象 vs 复用服务对象. 只有7个交易日的测试数据, 循环使用
+     */
+    @Test
+    public void testSetupTiming() throws Exception {
+        ReuseEvalAction action = new ReuseEvalAction();
+        int days = 250;
+        long t0 = System.currentTimeMillis();
+        for(int i=0;i<days;i++) {
+            LocalDate tradingDay = action.tradingDays.get(i%action.tradingDays.size());
+            SimpleBeansContainer beans = action.createBeans(tradingDay);
+            action.destroyBeans(beans);
+        }
+        long freshTime = System.currentTimeMillis()-t0;
+
+        t0 = System.currentTimeMillis();
+        SimpleBeansContainer beans = action.createBeans(action.tradingDays.get(0));
+        for(int i=1;i<days;i++) {
+            LocalDate tradingDay = action.tradingDays.get(i%action.tradingDays.size());
+            action.resetBeans(beans, tradingDay);
+        }
+        action.destroyBeans(beans);
+        long reuseTime = System.currentTimeMillis()-t0;
+        System.out.println(days+" trading days setup: fresh beans "+freshTime+" ms, reused beans "+reuseTime+" ms");
+    }
+
+}
@@ -0,0 +1,163 @@
+package trader.service.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.FileUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.StringUtil.KVPair;
+import trader.common.util.TraderHomeUtil;
+import trader.service.trade.TradeConstants.OrderOffsetFlag;
+import trader.simulator.trade.SimEquityMetrics;
+
+/**
+ * 增量计算的绩效指标必须和按完整资金序列计算的结果相同
+ */
+public class SimEquityMetricsTest {
+    @BeforeClass
+    public static void beforeClass() {
+        EvalTestConfig.init();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        EvalTestConfig.restore();
+    }
+
+    static final Exchangeable ap010 = Exchangeable.fromString("AP010");
+    static final Exchangeable ap101 = Exchangeable.fromString("AP101");
+
+    @Test
+    public void testSyntheticFills() throws Exception {
+        File seriesFile = new File(TraderHomeUtil.getTraderHome(), "work/metrics-test/sim-account1.equity");
+        SimEquityMetrics metrics = new SimEquityMetrics("sim-account1", seriesFile);
+        double[] equities = {100000, 101000, 100500, 99000, 102000, 101500, 103000, 98000, 99500, 104000};
+        LocalDate tradingDay = LocalDate.of(2020, 8, 3);
+        for(int i=0;i<equities.length;i++) {
+            if ( i==5 ) {
+                tradingDay = tradingDay.plusDays(1);
+            }
+            metrics.onEquity(tradingDay, 1000L*i, PriceUtil.price2long(equities[i]));
+        }
+        //开仓, 盈利平仓, 亏损平仓, 另一个品种扣除手续费后亏损的平仓
+        metrics.onTxn(ap010, OrderOffsetFlag.OPEN, PriceUtil.price2long(70000), 0, PriceUtil.price2long(5));
+        metrics.onTxn(ap010, OrderOffsetFlag.CLOSE, PriceUtil.price2long(71000), PriceUtil.price2long(1000), PriceUtil.price2long(5));
+        metrics.onTxn(ap010, OrderOffsetFlag.CLOSE_TODAY, PriceUtil.price2long(69000), PriceUtil.price2long(-1000), PriceUtil.price2long(5));
+        metrics.onTxn(ap101, OrderOffsetFlag.CLOSE, PriceUtil.price2long(80000), PriceUtil.price2long(3), PriceUtil.price2long(5));
+        metrics.close();
+
+        //按完整序列计算
+        double mean = 0, downside = 0;
+        int n = equities.length-1;
+        double[] returns = new double[n];
+        double peak = equities[0], maxDrawdown = 0;
+        for(int i=1;i<equities.length;i++) {
+            returns[i-1] = (equities[i]-equities[i-1])/equities[i-1];
+            mean += returns[i-1];
+            if ( returns[i-1]<0 ) {
+                downside += returns[i-1]*returns[i-1];
+            }
+            peak = Math.max(peak, equities[i]);
+            maxDrawdown = Math.max(maxDrawdown, peak-equities[i]);
+        }
+        mean /= n;
+        double variance = 0;
+        for(double r:returns) {
+            variance += (r-mean)*(r-mean);
+        }
+        double annual = Math.sqrt(250.0*n/2);
+        double sharpe = mean/Math.sqrt(variance/(n-1))*annual;
+        double sortino = mean/Math.sqrt(downside/n)*annual;
+
+        assertEquals(2, metrics.getTradingDays());
+        assertEquals(PriceUtil.price2long(4000), metrics.getProfit());
+        assertEquals(PriceUtil.price2long(maxDrawdown), metrics.getMaxDrawdown());
+        assertEquals(5000.0/103000, metrics.getMaxDrawdownRatio(), 1e-9);
+        assertEquals(sharpe, metrics.getSharpe(), 1e-9);
+        assertEquals(sortino, metrics.getSortino(), 1e-9);
+        assertEquals(PriceUtil.price2long(290000), metrics.getTurnover());
+        assertEquals(4, metrics.getTxnCount());
+        assertEquals(3, metrics.getCloseCount());
+        assertEquals(1.0/3, metrics.getWinRate(), 1e-9);
+        assertEquals(PriceUtil.price2long(-15), metrics.getInstrumentPnls().get(ap010).getNetProfit());
+        assertEquals(PriceUtil.price2long(-2), metrics.getInstrumentPnls().get(ap101).getNetProfit());
+
+        //资金序列
+        assertEquals(16*equities.length, seriesFile.length());
+        List<Long> series = new ArrayList<>();
+        SimEquityMetrics.readSeries(seriesFile, (time, equity)->{
+            assertEquals(1000L*series.size(), time);
+            series.add(equity);
+        });
+        assertEquals(equities.length, series.size());
+        assertEquals(PriceUtil.price2long(104000), series.get(series.size()-1).longValue());
+
+        //报表
+        JsonObject json = metrics.toJson().getAsJsonObject();
+        assertEquals("4000.00", json.get("profit").getAsString());
+        assertEquals("-15.00", json.getAsJsonObject("instruments").getAsJsonObject(ap010.toString()).get("netProfit").getAsString());
+        String csv = metrics.toCsv();
+        assertTrue(csv.startsWith("\"Metric\",\"Value\""));
+        assertTrue(csv.indexOf("\"winRate\",\"0.3333\"")>0);
+        assertTrue(csv.indexOf("\""+ap101+".netProfit\",\"-2.00\"")>0);
+    }
+
+    /**
+     * 回测输出资金序列和报表, 最后一个采样点是收盘净值
+     */
+    @Test
+    public void testEvalReports() throws Exception {
+        File metricsDir = new File(TraderHomeUtil.getTraderHome(), "work/eval-metrics");
+        FileUtil.deleteDirectory(metricsDir);
+        List<KVPair> options = new ArrayList<>();
+        options.add(new KVPair("beginDate", "20200803", null));
+        options.add(new KVPair("endDate", "20200805", null));
+        options.add(new KVPair("instrument", "AP010", null));
+        options.add(new KVPair("metricsDir", metricsDir.getAbsolutePath(), null));
+        options.add(new KVPair("equityInterval", "300", null));
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        assertEquals(0, new TraderEvalActionTest.TestEvalAction().execute(null, writer, options));
+        writer.flush();
+        String output = out.toString();
+        System.out.println(output.substring(output.indexOf("绩效:")));
+        assertTrue(output.indexOf("绩效:")>0);
+
+        File jsonFile = new File(metricsDir, "sim-account1.metrics.json");
+        JsonObject json = JsonParser.parseString(FileUtil.read(jsonFile)).getAsJsonObject();
+        assertEquals(3, json.get("tradingDays").getAsInt());
+        assertTrue(json.get("txnCount").getAsInt()>0);
+        assertTrue(new File(metricsDir, "sim-account1.metrics.csv").length()>0);
+        //每个交易日约4小时, 每5分钟采样一次
+        File seriesFile = new File(metricsDir, "sim-account1.equity");
+        long samples = seriesFile.length()/16;
+        assertEquals(json.get("samples").getAsLong(), samples);
+        assertTrue(samples>3*40);
+        //最后一个采样点和资金曲线的最后一天相同
+        long[] lastEquity = new long[1];
+        SimEquityMetrics.readSeries(seriesFile, (time, equity)->{
+            lastEquity[0] = equity;
+        });
+        String curve = output.substring(output.indexOf("资金曲线:"));
+        curve = curve.substring(curve.indexOf("20200805"));
+        curve = curve.substring(0, curve.indexOf('\n')).trim();
+        assertTrue(curve.endsWith(" "+PriceUtil.long2str(lastEquity[0])));
+        assertEquals(PriceUtil.long2str(lastEquity[0]), json.get("equity").getAsString());
+    }
+
+}
@@ -0,0 +1,192 @@
+package trader.service.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Test;
+
+import trader.common.beans.BeansContainer;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.ExchangeableData.DataInfo;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.util.DateUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.ta.BarSeriesLoader;
+import trader.service.trade.MarketTimeService;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+import trader.simulator.SimMarketTimeService;
+import trader.simulator.SimScheduledExecutorService;
+
+/**
+ * 多品种行情归并的顺序和性能
+ */
+public class SimMarketDataServiceTest {
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    static final Exchangeable ap010 = Exchangeable.fromString("AP010");
+    static final Exchangeable ap101 = Exchangeable.fromString("AP101");
+    static final LocalDate tradingDay = LocalDate.of(2020, 8, 3);
+    static final int TIME_PIECE = 100;
+
+    private static String tickStr(LocalDateTime time, Exchangeable e, MarketData md) {
+        return DateUtil.date2str(time)+" "+e+" "+DateUtil.date2str(md.updateTime)+" "+PriceUtil.long2str(md.lastPrice)+" "+md.volume;
+    }
+
+    /**
+     * 按照逐个品种线性查找的方式, 计算每个时间片应该通知的行情
+     */
+    private static List<String> referenceTicks(List<Exchangeable> instruments, LocalDateTime[] marketTimes) throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimMarketDataService mdService = new SimMarketDataService();
+        mdService.init(beansContainer);
+        beansContainer.addBean(MarketDataService.class, mdService);
+        BarSeriesLoader loader = new BarSeriesLoader(beansContainer, TraderHomeUtil.getExchangeableData());
+        List<List<MarketData>> allTicks = new ArrayList<>();
+        int[] nextIndex = new int[instruments.size()];
+        for(Exchangeable e:instruments) {
+            allTicks.add(loader.setInstrument(e).loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP));
+        }
+        List<String> result = new ArrayList<>();
+        LocalDateTime endTime = marketTimes[marketTimes.length-1];
+        for(LocalDateTime time=marketTimes[0]; time.isBefore(endTime); time=time.plusNanos(TIME_PIECE*1000000L)) {
+            for(int i=0;i<instruments.size();i++) {
+                List<MarketData> ticks = allTicks.get(i);
+                MarketData md = null;
+                while(nextIndex[i]<ticks.size() && ticks.get(nextIndex[i]).updateTime.compareTo(time)<=0) {
+                    md = ticks.get(nextIndex[i]++);
+                }
+                if ( md!=null ) {
+                    result.add(tickStr(time, instruments.get(i), md));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 多个虚拟品种复用测试数据, 用于性能测试
+     */
+    private static class BenchMarketDataService extends SimMarketDataService {
+        static Map<Exchangeable, String> tickCsvs = new HashMap<>();
+        List<Exchangeable> instruments;
+
+        BenchMarketDataService(List<Exchangeable> instruments){
+            this.instruments = instruments;
+        }
+
+        @Override
+        public void init(BeansContainer beansContainer) throws Exception {
+            super.init(beansContainer);
+            subscriptions.clear();
+            subscriptions.addAll(instruments);
+        }
+
+        /**
+         * 测试数据只加载一次, 只测试解析和归并
+         */
+        @Override
+        protected String loadTickCsv(Exchangeable e, DataInfo tickInfo, LocalDate tradingDay) throws IOException {
+            Exchangeable e0 = instruments.indexOf(e)%2==0?ap010:ap101;
+            String result = tickCsvs.get(e0);
+            if ( result==null ) {
+                result = super.loadTickCsv(e0, tickInfo, tradingDay);
+                tickCsvs.put(e0, result);
+            }
+            return result;
+        }
+    }
+
+    private static SimMarketTimeService createServices(SimMarketDataService mdService, LocalDateTime[] marketTimes) throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimMarketTimeService mtService = new SimMarketTimeService();
+        SimScheduledExecutorService scheduledExecutorService = new SimScheduledExecutorService();
+        beansContainer.addBean(MarketDataService.class, mdService);
+        beansContainer.addBean(MarketTimeService.class, mtService);
+        beansContainer.addBean(ScheduledExecutorService.class, scheduledExecutorService);
+        scheduledExecutorService.init(beansContainer);
+        mtService.setTimeRanges(tradingDay, marketTimes);
+        mdService.init(beansContainer);
+        return mtService;
+    }
+
+    @Test
+    public void testTickSequence() throws Exception {
+        List<Exchangeable> instruments = Arrays.asList(ap010, ap101);
+        LocalDateTime[] marketTimes = ap010.exchange().getTradingTimes(ap010, tradingDay).getMarketTimes();
+        SimMarketDataService mdService = new SimMarketDataService() {
+            @Override
+            public void init(BeansContainer beansContainer) throws Exception {
+                super.init(beansContainer);
+                subscriptions.retainAll(instruments);
+                subscriptions.addAll(instruments);
+            }
+        };
+        SimMarketTimeService mtService = createServices(mdService, marketTimes);
+        List<String> ticks = new ArrayList<>();
+        mdService.addListener((md)->{
+            ticks.add(tickStr(mtService.getMarketTime(), md.instrument, md));
+        });
+        while(mtService.nextTimePiece());
+
+        List<String> expected = referenceTicks(instruments, marketTimes);
+        assertTrue(expected.size()>1000);
+        assertEquals(expected, ticks);
+        assertEquals(ap010, mdService.getLastData(ap010).instrument);
+    }
+
+    /**
+     * 10/100/500 个品种的归并性能
+     */
+    @Test
+    public void testMergeBenchmark() throws Exception {
+        ExchangeableTradingTimes tradingTimes = ap010.exchange().getTradingTimes(ap010, tradingDay);
+        LocalDateTime beginTime = tradingTimes.getMarketTimes()[0];
+        //只测试开盘后30分钟
+        LocalDateTime[] marketTimes = new LocalDateTime[] {beginTime, beginTime.plusMinutes(30)};
+        long[] singleTicks = new long[2];
+        for(int n:new int[] {2, 10, 100, 500}) {
+            List<Exchangeable> instruments = new ArrayList<>();
+            for(int i=0;i<n;i++) {
+                instruments.add(Exchangeable.fromString("AP"+(100+i)));
+            }
+            BenchMarketDataService mdService = new BenchMarketDataService(instruments);
+            SimMarketTimeService mtService = createServices(mdService, marketTimes);
+            long[] totalTicks = new long[2];
+            mdService.addListener((md)->{
+                totalTicks[md.instrument.equals(ap010)?0:1]++;
+            });
+            long t0 = System.nanoTime();
+            while(mtService.nextTimePiece());
+            long elapsed = Duration.ofNanos(System.nanoTime()-t0).toMillis();
+            if ( n==2 ) {
+                singleTicks[0] = totalTicks[0];
+                singleTicks[1] = totalTicks[1];
+            } else {
+                assertEquals(singleTicks[0]*n/2, totalTicks[0]);
+                assertEquals(singleTicks[1]*n/2, totalTicks[1]);
+            }
+            long ticks = totalTicks[0]+totalTicks[1];
+            System.out.println(n+" instruments: "+ticks+" ticks, "+mtService.getTotalTimePieces()+" time pieces in "+elapsed+" ms, "+(ticks*1000/Math.max(1, elapsed))+" ticks/s");
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package trader.service.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import trader.common.beans.BeansContainer;
+import trader.common.exchangeable.Exchange;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.exchangeable.MarketDayUtil;
+import trader.common.util.DateUtil;
+import trader.common.util.PriceUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketDataService;
+import trader.service.trade.MarketTimeService;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+import trader.simulator.SimMarketTimeService;
+import trader.simulator.SimScheduledExecutorService;
+
+/**
+ * 事件驱动模式和步进模式的结果必须完全相同
+ */
+public class SimMarketTimeServiceTest {
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    static final Exchangeable ap010 = Exchangeable.fromString("AP010");
+    static final Exchangeable ap101 = Exchangeable.fromString("AP101");
+
+    private static class RunResult {
+        List<String> events = new ArrayList<>();
+        long timePieces;
+        long skippedTimePieces;
+        long elapsedTime;
+    }
+
+    private static RunResult run(LocalDate tradingDay, boolean eventDriven, RunResult result) throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimMarketTimeService mtService = new SimMarketTimeService();
+        mtService.setEventDriven(eventDriven);
+        SimMarketDataService mdService = new SimMarketDataService() {
+            @Override
+            public void init(BeansContainer beansContainer) throws Exception {
+                super.init(beansContainer);
+                subscriptions.retainAll(Arrays.asList(ap010, ap101));
+            }
+        };
+        SimScheduledExecutorService scheduledExecutorService = new SimScheduledExecutorService();
+        beansContainer.addBean(MarketDataService.class, mdService);
+        beansContainer.addBean(MarketTimeService.class, mtService);
+        beansContainer.addBean(ScheduledExecutorService.class, scheduledExecutorService);
+        scheduledExecutorService.init(beansContainer);
+        ExchangeableTradingTimes tradingTimes = ap010.exchange().getTradingTimes(ap010, tradingDay);
+        mtService.setTimeRanges(tradingDay, tradingTimes.getMarketTimes());
+        mdService.addSubscriptions(Arrays.asList(ap010, ap101));
+        mdService.init(beansContainer);
+
+        List<String> events = result.events;
+        mdService.addListener((md)->{
+            events.add(DateUtil.date2str(mtService.getMarketTime())+" "+md.instrument+" "+DateUtil.date2str(md.updateTime)+" "+PriceUtil.long2str(md.lastPrice)+" "+md.volume);
+        });
+        scheduledExecutorService.scheduleAtFixedRate(()->{
+            events.add(DateUtil.date2str(mtService.getMarketTime())+" timer5s");
+        }, 1, 5, TimeUnit.SECONDS);
+        scheduledExecutorService.scheduleAtFixedRate(()->{
+            events.add(DateUtil.date2str(mtService.getMarketTime())+" timer1m");
+        }, 0, 1, TimeUnit.MINUTES);
+
+        long t0 = System.currentTimeMillis();
+        while(mtService.nextTimePiece());
+        result.elapsedTime += System.currentTimeMillis()-t0;
+        result.timePieces += mtService.getTotalTimePieces();
+        result.skippedTimePieces += mtService.getTotalSkippedTimePieces();
+        mdService.destroy();
+        return result;
+    }
+
+    @Test
+    public void testEventDrivenSameAsStepped() throws Exception {
+        LocalDate tradingDay = LocalDate.of(2020, 8, 3);
+        RunResult stepped = run(tradingDay, false, new RunResult());
+        RunResult eventDriven = run(tradingDay, true, new RunResult());
+        assertTrue(stepped.events.size()>1000);
+        assertEquals(stepped.events, eventDriven.events);
+        assertEquals(0, stepped.skippedTimePieces);
+        assertTrue(eventDriven.timePieces<stepped.timePieces);
+        assertTrue(eventDriven.skippedTimePieces>0);
+        System.out.println("1 day stepped: "+stepped.elapsedTime+" ms, "+stepped.timePieces+" pieces; event driven: "
+                +eventDriven.elapsedTime+" ms, "+eventDriven.timePieces+" pieces, "+eventDriven.skippedTimePieces+" skipped");
+    }
+
+    /**
+     * 测试数据中所有交易日的吞吐量对比
+     */
+    @Test
+    public void testThroughput() throws Exception {
+        RunResult stepped = new RunResult(), eventDriven = new RunResult();
+        int days = 0;
+        for(LocalDate tradingDay = LocalDate.of(2020, 8, 3); !tradingDay.isAfter(LocalDate.of(2020, 8, 11)); tradingDay = MarketDayUtil.nextMarketDay(Exchange.CZCE, tradingDay)) {
+            run(tradingDay, false, stepped);
+            run(tradingDay, true, eventDriven);
+            assertEquals(stepped.events, eventDriven.events);
+            stepped.events.clear();
+            eventDriven.events.clear();
+            days++;
+        }
+        System.out.println(days+" days stepped: "+stepped.elapsedTime+" ms, "+stepped.timePieces+" pieces; event driven: "
+                +eventDriven.elapsedTime+" ms, "+eventDriven.timePieces+" pieces, "+eventDriven.skippedTimePieces+" skipped");
+        assertTrue(eventDriven.timePieces*2<stepped.timePieces);
+    }
+
+}
@@ -0,0 +1,161 @@
+package trader.service.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.PriceUtil;
+import trader.common.util.StringUtil;
+import trader.common.util.StringUtil.KVPair;
+import trader.service.md.MarketDataService;
+import trader.service.trade.Account;
+import trader.service.trade.OrderBuilder;
+import trader.service.trade.TradeConstants.OrderDirection;
+import trader.service.trade.TradeConstants.OrderOffsetFlag;
+import trader.service.trade.TradeConstants.PosVolume;
+import trader.service.trade.Position;
+import trader.service.trade.TradeService;
+import trader.service.util.SimpleBeansContainer;
+import trader.tool.TraderEvalAction;
+
+/**
+ * 并行回测的结果必须和顺序回测相同, 交易日互相独立时分片回测的结果必须和不分片相同
+ */
+public class TraderEvalActionTest {
+    @BeforeClass
+    public static void beforeClass() {
+        EvalTestConfig.init();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        EvalTestConfig.restore();
+    }
+
+    static final Exchangeable ap010 = Exchangeable.fromString("AP010");
+
+    /**
+     * 固定间隔开平仓, 收盘时不平仓, 持仓延续到下一个交易日. flatAtClose 时14:50之后不再开仓并平掉持仓, 每个交易日互相独立
+     */
+    static class TestEvalAction extends TraderEvalAction {
+        boolean flatAtClose;
+
+        @Override
+        protected SimpleBeansContainer getBeansFor(SimpleBeansContainer globalBeans, List<Exchangeable> instruments, LocalDate tradingDay) throws Exception {
+            SimpleBeansContainer beans = super.getBeansFor(globalBeans, instruments, tradingDay);
+            MarketDataService mdService = beans.getBean(MarketDataService.class);
+            Account account = beans.getBean(TradeService.class).getPrimaryAccount();
+            int[] tickCount = new int[1];
+            boolean[] closeSent = new boolean[1];
+            mdService.addListener((md)->{
+                boolean closing = flatAtClose && md.updateTime.toLocalTime().isAfter(LocalTime.of(14, 50));
+                if ( closing ) {
+                    if ( closeSent[0] ) {
+                        return;
+                    }
+                } else if ( ++tickCount[0]%1500!=0 ) {
+                    return;
+                }
+                Position pos = account.getPosition(ap010);
+                boolean hasPos = pos!=null && pos.getVolume(PosVolume.LongPosition)>0;
+                if ( closing ) {
+                    closeSent[0] = true;
+                    if ( !hasPos ) {
+                        return;
+                    }
+                }
+                long tick = PriceUtil.price2long(1);
+                try{
+                    account.createOrder(new OrderBuilder().setExchagneable(ap010)
+                            .setDirection(hasPos?OrderDirection.Sell:OrderDirection.Buy)
+                            .setOffsetFlag(hasPos?OrderOffsetFlag.CLOSE:OrderOffsetFlag.OPEN)
+                            .setLimitPrice(hasPos?md.lastPrice-5*tick:md.lastPrice+5*tick)
+                            .setVolume(1));
+                }catch(Throwable t) {}
+            }, ap010);
+            return beans;
+        }
+    }
+
+    private static String eval(String ...args) throws Exception {
+        return eval(false, args);
+    }
+
+    private static String eval(boolean flatAtClose, String ...args) throws Exception {
+        List<KVPair> options = new ArrayList<>();
+        options.add(new KVPair("beginDate", "20200803", null));
+        options.add(new KVPair("endDate", "20200811", null));
+        options.add(new KVPair("instrument", "AP010", null));
+        for(int i=0;i<args.length;i+=2) {
+            options.add(new KVPair(args[i], args[i+1], null));
+        }
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        TestEvalAction action = new TestEvalAction();
+        action.flatAtClose = flatAtClose;
+        assertEquals(0, action.execute(null, writer, options));
+        writer.flush();
+        return out.toString();
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws Exception {
+        String sequential = eval("shardDays", "2", "parallel", "1");
+        String parallel = eval("shardDays", "2", "parallel", "4");
+        System.out.println(parallel);
+        assertEquals(sequential, parallel);
+        assertTrue(parallel.indexOf("=== 分片 3 ")>0);
+        assertTrue(parallel.indexOf("资金曲线:")>0);
+        assertTrue(parallel.indexOf(" OPEN ")>0);
+        //分片内第二个交易日延续第一个交易日的资金, 资金曲线等于账户净值
+        String day2 = parallel.substring(parallel.indexOf("--- 交易日 20200804 ---"));
+        day2 = day2.substring(day2.indexOf("账户净值:")+5).trim();
+        String balance = day2.substring(0, day2.indexOf(' '));
+        String curve = parallel.substring(parallel.indexOf("资金曲线:"));
+        curve = curve.substring(curve.indexOf("20200804"));
+        curve = curve.substring(0, curve.indexOf('\n')).trim();
+        assertTrue(curve.endsWith(" "+balance));
+    }
+
+    /**
+     * 每个交易日收盘前平仓时, 交易日之间互相独立, 分片回测的每日报单, 成交和资金曲线必须与不分片的回测相同.
+     * <BR>分片从初始资金开始, 账户净值在分片边界不同, 比较时忽略
+     */
+    @Test
+    public void testShardsSameAsUnsharded() throws Exception {
+        String reference = eval(true, "shardDays", "0", "parallel", "1");
+        String sharded = eval(true, "shardDays", "2", "parallel", "4");
+        assertTrue(reference.indexOf("=== 分片 ")<0);
+        assertTrue(sharded.indexOf("=== 分片 3 ")>0);
+        assertTrue(reference.indexOf(" OPEN ")>0);
+        assertTrue(reference.indexOf(" CLOSE ")>0);
+        assertEquals(dayReports(reference), dayReports(sharded));
+        assertEquals(reference.substring(reference.indexOf("--- 汇总 ---")), sharded.substring(sharded.indexOf("--- 汇总 ---")));
+    }
+
+    /**
+     * 每个交易日的报单和账户资金, 去掉分片标题和账户净值
+     */
+    private static String dayReports(String output) {
+        StringBuilder result = new StringBuilder();
+        for(String line:StringUtil.text2lines(output.substring(0, output.indexOf("--- 汇总 ---")), false, false)) {
+            if ( line.startsWith("=== 分片 ") ) {
+                continue;
+            }
+            result.append(line.replaceAll("账户净值: *\\S+", "账户净值:")).append("\n");
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,204 @@
+package trader.service.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import trader.common.beans.Discoverable;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.ConversionUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.StringUtil;
+import trader.common.util.StringUtil.KVPair;
+import trader.service.md.MarketData;
+import trader.service.ta.LeveledBarSeries;
+import trader.service.trade.Account;
+import trader.service.trade.OrderBuilder;
+import trader.service.trade.TradeConstants.OrderDirection;
+import trader.service.trade.TradeConstants.OrderOffsetFlag;
+import trader.service.trade.TradeConstants.PosVolume;
+import trader.service.trade.Position;
+import trader.service.tradlet.Playbook;
+import trader.service.tradlet.PlaybookStateTuple;
+import trader.service.tradlet.Tradlet;
+import trader.service.tradlet.TradletContext;
+import trader.tool.TraderSweepAction;
+
+/**
+ * 参数扫描: 批次划分不影响结果, 行情只解码一次
+ */
+public class TraderSweepActionTest {
+    @BeforeClass
+    public static void beforeClass() {
+        EvalTestConfig.init();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        EvalTestConfig.restore();
+    }
+
+    /**
+     * 每 interval 个TICK开平仓一次, 报单价格偏离 slippage 个价位
+     */
+    @Discoverable(interfaceClass = Tradlet.class, purpose = "SWEEPTEST")
+    public static class SweepTestTradlet implements Tradlet {
+        private Account account;
+        private Exchangeable instrument;
+        private int interval;
+        private int slippage;
+        private int tickCount;
+
+        @Override
+        public void init(TradletContext context) throws Exception {
+            Properties props = context.getConfigAsProps();
+            account = context.getGroup().getAccount();
+            instrument = context.getGroup().getInstruments().get(0);
+            //模板交易组中的参数没有替换
+            interval = ConversionUtil.toInt(props.getProperty("interval"), true);
+            slippage = ConversionUtil.toInt(props.getProperty("slippage"), true);
+        }
+
+        @Override
+        public void reload(TradletContext context) throws Exception {
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public Object onRequest(String path, Map<String, String> params, String payload) {
+            return null;
+        }
+
+        @Override
+        public void onPlaybookStateChanged(Playbook playbook, PlaybookStateTuple oldStateTuple) {
+        }
+
+        @Override
+        public void onTick(MarketData md) {
+            if ( interval<=0 || ++tickCount%interval!=0 ) {
+                return;
+            }
+            Position pos = account.getPosition(instrument);
+            boolean hasPos = pos!=null && pos.getVolume(PosVolume.LongPosition)>0;
+            long tick = PriceUtil.price2long(1);
+            try{
+                account.createOrder(new OrderBuilder().setExchagneable(instrument)
+                        .setDirection(hasPos?OrderDirection.Sell:OrderDirection.Buy)
+                        .setOffsetFlag(hasPos?OrderOffsetFlag.CLOSE:OrderOffsetFlag.OPEN)
+                        .setLimitPrice(hasPos?md.lastPrice-slippage*tick:md.lastPrice+slippage*tick)
+                        .setVolume(1));
+            }catch(Throwable t) {}
+        }
+
+        @Override
+        public void onNewBar(LeveledBarSeries series) {
+        }
+
+        @Override
+        public void onNoopSecond() {
+        }
+    }
+
+    static String sweep(TraderSweepAction action, String ...args) throws Exception {
+        List<KVPair> options = new ArrayList<>();
+        options.add(new KVPair("beginDate", "20200803", null));
+        options.add(new KVPair("endDate", "20200805", null));
+        options.add(new KVPair("instrument", "AP010", null));
+        options.add(new KVPair("group", "group_sweep", null));
+        for(int i=0;i<args.length;i+=2) {
+            options.add(new KVPair(args[i], args[i+1], null));
+        }
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        assertEquals(0, action.execute(null, writer, options));
+        writer.flush();
+        return out.toString();
+    }
+
+    /**
+     * 只保留结果表格, 去掉耗时相关的输出
+     */
+    static String resultTable(String output) {
+        StringBuilder result = new StringBuilder();
+        for(String line:StringUtil.text2lines(output, false, true)) {
+            if ( line.startsWith("行情解码") || line.startsWith("耗时") || line.startsWith("---") ) {
+                continue;
+            }
+            result.append(line).append("\n");
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void testBatchesSameAsSingleRun() throws Exception {
+        TraderSweepAction singleRun = new TraderSweepAction();
+        String singleOutput = sweep(singleRun, "param.interval", "1000,2000", "param.slippage", "2:5:3", "parallel", "1", "groupsPerRun", "4");
+        TraderSweepAction batches = new TraderSweepAction();
+        String batchesOutput = sweep(batches, "param.interval", "1000,2000", "param.slippage", "2:5:3", "parallel", "4", "groupsPerRun", "1");
+        System.out.println(batchesOutput);
+        assertEquals(resultTable(singleOutput), resultTable(batchesOutput));
+        assertTrue(batchesOutput.indexOf("4 组参数, 3 个交易日, 4 个批次")>0);
+        //每个交易日只解码一次. 加载历史KBar时可能已经通过共享缓存解码, 这时全部计为复用
+        assertTrue(singleRun.getTickCache().getDecodeCount()<=3);
+        assertEquals(3, singleRun.getTickCache().getDecodeCount()+singleRun.getTickCache().getHitCount());
+        assertTrue(batches.getTickCache().getDecodeCount()<=3);
+        assertEquals(12, batches.getTickCache().getDecodeCount()+batches.getTickCache().getHitCount());
+        //表头和4组参数, 开平仓间隔不同, 成交次数不同
+        List<String> lines = StringUtil.text2lines(resultTable(batchesOutput), true, true);
+        assertEquals(5, lines.size());
+        Set<String> txnCounts = new TreeSet<>();
+        for(int i=1;i<lines.size();i++) {
+            String[] fields = lines.get(i).split("\\s+");
+            assertTrue(ConversionUtil.toInt(fields[fields.length-2])>0);
+            txnCounts.add(fields[fields.length-2]);
+        }
+        assertEquals(2, txnCounts.size());
+    }
+
+    @Test
+    public void testSampling() throws Exception {
+        TraderSweepAction action = new TraderSweepAction();
+        String output = sweep(action, "endDate", "20200803", "param.interval", "1000:5000:1000", "param.slippage", "1:8:1", "sampling", "lhs", "samples", "4", "seed", "7", "rankBy", "sharpe");
+        System.out.println(output);
+        assertTrue(output.indexOf("4 组参数, 1 个交易日, 1 个批次, 排序: sharpe")>0);
+        assertEquals(5, StringUtil.text2lines(resultTable(output), true, true).size());
+    }
+
+    /**
+     * 共享行情和线程数对扫描耗时的影响
+     */
+    @Test
+    public void testSweepBenchmark() throws Exception {
+        for(boolean shareTicks:new boolean[] {false, true}) {
+            for(int parallel:new int[] {1, 2, 4}) {
+                TraderSweepAction action = new TraderSweepAction();
+                long t0 = System.currentTimeMillis();
+                sweep(action, "endDate", "20200804", "param.interval", "500:4000:500", "param.slippage", "3",
+                        "parallel", ""+parallel, "groupsPerRun", "2", "shareTicks", ""+shareTicks);
+                long elapsed = System.currentTimeMillis()-t0;
+                String decodeInfo = "";
+                if ( shareTicks ) {
+                    assertTrue(action.getTickCache().getDecodeCount()<=2);
+                    decodeInfo = ", decoded "+action.getTickCache().getDecodeCount()+" times in "+action.getTickCache().getDecodeTime()+" ms, reused "+action.getTickCache().getHitCount()+" times";
+                }
+                System.out.println("8 groups 2 days shareTicks="+shareTicks+" parallel="+parallel+": "+elapsed+" ms"+decodeInfo);
+            }
+        }
+    }
+
+}
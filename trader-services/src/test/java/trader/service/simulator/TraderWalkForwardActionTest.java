@@ -0,0 +1,179 @@
+package trader.service.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.ExchangeableDataCache;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.exchangeable.MarketDayUtil;
+import trader.common.util.DateUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.StringUtil;
+import trader.common.util.StringUtil.KVPair;
+import trader.service.md.MarketData;
+import trader.simulator.SimTickCache;
+import trader.tool.TraderWalkForwardAction;
+
+/**
+ * 滚动窗口回测: 合成行情中埋入最优的开平仓间隔, 每个窗口都必须选中它, 样本外盈利
+ */
+public class TraderWalkForwardActionTest {
+    @BeforeClass
+    public static void beforeClass() {
+        EvalTestConfig.init();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        //合成的TICK不能留在JVM共享的缓存中
+        evictTicks();
+        EvalTestConfig.restore();
+    }
+
+    static final Exchangeable ap010 = Exchangeable.fromString("AP010");
+
+    static final LocalDate beginDate = LocalDate.of(2020, 8, 3), endDate = LocalDate.of(2020, 8, 14);
+
+    /**
+     * 三角波的周期, 第 PERIOD/2 个TICK是波谷, 第 PERIOD 个TICK是波峰. SweepTestTradlet 的间隔为 PERIOD/2 时低买高卖
+     */
+    static final int PERIOD = 200;
+    /**
+     * 多一个TICK, 收盘前最后一次平仓可以成交
+     */
+    static final int TICKS_PER_DAY = 10*PERIOD+1;
+
+    /**
+     * 每个交易日从9:00开始每500毫秒一个TICK, 价格每个TICK变动一个价位
+     */
+    static List<MarketData> syntheticTicks(LocalDate tradingDay) {
+        ExchangeableTradingTimes tradingTimes = ap010.exchange().getTradingTimes(ap010, tradingDay);
+        long tick = PriceUtil.price2long(1);
+        long top = PriceUtil.price2long(8000);
+        LocalDateTime beginTime = tradingDay.atTime(LocalTime.of(9, 0));
+        JsonObject json = new JsonObject();
+        json.addProperty("instrumentId", ap010.toString());
+        json.addProperty("producerId", "sim");
+        json.addProperty("tradingDay", DateUtil.date2str(tradingDay));
+        json.addProperty("volume", 0);
+        json.addProperty("openInterest", 1000);
+        json.addProperty("updateTime", DateUtil.date2str(beginTime));
+        json.addProperty("updateTimestamp", 0);
+        json.addProperty("mktTime", 0);
+        for(String prop:new String[] {"turnover", "lastPrice", "openPrice", "highestPrice", "lowestPrice", "averagePrice", "preClosePrice", "upperLimitPrice", "lowerLimitPrice"}) {
+            json.addProperty(prop, PriceUtil.long2str(top));
+        }
+        json.add("bidPrices", new JsonArray());
+        MarketData template = MarketData.fromJson(json);
+        List<MarketData> result = new ArrayList<>();
+        for(int i=0;i<TICKS_PER_DAY;i++) {
+            int phase = i%PERIOD;
+            long price = phase<PERIOD/2 ? top-(phase+1)*tick : top-PERIOD/2*tick+(phase-PERIOD/2+1)*tick;
+            MarketData md = template.clone();
+            md.updateTime = beginTime.plusNanos(500L*1000000*i);
+            md.updateTimestamp = DateUtil.localdatetime2long(ap010.exchange().getZoneId(), md.updateTime);
+            md.lastPrice = price;
+            md.lowestPrice = top-PERIOD/2*tick;
+            md.upperLimitPrice = top*11/10;
+            md.lowerLimitPrice = top*9/10;
+            md.averagePrice = price;
+            md.volume = 10L*(i+1);
+            md.turnover = md.volume*price*10;
+            md.depth = 1;
+            md.bidPrices = new long[] {price-tick};
+            md.bidVolumes = new int[] {100};
+            md.askPrices = new long[] {price+tick};
+            md.askVolumes = new int[] {100};
+            md.postProcess(tradingTimes);
+            result.add(md);
+        }
+        return result;
+    }
+
+    /**
+     * 释放JVM共享缓存中的测试交易日的TICK
+     */
+    static void evictTicks() {
+        ExchangeableDataCache dataCache = ExchangeableDataCache.getDefault();
+        for(LocalDate tradingDay=beginDate; !tradingDay.isAfter(endDate); tradingDay=MarketDayUtil.nextMarketDay(ap010.exchange(), tradingDay)) {
+            dataCache.invalidate(ap010, ExchangeableData.TICK_CTP, tradingDay);
+        }
+    }
+
+    @Test
+    public void testPlantedOptimum() throws Exception {
+        //之前的测试可能已经在共享缓存中加载了真实的TICK
+        evictTicks();
+        SimTickCache tickCache = new SimTickCache();
+        int dayCount = 0;
+        for(LocalDate tradingDay=beginDate; !tradingDay.isAfter(endDate); tradingDay=MarketDayUtil.nextMarketDay(ap010.exchange(), tradingDay)) {
+            LocalDate tradingDay0 = tradingDay;
+            tickCache.getTicks(ap010, tradingDay, ()->syntheticTicks(tradingDay0));
+            dayCount++;
+        }
+        assertEquals(10, dayCount);
+
+        TraderWalkForwardAction action = new TraderWalkForwardAction();
+        action.setTickCache(tickCache);
+        List<KVPair> options = new ArrayList<>();
+        options.add(new KVPair("beginDate", DateUtil.date2str(beginDate), null));
+        options.add(new KVPair("endDate", DateUtil.date2str(endDate), null));
+        options.add(new KVPair("instrument", "AP010", null));
+        options.add(new KVPair("group", "group_sweep", null));
+        options.add(new KVPair("param.interval", "50,100,200", null));
+        options.add(new KVPair("param.slippage", "2", null));
+        options.add(new KVPair("inSample", "3", null));
+        options.add(new KVPair("outSample", "2", null));
+        options.add(new KVPair("parallel", "3", null));
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        assertEquals(0, action.execute(null, writer, options));
+        writer.flush();
+        String output = out.toString();
+        System.out.println(output);
+
+        //10个交易日: 样本内3天, 样本外2天, 4个窗口, 最后一个窗口样本外只有1天
+        List<String> lines = StringUtil.text2lines(output, true, true);
+        assertTrue(lines.get(0).indexOf("4 个窗口")>0);
+        for(int i=0;i<4;i++) {
+            String[] fields = lines.get(2+i).split("\\s+");
+            assertEquals(""+i, fields[0]);
+            assertEquals("100", fields[3]);
+            //样本外盈利
+            assertTrue(PriceUtil.str2long(fields[7])>0);
+        }
+        //样本外资金曲线覆盖后7个交易日
+        String curve = output.substring(output.indexOf("样本外资金曲线:"), output.indexOf("样本外:"));
+        assertEquals(1+7, StringUtil.text2lines(curve, true, true).size());
+        assertTrue(curve.indexOf("20200806")>0 && curve.indexOf("20200814")>0);
+        String summary = output.substring(output.indexOf("样本外:"));
+        String profit = summary.substring(summary.indexOf("净利润:")+4).trim().split("\\s+")[0];
+        assertTrue(PriceUtil.str2long(profit)>0);
+        //最优参数稳定
+        assertTrue(output.indexOf("interval: 取值 1 个 {100=4}, 变化 0 次")>0);
+        assertTrue(output.indexOf("slippage: 取值 1 个 {2=4}, 变化 0 次")>0);
+        //全部窗口使用完后释放, 再次请求需要重新解码. 之前的交易日会被之后交易日的历史KBar加载再次读入缓存, 使用最后一个交易日检查
+        long decodeCount = tickCache.getDecodeCount();
+        assertTrue(decodeCount<=dayCount);
+        tickCache.getTicks(ap010, endDate, ()->null);
+        assertEquals(decodeCount+1, tickCache.getDecodeCount());
+    }
+
+}
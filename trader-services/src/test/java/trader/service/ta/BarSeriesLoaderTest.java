@@ -0,0 +1,230 @@
+package trader.service.ta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.exchangeable.MarketDayUtil;
+import trader.common.tick.PriceLevel;
+import trader.common.util.CSVWriter;
+import trader.common.util.DateUtil;
+import trader.common.util.FileUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.util.SimpleBeansContainer;
+
+/**
+ * 流水线加载: 结果与单线程加载相同, 多线程加载多个品种多个交易日的耗时
+ */
+public class BarSeriesLoaderTest {
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    static final String[] PRODUCTS = {"AP", "CF", "SR", "MA", "TA"};
+    static final String[] MONTHS = {"009", "010", "011", "012", "101", "103", "105", "107", "109", "111"};
+
+    /**
+     * 按照交易时间生成每分钟一个的MIN1数据, 价格在 ±50 个价位内随交易日和分钟变化
+     */
+    static String syntheticMin1Csv(Exchangeable e, ExchangeableTradingTimes tradingTimes, int seed) {
+        CSVWriter csvWriter = new CSVWriter(ExchangeableData.FUTURE_MIN_COLUMNS);
+        LocalDateTime[] marketTimes = tradingTimes.getMarketTimes();
+        long volume = 0, amount = 0, openInt = 10000;
+        int index = 0;
+        for(int i=0;i<marketTimes.length;i+=2) {
+            for(LocalDateTime time=marketTimes[i]; time.isBefore(marketTimes[i+1]); time=time.plusMinutes(1)) {
+                long price = 5000+((index*7+seed*13)%101)-50;
+                long barVol = 10+index%7;
+                csvWriter.next();
+                csvWriter.set(ExchangeableData.COLUMN_INDEX, ""+index);
+                csvWriter.set(ExchangeableData.COLUMN_BEGIN_TIME, DateUtil.date2str(time));
+                csvWriter.set(ExchangeableData.COLUMN_BEGIN_VOLUME, ""+volume);
+                csvWriter.set(ExchangeableData.COLUMN_BEGIN_AMOUNT, PriceUtil.long2str(PriceUtil.price2long(amount)));
+                csvWriter.set(ExchangeableData.COLUMN_BEGIN_OPENINT, ""+openInt);
+                volume += barVol;
+                amount += barVol*price*10;
+                openInt += index%3-1;
+                csvWriter.set(ExchangeableData.COLUMN_END_TIME, DateUtil.date2str(time.plusMinutes(1)));
+                csvWriter.set(ExchangeableData.COLUMN_END_VOLUME, ""+volume);
+                csvWriter.set(ExchangeableData.COLUMN_END_AMOUNT, PriceUtil.long2str(PriceUtil.price2long(amount)));
+                csvWriter.set(ExchangeableData.COLUMN_END_OPENINT, ""+openInt);
+                csvWriter.set(ExchangeableData.COLUMN_OPEN, ""+(price-1));
+                csvWriter.set(ExchangeableData.COLUMN_HIGH, ""+(price+2));
+                csvWriter.set(ExchangeableData.COLUMN_LOW, ""+(price-2));
+                csvWriter.set(ExchangeableData.COLUMN_CLOSE, ""+price);
+                csvWriter.set(ExchangeableData.COLUMN_VOLUME, ""+barVol);
+                csvWriter.set(ExchangeableData.COLUMN_AMOUNT, ""+(barVol*price*10));
+                csvWriter.set(ExchangeableData.COLUMN_AVG, ""+price);
+                csvWriter.set(ExchangeableData.COLUMN_MKTAVG, ""+price);
+                csvWriter.set(ExchangeableData.COLUMN_UPPER_LIMIT, "5500");
+                csvWriter.set(ExchangeableData.COLUMN_LOWER_LIMIT, "4500");
+                index++;
+            }
+        }
+        return csvWriter.toString();
+    }
+
+    /**
+     * 生成品种的MIN1数据
+     *
+     * @return 交易日列表
+     */
+    static List<LocalDate> prepareData(ExchangeableData data, List<Exchangeable> instruments, LocalDate beginDay, int days) throws Exception {
+        List<LocalDate> result = new ArrayList<>();
+        LocalDate tradingDay = beginDay;
+        for(int i=0;i<days;i++) {
+            result.add(tradingDay);
+            tradingDay = MarketDayUtil.nextMarketDay(instruments.get(0).exchange(), tradingDay);
+        }
+        for(int i=0;i<instruments.size();i++) {
+            Exchangeable e = instruments.get(i);
+            for(int j=0;j<result.size();j++) {
+                ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, result.get(j));
+                data.save(e, ExchangeableData.MIN1, result.get(j), syntheticMin1Csv(e, tradingTimes, i*1000+j));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 与TechnicalAnalysisAccessImpl相同, 先加载MIN1, 其它级别使用同一个加载器从MIN1合成
+     */
+    static List<LeveledBarSeries> load(ExchangeableData data, ExecutorService executorService, Exchangeable e, LocalDate beginDay, LocalDate endDay, PriceLevel... levels) throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        beansContainer.addBean(ExecutorService.class, executorService);
+        BarSeriesLoader loader = new BarSeriesLoader(beansContainer, data);
+        loader.setInstrument(e).setStartTradingDay(beginDay).setEndTradingDay(endDay);
+        List<LeveledBarSeries> result = new ArrayList<>();
+        for(PriceLevel level:levels) {
+            result.add(loader.setLevel(level).load());
+        }
+        return result;
+    }
+
+    static void assertSameSeries(LeveledBarSeries expected, LeveledBarSeries actual) {
+        assertEquals(expected.getBarCount(), actual.getBarCount());
+        for(int i=0;i<expected.getBarCount();i++) {
+            FutureBar bar1 = expected.getBar2(i), bar2 = actual.getBar2(i);
+            assertEquals(bar1.getBeginTime(), bar2.getBeginTime());
+            assertEquals(bar1.getEndTime(), bar2.getEndTime());
+            assertEquals(bar1.getOpenPrice(), bar2.getOpenPrice());
+            assertEquals(bar1.getHighPrice(), bar2.getHighPrice());
+            assertEquals(bar1.getLowPrice(), bar2.getLowPrice());
+            assertEquals(bar1.getClosePrice(), bar2.getClosePrice());
+            assertEquals(bar1.getVolume(), bar2.getVolume());
+        }
+    }
+
+    static ExecutorService createExecutor(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * 多线程流水线加载的结果与单线程相同, 交易日按顺序排列
+     */
+    @Test
+    public void testPipelinedSameAsSingleThread() throws Exception {
+        File dataDir = new File(TraderHomeUtil.getTraderHome(), "work/loader-test/data");
+        FileUtil.deleteDirectory(dataDir);
+        ExchangeableData data = new ExchangeableData(dataDir, false);
+        Exchangeable ap010 = Exchangeable.fromString("AP010");
+        List<Exchangeable> instruments = new ArrayList<>();
+        instruments.add(ap010);
+        List<LocalDate> tradingDays = prepareData(data, instruments, LocalDate.of(2020, 6, 1), 20);
+        LocalDate beginDay = tradingDays.get(0), endDay = tradingDays.get(tradingDays.size()-1);
+
+        ExecutorService singleThread = createExecutor(1), multiThreads = createExecutor(4);
+        try {
+            PriceLevel[] levels = {PriceLevel.MIN1, PriceLevel.MIN5, PriceLevel.MIN15};
+            List<LeveledBarSeries> seriesList1 = load(data, singleThread, ap010, beginDay, endDay, levels);
+            List<LeveledBarSeries> seriesList2 = load(data, multiThreads, ap010, beginDay, endDay, levels);
+            for(int j=0;j<levels.length;j++) {
+                LeveledBarSeries series1 = seriesList1.get(j), series2 = seriesList2.get(j);
+                assertEquals(levels[j], series2.getLevel());
+                assertTrue(series1.getBarCount()>0);
+                assertSameSeries(series1, series2);
+                //每天的KBar时间在对应交易日
+                for(int i=1;i<series2.getBarCount();i++) {
+                    assertTrue(series2.getBar(i).getEndTime().isAfter(series2.getBar(i-1).getEndTime()));
+                }
+            }
+            SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+            beansContainer.addBean(ExecutorService.class, multiThreads);
+            BarSeriesLoader loader = new BarSeriesLoader(beansContainer, data);
+            loader.setInstrument(ap010).setLevel(PriceLevel.MIN1).setStartTradingDay(beginDay).setEndTradingDay(endDay);
+            LeveledBarSeries series = loader.load();
+            List<LocalDate> loadedDates = loader.getLoadedDates();
+            assertEquals(tradingDays, loadedDates);
+            //KBar总数等于每天的分钟数之和
+            int min1Count = 0;
+            for(LocalDate tradingDay:tradingDays) {
+                min1Count += ap010.exchange().getTradingTimes(ap010, tradingDay).getTotalTradingMillis()/60000;
+            }
+            assertEquals(min1Count, series.getBarCount());
+            //再次加载不修改之前返回的交易日列表
+            loader.setStartTradingDay(tradingDays.get(10)).setLevel(PriceLevel.MIN5).load();
+            assertEquals(tradingDays, loadedDates);
+            assertEquals(tradingDays.subList(10, tradingDays.size()), loader.getLoadedDates());
+        }finally {
+            singleThread.shutdown();
+            multiThreads.shutdown();
+        }
+    }
+
+    /**
+     * 启动时为50个品种加载60个交易日的历史KBar
+     */
+    @Test
+    public void testStartupBenchmark() throws Exception {
+        File dataDir = new File(TraderHomeUtil.getTraderHome(), "work/loader-bench/data");
+        FileUtil.deleteDirectory(dataDir);
+        ExchangeableData data = new ExchangeableData(dataDir, false);
+        List<Exchangeable> instruments = new ArrayList<>();
+        for(String product:PRODUCTS) {
+            for(String month:MONTHS) {
+                instruments.add(Exchangeable.fromString(product+month));
+            }
+        }
+        long t0 = System.currentTimeMillis();
+        List<LocalDate> tradingDays = prepareData(data, instruments, LocalDate.of(2020, 5, 6), 60);
+        LocalDate beginDay = tradingDays.get(0), endDay = tradingDays.get(tradingDays.size()-1);
+        System.out.println("Prepared "+instruments.size()+" instruments x "+tradingDays.size()+" days MIN1 data in "+(System.currentTimeMillis()-t0)+" ms");
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for(int loaderThreads:new int[] {1, threads}) {
+            ExecutorService executorService = createExecutor(loaderThreads);
+            try {
+                long t1 = System.currentTimeMillis();
+                long barCount = 0;
+                for(Exchangeable e:instruments) {
+                    for(LeveledBarSeries series:load(data, executorService, e, beginDay, endDay, PriceLevel.MIN1, PriceLevel.MIN5)) {
+                        assertTrue(series.getBarCount()>0);
+                        barCount += series.getBarCount();
+                    }
+                }
+                long elapsed = System.currentTimeMillis()-t1;
+                assertTrue(barCount>instruments.size()*tradingDays.size()*200);
+                System.out.println("Threads "+loaderThreads+": loaded "+barCount+" MIN1/MIN5 bars of "+instruments.size()+" instruments x "+tradingDays.size()+" days in "+elapsed+" ms");
+            }finally {
+                executorService.shutdown();
+            }
+        }
+        FileUtil.deleteDirectory(dataDir);
+    }
+
+}
@@ -0,0 +1,243 @@
+package trader.service.ta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.ta4j.core.Bar;
+import org.ta4j.core.indicators.SMAIndicator;
+import org.ta4j.core.indicators.helpers.ClosePriceIndicator;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.exchangeable.MarketDayUtil;
+import trader.common.tick.PriceLevel;
+import trader.common.util.JsonUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.ta.bar.FutureBarBuilder;
+import trader.service.trade.MarketTimeService;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+
+/**
+ * 限制内存中保留的KBar数量: 写入spill文件的KBar读取结果相同, 以及大量品种长时间运行时内存不再增长
+ */
+public class BaseLeveledBarSeriesTest {
+
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    private static List<MarketData> loadTicks(Exchangeable e, LocalDate tradingDay) throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        final SimMarketDataService mdService = new SimMarketDataService();
+        mdService.init(beansContainer);
+        beansContainer.addBean(MarketDataService.class, mdService);
+        ExchangeableData data = TraderHomeUtil.getExchangeableData();
+        BarSeriesLoader loader = new BarSeriesLoader(beansContainer, data).setInstrument(e);
+        List<MarketData> result = loader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+        assertTrue(!result.isEmpty());
+        return result;
+    }
+
+    private static File spillDir() {
+        File result = TechnicalAnalysisAccessImpl.getSpillDir();
+        result.mkdirs();
+        return result;
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        List<Bar> bars = new ArrayList<>();
+        for(LocalDate tradingDay:new LocalDate[] {LocalDate.of(2020, 8, 6), LocalDate.of(2020, 8, 7)}) {
+            FutureBarBuilder barBuilder = new FutureBarBuilder(e.exchange().getTradingTimes(e, tradingDay), PriceLevel.MIN1);
+            for(MarketData tick:loadTicks(e, tradingDay)) {
+                barBuilder.update(tick);
+            }
+            LeveledBarSeries daySeries = barBuilder.getTimeSeries(PriceLevel.MIN1);
+            for(int i=0;i<daySeries.getBarCount();i++) {
+                bars.add(daySeries.getBar(i));
+            }
+        }
+        BaseLeveledBarSeries series = new BaseLeveledBarSeries(e, "AP010-min1", PriceLevel.MIN1, LongNum::valueOf);
+        BaseLeveledBarSeries series0 = new BaseLeveledBarSeries(e, "AP010-min1", PriceLevel.MIN1, LongNum::valueOf);
+        File file = File.createTempFile("AP010-min1-", ".bar", spillDir());
+        series.setRetention(BaseLeveledBarSeries.MIN_RETENTION, file);
+        for(Bar bar:bars) {
+            series.addBar(bar);
+            series0.addBar(bar);
+        }
+        assertEquals(bars.size(), series.getBarCount());
+        assertEquals(bars.size()-1, series.getEndIndex());
+        //只保留最近的KBar
+        int spilled = series.getSpillFile().getBarCount();
+        assertTrue(spilled>=bars.size()-BaseLeveledBarSeries.MIN_RETENTION-BaseLeveledBarSeries.SPILL_BATCH);
+        assertEquals((long)spilled*FutureBarImpl.BINARY_SIZE, file.length());
+        int inMemory = 0;
+        for(Bar bar:series.getBarData()) {
+            if ( bar!=null ) {
+                inMemory++;
+            }
+        }
+        assertEquals(bars.size()-spilled, inMemory);
+        //从文件读取的KBar, 除TICK外相同
+        for(int i=bars.size()-1;i>=0;i--) {
+            assertEquals("Bar #"+i, JsonUtil.object2json(bars.get(i)).toString(), JsonUtil.object2json(series.getBar(i)).toString());
+        }
+        //指标结果相同
+        SMAIndicator sma = new SMAIndicator(new ClosePriceIndicator(series), 30);
+        SMAIndicator sma0 = new SMAIndicator(new ClosePriceIndicator(series0), 30);
+        for(int i=0;i<bars.size();i++) {
+            assertEquals(sma0.getValue(i), sma.getValue(i));
+        }
+        series.closeSpillFile();
+        assertTrue(!file.exists());
+    }
+
+    /**
+     * 品种不再使用时删除spill文件, 启动时删除已经退出的进程遗留的spill文件
+     */
+    @Test
+    public void testSpillFileCleanup() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        File barSpillDir = spillDir().getParentFile();
+        File staleFile = new File(barSpillDir, "AP010-MIN1-stale.bar");
+        File staleDir = new File(barSpillDir, ""+Long.MAX_VALUE);
+        staleDir.mkdirs();
+        File staleDirFile = new File(staleDir, "AP010-MIN1-stale.bar");
+        File otherFile = new File(barSpillDir, "readme.txt");
+        for(File file:new File[] {staleFile, staleDirFile, otherFile}) {
+            assertTrue(file.exists() || file.createNewFile());
+        }
+
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimMarketDataService mdService = new SimMarketDataService();
+        mdService.init(beansContainer);
+        beansContainer.addBean(MarketDataService.class, mdService);
+        TechnicalAnalysisCheckpointTest.TestMarketTimeService mtService = new TechnicalAnalysisCheckpointTest.TestMarketTimeService();
+        mtService.tradingDay = LocalDate.of(2020, 8, 7);
+        beansContainer.addBean(MarketTimeService.class, mtService);
+        Map<String, String> config = new HashMap<>();
+        config.put("strokeThreshold", "1");
+        config.put("lineWidth", "1");
+        config.put("levels", "min1, min5");
+        config.put("retention", ""+BaseLeveledBarSeries.MIN_RETENTION);
+        TechnicalAnalysisAccessImpl accessor = new TechnicalAnalysisAccessImpl(beansContainer, TraderHomeUtil.getExchangeableData(), e, new InstrumentDef(e, config));
+        List<File> spillFiles = new ArrayList<>();
+        for(PriceLevel level:accessor.getLevels()) {
+            spillFiles.add(((BaseLeveledBarSeries)accessor.getSeries(level)).getSpillFile().getFile());
+        }
+        assertEquals(2, spillFiles.size());
+
+        TechnicalAnalysisAccessImpl.deleteStaleSpillFiles();
+        assertTrue(!staleFile.exists());
+        assertTrue(!staleDir.exists());
+        assertTrue(otherFile.delete());
+        //当前进程的spill文件保留
+        for(File file:spillFiles) {
+            assertTrue(file.exists());
+            assertEquals(spillDir(), file.getParentFile());
+        }
+        accessor.closeSpillFiles();
+        for(File file:spillFiles) {
+            assertTrue(!file.exists());
+        }
+    }
+
+    /**
+     * 全市场模拟: 300个品种MIN1, 每个保留240个KBar, 连续10个交易日.
+     * 第一个交易日结束后内存中的KBar已经接近保留数量, 之后内存占用不再随交易日增长.
+     */
+    @Test
+    public void testMemoryCeiling() throws Exception {
+        final int seriesCount = 300, retention = 240, days = 10;
+        Exchangeable e = Exchangeable.fromString("AP010");
+        MarketData template = loadTicks(e, LocalDate.of(2020, 8, 7)).get(100);
+
+        long baseMemory = usedMemory();
+        List<BaseLeveledBarSeries> seriesList = new ArrayList<>();
+        for(int i=0;i<seriesCount;i++) {
+            BaseLeveledBarSeries series = new BaseLeveledBarSeries(e, "AP010-min1-"+i, PriceLevel.MIN1, LongNum::valueOf);
+            series.setRetention(retention, File.createTempFile("AP010-min1-"+i+"-", ".bar", spillDir()));
+            seriesList.add(series);
+        }
+        long firstDayMemory = 0;
+        int totalBars = 0;
+        long t0 = System.currentTimeMillis();
+        LocalDate tradingDay = LocalDate.of(2020, 8, 3);
+        for(int day=0;day<days;day++) {
+            ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
+            LocalDateTime[] beginTimes = BarSeriesLoader.getBarBeginTimes(tradingTimes, new PriceLevel[] {PriceLevel.MIN1})[0];
+            for(int i=0;i<seriesCount;i++) {
+                BaseLeveledBarSeries series = seriesList.get(i);
+                for(int j=0;j<beginTimes.length;j++) {
+                    series.addBar(syntheticBar(template, tradingTimes, j, beginTimes[j], i));
+                }
+            }
+            totalBars += beginTimes.length;
+            if ( day==0 ) {
+                firstDayMemory = usedMemory()-baseMemory;
+            }
+            tradingDay = MarketDayUtil.nextMarketDay(e.exchange(), tradingDay);
+        }
+        long lastDayMemory = usedMemory()-baseMemory;
+        long spillBytes = 0;
+        for(BaseLeveledBarSeries series:seriesList) {
+            assertEquals(totalBars, series.getBarCount());
+            spillBytes += series.getSpillFile().getFile().length();
+        }
+        System.out.println("Series "+seriesCount+", bars per series "+totalBars+", time "+(System.currentTimeMillis()-t0)+" ms"
+                +", first day memory "+(firstDayMemory/1024)+" KB, last day memory "+(lastDayMemory/1024)+" KB, spill files "+(spillBytes/1024)+" KB");
+        //全部保留时内存约为第一个交易日的 days 倍
+        assertTrue(lastDayMemory<firstDayMemory*2);
+        //写入文件的KBar可以读取
+        BaseLeveledBarSeries series = seriesList.get(seriesCount-1);
+        for(int i=0;i<totalBars;i++) {
+            assertEquals(i%(totalBars/days), series.getBar2(i).getIndex());
+            if ( i>0 ) {
+                assertTrue(series.getBar(i-1).getEndTime().isBefore(series.getBar(i).getBeginTime()));
+            }
+        }
+        for(BaseLeveledBarSeries s:seriesList) {
+            s.closeSpillFile();
+        }
+    }
+
+    private static FutureBarImpl syntheticBar(MarketData template, ExchangeableTradingTimes tradingTimes, int index, LocalDateTime beginTime, int seed) {
+        long priceTick = template.instrument.getPriceTick();
+        long price = template.lastPrice+((index*7+seed*13)%101-50)*priceTick;
+        MarketData openTick = template.clone();
+        openTick.updateTime = beginTime;
+        openTick.lastPrice = price;
+        openTick.volume = template.volume+index*20;
+        MarketData closeTick = template.clone();
+        closeTick.updateTime = beginTime.plusSeconds(59);
+        closeTick.lastPrice = price+priceTick;
+        closeTick.volume = openTick.volume+10+index%7;
+        closeTick.turnover = template.turnover+closeTick.volume*price;
+        return FutureBarImpl.fromTicks(index, tradingTimes, beginTime, openTick, closeTick, price+2*priceTick, price-2*priceTick);
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i=0;i<3;i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory()-runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,140 @@
+package trader.service.ta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.tick.PriceLevel;
+import trader.common.util.JsonUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.trade.MarketTimeService;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+
+/**
+ * KBar checkpoint: 进程在checkpoint之后继续处理了一些TICK后退出, 重启时从checkpoint恢复并重放之后的TICK, 结果与没有重启时相同
+ */
+public class TechnicalAnalysisCheckpointTest {
+
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    static final LocalDate TRADING_DAY = LocalDate.of(2020, 8, 7);
+
+    /**
+     * 可以直接设置时间的市场时间
+     */
+    static class TestMarketTimeService implements MarketTimeService {
+        LocalDate tradingDay;
+        LocalDateTime time;
+        ZoneId zoneId;
+
+        @Override
+        public long currentTimeMillis() {
+            return time.atZone(zoneId).toInstant().toEpochMilli();
+        }
+
+        @Override
+        public LocalDateTime getMarketTime() {
+            return time;
+        }
+
+        @Override
+        public LocalDate getTradingDay() {
+            return tradingDay;
+        }
+    }
+
+    @Test
+    public void testKillAndRestart() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimMarketDataService mdService = new SimMarketDataService();
+        mdService.init(beansContainer);
+        beansContainer.addBean(MarketDataService.class, mdService);
+        TestMarketTimeService mtService = new TestMarketTimeService();
+        mtService.tradingDay = TRADING_DAY;
+        mtService.zoneId = e.exchange().getZoneId();
+        beansContainer.addBean(MarketTimeService.class, mtService);
+        ExchangeableData data = TraderHomeUtil.getExchangeableData();
+        Map<String, String> config = new HashMap<>();
+        config.put("strokeThreshold", "1");
+        config.put("lineWidth", "1");
+        config.put("levels", "min1, min3, min5, min15, vol1k, day, voldaily");
+        InstrumentDef instrumentDef = new InstrumentDef(e, config);
+
+        List<MarketData> ticks = new BarSeriesLoader(beansContainer, data).setInstrument(e).loadMarketDataTicks(TRADING_DAY, ExchangeableData.TICK_CTP);
+        assertTrue(ticks.size()>1000);
+        LocalDateTime beginTime = e.exchange().getTradingTimes(e, TRADING_DAY).getMarketOpenTime().minusMinutes(1);
+
+        //没有重启
+        mtService.time = beginTime;
+        TechnicalAnalysisAccessImpl access0 = new TechnicalAnalysisAccessImpl(beansContainer, data, e, instrumentDef);
+        for(MarketData tick:ticks) {
+            access0.onMarketData(tick);
+        }
+        assertNotNull(access0.getVoldailyLevel());
+
+        //处理到 checkpointIndex 时生成checkpoint, 处理到 killIndex 时退出
+        int checkpointIndex = ticks.size()*2/5, killIndex = ticks.size()*3/5;
+        mtService.time = beginTime;
+        TechnicalAnalysisAccessImpl access1 = new TechnicalAnalysisAccessImpl(beansContainer, data, e, instrumentDef);
+        byte[] checkpoint = null;
+        for(int i=0;i<killIndex;i++) {
+            if ( i==checkpointIndex ) {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                access1.saveCheckpoint(new DataOutputStream(os));
+                checkpoint = os.toByteArray();
+            }
+            access1.onMarketData(ticks.get(i));
+        }
+        access1 = null;
+
+        //重启: 从checkpoint恢复, 重放checkpoint之后到当前时间的TICK
+        mtService.time = ticks.get(killIndex-1).updateTime;
+        long t0 = System.currentTimeMillis();
+        TechnicalAnalysisAccessImpl access2 = new TechnicalAnalysisAccessImpl(beansContainer, data, e, instrumentDef, new DataInputStream(new ByteArrayInputStream(checkpoint)));
+        long restoreTime = System.currentTimeMillis()-t0;
+        assertEquals(ticks.get(checkpointIndex-1).updateTimestamp, access2.getCheckpointTimestamp());
+        for(int i=killIndex;i<ticks.size();i++) {
+            access2.onMarketData(ticks.get(i));
+        }
+        //没有checkpoint时加载历史数据
+        t0 = System.currentTimeMillis();
+        new TechnicalAnalysisAccessImpl(beansContainer, data, e, instrumentDef);
+        long loadTime = System.currentTimeMillis()-t0;
+        System.out.println("Checkpoint size "+checkpoint.length+", restore time "+restoreTime+" ms, history load time "+loadTime+" ms");
+
+        assertEquals(access0.getLevels(), access2.getLevels());
+        assertEquals(access0.getVoldailyLevel(), access2.getVoldailyLevel());
+        for(PriceLevel level:access0.getLevels()) {
+            LeveledBarSeries series0 = access0.getSeries(level), series2 = access2.getSeries(level);
+            assertEquals(level.toString(), series0.getBarCount(), series2.getBarCount());
+            assertEquals(level.toString(), JsonUtil.object2json(series0).toString(), JsonUtil.object2json(series2).toString());
+            if ( series0.getBarCount()>0 ) {
+                FutureBar bar0 = series0.getBar2(series0.getEndIndex()), bar2 = series2.getBar2(series2.getEndIndex());
+                assertTrue(level.toString(), MarketData.equals(bar0.getCloseTick(), bar2.getCloseTick()));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+package trader.service.ta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.MarketTimeStage;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.ta.label.LabelDatasetReader;
+import trader.service.ta.label.TripBarrierLabeler;
+import trader.service.ta.label.TripBarrierLabeler.DayLabels;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+import trader.tool.RepositoryLabelDatasetAction;
+import trader.tool.RepositoryLabelDatasetAction.LabelStats;
+
+/**
+ * 三重界限标注: 跨交易日延续的界限与连续计算相同, 并行生成的数据集与单线程相同
+ */
+public class TripBarrierLabelerTest {
+
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    private static BarSeriesLoader createLoader() throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimMarketDataService mdService = new SimMarketDataService();
+        mdService.init(beansContainer);
+        beansContainer.addBean(MarketDataService.class, mdService);
+        return new BarSeriesLoader(beansContainer, TraderHomeUtil.getExchangeableData());
+    }
+
+    @Test
+    public void testCarryOver() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        final int maxTime = 30*60*1000, sampleInterval = 10000, top = 5, bottom = 5;
+        TripBarrierLabeler labeler = new TripBarrierLabeler(top, bottom, maxTime, sampleInterval, "ret:20, std:50");
+        BarSeriesLoader loader = createLoader().setInstrument(e);
+
+        //按交易日计算并延续
+        List<DayLabels> days = new ArrayList<>();
+        List<DayLabels> pendingDays = new ArrayList<>();
+        //连续计算: 开市期间的TICK, 以及从第一个交易日开市以来的交易时间
+        List<MarketData> allTicks = new ArrayList<>();
+        List<Long> allTimes = new ArrayList<>();
+        List<LocalDate> allDays = new ArrayList<>();
+        Map<Long, Integer> tickIndexes = new HashMap<>();
+        long dayOffset = 0;
+        for(LocalDate tradingDay = LocalDate.of(2020, 8, 3);!tradingDay.isAfter(LocalDate.of(2020, 8, 7));tradingDay=tradingDay.plusDays(1)) {
+            List<MarketData> ticks = loader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+            assertTrue(!ticks.isEmpty());
+            DayLabels day = labeler.labelDay(e, tradingDay, ticks);
+            labeler.carryOver(pendingDays, day);
+            pendingDays.add(day);
+            days.add(day);
+            for(MarketData tick:ticks) {
+                if ( tick.mktStage==MarketTimeStage.MarketOpen && tick.lastPrice>0 ) {
+                    tickIndexes.put(tick.updateTimestamp, allTicks.size());
+                    allTicks.add(tick);
+                    allTimes.add(dayOffset+tick.mktTime);
+                    allDays.add(tradingDay);
+                }
+            }
+            dayOffset += day.tradingMillis;
+        }
+
+        int carried = 0, samples = 0;
+        for(DayLabels day:days) {
+            for(int s=0;s<day.size;s++) {
+                samples++;
+                int i = tickIndexes.get(day.beginTimestamps[s]);
+                MarketData beginTick = allTicks.get(i);
+                long topPrice = beginTick.lastPrice+top*e.getPriceTick(), bottomPrice = beginTick.lastPrice-bottom*e.getPriceTick();
+                byte label = TripBarrierLabeler.LABEL_OPEN;
+                MarketData endTick = null;
+                int endIndex = -1;
+                for(int j=i+1;j<allTicks.size();j++) {
+                    MarketData tick = allTicks.get(j);
+                    if ( tick.lastPrice>=topPrice ) {
+                        label = TripBarrierLabeler.LABEL_TOP;
+                    } else if ( tick.lastPrice<=bottomPrice ) {
+                        label = TripBarrierLabeler.LABEL_BOTTOM;
+                    } else if ( allTimes.get(j)-allTimes.get(i)>=maxTime ) {
+                        label = TripBarrierLabeler.LABEL_END;
+                    }
+                    if ( label!=TripBarrierLabeler.LABEL_OPEN ) {
+                        endTick = tick;
+                        endIndex = j;
+                        break;
+                    }
+                }
+                String msg = day.tradingDay+" sample "+s;
+                assertEquals(msg, label, day.labels[s]);
+                if ( endTick!=null ) {
+                    assertEquals(msg, endTick.updateTimestamp, day.endTimestamps[s]);
+                    assertEquals(msg, endTick.lastPrice, day.endPrices[s]);
+                    if ( !allDays.get(endIndex).equals(day.tradingDay) ) {
+                        carried++;
+                    }
+                }
+            }
+        }
+        System.out.println("Samples "+samples+", resolved in next trading day "+carried);
+        assertTrue(carried>0);
+    }
+
+    @Test
+    public void testDeterminismAndThroughput() throws Exception {
+        ExchangeableData data = TraderHomeUtil.getExchangeableData();
+        List<Exchangeable> instruments = Arrays.asList(Exchangeable.fromString("AP010"), Exchangeable.fromString("AP101"));
+        TripBarrierLabeler labeler = new TripBarrierLabeler(10, 10, 5*60*1000, 0, "ret:20, ma:60, std:100, vol:100, oi:100, spread, imbalance, time");
+
+        byte[][] results = new byte[2][];
+        int[] parallels = {1, 4};
+        for(int i=0;i<parallels.length;i++) {
+            RepositoryLabelDatasetAction action = new RepositoryLabelDatasetAction();
+            action.setDates(LocalDate.of(2020, 8, 3), LocalDate.of(2020, 8, 14));
+            action.setParallel(parallels[i]);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            LabelStats stats = action.label(data, instruments, labeler, os);
+            results[i] = os.toByteArray();
+            System.out.println("Parallel "+parallels[i]+": days "+stats.days+", ticks "+stats.ticks+", rows "+stats.rows+", unresolved "+stats.unresolved
+                    +", time "+stats.time+" ms, "+(stats.ticks*1000/Math.max(1, stats.time))+" ticks/s, file "+results[i].length+" bytes");
+            assertTrue(stats.days>=10);
+            assertTrue(stats.rows>stats.ticks/2);
+        }
+        assertArrayEquals(results[0], results[1]);
+
+        try(LabelDatasetReader reader = new LabelDatasetReader(new ByteArrayInputStream(results[0]));){
+            assertEquals(labeler.getFeatureNames(), reader.getFeatureNames());
+            DayLabels day = null, lastDay = null;
+            while( (day=reader.read())!=null ) {
+                assertTrue(instruments.contains(day.instrument));
+                if ( lastDay!=null && lastDay.instrument.equals(day.instrument) ) {
+                    assertTrue(lastDay.tradingDay.isBefore(day.tradingDay));
+                }
+                for(int i=0;i<day.size;i++) {
+                    assertTrue(day.labels[i]>=TripBarrierLabeler.LABEL_BOTTOM && day.labels[i]<=TripBarrierLabeler.LABEL_TOP);
+                    assertTrue(day.endTimestamps[i]>day.beginTimestamps[i]);
+                }
+                lastDay = day;
+            }
+            assertNotNull(lastDay);
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+package trader.service.ta.bar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.exchangeable.MarketDayUtil;
+import trader.common.tick.PriceLevel;
+import trader.common.util.DateUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.ta.BarSeriesLoader;
+import trader.service.ta.FutureBarImpl;
+import trader.service.ta.LeveledBarSeries;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+
+/**
+ * 一次处理TICK创建多个级别KBar, 结果与每个级别单独使用FutureBarBuilder相同
+ */
+public class RollupBarBuilderTest {
+
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    static final PriceLevel[] LEVELS = {PriceLevel.MIN1, PriceLevel.MIN3, PriceLevel.MIN5, PriceLevel.MIN15, PriceLevel.MIN30, PriceLevel.MIN60};
+
+    private static BarSeriesLoader createLoader() throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        final SimMarketDataService mdService = new SimMarketDataService();
+        mdService.init(beansContainer);
+        beansContainer.addBean(MarketDataService.class, mdService);
+        ExchangeableData data = TraderHomeUtil.getExchangeableData();
+        return new BarSeriesLoader(beansContainer, data);
+    }
+
+    static void assertSameBar(String message, FutureBarImpl bar1, FutureBarImpl bar2) {
+        assertEquals(message, bar1.getIndex(), bar2.getIndex());
+        assertEquals(message, bar1.getBeginTime(), bar2.getBeginTime());
+        assertEquals(message, bar1.getEndTime(), bar2.getEndTime());
+        assertEquals(message, bar1.getOpenPrice(), bar2.getOpenPrice());
+        assertEquals(message, bar1.getHighPrice(), bar2.getHighPrice());
+        assertEquals(message, bar1.getLowPrice(), bar2.getLowPrice());
+        assertEquals(message, bar1.getClosePrice(), bar2.getClosePrice());
+        assertEquals(message, bar1.getVolume(), bar2.getVolume());
+        assertEquals(message, bar1.getAmount(), bar2.getAmount());
+        assertEquals(message, bar1.getBeginVolume(), bar2.getBeginVolume());
+        assertEquals(message, bar1.getBeginAmount(), bar2.getBeginAmount());
+        assertEquals(message, bar1.getOpenInt(), bar2.getOpenInt());
+        assertEquals(message, bar1.getAvgPrice(), bar2.getAvgPrice());
+        assertEquals(message, bar1.getMktAvgPrice(), bar2.getMktAvgPrice());
+        assertEquals(message, bar1.getTimePeriod(), bar2.getTimePeriod());
+    }
+
+    /**
+     * 一次计算的全部KBar开始时间与 getBarTimes() 相同, 包括夜盘和跨越休市时间的KBar
+     */
+    @Test
+    public void testBarTimes() {
+        LocalDate tradingDay = LocalDate.of(2020, 6, 1);
+        for(String instrument:new String[] {"ru2009", "au2012", "AP010", "SR009", "m2009", "i2009", "IF2006", "T2009", "sc2009"}) {
+            Exchangeable e = Exchangeable.fromString(instrument);
+            ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
+            LocalDateTime[][] beginTimes = BarSeriesLoader.getBarBeginTimes(tradingTimes, LEVELS);
+            for(int i=0;i<LEVELS.length;i++) {
+                int barCount = tradingTimes.getTotalTradingMillis()/(60*1000*LEVELS[i].value());
+                assertEquals(barCount, beginTimes[i].length);
+                for(int j=0;j<barCount;j++) {
+                    LocalDateTime[] barTimes = BarSeriesLoader.getBarTimes(tradingTimes, LEVELS[i], j, null);
+                    assertEquals(e+" "+LEVELS[i]+" #"+j, barTimes[0], beginTimes[i][j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐个KBar比较每个级别的结果
+     */
+    @Test
+    public void testSameAsFutureBarBuilder() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        BarSeriesLoader loader = createLoader().setInstrument(e);
+        LocalDate tradingDay = DateUtil.str2localdate("20200803");
+        LocalDate endDate = DateUtil.str2localdate("20200815");
+        int totalDays = 0;
+        while(tradingDay.isBefore(endDate)) {
+            List<MarketData> ticks = loader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+            if ( !ticks.isEmpty() ) {
+                ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
+                RollupBarBuilder rollupBuilder = new RollupBarBuilder(tradingTimes, Arrays.asList(LEVELS));
+                FutureBarBuilder[] barBuilders = new FutureBarBuilder[LEVELS.length];
+                for(int i=0;i<LEVELS.length;i++) {
+                    barBuilders[i] = new FutureBarBuilder(tradingTimes, LEVELS[i]);
+                }
+                for(MarketData tick:ticks) {
+                    rollupBuilder.update(tick);
+                    for(int i=0;i<LEVELS.length;i++) {
+                        assertEquals(barBuilders[i].update(tick), rollupBuilder.hasNewBar(LEVELS[i]));
+                    }
+                }
+                for(int i=0;i<LEVELS.length;i++) {
+                    LeveledBarSeries series1 = barBuilders[i].getTimeSeries(LEVELS[i]);
+                    LeveledBarSeries series2 = rollupBuilder.getTimeSeries(LEVELS[i]);
+                    assertTrue(series1.getBarCount()>0);
+                    assertEquals(series1.getBarCount(), series2.getBarCount());
+                    for(int j=0;j<series1.getBarCount();j++) {
+                        assertSameBar(e+" "+tradingDay+" "+LEVELS[i]+" #"+j, (FutureBarImpl)series1.getBar(j), (FutureBarImpl)series2.getBar(j));
+                    }
+                }
+                totalDays++;
+            }
+            tradingDay = MarketDayUtil.nextMarketDay(e.exchange(), tradingDay);
+        }
+        assertTrue(totalDays>0);
+    }
+
+    /**
+     * 切换交易日后继续计算: 每个交易日新增的KBar与当天新建的builder相同, 之前的KBar保留
+     */
+    @Test
+    public void testRollTradingDay() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        BarSeriesLoader loader = createLoader().setInstrument(e);
+        LocalDate tradingDay = DateUtil.str2localdate("20200803");
+        LocalDate endDate = DateUtil.str2localdate("20200815");
+        RollupBarBuilder rolledRollupBuilder = null;
+        FutureBarBuilder[] rolledBarBuilders = new FutureBarBuilder[LEVELS.length];
+        int totalDays = 0;
+        int[] lastBarCounts = new int[LEVELS.length];
+        while(tradingDay.isBefore(endDate)) {
+            List<MarketData> ticks = loader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+            if ( !ticks.isEmpty() ) {
+                ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
+                RollupBarBuilder rollupBuilder = new RollupBarBuilder(tradingTimes, Arrays.asList(LEVELS));
+                if ( rolledRollupBuilder==null ) {
+                    rolledRollupBuilder = new RollupBarBuilder(tradingTimes, Arrays.asList(LEVELS));
+                    for(int i=0;i<LEVELS.length;i++) {
+                        rolledBarBuilders[i] = new FutureBarBuilder(tradingTimes, LEVELS[i]);
+                    }
+                } else {
+                    rolledRollupBuilder.rollTradingDay(tradingTimes);
+                    for(int i=0;i<LEVELS.length;i++) {
+                        rolledBarBuilders[i].rollTradingDay(tradingTimes);
+                    }
+                }
+                for(MarketData tick:ticks) {
+                    rollupBuilder.update(tick);
+                    rolledRollupBuilder.update(tick);
+                    for(int i=0;i<LEVELS.length;i++) {
+                        assertEquals(rollupBuilder.hasNewBar(LEVELS[i]), rolledRollupBuilder.hasNewBar(LEVELS[i]));
+                        assertEquals(rollupBuilder.hasNewBar(LEVELS[i]), rolledBarBuilders[i].update(tick));
+                    }
+                }
+                for(int i=0;i<LEVELS.length;i++) {
+                    LeveledBarSeries series = rollupBuilder.getTimeSeries(LEVELS[i]);
+                    LeveledBarSeries rolledSeries = rolledRollupBuilder.getTimeSeries(LEVELS[i]);
+                    LeveledBarSeries rolledSeries2 = rolledBarBuilders[i].getTimeSeries(LEVELS[i]);
+                    assertEquals(lastBarCounts[i]+series.getBarCount(), rolledSeries.getBarCount());
+                    assertEquals(rolledSeries.getBarCount(), rolledSeries2.getBarCount());
+                    for(int j=0;j<series.getBarCount();j++) {
+                        String message = e+" "+tradingDay+" "+LEVELS[i]+" #"+j;
+                        assertSameBar(message, (FutureBarImpl)series.getBar(j), (FutureBarImpl)rolledSeries.getBar(lastBarCounts[i]+j));
+                        assertSameBar(message, (FutureBarImpl)series.getBar(j), (FutureBarImpl)rolledSeries2.getBar(lastBarCounts[i]+j));
+                    }
+                    lastBarCounts[i] = rolledSeries.getBarCount();
+                }
+                totalDays++;
+            }
+            tradingDay = MarketDayUtil.nextMarketDay(e.exchange(), tradingDay);
+        }
+        assertTrue(totalDays>1);
+    }
+
+    /**
+     * 一次加载多个级别与先加载MIN1再分别加载每个级别相同
+     */
+    @Test
+    public void testLoadLevels() throws Exception {
+        Exchangeable e = Exchangeable.fromString("ru1901");
+        LocalDate beginDate = DateUtil.str2localdate("20181126");
+        LocalDate endDate = DateUtil.str2localdate("20181130");
+
+        BarSeriesLoader loader = createLoader();
+        loader.setInstrument(e).setStartTradingDay(beginDate).setEndTradingDay(endDate);
+        List<LeveledBarSeries> seriesList = new ArrayList<>();
+        for(PriceLevel level:LEVELS) {
+            seriesList.add(loader.setLevel(level).load());
+        }
+
+        BarSeriesLoader loader2 = createLoader();
+        loader2.setInstrument(e).setStartTradingDay(beginDate).setEndTradingDay(endDate);
+        Map<PriceLevel, LeveledBarSeries> seriesByLevel = loader2.loadLevels(Arrays.asList(LEVELS));
+        assertEquals(loader.getLoadedDates(), loader2.getLoadedDates());
+        for(int i=0;i<LEVELS.length;i++) {
+            LeveledBarSeries series1 = seriesList.get(i), series2 = seriesByLevel.get(LEVELS[i]);
+            assertEquals(LEVELS[i], series2.getLevel());
+            assertTrue(series1.getBarCount()>0);
+            assertEquals(series1.getBarCount(), series2.getBarCount());
+            for(int j=0;j<series1.getBarCount();j++) {
+                assertSameBar(LEVELS[i]+" #"+j, (FutureBarImpl)series1.getBar(j), (FutureBarImpl)series2.getBar(j));
+            }
+        }
+    }
+
+    /**
+     * 每个TICK的平均处理耗时
+     */
+    @Test
+    public void testPerTickBenchmark() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        BarSeriesLoader loader = createLoader().setInstrument(e);
+        LocalDate tradingDay = DateUtil.str2localdate("20200807");
+        List<MarketData> ticks = loader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+        assertTrue(!ticks.isEmpty());
+        ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
+
+        long[] nanos = new long[2];
+        for(int round=0;round<5;round++) {
+            long t0 = System.nanoTime();
+            FutureBarBuilder[] barBuilders = new FutureBarBuilder[LEVELS.length];
+            for(int i=0;i<LEVELS.length;i++) {
+                barBuilders[i] = new FutureBarBuilder(tradingTimes, LEVELS[i]);
+            }
+            for(MarketData tick:ticks) {
+                for(int i=0;i<LEVELS.length;i++) {
+                    barBuilders[i].update(tick);
+                }
+            }
+            long t1 = System.nanoTime();
+            RollupBarBuilder rollupBuilder = new RollupBarBuilder(tradingTimes, Arrays.asList(LEVELS));
+            for(MarketData tick:ticks) {
+                rollupBuilder.update(tick);
+            }
+            long t2 = System.nanoTime();
+            //第一轮预热
+            if ( round>0 ) {
+                nanos[0] += t1-t0;
+                nanos[1] += t2-t1;
+            }
+        }
+        long tickCount = ticks.size()*4L;
+        System.out.println("Ticks "+ticks.size()+" levels "+LEVELS.length+": FutureBarBuilder "+(nanos[0]/tickCount)+" ns/tick, RollupBarBuilder "+(nanos[1]/tickCount)+" ns/tick");
+    }
+
+}
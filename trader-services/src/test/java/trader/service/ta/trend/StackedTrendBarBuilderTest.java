@@ -0,0 +1,252 @@
+package trader.service.ta.trend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.exchangeable.ExchangeableData;
+import trader.common.exchangeable.ExchangeableTradingTimes;
+import trader.common.exchangeable.MarketDayUtil;
+import trader.common.tick.PriceLevel;
+import trader.common.util.DateUtil;
+import trader.common.util.IOUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.log.LogServiceImpl;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.ta.BarSeriesLoader;
+import trader.service.ta.LeveledBarSeries;
+import trader.service.ta.LongNum;
+import trader.service.ta.bar.FutureBarBuilder;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+
+/**
+ * 笔划-线段增量计算: 结果与记录的历史结果相同, 每个TICK的处理耗时不随笔划数量增长
+ */
+@SuppressWarnings("rawtypes")
+public class StackedTrendBarBuilderTest {
+
+    static {
+        LogServiceImpl.setLogLevel("trader", "INFO");
+        TraderHomeHelper.init(null);
+    }
+
+    static final PriceLevel[] LEVELS = {PriceLevel.STROKE, PriceLevel.SECTION};
+
+    private static BarSeriesLoader createLoader() throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        final SimMarketDataService mdService = new SimMarketDataService();
+        mdService.init(beansContainer);
+        beansContainer.addBean(MarketDataService.class, mdService);
+        ExchangeableData data = TraderHomeUtil.getExchangeableData();
+        return new BarSeriesLoader(beansContainer, data);
+    }
+
+    static String bar2str(WaveBar bar) {
+        return bar.getIndex()+" "+bar.getDirection()
+            +" "+DateUtil.date2str(bar.getBeginTime().toLocalDateTime())+" "+DateUtil.date2str(bar.getEndTime().toLocalDateTime())
+            +" O "+bar.getOpenPrice()+" C "+bar.getClosePrice()+" H "+bar.getHighPrice()+" L "+bar.getLowPrice()
+            +" V "+bar.getVolume()+" A "+bar.getAmount()+" AP "+bar.getAvgPrice()+" OI "+bar.getOpenInt()+" N "+bar.getBarCount();
+    }
+
+    /**
+     * 逐个TICK累计笔划/线段的状态, 加上收市后全部笔划和线段
+     */
+    static void digest(String name, StackedTrendBarBuilder builder, List<MarketData> ticks, List<String> lines) {
+        LeveledBarSeries strokeSeries = builder.getTimeSeries(PriceLevel.STROKE);
+        LeveledBarSeries sectionSeries = builder.getTimeSeries(PriceLevel.SECTION);
+        long hash = 0;
+        for(MarketData tick:ticks) {
+            builder.update(tick);
+            StringBuilder state = new StringBuilder();
+            state.append(strokeSeries.getBarCount()).append(" ").append(sectionSeries.getBarCount())
+                .append(" ").append(builder.hasNewStroke()).append(" ").append(builder.hasNewSection());
+            if ( !strokeSeries.isEmpty() ) {
+                state.append(" ").append(bar2str((WaveBar)strokeSeries.getLastBar()));
+            }
+            if ( !sectionSeries.isEmpty() ) {
+                state.append(" ").append(bar2str((WaveBar)sectionSeries.getLastBar()));
+            }
+            hash = hash*31+state.toString().hashCode();
+        }
+        lines.add(name+" strokes "+strokeSeries.getBarCount()+" sections "+sectionSeries.getBarCount()+" hash "+hash);
+        for(int i=0;i<sectionSeries.getBarCount();i++) {
+            lines.add("section "+bar2str((WaveBar)sectionSeries.getBar(i)));
+        }
+    }
+
+    /**
+     * 每个交易日分别从TICK和MIN1创建笔划和线段
+     */
+    static List<String> digestHistory() throws Exception {
+        List<String> result = new ArrayList<>();
+        Exchangeable e = Exchangeable.fromString("AP010");
+        BarSeriesLoader loader = createLoader().setInstrument(e);
+        LocalDate tradingDay = DateUtil.str2localdate("20200803");
+        LocalDate endDate = DateUtil.str2localdate("20200815");
+        while(tradingDay.isBefore(endDate)) {
+            List<MarketData> ticks = loader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+            if ( !ticks.isEmpty() ) {
+                ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
+                WaveBarOption option = new WaveBarOption(LongNum.fromRawValue(e.getPriceTick()*4));
+                digest(DateUtil.date2str(tradingDay)+" tick", new StackedTrendBarBuilder(option, tradingTimes), ticks, result);
+
+                WaveBarOption option2 = new WaveBarOption(LongNum.fromRawValue(e.getPriceTick()*2));
+                FutureBarBuilder barBuilder = new FutureBarBuilder(tradingTimes, PriceLevel.MIN1);
+                digest(DateUtil.date2str(tradingDay)+" min1", new StackedTrendBar2Builder(option2, tradingTimes, barBuilder), ticks, result);
+            }
+            tradingDay = MarketDayUtil.nextMarketDay(e.exchange(), tradingDay);
+        }
+        return result;
+    }
+
+    /**
+     * 创建一个持续向上的线段: 每次上涨3倍阈值, 回落1.5倍阈值
+     */
+    static List<MarketData> zigzagTicks(MarketData tick0, long threshold, int tickCount) {
+        List<MarketData> result = new ArrayList<>(tickCount);
+        long priceTick = tick0.instrument.getPriceTick();
+        long price = tick0.lastPrice, volume = tick0.volume, turnover = tick0.turnover;
+        LocalDateTime time = tick0.updateTime;
+        long upTicks = threshold*3/priceTick, downTicks = threshold*3/2/priceTick;
+        for(int i=0;i<tickCount;i++) {
+            long step = i%(upTicks+downTicks);
+            price += step<upTicks?priceTick:-priceTick;
+            volume += 1;
+            turnover += price*tick0.instrument.getVolumeMutiplier();
+            time = time.plusNanos(500*1000000);
+            MarketData tick = tick0.clone();
+            tick.lastPrice = price;
+            tick.volume = volume;
+            tick.turnover = turnover;
+            tick.averagePrice = price;
+            tick.updateTime = time;
+            tick.updateTimestamp = DateUtil.localdatetime2long(tick.instrument.exchange().getZoneId(), time);
+            result.add(tick);
+        }
+        return result;
+    }
+
+    /**
+     * 逐个TICK的耗时, 返回 [平均, P99, 最大] 纳秒
+     */
+    static long[] measureLatency(StackedTrendBarBuilder builder, List<MarketData> ticks, int from, int to) {
+        long[] nanos = new long[to-from];
+        long total = 0;
+        for(int i=0;i<ticks.size();i++) {
+            long t0 = System.nanoTime();
+            builder.update(ticks.get(i));
+            long t1 = System.nanoTime();
+            if ( i>=from && i<to ) {
+                nanos[i-from] = t1-t0;
+                total += t1-t0;
+            }
+        }
+        Arrays.sort(nanos);
+        return new long[] {total/nanos.length, nanos[nanos.length*99/100], nanos[nanos.length-1]};
+    }
+
+    @Test
+    public void testSameAsRecordedHistory() throws Exception {
+        List<String> expected = new ArrayList<>();
+        try(BufferedReader reader = IOUtil.createBufferedReader(getClass().getResourceAsStream("stackedTrendBars-AP010.txt"));){
+            String line = null;
+            while( (line=reader.readLine())!=null ) {
+                expected.add(line);
+            }
+        }
+        List<String> lines = digestHistory();
+        assertTrue(lines.size()>20);
+        for(int i=0;i<Math.min(expected.size(), lines.size());i++) {
+            assertEquals("Line "+(i+1), expected.get(i), lines.get(i));
+        }
+        assertEquals(expected.size(), lines.size());
+    }
+
+    /**
+     * 每个TICK的事件: 新的笔划/线段, 或者只有最后一个笔划/线段改变
+     */
+    @Test
+    public void testBarEvents() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        BarSeriesLoader loader = createLoader().setInstrument(e);
+        LocalDate tradingDay = DateUtil.str2localdate("20200807");
+        List<MarketData> ticks = loader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+        assertTrue(!ticks.isEmpty());
+        ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
+        StackedTrendBarBuilder builder = new StackedTrendBarBuilder(new WaveBarOption(LongNum.fromRawValue(e.getPriceTick()*4)), tradingTimes);
+        int[] newBars = new int[LEVELS.length], changedBars = new int[LEVELS.length];
+        for(MarketData tick:ticks) {
+            int[] barCounts = new int[LEVELS.length];
+            String[] lastBars = new String[LEVELS.length];
+            for(int i=0;i<LEVELS.length;i++) {
+                LeveledBarSeries series = builder.getTimeSeries(LEVELS[i]);
+                barCounts[i] = series.getBarCount();
+                lastBars[i] = series.isEmpty()?null:bar2str((WaveBar)series.getLastBar());
+            }
+            builder.update(tick);
+            for(int i=0;i<LEVELS.length;i++) {
+                LeveledBarSeries series = builder.getTimeSeries(LEVELS[i]);
+                String lastBar = series.isEmpty()?null:bar2str((WaveBar)series.getLastBar());
+                if ( builder.hasNewBar(LEVELS[i]) ) {
+                    newBars[i]++;
+                    assertTrue(!builder.hasLastBarChanged(LEVELS[i]));
+                } else if ( builder.hasLastBarChanged(LEVELS[i]) ) {
+                    changedBars[i]++;
+                } else {
+                    assertEquals(LEVELS[i]+" "+tick.updateTime, barCounts[i], series.getBarCount());
+                    assertEquals(LEVELS[i]+" "+tick.updateTime, lastBars[i], lastBar);
+                }
+            }
+        }
+        for(int i=0;i<LEVELS.length;i++) {
+            assertTrue(newBars[i]>0);
+            assertTrue(changedBars[i]>newBars[i]);
+        }
+    }
+
+    /**
+     * 单个线段包含上千个笔划时, 每个TICK的耗时
+     */
+    @Test
+    public void testPerTickLatency() throws Exception {
+        Exchangeable e = Exchangeable.fromString("AP010");
+        BarSeriesLoader loader = createLoader().setInstrument(e);
+        LocalDate tradingDay = DateUtil.str2localdate("20200807");
+        List<MarketData> ticks = loader.loadMarketDataTicks(tradingDay, ExchangeableData.TICK_CTP);
+        assertTrue(!ticks.isEmpty());
+        ExchangeableTradingTimes tradingTimes = e.exchange().getTradingTimes(e, tradingDay);
+        long threshold = e.getPriceTick()*4;
+
+        //预热
+        for(int round=0;round<3;round++) {
+            measureLatency(new StackedTrendBarBuilder(new WaveBarOption(LongNum.fromRawValue(threshold)), tradingTimes), ticks, 0, ticks.size());
+        }
+        long[] history = measureLatency(new StackedTrendBarBuilder(new WaveBarOption(LongNum.fromRawValue(threshold)), tradingTimes), ticks, 0, ticks.size());
+
+        int tickCount = 40000;
+        List<MarketData> zigzag = zigzagTicks(ticks.get(0), threshold, tickCount);
+        StackedTrendBarBuilder builder = new StackedTrendBarBuilder(new WaveBarOption(LongNum.fromRawValue(threshold)), tradingTimes);
+        long[] head = measureLatency(builder, zigzag.subList(0, 4000), 1000, 4000);
+        long[] tail = measureLatency(builder, zigzag.subList(4000, tickCount), tickCount-7000, tickCount-4000);
+        LeveledBarSeries sectionSeries = builder.getTimeSeries(PriceLevel.SECTION);
+        assertEquals(1, sectionSeries.getBarCount());
+        assertTrue(((WaveBar)sectionSeries.getLastBar()).getBarCount()>4000);
+
+        System.out.println("History "+ticks.size()+" ticks: avg "+history[0]+" ns, p99 "+history[1]+" ns, max "+history[2]+" ns");
+        System.out.println("Zigzag section "+((WaveBar)sectionSeries.getLastBar()).getBarCount()+" strokes, first 3000 ticks: avg "+head[0]+" ns, p99 "+head[1]+" ns, max "+head[2]
+            +" ns, last 3000 ticks: avg "+tail[0]+" ns, p99 "+tail[1]+" ns, max "+tail[2]+" ns");
+    }
+
+}
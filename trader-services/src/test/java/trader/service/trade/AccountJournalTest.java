@@ -0,0 +1,302 @@
+package trader.service.trade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Test;
+
+import trader.common.beans.BeansContainer;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.PriceUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.ServiceConstants.AccountState;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+import trader.simulator.SimMarketTimeService;
+import trader.simulator.SimScheduledExecutorService;
+import trader.simulator.trade.SimTxnSession;
+
+/**
+ * 账户事件日志恢复测试: 在每个记录边界以及记录中间截断日志模拟进程崩溃, 恢复后的账户状态与崩溃前一致
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class AccountJournalTest implements TradeConstants {
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    private static final String ACCOUNT_ID = "journal-account1";
+
+    Exchangeable ap010 = Exchangeable.fromString("AP010");
+    LocalDate tradingDay = LocalDate.of(2020, 8, 3);
+    LocalDateTime beginTime = LocalDateTime.of(2020, 8, 3, 8, 59);
+    LocalDateTime endTime = LocalDateTime.of(2020, 8, 3, 10, 15);
+
+    SimpleBeansContainer beansContainer;
+    SimMarketTimeService mtService;
+    SimMarketDataService mdService;
+    TradeServiceTest tradeService;
+
+    private void initServices() throws Exception {
+        beansContainer = new SimpleBeansContainer();
+        mtService = new SimMarketTimeService();
+        mdService = new SimMarketDataService() {
+            @Override
+            public void init(BeansContainer beansContainer) throws Exception {
+                super.init(beansContainer);
+                //只加载测试合约的行情数据
+                subscriptions.retainAll(Arrays.asList(ap010));
+            }
+        };
+        SimScheduledExecutorService scheduledExecutorService = new SimScheduledExecutorService();
+
+        beansContainer.addBean(MarketDataService.class, mdService);
+        beansContainer.addBean(MarketTimeService.class, mtService);
+        beansContainer.addBean(ScheduledExecutorService.class, scheduledExecutorService);
+        scheduledExecutorService.init(beansContainer);
+
+        mtService.setTimeRanges(tradingDay, new LocalDateTime[]{beginTime, endTime} );
+        mdService.addSubscriptions(Arrays.asList(new Exchangeable[] {ap010}));
+        mdService.init(beansContainer);
+        tradeService = new TradeServiceTest(beansContainer);
+
+        File workDir = new File(TraderHomeUtil.getDirectory(TraderHomeUtil.DIR_WORK), "20200803");
+        new File(workDir, ACCOUNT_ID+".journal").delete();
+        new File(workDir, ACCOUNT_ID+".snapshot").delete();
+    }
+
+    private AccountImpl createAccount(int snapshotInterval, boolean listenMarket) {
+        Map config = new HashMap<>();
+        String text =
+                "[connectionProps]\n"+
+                "initMoney=500000.00\n" +
+                "commissionsFile="+TraderHomeUtil.getTraderHome()+"/etc/sim-account1.commissions.json\n"+
+                "[journal]\n"+
+                "enabled=true\n"+
+                "reconcile=false\n"+
+                "snapshotInterval="+snapshotInterval+"\n";
+        config.put("id", ACCOUNT_ID);
+        config.put("provider", TxnSession.PROVIDER_SIM);
+        config.put("text", text);
+        AccountImpl account = new AccountImpl(tradeService, beansContainer, config);
+        SimTxnSession txnSession = (SimTxnSession)account.getSession();
+        if ( listenMarket ) {
+            mdService.addListener(account);
+            mtService.addListener(txnSession);
+        }
+        //连接后在当前线程初始化
+        txnSession.connect(account.getConnectionProps());
+        assertEquals(AccountState.Ready, account.getState());
+        return account;
+    }
+
+    /**
+     * 报单, 成交, 改单, 撤单, 平仓
+     *
+     * @return 每个时间片之后的日志长度到账户状态的映射
+     */
+    private TreeMap<Long, String> runScenario(AccountImpl account) throws Exception {
+        TreeMap<Long, String> signatures = new TreeMap<>();
+        File journalFile = account.getJournal().getJournalFile();
+        signatures.put(journalFile.length(), signature(account));
+        Order restingOrder = null;
+        int step = 0;
+        while(mtService.nextTimePiece()) {
+            step++;
+            MarketData md = mdService.getLastData(ap010);
+            if ( md!=null && step%600==0 ) {
+                long tick = PriceUtil.price2long(1);
+                switch((step/600)%5) {
+                case 0:
+                    //平仓报单未成交时不开仓, 避免自成交检查
+                    Position pos0 = account.getPosition(ap010);
+                    if ( pos0!=null && !pos0.getActiveOrders().isEmpty() ) {
+                        break;
+                    }
+                    account.createOrder(new OrderBuilder().setExchagneable(ap010).setDirection(OrderDirection.Buy)
+                            .setOffsetFlag(OrderOffsetFlag.OPEN).setLimitPrice(md.lastPrice+5*tick).setVolume(2));
+                    break;
+                case 1:
+                    restingOrder = account.createOrder(new OrderBuilder().setExchagneable(ap010).setDirection(OrderDirection.Sell)
+                            .setOffsetFlag(OrderOffsetFlag.OPEN).setLimitPrice(md.lastPrice+200*tick).setVolume(1));
+                    break;
+                case 2:
+                    if ( restingOrder!=null ) {
+                        account.modifyOrder(restingOrder.getId(), new OrderBuilder().setLimitPrice(md.lastPrice+300*tick));
+                    }
+                    break;
+                case 3:
+                    if ( restingOrder!=null ) {
+                        account.cancelOrder(restingOrder.getId());
+                        restingOrder = null;
+                    }
+                    break;
+                case 4:
+                    Position pos = account.getPosition(ap010);
+                    if ( pos!=null && pos.getVolume(PosVolume.LongPosition)>0 ) {
+                        account.createOrder(new OrderBuilder().setExchagneable(ap010).setDirection(OrderDirection.Sell)
+                                .setOffsetFlag(OrderOffsetFlag.CLOSE).setLimitPrice(md.lastPrice-5*tick).setVolume(1));
+                    }
+                    break;
+                }
+            }
+            signatures.put(journalFile.length(), signature(account));
+        }
+        return signatures;
+    }
+
+    /**
+     * 与行情价格无关的账户状态
+     */
+    private static String signature(Account account) {
+        StringBuilder result = new StringBuilder();
+        for(AccMoney m:new AccMoney[] {AccMoney.FrozenMargin, AccMoney.FrozenCommission, AccMoney.Commission, AccMoney.CloseProfit}) {
+            result.append(m).append("=").append(account.getMoney(m)).append(" ");
+        }
+        result.append("\n");
+        TreeMap<String, Order> orders = new TreeMap<>();
+        for(Order order:account.getOrders()) {
+            orders.put(order.getRef(), order);
+        }
+        for(Order order:orders.values()) {
+            result.append(order.getRef()).append(" ").append(order.getId())
+                .append(" ").append(order.getStateTuple().getState()).append(" ").append(order.getStateTuple().getSubmitState())
+                .append(" ").append(order.getLimitPrice())
+                .append(" ").append(order.getVolume(OdrVolume.TradeVolume))
+                .append(" ").append(order.getMoney(OdrMoney.LocalFrozenMargin)).append(" ").append(order.getMoney(OdrMoney.LocalUnfrozenMargin))
+                .append(" ").append(order.getTransactions().size())
+                .append("\n");
+        }
+        for(Position pos:account.getPositions()) {
+            result.append(pos.getInstrument());
+            for(PosVolume v:PosVolume.values()) {
+                result.append(" ").append(pos.getVolume(v));
+            }
+            result.append(" ").append(pos.getActiveOrders().size()).append("\n");
+        }
+        return result.toString();
+    }
+
+    /**
+     * 日志中每条记录的结束位置
+     */
+    private static List<Long> recordEnds(byte[] data) {
+        List<Long> result = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while(buf.remaining()>=8) {
+            int len = buf.getInt();
+            buf.getInt();
+            buf.position(buf.position()+len);
+            result.add((long)buf.position());
+        }
+        return result;
+    }
+
+    @Test
+    public void testCrashRecovery() throws Exception {
+        initServices();
+        AccountImpl account = createAccount(0, true);
+        TreeMap<Long, String> signatures = runScenario(account);
+        account.destroy();
+        File journalFile = account.getJournal().getJournalFile();
+        File snapshotFile = account.getJournal().getSnapshotFile();
+        byte[] journalData = Files.readAllBytes(journalFile.toPath());
+        byte[] snapshotData = Files.readAllBytes(snapshotFile.toPath());
+        List<Long> recordEnds = recordEnds(journalData);
+        assertTrue(recordEnds.size()>20);
+        assertEquals(journalData.length, recordEnds.get(recordEnds.size()-1).longValue());
+        assertTrue(signature(account).contains("Canceled"));
+        assertTrue(account.getPosition(ap010).getVolume(PosVolume.CloseVolume)>0);
+
+        List<Long> crashPoints = new ArrayList<>();
+        crashPoints.add(0L);
+        long lastEnd = 0;
+        for(Long end:recordEnds) {
+            //记录中间截断
+            crashPoints.add(lastEnd+5);
+            crashPoints.add((lastEnd+end)/2);
+            crashPoints.add(end);
+            lastEnd = end;
+        }
+        int checked = 0;
+        for(long crashPoint:crashPoints) {
+            Files.write(snapshotFile.toPath(), snapshotData);
+            Files.write(journalFile.toPath(), Arrays.copyOf(journalData, (int)crashPoint));
+
+            AccountImpl account2 = createAccount(0, false);
+            //恢复后不完整的记录被截断
+            long validLength = recordEnds.stream().filter(end->end<=crashPoint).reduce(0L, (a,b)->b);
+            assertEquals(validLength, account2.getJournal().getJournalFile().length());
+            assertEquals(recordEnds.stream().filter(end->end<=crashPoint).count(), account2.getJournal().getSeq());
+            String expected = signatures.get(validLength);
+            if ( expected!=null ) {
+                assertEquals("crash at "+crashPoint, expected, signature(account2));
+                checked++;
+            }
+            for(Order order:account2.getOrders()) {
+                int txnVolume = 0;
+                for(Transaction txn:order.getTransactions()) {
+                    txnVolume += txn.getVolume();
+                }
+                assertEquals(order.getVolume(OdrVolume.TradeVolume), txnVolume);
+            }
+            account2.destroy();
+        }
+        assertTrue(checked>10);
+        //全部日志恢复与崩溃前一致
+        assertEquals(signature(account), signatures.lastEntry().getValue());
+    }
+
+    @Test
+    public void testSnapshotRecovery() throws Exception {
+        initServices();
+        AccountImpl account = createAccount(5, true);
+        runScenario(account);
+        account.destroy();
+        AccountJournal journal = account.getJournal();
+        assertNotNull(journal);
+        assertTrue(journal.hasSnapshot());
+        //定期快照后日志只保留最近的记录
+        assertTrue(journal.getJournalFile().length()<1024);
+
+        long t0 = System.currentTimeMillis();
+        AccountImpl account2 = createAccount(5, false);
+        long t1 = System.currentTimeMillis();
+        assertEquals(signature(account), signature(account2));
+        for(Order order:account.getOrders()) {
+            Order order2 = account2.getOrder(order.getId());
+            assertEquals(order.getStateTuples(), order2.getStateTuples());
+            assertEquals(order.getAttr(Order.ODRATR_CTP_SYS_ID), order2.getAttr(Order.ODRATR_CTP_SYS_ID));
+        }
+        System.out.println("Account recovered from snapshot in "+(t1-t0)+" ms");
+
+        //损坏的日志尾部被丢弃后继续追加
+        try(RandomAccessFile raf = new RandomAccessFile(journal.getJournalFile(), "rw");){
+            raf.seek(raf.length());
+            raf.write(new byte[] {0, 0, 1, 0, 1, 2});
+        }
+        account2.destroy();
+        AccountImpl account3 = createAccount(5, false);
+        assertEquals(signature(account), signature(account3));
+        account3.destroy();
+    }
+
+}
@@ -0,0 +1,103 @@
+package trader.service.trade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.FileUtil;
+import trader.common.util.PriceUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+
+public class FutureFeeEvaluatorTest implements TradeConstants {
+
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    Exchangeable au1906 = Exchangeable.fromString("au1906");
+    Exchangeable ru1905 = Exchangeable.fromString("ru1905");
+
+    private FutureFeeEvaluator load() throws Exception {
+        File file = new File(TraderHomeUtil.getTraderHome(), "etc/sim-account1.commissions.json");
+        return FutureFeeEvaluator.fromJson(null, (JsonObject)JsonParser.parseString(FileUtil.read(file)));
+    }
+
+    @Test
+    public void testCompute() throws Exception {
+        FutureFeeEvaluator feeEval = load();
+        long[] buf = new long[3];
+        for(Exchangeable e:new Exchangeable[] {au1906, ru1905}) {
+            for(OrderOffsetFlag offsetFlag:OrderOffsetFlag.values()) {
+                for(OrderDirection dir:OrderDirection.values()) {
+                    for(int vol=1;vol<20;vol+=3) {
+                        long price = PriceUtil.price2long(e==au1906?(285.35+vol*0.05):(12345+vol*5));
+                        long[] fees = feeEval.compute(e, vol, price, dir, offsetFlag);
+                        assertTrue(feeEval.compute(buf, e, vol, price, dir, offsetFlag));
+                        assertEquals(fees[0], buf[0]);
+                        assertEquals(fees[1], buf[1]);
+                        assertEquals(fees[2], buf[2]);
+                        assertEquals(fees[0], feeEval.computeMargin(e, vol, price, dir.toPosDirection()));
+                        assertEquals(fees[1], feeEval.computeCommission(e, vol, price, offsetFlag));
+                        assertEquals(fees[2], feeEval.computeValue(e, vol, price));
+
+                        long[] posFees = feeEval.compute(e, vol, price, dir.toPosDirection());
+                        assertEquals(fees[0], posFees[0]);
+                        assertEquals(fees[2], posFees[1]);
+                    }
+                }
+            }
+        }
+        //au1906: 1000克/手, 保证金9%, 开仓10.01元/手+成交额万分之0.0006, 按分取整
+        long price = PriceUtil.price2long(300.00);
+        assertTrue(feeEval.compute(buf, au1906, 2, price, OrderDirection.Buy, OrderOffsetFlag.OPEN));
+        assertEquals(PriceUtil.price2long(600000), buf[2]);
+        assertEquals(PriceUtil.price2long(54000), buf[0]);
+        assertEquals(PriceUtil.price2long(20.06), buf[1]);
+        //平今按手数免收
+        assertEquals(PriceUtil.price2long(0.04), feeEval.computeCommission(au1906, 2, price, OrderOffsetFlag.CLOSE_TODAY));
+
+        //没有费率的合约
+        Exchangeable ag1906 = Exchangeable.fromString("ag1906");
+        assertFalse(feeEval.compute(buf, ag1906, 1, price, OrderDirection.Buy, OrderOffsetFlag.OPEN));
+        assertEquals(0, feeEval.computeMargin(ag1906, 1, price, PosDirection.Long));
+    }
+
+    /**
+     * 报单检查和成交处理路径的费用计算耗时
+     */
+    @Test
+    public void benchmarkCompute() throws Exception {
+        FutureFeeEvaluator feeEval = load();
+        long price = PriceUtil.price2long(300.00);
+        int rounds = 2000000;
+        for(int j=0;j<3;j++) {
+            long total = 0;
+            long t0 = System.nanoTime();
+            long[] buf = FutureFeeEvaluator.threadFeesBuffer();
+            for(int i=0;i<rounds;i++) {
+                //报单检查: 保证金+手续费
+                feeEval.compute(buf, au1906, 1+(i&7), price+(i&15)*1000, (i&1)==0?OrderDirection.Buy:OrderDirection.Sell, OrderOffsetFlag.OPEN);
+                total += buf[0]+buf[1];
+            }
+            long t1 = System.nanoTime();
+            for(int i=0;i<rounds;i++) {
+                //成交处理: 手续费+平仓价值+持仓保证金
+                feeEval.compute(buf, au1906, 1+(i&7), price+(i&15)*1000, OrderDirection.Sell, OrderOffsetFlag.CLOSE);
+                total += buf[2]-feeEval.computeValue(au1906, 1+(i&7), price);
+                total += feeEval.computeMargin(au1906, 1+(i&7), price, PosDirection.Long);
+            }
+            long t2 = System.nanoTime();
+            System.out.println("FutureFeeEvaluator validate path: "+((t1-t0)/rounds)+" ns/op, txn path: "+((t2-t1)/rounds)+" ns/op ("+total+")");
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package trader.service.trade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+import trader.common.beans.BeansContainer;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.PriceUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.repository.BORepository;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimBORepository;
+
+public class OrderImplTest implements TradeConstants {
+
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    Exchangeable au1906 = Exchangeable.fromString("au1906");
+    LocalDate tradingDay = LocalDate.of(2019, 4, 1);
+
+    private OrderBuilder createBuilder() {
+        return new OrderBuilder()
+                .setExchagneable(au1906)
+                .setDirection(OrderDirection.Buy)
+                .setOffsetFlag(OrderOffsetFlag.OPEN)
+                .setLimitPrice(PriceUtil.price2long(300.00))
+                .setVolume(2);
+    }
+
+    @Test
+    public void testStateTuples() {
+        OrderImpl order = new OrderImpl("odr_1", "acc1", tradingDay, "000001", createBuilder(), null);
+        assertEquals(OrderStateTuple.STATE_UNKNOWN, order.getStateTuple());
+        assertTrue(order.getStateTuples().isEmpty());
+        assertTrue(order.getTransactions().isEmpty());
+        assertNull(order.getAttr(Order.ODRATR_CTP_SYS_ID));
+
+        OrderStateTuple[] states = new OrderStateTuple[] {
+            new OrderStateTuple(OrderState.Submitting, OrderSubmitState.InsertSubmitting, 1000),
+            new OrderStateTuple(OrderState.Submitted, OrderSubmitState.InsertSubmitted, 1001, "已提交"),
+            new OrderStateTuple(OrderState.Accepted, OrderSubmitState.Accepted, 1002),
+            new OrderStateTuple(OrderState.Accepted, OrderSubmitState.CancelSubmitting, 1003),
+            new OrderStateTuple(OrderState.Accepted, OrderSubmitState.CancelSubmitted, 1004),
+            new OrderStateTuple(OrderState.ParticallyComplete, OrderSubmitState.Accepted, 1005),
+            new OrderStateTuple(OrderState.Accepted, OrderSubmitState.ModifySubmitting, 1006, "改单"),
+            new OrderStateTuple(OrderState.Canceled, OrderSubmitState.Accepted, 1007),
+        };
+        for(OrderStateTuple state:states) {
+            order.changeState(state);
+        }
+        //结束状态后不再变化
+        assertNull(order.changeState(new OrderStateTuple(OrderState.Complete, OrderSubmitState.Accepted, 1008)));
+        List<OrderStateTuple> stateTuples = order.getStateTuples();
+        assertEquals(states.length, stateTuples.size());
+        for(int i=0;i<states.length;i++) {
+            assertEquals(states[i], stateTuples.get(i));
+            assertEquals(states[i].getStateMessage(), stateTuples.get(i).getStateMessage());
+        }
+        assertTrue(order.getStateTuple()==states[states.length-1]);
+
+        order.setAttr(Order.ODRATR_CTP_SYS_ID, "12345");
+        order.setAttr(Order.ODRATR_CTP_STATUS, "a");
+        order.setAttr(Order.ODRATR_CTP_STATUS, null);
+
+        //JSON序列化后恢复
+        OrderImpl order2 = new OrderImpl(null, (JsonObject)order.toJson());
+        assertEquals(order.getStateTuples(), order2.getStateTuples());
+        assertEquals(order.getStateTuple(), order2.getStateTuple());
+        assertEquals("12345", order2.getAttr(Order.ODRATR_CTP_SYS_ID));
+        assertNull(order2.getAttr(Order.ODRATR_CTP_STATUS));
+        assertEquals(order.toJson(), order2.toJson());
+    }
+
+    @Test
+    public void testOrderRef() throws Exception {
+        assertEquals("000001", OrderRefGenImpl.formatRef(1));
+        assertEquals("012345", OrderRefGenImpl.formatRef(12345));
+        assertEquals("1234567", OrderRefGenImpl.formatRef(1234567));
+
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimBORepository repository = new SimBORepository();
+        beansContainer.addBean(BORepository.class, repository);
+        OrderRefGenImpl refGen = new OrderRefGenImpl(createTradeService(), tradingDay, beansContainer);
+
+        //每个账户独立单调递增, 多线程下不重复
+        Map<String, Set<String>> refs = new ConcurrentHashMap<>();
+        Thread[] threads = new Thread[4];
+        for(int i=0;i<threads.length;i++) {
+            String accountId = "acc"+(i%2);
+            Set<String> accountRefs = refs.computeIfAbsent(accountId, (k)->ConcurrentHashMap.newKeySet());
+            threads[i] = new Thread(()->{
+                String lastRef = null;
+                for(int j=0;j<10000;j++) {
+                    String ref = refGen.nextRefId(accountId);
+                    assertTrue(accountRefs.add(ref));
+                    assertTrue(lastRef==null || ref.compareTo(lastRef)>0);
+                    lastRef = ref;
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread thread:threads) {
+            thread.join();
+        }
+        assertEquals(20000, refs.get("acc0").size());
+        assertEquals(20000, refGen.getRefId("acc1"));
+
+        //重新加载后从保存的位置继续
+        OrderRefGenImpl refGen2 = new OrderRefGenImpl(createTradeService(), tradingDay, beansContainer);
+        assertEquals("020001", refGen2.nextRefId("acc0"));
+        assertEquals("020001", refGen2.nextRefId("acc2"));
+    }
+
+    /**
+     * 每个报单从生成OrderRef, 创建到完成状态变化的内存分配
+     */
+    @Test
+    public void benchmarkOrderAllocation() throws Exception {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        OrderRefGenImpl refGen = new OrderRefGenImpl(createTradeService(), tradingDay, beansContainer);
+        OrderBuilder builder = createBuilder();
+        int rounds = 200000;
+        long bytesPerOrder = 0;
+        for(int j=0;j<3;j++) {
+            long hash = 0;
+            long bytes0 = threadMXBean.getThreadAllocatedBytes(threadId);
+            long t0 = System.nanoTime();
+            for(int i=0;i<rounds;i++) {
+                String ref = refGen.nextRefId("acc1");
+                OrderImpl order = new OrderImpl(ref, "acc1", tradingDay, ref, builder, null);
+                order.changeState(new OrderStateTuple(OrderState.Submitting, OrderSubmitState.InsertSubmitting, i));
+                order.changeState(new OrderStateTuple(OrderState.Submitted, OrderSubmitState.InsertSubmitted, i+1));
+                order.changeState(new OrderStateTuple(OrderState.Accepted, OrderSubmitState.Accepted, i+2));
+                order.changeState(new OrderStateTuple(OrderState.Accepted, OrderSubmitState.CancelSubmitting, i+3));
+                order.changeState(new OrderStateTuple(OrderState.Canceled, OrderSubmitState.Accepted, i+4));
+                hash += order.hashCode();
+            }
+            long t1 = System.nanoTime();
+            long bytes1 = threadMXBean.getThreadAllocatedBytes(threadId);
+            bytesPerOrder = (bytes1-bytes0)/rounds;
+            System.out.println("OrderImpl lifecycle: "+((t1-t0)/rounds)+" ns/order, "+bytesPerOrder+" bytes/order ("+hash+")");
+        }
+        assertTrue(bytesPerOrder<1024);
+    }
+
+    private static TradeService createTradeService() {
+        return new TradeService() {
+            @Override
+            public void init(BeansContainer beansContainer) throws Exception {
+            }
+
+            @Override
+            public void destroy() {
+            }
+
+            @Override
+            public TradeServiceType getType() {
+                return TradeServiceType.RealTime;
+            }
+
+            @Override
+            public Account getPrimaryAccount() {
+                return null;
+            }
+
+            @Override
+            public Account getAccount(String id) {
+                return null;
+            }
+
+            @Override
+            public List<Account> getAccounts() {
+                return null;
+            }
+
+            @Override
+            public Map<String, TxnSessionFactory> getTxnSessionFactories() {
+                return null;
+            }
+
+            @Override
+            public OrderRefGen getOrderRefGen() {
+                return null;
+            }
+
+            @Override
+            public void addListener(TradeServiceListener listener) {
+            }
+        };
+    }
+
+}
@@ -0,0 +1,228 @@
+package trader.service.trade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.PriceUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.trade.OrderRiskEngine.RiskCheck;
+
+public class OrderRiskEngineTest implements TradeConstants {
+
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    Exchangeable au1906 = Exchangeable.fromString("au1906");
+    long avail = PriceUtil.price2long(1000000);
+    long margin = PriceUtil.price2long(30000);
+    long commission = PriceUtil.price2long(10);
+
+    private OrderRiskEngine createEngine(String... props) {
+        Properties p = new Properties();
+        for(int i=0;i<props.length;i+=2) {
+            p.setProperty(props[i], props[i+1]);
+        }
+        OrderRiskEngine engine = new OrderRiskEngine();
+        engine.setProperties(p);
+        engine.onMarketData(createTick(au1906, 300.00, 310.00, 290.00));
+        return engine;
+    }
+
+    private RiskCheck checkOpen(OrderRiskEngine engine, OrderDirection dir, int volume, double price, long time) {
+        return engine.check(au1906, dir, OrderOffsetFlag.OPEN, OrderPriceType.LimitPrice, volume, PriceUtil.price2long(price), margin, commission, avail, time);
+    }
+
+    @Test
+    public void testVolume() {
+        OrderRiskEngine engine = createEngine("maxOrderVolume", "10", "au.maxOrderVolume", "5");
+        assertEquals(RiskCheck.InvalidVolume, checkOpen(engine, OrderDirection.Buy, 0, 300, 0));
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Buy, 5, 300, 0));
+        assertEquals(RiskCheck.OrderVolumeExceedsLimit, checkOpen(engine, OrderDirection.Buy, 6, 300, 0));
+    }
+
+    @Test
+    public void testPosition() {
+        OrderRiskEngine engine = createEngine("maxPosVolume", "10");
+        engine.updatePosition(au1906, 4, 2, 3, 0, 0, 0, Long.MAX_VALUE);
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Buy, 3, 300, 0));
+        assertEquals(RiskCheck.PosVolumeExceedsLimit, checkOpen(engine, OrderDirection.Buy, 4, 300, 0));
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Sell, 8, 300, 0));
+
+        //平多不能超过多仓, 平空不能超过空仓
+        assertEquals(RiskCheck.Passed, engine.check(au1906, OrderDirection.Sell, OrderOffsetFlag.CLOSE, OrderPriceType.LimitPrice, 4, PriceUtil.price2long(300), 0, commission, avail, 0));
+        assertEquals(RiskCheck.CloseVolumeExceedsPosition, engine.check(au1906, OrderDirection.Sell, OrderOffsetFlag.CLOSE, OrderPriceType.LimitPrice, 5, PriceUtil.price2long(300), 0, commission, avail, 0));
+        assertEquals(RiskCheck.CloseVolumeExceedsPosition, engine.check(au1906, OrderDirection.Buy, OrderOffsetFlag.CLOSE_TODAY, OrderPriceType.LimitPrice, 3, PriceUtil.price2long(300), 0, commission, avail, 0));
+    }
+
+    @Test
+    public void testMargin() {
+        OrderRiskEngine engine = createEngine("marginBudget", "100000");
+        engine.updatePosition(au1906, 0, 0, 0, 0, PriceUtil.price2long(60000), 0, Long.MAX_VALUE);
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Buy, 1, 300, 0));
+        engine.updatePosition(au1906, 0, 0, 0, 0, PriceUtil.price2long(80000), 0, Long.MAX_VALUE);
+        assertEquals(RiskCheck.MarginBudgetExceeded, checkOpen(engine, OrderDirection.Buy, 1, 300, 0));
+
+        engine.updatePosition(au1906, 0, 0, 0, 0, 0, 0, Long.MAX_VALUE);
+        assertEquals(RiskCheck.AvailNotEnough, engine.check(au1906, OrderDirection.Buy, OrderOffsetFlag.OPEN, OrderPriceType.LimitPrice, 1, PriceUtil.price2long(300), margin, commission, margin, 0));
+    }
+
+    @Test
+    public void testPriceBand() {
+        OrderRiskEngine engine = createEngine("priceBandTicks", "100");
+        //au 最小变动0.02, 100跳是2元
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Buy, 1, 302.00, 0));
+        assertEquals(RiskCheck.PriceOutOfBand, checkOpen(engine, OrderDirection.Buy, 1, 302.02, 0));
+        assertEquals(RiskCheck.PriceOutOfBand, checkOpen(engine, OrderDirection.Sell, 1, 297.98, 0));
+        //涨跌停
+        OrderRiskEngine engine2 = createEngine();
+        assertEquals(RiskCheck.Passed, checkOpen(engine2, OrderDirection.Buy, 1, 310.00, 0));
+        assertEquals(RiskCheck.PriceOutOfBand, checkOpen(engine2, OrderDirection.Buy, 1, 310.02, 0));
+        assertEquals(RiskCheck.PriceOutOfBand, checkOpen(engine2, OrderDirection.Sell, 1, 289.98, 0));
+        //市价单不检查价格带
+        assertEquals(RiskCheck.Passed, engine.check(au1906, OrderDirection.Buy, OrderOffsetFlag.OPEN, OrderPriceType.AnyPrice, 1, PriceUtil.price2long(310), margin, commission, avail, 0));
+    }
+
+    @Test
+    public void testSelfTrade() {
+        OrderRiskEngine engine = createEngine("selfTradeCheck", "true");
+        engine.updatePosition(au1906, 0, 0, 0, 0, 0, PriceUtil.price2long(299.00), PriceUtil.price2long(301.00));
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Buy, 1, 300.98, 0));
+        assertEquals(RiskCheck.SelfTrade, checkOpen(engine, OrderDirection.Buy, 1, 301.00, 0));
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Sell, 1, 299.02, 0));
+        assertEquals(RiskCheck.SelfTrade, checkOpen(engine, OrderDirection.Sell, 1, 299.00, 0));
+
+        //缺省不检查自成交
+        OrderRiskEngine engine2 = createEngine();
+        engine2.updatePosition(au1906, 0, 0, 0, 0, 0, PriceUtil.price2long(299.00), PriceUtil.price2long(301.00));
+        assertEquals(RiskCheck.Passed, checkOpen(engine2, OrderDirection.Buy, 1, 301.00, 0));
+    }
+
+    @Test
+    public void testRate() {
+        OrderRiskEngine engine = createEngine("maxOrdersPerSecond", "2", "maxAccountOrdersPerSecond", "3");
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Buy, 1, 300, 1000));
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Buy, 1, 300, 1500));
+        assertEquals(RiskCheck.RateExceedsLimit, checkOpen(engine, OrderDirection.Buy, 1, 300, 1999));
+        //失败的检查不占用速率
+        assertEquals(RiskCheck.InvalidVolume, checkOpen(engine, OrderDirection.Buy, 0, 300, 2000));
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Buy, 1, 300, 2000));
+
+        //账户级别的速率
+        Exchangeable ag1906 = Exchangeable.fromString("ag1906");
+        engine.onMarketData(createTick(ag1906, 3500, 3600, 3400));
+        assertEquals(RiskCheck.Passed, checkOpen(engine, OrderDirection.Buy, 1, 300, 2001));
+        assertEquals(RiskCheck.Passed, engine.check(ag1906, OrderDirection.Buy, OrderOffsetFlag.OPEN, OrderPriceType.LimitPrice, 1, PriceUtil.price2long(3500), margin, commission, avail, 2002));
+        assertEquals(RiskCheck.RateExceedsLimit, engine.check(ag1906, OrderDirection.Buy, OrderOffsetFlag.OPEN, OrderPriceType.LimitPrice, 1, PriceUtil.price2long(3500), margin, commission, avail, 2003));
+    }
+
+    /**
+     * 多个线程同时获取报单许可, 每秒获取的许可数量不超过限制, 切换到新的一秒时不丢失计数
+     */
+    @Test
+    public void testRateConcurrent() throws Exception {
+        final int maxPerSecond = 1000, threadCount = 4, seconds = 50;
+        OrderRiskEngine.RateCounter counter = new OrderRiskEngine.RateCounter(maxPerSecond);
+        AtomicInteger[] acquired = new AtomicInteger[seconds];
+        for(int i=0;i<seconds;i++) {
+            acquired[i] = new AtomicInteger();
+        }
+        CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        Thread[] threads = new Thread[threadCount];
+        for(int t=0;t<threadCount;t++) {
+            threads[t] = new Thread(()->{
+                try {
+                    for(int second=0;second<seconds;second++) {
+                        barrier.await();
+                        for(int i=0;i<maxPerSecond;i++) {
+                            long time = second*1000L+i%1000;
+                            if ( counter.acquire(time) ) {
+                                acquired[second].incrementAndGet();
+                                //一部分许可被归还
+                                if ( (i&7)==0 ) {
+                                    counter.release(time);
+                                    acquired[second].decrementAndGet();
+                                }
+                            }
+                        }
+                    }
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread:threads) {
+            thread.join();
+        }
+        for(int i=0;i<seconds;i++) {
+            assertEquals("Second "+i, maxPerSecond, acquired[i].get());
+        }
+    }
+
+    /**
+     * 风控检查的耗时测试, 单次检查需要远低于1微秒, 并且不分配对象
+     */
+    @Test
+    public void benchmarkCheck() {
+        OrderRiskEngine engine = createEngine("maxOrderVolume", "10", "maxPosVolume", "100", "priceBandTicks", "100", "marginBudget", "1000000", "maxOrdersPerSecond", "100", "selfTradeCheck", "true");
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        engine.updatePosition(au1906, 4, 2, 3, 0, PriceUtil.price2long(60000), PriceUtil.price2long(299.00), PriceUtil.price2long(301.00));
+        long price = PriceUtil.price2long(300.00);
+        int rounds = 2000000;
+        int passed = 0;
+        for(int j=0;j<3;j++) {
+            passed = 0;
+            long allocated0 = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long t0 = System.nanoTime();
+            for(int i=0;i<rounds;i++) {
+                RiskCheck check = engine.check(au1906, (i&1)==0?OrderDirection.Buy:OrderDirection.Sell, OrderOffsetFlag.OPEN, OrderPriceType.LimitPrice, 1+(i&15), price, margin, commission, avail, (long)j*rounds+i);
+                if ( check==RiskCheck.Passed ) {
+                    passed++;
+                }
+            }
+            long t1 = System.nanoTime();
+            long allocated = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId())-allocated0;
+            System.out.println("OrderRiskEngine check: "+((t1-t0)/rounds)+" ns/op, passed "+passed+"/"+rounds+", allocated "+allocated+" bytes");
+            if ( j==2 ) {
+                assertTrue((t1-t0)/rounds<1000);
+                //预热后检查过程不分配对象, 只允许测量本身的少量分配
+                assertTrue("Allocated "+allocated+" bytes", allocated<1024);
+            }
+        }
+        assertTrue(passed>0);
+    }
+
+    static MarketData createTick(Exchangeable e, double lastPrice, double upperLimitPrice, double lowerLimitPrice) {
+        MarketData md = new MarketData() {
+            @Override
+            public String getCsvHead() {
+                return null;
+            }
+            @Override
+            public void toCsvRow(StringBuilder rowBuf) {
+            }
+            @Override
+            public MarketData clone() {
+                return this;
+            }
+        };
+        md.instrument = e;
+        md.lastPrice = PriceUtil.price2long(lastPrice);
+        md.highestPrice = md.lastPrice;
+        md.lowestPrice = md.lastPrice;
+        md.upperLimitPrice = PriceUtil.price2long(upperLimitPrice);
+        md.lowerLimitPrice = PriceUtil.price2long(lowerLimitPrice);
+        return md;
+    }
+
+}
@@ -0,0 +1,271 @@
+package trader.service.trade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Test;
+
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.PriceUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+import trader.simulator.SimMarketTimeService;
+import trader.simulator.SimScheduledExecutorService;
+import trader.simulator.trade.SimOrder;
+import trader.simulator.trade.SimQueueMatcher;
+import trader.simulator.trade.SimTxn;
+import trader.simulator.trade.SimTxnSession;
+
+/**
+ * 排队撮合模型: 排队位置的估计和消耗, 部分成交, 报单和撤单延迟
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class SimQueueMatcherTest implements TradeConstants {
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    LocalDateTime beginTime = LocalDateTime.of(2020, Month.AUGUST, 3, 8, 50);
+    LocalDateTime endTime = LocalDateTime.of(2020, Month.AUGUST, 3, 15, 04);
+    Exchangeable ap010 = Exchangeable.fromString("AP010");
+    LocalDate tradingDay = ap010.exchange().detectTradingTimes(ap010, beginTime).getTradingDay();
+
+    SimMarketTimeService mtService;
+    SimMarketDataService mdService;
+    AccountImpl account;
+
+    private void initAccount(String connProps) throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        mtService = new SimMarketTimeService();
+        mdService = new SimMarketDataService();
+        SimScheduledExecutorService scheduledExecutorService = new SimScheduledExecutorService();
+        beansContainer.addBean(MarketDataService.class, mdService);
+        beansContainer.addBean(MarketTimeService.class, mtService);
+        beansContainer.addBean(ScheduledExecutorService.class, scheduledExecutorService);
+        scheduledExecutorService.init(beansContainer);
+        mtService.setTimeRanges(tradingDay, new LocalDateTime[]{beginTime, endTime} );
+        mdService.addSubscriptions(Arrays.asList(new Exchangeable[] {ap010}));
+        mdService.init(beansContainer);
+
+        Map config = new HashMap<>();
+        String text =
+                "[connectionProps]\n"+
+                "initMoney=500000.00\n" +
+                "commissionsFile="+TraderHomeUtil.getTraderHome()+"/etc/sim-account1.commissions.json\n"+
+                connProps;
+        config.put("id", "sim-account1");
+        config.put("provider", TxnSession.PROVIDER_SIM);
+        config.put("text", text);
+        account = new AccountImpl(new TradeServiceTest(beansContainer), beansContainer, config);
+        mdService.addListener(account);
+        SimTxnSession txnSession = (SimTxnSession)account.getSession();
+        txnSession.connect(account.getConnectionProps());
+        mtService.addListener(txnSession);
+    }
+
+    private void moveTo(int hour, int minute) {
+        while(mtService.nextTimePiece()) {
+            LocalDateTime time = mtService.getMarketTime();
+            if ( time.getHour()==hour && time.getMinute()==minute ) {
+                break;
+            }
+        }
+    }
+
+    private static long p(double price) {
+        return PriceUtil.price2long(price);
+    }
+
+    /**
+     * 以真实行情为模板构造行情切片, 成交额包含合约乘数10
+     */
+    private static MarketData tick(MarketData base, long volume, long turnover, double last, double bid, int bidVolume, double ask, int askVolume) {
+        MarketData md = base.clone();
+        md.volume = volume;
+        md.turnover = turnover;
+        md.lastPrice = p(last);
+        md.bidPrices = new long[] {p(bid)};
+        md.bidVolumes = new int[] {bidVolume};
+        md.askPrices = new long[] {p(ask)};
+        md.askVolumes = new int[] {askVolume};
+        return md;
+    }
+
+    private SimOrder newOrder(OrderDirection dir, double limitPrice, int volume) throws Exception {
+        OrderBuilder builder = new OrderBuilder()
+                .setDirection(dir)
+                .setExchagneable(ap010)
+                .setLimitPrice(p(limitPrice))
+                .setPriceType(OrderPriceType.LimitPrice)
+                .setOffsetFlag(OrderOffsetFlag.OPEN)
+                .setVolume(volume);
+        Order order = new OrderImpl("1", "sim-account1", tradingDay, "000001", builder, null);
+        return new SimOrder(order, beginTime);
+    }
+
+    private MarketData templateTick() throws Exception {
+        initAccount("");
+        moveTo(9, 1);
+        return mdService.getLastData(ap010);
+    }
+
+    @Test
+    public void testQueueDrain() throws Exception {
+        MarketData base = templateTick();
+        SimQueueMatcher matcher = new SimQueueMatcher();
+        SimOrder order = newOrder(OrderDirection.Buy, 7000, 3);
+        long volume = 1000, turnover = p(7000)*10*volume;
+        //报单到达, 前面有10手
+        MarketData md = tick(base, volume, turnover, 7001, 7000, 10, 7001, 5);
+        assertNull(matcher.match(order, md, beginTime));
+        matcher.onMarketData(md);
+        //买一价主动卖出8手, 前面剩余2手
+        volume += 8; turnover += p(7000)*10*8;
+        md = tick(base, volume, turnover, 7000, 7000, 6, 7001, 5);
+        assertNull(matcher.match(order, md, beginTime));
+        matcher.onMarketData(md);
+        //卖一价主动买入, 不消耗买单队列
+        volume += 20; turnover += p(7001)*10*20;
+        md = tick(base, volume, turnover, 7001, 7000, 6, 7001, 5);
+        assertNull(matcher.match(order, md, beginTime));
+        matcher.onMarketData(md);
+        //主动卖出4手, 成交2手
+        volume += 4; turnover += p(7000)*10*4;
+        md = tick(base, volume, turnover, 7000, 7000, 3, 7001, 5);
+        SimTxn txn = matcher.match(order, md, beginTime);
+        assertEquals(2, txn.getVolume());
+        assertEquals(p(7000), txn.getPrice());
+        assertEquals(1, order.getRemainingVolume());
+        matcher.onMarketData(md);
+        //价格穿过报单价格, 剩余部分成交
+        volume += 5; turnover += p(6999)*10*5;
+        md = tick(base, volume, turnover, 6999, 6999, 3, 7000, 5);
+        txn = matcher.match(order, md, beginTime);
+        assertEquals(1, txn.getVolume());
+        assertEquals(3, order.getTradeVolume());
+    }
+
+    @Test
+    public void testCancelAheadAndAggressive() throws Exception {
+        MarketData base = templateTick();
+        SimQueueMatcher matcher = new SimQueueMatcher();
+        long volume = 1000, turnover = p(7000)*10*volume;
+        //卖单排在20手之后, 前面撤单到3手
+        SimOrder sell = newOrder(OrderDirection.Sell, 7001, 2);
+        MarketData md = tick(base, volume, turnover, 7001, 7000, 10, 7001, 20);
+        assertNull(matcher.match(sell, md, beginTime));
+        matcher.onMarketData(md);
+        md = tick(base, volume, turnover, 7001, 7000, 10, 7001, 3);
+        assertNull(matcher.match(sell, md, beginTime));
+        matcher.onMarketData(md);
+        volume += 4; turnover += p(7001)*10*4;
+        md = tick(base, volume, turnover, 7001, 7000, 10, 7001, 1);
+        SimTxn txn = matcher.match(sell, md, beginTime);
+        assertEquals(1, txn.getVolume());
+        matcher.onMarketData(md);
+
+        //可以立即成交的买单只成交卖一的挂单量, 按卖一价成交
+        SimOrder buy = newOrder(OrderDirection.Buy, 7002, 8);
+        md = tick(base, volume, turnover, 7001, 7000, 10, 7001, 5);
+        txn = matcher.match(buy, md, beginTime);
+        assertEquals(5, txn.getVolume());
+        assertEquals(p(7001), txn.getPrice());
+        matcher.onMarketData(md);
+        md = tick(base, volume, turnover, 7002, 7001, 10, 7003, 5);
+        assertNull(matcher.match(buy, md, beginTime));
+        matcher.onMarketData(md);
+        md = tick(base, volume, turnover, 7002, 7001, 10, 7002, 5);
+        txn = matcher.match(buy, md, beginTime);
+        assertEquals(3, txn.getVolume());
+        assertEquals(0, buy.getRemainingVolume());
+    }
+
+    /**
+     * 撤单延迟内报单保持撤单中状态, 生效后冻结资金全部回退
+     */
+    @Test
+    public void testOrderCancelLatency() throws Exception {
+        initAccount("matchModel=queue\norderLatency=300\ncancelLatency=800\n");
+        moveTo(9, 1);
+        MarketData md = mdService.getLastData(ap010);
+        Order order = account.createOrder(new OrderBuilder()
+                .setDirection(OrderDirection.Buy)
+                .setExchagneable(ap010)
+                .setLimitPrice(md.lastBidPrice())
+                .setPriceType(OrderPriceType.LimitPrice)
+                .setOffsetFlag(OrderOffsetFlag.OPEN)
+                .setVolume(20));
+        for(int i=0;i<20 && order.getStateTuple().getState()!=OrderState.ParticallyComplete;i++) {
+            mtService.nextTimePiece();
+        }
+        assertTrue(order.getStateTuple().getState()==OrderState.Accepted || order.getStateTuple().getState()==OrderState.ParticallyComplete);
+        account.cancelOrder(order.getId());
+        LocalDateTime cancelTime = mtService.getMarketTime();
+        assertTrue(order.getStateTuple().getSubmitState()==OrderSubmitState.CancelSubmitted);
+        while(!order.getStateTuple().getState().isDone()) {
+            assertTrue(mtService.nextTimePiece());
+        }
+        assertTrue(!mtService.getMarketTime().isBefore(cancelTime.plusNanos(800*1000000L)));
+        int tradeVolume = order.getVolume(OdrVolume.TradeVolume);
+        assertTrue(tradeVolume<20);
+        assertEquals(tradeVolume>0?OrderState.PartiallyDeleted:OrderState.Canceled, order.getStateTuple().getState());
+        Position pos = account.getPosition(ap010);
+        assertEquals(tradeVolume, pos.getVolume(PosVolume.LongPosition));
+        assertEquals(0, pos.getMoney(PosMoney.FrozenMargin));
+        assertEquals(0, account.getMoney(AccMoney.FrozenMargin));
+        assertEquals(0, account.getMoney(AccMoney.FrozenCommission));
+    }
+
+    /**
+     * 每个行情切片的撮合耗时
+     */
+    @Test
+    public void testMatchBenchmark() throws Exception {
+        initAccount("");
+        List<MarketData> ticks = new ArrayList<>();
+        mdService.addListener((md)->{
+            ticks.add(md);
+        }, ap010);
+        while(mtService.nextTimePiece());
+        assertTrue(ticks.size()>1000);
+        int orderCount = 10;
+        long matched = 0, elapsed = 0;
+        for(int round=0;round<5;round++) {
+            SimQueueMatcher matcher = new SimQueueMatcher();
+            SimOrder[] orders = new SimOrder[orderCount];
+            for(int i=0;i<orderCount;i++) {
+                double price = PriceUtil.long2price(ticks.get(0).lastPrice)+(i-orderCount/2);
+                orders[i] = newOrder(i%2==0?OrderDirection.Buy:OrderDirection.Sell, price, 1000000);
+            }
+            long t0 = System.nanoTime();
+            for(MarketData md:ticks) {
+                for(SimOrder order:orders) {
+                    SimTxn txn = matcher.match(order, md, beginTime);
+                    if ( txn!=null ) {
+                        matched += txn.getVolume();
+                    }
+                }
+                matcher.onMarketData(md);
+            }
+            elapsed = System.nanoTime()-t0;
+        }
+        assertTrue(matched>0);
+        System.out.println("Queue matcher "+orderCount+" orders "+ticks.size()+" ticks: "+(elapsed/ticks.size())+" ns/tick");
+    }
+
+}
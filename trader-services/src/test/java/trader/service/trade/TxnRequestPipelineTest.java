@@ -0,0 +1,296 @@
+package trader.service.trade;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Test;
+
+import trader.common.beans.BeansContainer;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.PriceUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketData;
+import trader.service.md.MarketDataService;
+import trader.service.trade.spi.TxnRequestPipeline;
+import trader.service.trade.spi.TxnRequestPipeline.RequestSender;
+import trader.service.trade.spi.TxnRequestPipeline.RequestType;
+import trader.service.util.SimpleBeansContainer;
+import trader.simulator.SimMarketDataService;
+import trader.simulator.SimMarketTimeService;
+import trader.simulator.SimScheduledExecutorService;
+import trader.simulator.trade.SimTxnSession;
+
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class TxnRequestPipelineTest implements TradeConstants {
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    Exchangeable ap010 = Exchangeable.fromString("AP010");
+    LocalDate tradingDay = LocalDate.of(2020, 8, 3);
+
+    private OrderImpl createOrder(int ref) {
+        OrderBuilder builder = new OrderBuilder()
+                .setExchagneable(ap010)
+                .setDirection(OrderDirection.Buy)
+                .setOffsetFlag(OrderOffsetFlag.OPEN)
+                .setLimitPrice(PriceUtil.price2long(7000))
+                .setVolume(1);
+        return new OrderImpl("odr_"+ref, "acc1", tradingDay, Integer.toString(ref), builder, null);
+    }
+
+    private static class RecordingSender implements RequestSender {
+        List<String> sent = new ArrayList<>();
+        List<String> canceled = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        int throttleCount;
+
+        @Override
+        public boolean sendRequest(RequestType type, Order order, OrderBuilder builder) throws Exception {
+            if ( throttleCount>0 ) {
+                throttleCount--;
+                return false;
+            }
+            String str = type+":"+order.getRef();
+            if ( builder!=null ) {
+                str += ":"+PriceUtil.long2str(builder.getLimitPrice());
+            }
+            sent.add(str);
+            return true;
+        }
+
+        @Override
+        public void onRequestFailed(RequestType type, Order order, OrderBuilder builder, Throwable t) {
+            failed.add(type+":"+order.getRef());
+        }
+
+        @Override
+        public void onInsertCanceled(Order order) {
+            canceled.add(order.getRef());
+        }
+    }
+
+    @Test
+    public void testThrottleAndPriority() {
+        long[] clock = new long[] {1000};
+        RecordingSender sender = new RecordingSender();
+        TxnRequestPipeline pipeline = new TxnRequestPipeline("test", sender, 2, 2, ()->clock[0]);
+        OrderImpl[] orders = new OrderImpl[6];
+        for(int i=1;i<orders.length;i++) {
+            orders[i] = createOrder(i);
+            pipeline.submit(RequestType.Insert, orders[i], null);
+        }
+        //突发2个请求立刻发送
+        assertEquals(Arrays.asList("Insert:1", "Insert:2"), sender.sent);
+        assertEquals(3, pipeline.getQueueSize());
+
+        //未发送的报单被撤单
+        pipeline.submit(RequestType.Cancel, orders[5], null);
+        assertEquals(Arrays.asList("5"), sender.canceled);
+        //重复撤单只保留一个
+        pipeline.submit(RequestType.Cancel, orders[1], null);
+        pipeline.submit(RequestType.Cancel, orders[1], null);
+        //改单只保留最后一个
+        pipeline.submit(RequestType.Modify, orders[2], new OrderBuilder().setLimitPrice(PriceUtil.price2long(7001)));
+        pipeline.submit(RequestType.Modify, orders[2], new OrderBuilder().setLimitPrice(PriceUtil.price2long(7002)));
+        assertEquals(4, pipeline.getQueueSize());
+        assertEquals(3, pipeline.getTotalCoalesced());
+
+        clock[0] += 499;
+        assertTrue(pipeline.drain()>0);
+        assertEquals(2, sender.sent.size());
+        //撤单优先
+        clock[0] += 1;
+        pipeline.drain();
+        assertEquals("Cancel:1", sender.sent.get(2));
+        clock[0] += 500;
+        pipeline.drain();
+        assertEquals("Modify:2:7002.00", sender.sent.get(3));
+        //交易通道流控, 稍后重发
+        sender.throttleCount = 1;
+        clock[0] += 500;
+        assertEquals(500, pipeline.drain());
+        assertEquals(4, sender.sent.size());
+        assertEquals(1, pipeline.getTotalThrottled());
+        clock[0] += 500;
+        pipeline.drain();
+        clock[0] += 500;
+        assertEquals(-1, pipeline.drain());
+        assertEquals(Arrays.asList("Insert:1", "Insert:2", "Cancel:1", "Modify:2:7002.00", "Insert:3", "Insert:4"), sender.sent);
+        assertEquals(0, pipeline.getQueueSize());
+        assertEquals(6, pipeline.getTotalSent());
+        assertEquals(2500, pipeline.getMaxQueueTime());
+        assertEquals(500+1000+2000+2500, pipeline.getTotalQueueTime());
+
+        //撤单取代排队中的改单
+        pipeline.submit(RequestType.Insert, createOrder(6), null);
+        pipeline.submit(RequestType.Insert, createOrder(7), null);
+        pipeline.submit(RequestType.Modify, orders[3], new OrderBuilder().setLimitPrice(PriceUtil.price2long(7003)));
+        pipeline.submit(RequestType.Cancel, orders[3], null);
+        clock[0] += 500;
+        pipeline.drain();
+        assertEquals("Cancel:3", sender.sent.get(sender.sent.size()-1));
+        assertEquals(2, pipeline.getQueueSize());
+
+        //停止时未发送的请求通知失败
+        pipeline.submit(RequestType.Cancel, orders[4], null);
+        pipeline.stop();
+        assertEquals(Arrays.asList("Cancel:4", "Insert:6", "Insert:7"), sender.failed);
+        assertEquals(0, pipeline.getQueueSize());
+    }
+
+    /**
+     * 不限流时交易通道流控, 等待重发间隔后重发, 不会连续重发
+     */
+    @Test
+    public void testRetryWithoutThrottle() {
+        long[] clock = new long[] {1000};
+        RecordingSender sender = new RecordingSender();
+        TxnRequestPipeline pipeline = new TxnRequestPipeline("test", sender, 0, 4, ()->clock[0]);
+        sender.throttleCount = 1;
+        pipeline.submit(RequestType.Insert, createOrder(1), null);
+        assertEquals(1, pipeline.getQueueSize());
+        assertEquals(1, pipeline.getTotalThrottled());
+        assertEquals(250, pipeline.drain());
+        clock[0] += 249;
+        assertEquals(1, pipeline.drain());
+        assertEquals(0, sender.sent.size());
+        clock[0] += 1;
+        assertEquals(-1, pipeline.drain());
+        assertEquals(Arrays.asList("Insert:1"), sender.sent);
+
+        pipeline.setRetryDelay(1000);
+        sender.throttleCount = 1;
+        pipeline.submit(RequestType.Insert, createOrder(2), null);
+        assertEquals(1000, pipeline.drain());
+        assertEquals(1, pipeline.getQueueSize());
+    }
+
+    /**
+     * 市场时间前进指定毫秒, 时间片通知包含终点时间
+     */
+    private static void advance(SimMarketTimeService mtService, long millis) {
+        long time0 = mtService.currentTimeMillis();
+        while(mtService.currentTimeMillis()-time0<=millis) {
+            mtService.nextTimePiece();
+        }
+    }
+
+    /**
+     * 模拟交易配置流控后, 按照市场时间发送请求
+     */
+    @Test
+    public void testSimTxnSession() throws Exception {
+        SimpleBeansContainer beansContainer = new SimpleBeansContainer();
+        SimMarketTimeService mtService = new SimMarketTimeService();
+        SimMarketDataService mdService = new SimMarketDataService() {
+            @Override
+            public void init(BeansContainer beansContainer) throws Exception {
+                super.init(beansContainer);
+                subscriptions.retainAll(Arrays.asList(ap010));
+            }
+        };
+        SimScheduledExecutorService scheduledExecutorService = new SimScheduledExecutorService();
+        beansContainer.addBean(MarketDataService.class, mdService);
+        beansContainer.addBean(MarketTimeService.class, mtService);
+        beansContainer.addBean(ScheduledExecutorService.class, scheduledExecutorService);
+        scheduledExecutorService.init(beansContainer);
+        mtService.setTimeRanges(tradingDay, new LocalDateTime[]{LocalDateTime.of(2020, 8, 3, 8, 59), LocalDateTime.of(2020, 8, 3, 9, 30)} );
+        mdService.addSubscriptions(Arrays.asList(new Exchangeable[] {ap010}));
+        mdService.init(beansContainer);
+
+        Map config = new HashMap<>();
+        String text =
+                "[connectionProps]\n"+
+                "initMoney=500000.00\n" +
+                "orderRateLimit=1\n" +
+                "orderBurstLimit=1\n" +
+                "commissionsFile="+TraderHomeUtil.getTraderHome()+"/etc/sim-account1.commissions.json\n";
+        config.put("id", "pipeline-account1");
+        config.put("provider", TxnSession.PROVIDER_SIM);
+        config.put("text", text);
+        AccountImpl account = new AccountImpl(new TradeServiceTest(beansContainer), beansContainer, config);
+        mdService.addListener(account);
+        SimTxnSession txnSession = (SimTxnSession)account.getSession();
+        txnSession.connect(account.getConnectionProps());
+        TxnRequestPipeline pipeline = txnSession.getRequestPipeline();
+        assertTrue(pipeline!=null && pipeline.isThrottled());
+
+        while(mtService.nextTimePiece()) {
+            LocalDateTime time = mtService.getMarketTime();
+            if ( time.getHour()==9 && time.getMinute()==1 ) {
+                break;
+            }
+        }
+        MarketData md = mdService.getLastData(ap010);
+        long tick = PriceUtil.price2long(1);
+        Order order1 = account.createOrder(new OrderBuilder().setExchagneable(ap010).setDirection(OrderDirection.Buy)
+                .setOffsetFlag(OrderOffsetFlag.OPEN).setLimitPrice(md.lastPrice-100*tick).setVolume(1));
+        Order order2 = account.createOrder(new OrderBuilder().setExchagneable(ap010).setDirection(OrderDirection.Buy)
+                .setOffsetFlag(OrderOffsetFlag.OPEN).setLimitPrice(md.lastPrice-101*tick).setVolume(1));
+        Order order3 = account.createOrder(new OrderBuilder().setExchagneable(ap010).setDirection(OrderDirection.Buy)
+                .setOffsetFlag(OrderOffsetFlag.OPEN).setLimitPrice(md.lastPrice-102*tick).setVolume(1));
+        assertEquals(OrderState.Submitted, order1.getStateTuple().getState());
+        assertEquals(OrderState.Submitting, order2.getStateTuple().getState());
+        assertEquals(OrderState.Submitting, order3.getStateTuple().getState());
+        assertEquals(2, pipeline.getQueueSize());
+
+        //等待1秒, 发送第二个报单
+        advance(mtService, 1000);
+        assertEquals(OrderState.Accepted, order1.getStateTuple().getState());
+        assertTrue(order2.getStateTuple().getState()!=OrderState.Submitting);
+        assertEquals(OrderState.Submitting, order3.getStateTuple().getState());
+
+        //撤单先于排队中的报单发送
+        account.cancelOrder(order1.getId());
+        advance(mtService, 1000);
+        assertEquals(OrderState.Canceled, order1.getStateTuple().getState());
+        assertEquals(OrderState.Submitting, order3.getStateTuple().getState());
+        advance(mtService, 1000);
+        assertEquals(OrderState.Accepted, order3.getStateTuple().getState());
+        assertEquals(0, pipeline.getQueueSize());
+        assertEquals(4, pipeline.getTotalSent());
+        assertTrue(pipeline.getMaxQueueTime()>=2000);
+
+        //报单发送前撤单, 直接取消, 不发送任何请求
+        Order order4 = account.createOrder(new OrderBuilder().setExchagneable(ap010).setDirection(OrderDirection.Buy)
+                .setOffsetFlag(OrderOffsetFlag.OPEN).setLimitPrice(md.lastPrice-103*tick).setVolume(1));
+        assertEquals(OrderState.Submitting, order4.getStateTuple().getState());
+        assertEquals(1, pipeline.getQueueSize());
+        assertTrue(account.cancelOrder(order4.getId()));
+        assertEquals(OrderState.Canceled, order4.getStateTuple().getState());
+        assertEquals(0, pipeline.getQueueSize());
+        assertEquals(1, pipeline.getTotalCoalesced());
+        advance(mtService, 1000);
+        assertEquals(4, pipeline.getTotalSent());
+
+        //报单发送前改单, 改单请求被合并, 报单发送时使用新价格
+        Order order5 = account.createOrder(new OrderBuilder().setExchagneable(ap010).setDirection(OrderDirection.Buy)
+                .setOffsetFlag(OrderOffsetFlag.OPEN).setLimitPrice(md.lastPrice-104*tick).setVolume(1));
+        Order order6 = account.createOrder(new OrderBuilder().setExchagneable(ap010).setDirection(OrderDirection.Buy)
+                .setOffsetFlag(OrderOffsetFlag.OPEN).setLimitPrice(md.lastPrice-105*tick).setVolume(1));
+        assertEquals(OrderState.Submitted, order5.getStateTuple().getState());
+        assertEquals(OrderState.Submitting, order6.getStateTuple().getState());
+        long newPrice = md.lastPrice-106*tick;
+        assertTrue(account.modifyOrder(order6.getId(), new OrderBuilder().setLimitPrice(newPrice)));
+        assertEquals(newPrice, order6.getLimitPrice());
+        assertEquals(1, pipeline.getQueueSize());
+        assertEquals(2, pipeline.getTotalCoalesced());
+        advance(mtService, 1000);
+        assertEquals(OrderState.Accepted, order6.getStateTuple().getState());
+        assertEquals(newPrice, order6.getLimitPrice());
+        assertEquals(6, pipeline.getTotalSent());
+        account.destroy();
+    }
+
+}
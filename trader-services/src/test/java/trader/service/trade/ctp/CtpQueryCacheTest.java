@@ -0,0 +1,192 @@
+package trader.service.trade.ctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import net.jctp.CThostFtdcInstrumentCommissionRateField;
+import net.jctp.CThostFtdcInstrumentField;
+import net.jctp.CThostFtdcInstrumentMarginRateField;
+import net.jctp.JctpConstants;
+import trader.common.exchangeable.Exchangeable;
+import trader.common.util.DateUtil;
+import trader.common.util.FileUtil;
+import trader.common.util.TraderHomeUtil;
+import trader.service.TraderHomeHelper;
+import trader.service.md.MarketDataService;
+import trader.service.trade.Account;
+import trader.service.util.SimpleBeansContainer;
+import trader.service.trade.ctp.CtpTxnSession.StartupStep;
+
+public class CtpQueryCacheTest {
+    static {
+        TraderHomeHelper.init(null);
+    }
+
+    static final LocalDate tradingDay = LocalDate.of(2020, 8, 3);
+    static final Exchangeable ap010 = Exchangeable.fromString("AP010");
+    static final Exchangeable au2012 = Exchangeable.fromString("au2012");
+
+    /**
+     * 不连接CTP, 查询请求返回固定数据的交易会话
+     */
+    static class MockCtpTxnSession extends CtpTxnSession {
+        int instrumentQueries;
+        int marginQueries;
+        int commissionQueries;
+
+        MockCtpTxnSession(SimpleBeansContainer beansContainer, Account account, LocalDate tradingDay, Properties connProps){
+            super(beansContainer, account, null);
+            this.tradingDay = tradingDay;
+            loadConnProps(connProps);
+            initQueryCache();
+        }
+
+        @Override
+        protected CThostFtdcInstrumentField[] qryInstruments() throws Exception {
+            instrumentQueries++;
+            return new CThostFtdcInstrumentField[] {
+                    instrument("CZCE", "AP010", "苹果010", 1, 10),
+                    instrument("SHFE", "au2012", "黄金2012", 0.02, 1000)
+            };
+        }
+
+        @Override
+        protected CThostFtdcInstrumentMarginRateField qryInstrumentMarginRate(Exchangeable e) throws Exception {
+            marginQueries++;
+            CThostFtdcInstrumentMarginRateField r = new CThostFtdcInstrumentMarginRateField();
+            r.InstrumentID = e.id();
+            r.LongMarginRatioByMoney = r.ShortMarginRatioByMoney = e.equals(ap010)?0.1:0.08;
+            return r;
+        }
+
+        @Override
+        protected CThostFtdcInstrumentCommissionRateField qryInstrumentCommissionRate(Exchangeable e) throws Exception {
+            commissionQueries++;
+            if ( e.equals(au2012) ) {
+                return null;
+            }
+            CThostFtdcInstrumentCommissionRateField r = new CThostFtdcInstrumentCommissionRateField();
+            r.InstrumentID = e.id();
+            r.OpenRatioByVolume = r.CloseRatioByVolume = 5;
+            r.CloseTodayRatioByVolume = 20;
+            return r;
+        }
+
+        private static CThostFtdcInstrumentField instrument(String exchangeId, String instrumentId, String name, double priceTick, int multiple) {
+            CThostFtdcInstrumentField r = new CThostFtdcInstrumentField();
+            r.ExchangeID = exchangeId;
+            r.InstrumentID = instrumentId;
+            r.InstrumentName = name;
+            r.ProductClass = JctpConstants.THOST_FTDC_PC_Futures;
+            r.IsTrading = true;
+            r.PriceTick = priceTick;
+            r.VolumeMultiple = multiple;
+            return r;
+        }
+    }
+
+    private static <T> T mock(Class<T> clazz, Object ... methodResults) {
+        return (T)Proxy.newProxyInstance(clazz.getClassLoader(), new Class[] {clazz}, (proxy, method, args)->{
+            for(int i=0;i<methodResults.length;i+=2) {
+                if ( method.getName().equals(methodResults[i]) ) {
+                    return methodResults[i+1];
+                }
+            }
+            return null;
+        });
+    }
+
+    private SimpleBeansContainer beansContainer;
+    private Account account;
+    private Properties connProps;
+    private List<Exchangeable> subscriptions = Arrays.asList(ap010, au2012);
+
+    private void initServices() {
+        beansContainer = new SimpleBeansContainer();
+        Collection<Exchangeable> primaryInstruments = subscriptions;
+        beansContainer.addBean(MarketDataService.class, mock(MarketDataService.class, "getPrimaryInstruments", primaryInstruments));
+        account = mock(Account.class, "getId", "ctp-test", "getLoggerCategory", "trader.service.trade.ctp-test");
+        connProps = new Properties();
+        connProps.setProperty("brokerId", "9999");
+        connProps.setProperty("userId", "000001");
+        connProps.setProperty("queryRateLimit", "20");
+    }
+
+    private File cacheFile(LocalDate day) {
+        return new File(new File(TraderHomeUtil.getDirectory(TraderHomeUtil.DIR_WORK), DateUtil.date2str(day)), "ctp-9999-000001.query-cache.json");
+    }
+
+    @Test
+    public void testCachedStartupQueries() throws Exception {
+        initServices();
+        cacheFile(tradingDay).delete();
+
+        //首次启动, 全部查询
+        MockCtpTxnSession session = new MockCtpTxnSession(beansContainer, account, tradingDay, connProps);
+        String feeJson = session.syncLoadFeeEvaluator(subscriptions);
+        assertEquals(1, session.instrumentQueries);
+        assertEquals(2, session.marginQueries);
+        assertEquals(2, session.commissionQueries);
+        assertTrue(cacheFile(tradingDay).exists());
+        assertTrue(feeJson.indexOf("AP010.czce")>0 && feeJson.indexOf("au2012.shfe")>0);
+        //5次查询, 每次间隔至少50ms
+        assertEquals(5, session.getTotalQueries());
+        assertTrue(session.getTotalQueryWaitTime()>0);
+        assertTrue(session.getStartupTime(StartupStep.LoadFeeEvaluator)>=200);
+        assertTrue(session.getStartupTime(StartupStep.QryInstruments)>0);
+        assertTrue(session.getStartupTime(StartupStep.QryCommissionRates)>=session.getStartupTime(StartupStep.QryMarginRates));
+        assertTrue(session.getStartupTime(StartupStep.LoadFeeEvaluator)>=session.getStartupTime(StartupStep.QryInstruments));
+        assertEquals(0, session.getStartupTime(StartupStep.Login));
+
+        //重启, 全部来自缓存, 空的查询结果也被缓存
+        MockCtpTxnSession session2 = new MockCtpTxnSession(beansContainer, account, tradingDay, connProps);
+        String feeJson2 = session2.syncLoadFeeEvaluator(subscriptions);
+        assertEquals(feeJson, feeJson2);
+        assertEquals(0, session2.instrumentQueries+session2.marginQueries+session2.commissionQueries);
+        assertEquals(5, session2.getQueryCache().getTotalHits());
+        assertEquals(0, session2.getTotalQueryWaitTime());
+
+        //缓存文件损坏, 重新查询
+        String text = FileUtil.read(cacheFile(tradingDay));
+        FileUtil.save(cacheFile(tradingDay), text.replace("AP010", "AP011"));
+        MockCtpTxnSession session3 = new MockCtpTxnSession(beansContainer, account, tradingDay, connProps);
+        assertEquals(feeJson, session3.syncLoadFeeEvaluator(subscriptions));
+        assertEquals(1, session3.instrumentQueries);
+        assertEquals(2, session3.marginQueries);
+        assertEquals(2, session3.commissionQueries);
+
+        //查询缓存按交易日区分
+        LocalDate tradingDay2 = tradingDay.plusDays(1);
+        cacheFile(tradingDay2).getParentFile().mkdirs();
+        FileUtil.save(cacheFile(tradingDay2), FileUtil.read(cacheFile(tradingDay)));
+        MockCtpTxnSession session4 = new MockCtpTxnSession(beansContainer, account, tradingDay2, connProps);
+        session4.syncLoadFeeEvaluator(subscriptions);
+        assertEquals(1, session4.instrumentQueries);
+        cacheFile(tradingDay2).delete();
+    }
+
+    @Test
+    public void testCacheDisabled() throws Exception {
+        initServices();
+        connProps.setProperty("queryCache", "false");
+        connProps.setProperty("queryRateLimit", "0");
+        MockCtpTxnSession session = new MockCtpTxnSession(beansContainer, account, tradingDay, connProps);
+        session.syncLoadFeeEvaluator(subscriptions);
+        MockCtpTxnSession session2 = new MockCtpTxnSession(beansContainer, account, tradingDay, connProps);
+        session2.syncLoadFeeEvaluator(subscriptions);
+        assertEquals(1, session2.instrumentQueries);
+        assertEquals(2, session2.marginQueries);
+        assertEquals(0, session2.getTotalQueryWaitTime());
+    }
+
+}